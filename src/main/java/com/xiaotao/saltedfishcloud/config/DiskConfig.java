@@ -9,6 +9,8 @@ import com.xiaotao.saltedfishcloud.service.config.version.Version;
 import com.xiaotao.saltedfishcloud.service.file.path.PathHandler;
 import com.xiaotao.saltedfishcloud.service.file.path.RawPathHandler;
 import com.xiaotao.saltedfishcloud.service.file.path.UniquePathHandler;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
+import com.xiaotao.saltedfishcloud.service.user.UserIdentityCache;
 import com.xiaotao.saltedfishcloud.utils.OSInfo;
 import com.xiaotao.saltedfishcloud.utils.SecureUtils;
 import lombok.extern.slf4j.Slf4j;
@@ -17,9 +19,7 @@ import org.springframework.stereotype.Component;
 
 import java.io.File;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
+import java.util.*;
 
 /**
  * 全局配置信息类，用于读取配置文件中的参数
@@ -30,11 +30,16 @@ public class DiskConfig {
     public static Version VERSION;
     public static RawPathHandler rawPathHandler;
     public static UniquePathHandler uniquePathHandler;
+    public static StoragePool storagePool;
+    public static UserIdentityCache userIdentityCache;
 
     private static UserDao userDao;
 
     public static StoreType STORE_TYPE;
 
+    // 分块存储时是否对数据块进行透明压缩
+    public static boolean STORE_COMPRESS = true;
+
     // 可接收的头像文件后缀名
     public static final List<String> ACCEPT_AVATAR_TYPE = Arrays.asList("jpg", "jpeg", "gif", "png");
 
@@ -42,6 +47,27 @@ public class DiskConfig {
     public static int SYNC_DELAY;
     public static boolean LAUNCH_SYNC;  // 启动时同步
 
+    // 额外的存储卷根目录，与STORE_ROOT共同组成存储池
+    public static List<String> STORE_VOLUMES = Collections.emptyList();
+
+    // 存储池中作为冷存储层级的卷（须为STORE_ROOT或STORE_VOLUMES之一）
+    public static List<String> STORE_COLD_VOLUMES = Collections.emptyList();
+
+    // 超过该天数未被读取的文件将迁移到冷存储层级
+    public static int STORE_TIER_COLD_DAYS = 30;
+
+    // 冷存储层级的文件在一个分层周期内被读取达到该次数时迁回热存储层级
+    public static int STORE_TIER_HOT_READS = 3;
+
+    // 每个存储卷的最大并发IO数
+    public static int STORE_VOLUME_IO_LIMIT = 4;
+
+    // 切换存储模式时同时迁移数据的用户数
+    public static int STORE_SWITCH_THREADS = 4;
+
+    // 秒传时是否要求客户端证明持有文件内容（提供服务端随机指定区间的数据摘要），关闭后仅凭MD5与大小即可秒传
+    public static boolean QUICK_SAVE_PROOF = true;
+
     // 公共网盘路径
     public static String PUBLIC_ROOT;
 
@@ -86,15 +112,17 @@ public class DiskConfig {
         READ_ONLY_LEVEL = level;
     }
 
-    public DiskConfig(UserDao userDao, RawPathHandler rawPathHandler, UniquePathHandler uniquePathHandler) {
+    public DiskConfig(UserDao userDao, RawPathHandler rawPathHandler, UniquePathHandler uniquePathHandler, StoragePool storagePool, UserIdentityCache userIdentityCache) {
         DiskConfig.userDao = userDao;
         DiskConfig.rawPathHandler = rawPathHandler;
         DiskConfig.uniquePathHandler = uniquePathHandler;
+        DiskConfig.storagePool = storagePool;
+        DiskConfig.userIdentityCache = userIdentityCache;
     }
 
     /**
      * 通过UID获取文件存储的用户根目录，公共用户使用DiskConfig.PUBLIC_ROOT 其他用户使用DiskConfig.PRIVATE_ROOT + "/" + {username} <br>
-     * 该目录为原始存储模式下的目录
+     * 该目录为原始存储模式下的目录，用户名与目录通过{@link UserIdentityCache}缓存
      * @param uid 用户ID 0表示公共
      * @return 本地文件存储用户根目录，末尾不带/
      */
@@ -102,6 +130,13 @@ public class DiskConfig {
         if (uid == 0) {
             return PUBLIC_ROOT;
         }
+        if (userIdentityCache != null) {
+            String root = userIdentityCache.getStoreRoot(uid);
+            if (root == null) {
+                throw new JsonException(404, "资源不存在");
+            }
+            return root;
+        }
 
         User user = SecureUtils.getSpringSecurityUser();
         if (user != null && uid == user.getId()) {
@@ -159,13 +194,70 @@ public class DiskConfig {
 
     @Value("${store-type}")
     public void setStoreType(String type) {
-        if (type.toLowerCase().equals("raw")) {
-            STORE_TYPE = StoreType.RAW;
-        } else {
+        try {
+            STORE_TYPE = StoreType.valueOf(type.toUpperCase());
+        } catch (IllegalArgumentException e) {
             STORE_TYPE = StoreType.UNIQUE;
         }
     }
 
+    @Value("${store-volumes:}")
+    public void setStoreVolumes(String volumes) {
+        List<String> res = new ArrayList<>();
+        for (String volume : volumes.split(",")) {
+            volume = volume.trim();
+            if (volume.isEmpty()) continue;
+            if (!OSInfo.isWindows() && !volume.startsWith("/"))  {
+                throw new IllegalArgumentException("store-volumes must be start with \"/\" in Linux");
+            }
+            res.add(new File(volume).getPath());
+        }
+        if (!res.isEmpty()) {
+            log.info("[存储卷]" + res);
+        }
+        STORE_VOLUMES = Collections.unmodifiableList(res);
+    }
+
+    @Value("${store-cold-volumes:}")
+    public void setStoreColdVolumes(String volumes) {
+        List<String> res = new ArrayList<>();
+        for (String volume : volumes.split(",")) {
+            volume = volume.trim();
+            if (!volume.isEmpty()) res.add(new File(volume).getPath());
+        }
+        STORE_COLD_VOLUMES = Collections.unmodifiableList(res);
+    }
+
+    @Value("${store-tier-cold-days:30}")
+    public void setStoreTierColdDays(int days) {
+        STORE_TIER_COLD_DAYS = days;
+    }
+
+    @Value("${store-tier-hot-reads:3}")
+    public void setStoreTierHotReads(int reads) {
+        STORE_TIER_HOT_READS = reads;
+    }
+
+    @Value("${store-volume-io-limit:4}")
+    public void setStoreVolumeIoLimit(int limit) {
+        STORE_VOLUME_IO_LIMIT = limit;
+    }
+
+    @Value("${store-switch-threads:4}")
+    public void setStoreSwitchThreads(int threads) {
+        STORE_SWITCH_THREADS = threads;
+    }
+
+    @Value("${quick-save-proof:true}")
+    public void setQuickSaveProof(boolean proof) {
+        QUICK_SAVE_PROOF = proof;
+    }
+
+    @Value("${store-compress:true}")
+    public void setStoreCompress(boolean compress) {
+        STORE_COMPRESS = compress;
+    }
+
     /**
      * 获取当前登录用户的私人网盘根目录（不以/结尾）
      * @return 本地文件目录
@@ -175,7 +267,14 @@ public class DiskConfig {
         return getUserPrivateDiskRoot(Objects.requireNonNull(SecureUtils.getSpringSecurityUser()).getUsername());
     }
 
+    /**
+     * 获取用户的私人网盘根目录（不以/结尾），启用多个存储卷时目录可能位于任一存储卷上
+     * @param username  用户名
+     */
     public static String getUserPrivateDiskRoot(String username) {
+        if (storagePool != null) {
+            return storagePool.getUserRoot(username).toString();
+        }
         return getRawStoreRoot() + username;
     }
 
@@ -184,12 +283,19 @@ public class DiskConfig {
     }
 
     /**
-     * 获取唯一文件存储路径
+     * 获取唯一文件存储路径（STORE_ROOT所在卷），启用多个存储卷时文件实际位置应通过{@link StoragePool}获取
      */
     public static String getUniqueStoreRoot() {
         return DiskConfig.STORE_ROOT + "/repo/";
     }
 
+    /**
+     * 获取分块存储库路径
+     */
+    public static String getChunkStoreRoot() {
+        return DiskConfig.STORE_ROOT + "/chunk/";
+    }
+
     /**
      * 获取系统使用的的路径操纵器
      * @return  路径操纵器示例
@@ -5,7 +5,7 @@ import com.xiaotao.saltedfishcloud.service.config.ConfigName;
 import static com.xiaotao.saltedfishcloud.service.config.ConfigName.STORE_TYPE;
 
 public enum StoreType {
-    RAW,UNIQUE;
+    RAW,UNIQUE,CHUNKED;
     public static ConfigName getConfigKey() {
         return STORE_TYPE;
     }
@@ -1,7 +1,11 @@
 package com.xiaotao.saltedfishcloud.controller;
 
 import com.xiaotao.saltedfishcloud.exception.JsonException;
+import com.xiaotao.saltedfishcloud.exception.ResponseAbortedException;
 import com.xiaotao.saltedfishcloud.po.JsonResult;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.ChunkConflictException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.ChunkVerifyException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskLimitException;
 import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskNotFoundException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.dao.DuplicateKeyException;
@@ -81,6 +85,15 @@ public class ControllerAdvice {
         return responseError(404, e.getMessage());
     }
 
+    /**
+     * 响应已开始写出，无法再返回错误信息。重新抛出交由容器立即断开连接，客户端不会收到看似完整的响应
+     */
+    @ExceptionHandler(ResponseAbortedException.class)
+    public void handle(ResponseAbortedException e) throws ResponseAbortedException {
+        log.warn(e.getMessage(), e.getCause());
+        throw e;
+    }
+
     @ExceptionHandler(Exception.class)
     public JsonResult defaultHandle(Exception e) {
         log.error("异常", e);
@@ -92,6 +105,21 @@ public class ControllerAdvice {
         return responseError(400, e.getMessage());
     }
 
+    @ExceptionHandler(ChunkVerifyException.class)
+    public JsonResult handle(ChunkVerifyException e) {
+        return responseError(400, e.getMessage());
+    }
+
+    @ExceptionHandler(ChunkConflictException.class)
+    public JsonResult handle(ChunkConflictException e) {
+        return responseError(409, e.getMessage());
+    }
+
+    @ExceptionHandler(TaskLimitException.class)
+    public JsonResult handle(TaskLimitException e) {
+        return responseError(429, e.getMessage());
+    }
+
     private JsonResult responseError(int code, String message) {
         response.setStatus(code);
         return JsonResult.getInstance(code, null, message);
@@ -16,22 +16,26 @@ import com.xiaotao.saltedfishcloud.po.param.NamePair;
 import com.xiaotao.saltedfishcloud.service.breakpoint.annotation.BreakPoint;
 import com.xiaotao.saltedfishcloud.service.breakpoint.annotation.MergeFile;
 import com.xiaotao.saltedfishcloud.service.file.FileService;
+import com.xiaotao.saltedfishcloud.service.file.QuickSaveService;
+import com.xiaotao.saltedfishcloud.service.file.archive.ArchiveDownloadService;
+import com.xiaotao.saltedfishcloud.service.file.archive.ArchiveIngestService;
 import com.xiaotao.saltedfishcloud.service.file.exception.DirectoryAlreadyExistsException;
 import com.xiaotao.saltedfishcloud.service.http.ResponseService;
 import com.xiaotao.saltedfishcloud.utils.URLUtils;
 import com.xiaotao.saltedfishcloud.validator.FileName;
+import com.xiaotao.saltedfishcloud.validator.FileNameValidator;
 import com.xiaotao.saltedfishcloud.validator.UID;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.MediaType;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
 import java.net.URLDecoder;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.NoSuchFileException;
@@ -52,6 +56,12 @@ public class FileController {
     private FileService fileService;
     @Resource
     private ResponseService responseService;
+    @Resource
+    private QuickSaveService quickSaveService;
+    @Resource
+    private ArchiveIngestService archiveIngestService;
+    @Resource
+    private ArchiveDownloadService archiveDownloadService;
 
 
     /*
@@ -98,6 +108,85 @@ public class FileController {
         return JsonResult.getInstance(i);
     }
 
+    /**
+     * 以请求体原始数据流上传文件到网盘系统中，数据直接写入存储，不经过multipart临时文件
+     * @param uid   目标用户的ID
+     * @param name  文件名，需经过URL编码
+     * @param md5   文件MD5，提供时将校验上传的数据
+     */
+    @PutMapping(value = "stream/**", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public JsonResult uploadStream(HttpServletRequest request,
+                                   @PathVariable @UID(true) int uid,
+                                   @RequestHeader("X-File-Name") String name,
+                                   @RequestHeader(value = "X-File-Md5", required = false) String md5) throws IOException {
+        name = URLDecoder.decode(name, "UTF-8");
+        if (name.isEmpty() || !FileNameValidator.valid(name)) {
+            throw new JsonException(400, "非法文件名");
+        }
+        String requestPath = URLUtils.getRequestFilePath(PREFIX + uid + "/stream", request);
+        FileInfo fileInfo = new FileInfo();
+        fileInfo.setName(name);
+        fileInfo.setType(FileInfo.TYPE_FILE);
+        fileInfo.setSize(request.getContentLengthLong());
+        fileInfo.setMd5(md5 == null ? null : md5.toLowerCase());
+        fileInfo.setLastModified(System.currentTimeMillis());
+        int i = fileService.saveStream(uid, request.getInputStream(), requestPath, fileInfo);
+        return JsonResult.getInstance(i);
+    }
+
+    /**
+     * 以请求体上传zip或tar归档，边接收边解包到网盘目录中，用于批量上传大量小文件
+     * @param uid   目标用户的ID
+     * @param type  归档类型，zip或tar，不提供时根据数据自动识别
+     * @return  导入的文件数、目录数、数据量与被跳过的条目
+     */
+    @PutMapping(value = "archive/**", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public JsonResult uploadArchive(HttpServletRequest request,
+                                    @PathVariable @UID(true) int uid,
+                                    @RequestParam(value = "type", required = false) String type) throws IOException {
+        String requestPath = URLUtils.getRequestFilePath(PREFIX + uid + "/archive", request);
+        return JsonResult.getInstance(archiveIngestService.ingest(uid, requestPath, request.getInputStream(), type));
+    }
+
+    /**
+     * 秒传预检，查询存储库中是否已有相同文件
+     * @param uid   目标用户的ID
+     * @param md5   文件MD5
+     * @param size  文件大小
+     * @return  exists为false时需要上传完整文件，为true时按返回的nonce、offset、length计算校验摘要后调用秒传接口
+     */
+    @GetMapping("quickSave")
+    public JsonResult quickSaveCheck(@PathVariable @UID(true) int uid,
+                                     @RequestParam("md5") String md5,
+                                     @RequestParam("size") long size) throws IOException {
+        return JsonResult.getInstance(quickSaveService.check(uid, md5, size));
+    }
+
+    /**
+     * 秒传文件，存储库中已有相同文件时直接保存到网盘目录，不需要上传文件数据
+     * @param uid   目标用户的ID
+     * @param name  文件名
+     * @param md5   文件MD5
+     * @param size  文件大小
+     * @param token 预检时获得的校验token
+     * @param proof 校验摘要 md5(nonce + 文件[offset, offset+length))
+     * @return  保存成功时data为true，存储库中没有该文件时返回202且data为false，此时需要上传完整文件
+     */
+    @PutMapping("quickSave/**")
+    public JsonResult quickSave(HttpServletRequest request,
+                                @PathVariable @UID(true) int uid,
+                                @RequestParam("name") @FileName String name,
+                                @RequestParam("md5") String md5,
+                                @RequestParam("size") long size,
+                                @RequestParam(value = "token", required = false) String token,
+                                @RequestParam(value = "proof", required = false) String proof) throws IOException {
+        String requestPath = URLUtils.getRequestFilePath(PREFIX + uid + "/quickSave", request);
+        if (!quickSaveService.save(uid, requestPath, name, md5, size, token, proof)) {
+            return JsonResult.getInstance(202, false, "存储库中没有该文件，请上传完整文件");
+        }
+        return JsonResult.getInstance(true);
+    }
+
     /*
         =======================================
         =                 Read                =
@@ -141,13 +230,30 @@ public class FileController {
     @RequestMapping(value = "content/**", method = {RequestMethod.POST, RequestMethod.GET})
     @AllowAnonymous
     @NotBlock(level = ReadOnlyLevel.DATA_CHECKING)
-    public ResponseEntity<org.springframework.core.io.Resource> download(HttpServletRequest request,
-                                                                         @PathVariable @UID int uid)
-            throws MalformedURLException, UnsupportedEncodingException, NoSuchFileException {
+    public void download(HttpServletRequest request,
+                         HttpServletResponse response,
+                         @PathVariable @UID int uid)
+            throws IOException {
         String prefix = PREFIX + uid + "/content";
         String requestPath = URLUtils.getRequestFilePath(prefix, request);
 
-        return responseService.getUserFileResponse(uid, requestPath);
+        responseService.sendUserFile(uid, requestPath, request, response);
+    }
+
+    /**
+     * 将网盘目录或目录中选中的多个文件与子目录打包为zip下载，归档边生成边响应，不支持断点续传
+     * @param uid   目标用户资源的ID
+     * @param names 选中的文件或子目录名称，可重复提供多个，不提供时打包整个目录
+     */
+    @RequestMapping(value = "zip/**", method = {RequestMethod.POST, RequestMethod.GET})
+    @AllowAnonymous
+    @NotBlock(level = ReadOnlyLevel.DATA_CHECKING)
+    public void downloadZip(HttpServletRequest request,
+                            HttpServletResponse response,
+                            @PathVariable @UID int uid,
+                            @RequestParam(value = "name", required = false) List<String> names) throws IOException {
+        String requestPath = URLUtils.getRequestFilePath(PREFIX + uid + "/zip", request);
+        archiveDownloadService.sendZip(uid, requestPath, names, request, response);
     }
 
     /*
@@ -10,23 +10,21 @@ import com.xiaotao.saltedfishcloud.po.file.BasicFileInfo;
 import com.xiaotao.saltedfishcloud.po.file.FileInfo;
 import com.xiaotao.saltedfishcloud.service.file.FileRecordService;
 import com.xiaotao.saltedfishcloud.service.file.FileService;
+import com.xiaotao.saltedfishcloud.service.file.thumbnail.ThumbnailService;
 import com.xiaotao.saltedfishcloud.service.http.ResponseService;
 import com.xiaotao.saltedfishcloud.service.node.NodeService;
 import com.xiaotao.saltedfishcloud.utils.URLUtils;
 import com.xiaotao.saltedfishcloud.validator.FileName;
 import com.xiaotao.saltedfishcloud.validator.UID;
-import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 import javax.annotation.security.RolesAllowed;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.nio.file.NoSuchFileException;
 
 /**
  * 系统资源管理控制器
@@ -40,11 +38,13 @@ public class ResourceController {
     private final FileService fileService;
     private final NodeService nodeService;
     private final ResponseService responseService;
+    private final ThumbnailService thumbnailService;
 
-    public ResourceController(FileService fileService, NodeService nodeService, ResponseService responseService) {
+    public ResourceController(FileService fileService, NodeService nodeService, ResponseService responseService, ThumbnailService thumbnailService) {
         this.fileService = fileService;
         this.nodeService = nodeService;
         this.responseService = responseService;
+        this.thumbnailService = thumbnailService;
     }
 
     /**
@@ -62,6 +62,7 @@ public class ResourceController {
 
     /**
      * 获取文件下载码 FDC - File Download Code
+     * @param rate  通过该下载码下载的总速率（KiB/s），为0时使用配置的默认值
      */
     @GetMapping("FDC/**")
     @AllowAnonymous
@@ -70,10 +71,11 @@ public class ResourceController {
                              HttpServletRequest request,
                              @RequestParam("md5") String md5,
                              @RequestParam("name") @Valid @FileName String name,
-                             @RequestParam(value = "expr", defaultValue = "1") int expr) throws JsonProcessingException {
+                             @RequestParam(value = "expr", defaultValue = "1") int expr,
+                             @RequestParam(value = "rate", defaultValue = "0") int rate) throws JsonProcessingException {
         String filePath = URLUtils.getRequestFilePath(PREFIX + uid + "/FDC", request);
         BasicFileInfo fileInfo = new BasicFileInfo(name, md5);
-        String dc = fileService.getFileDC(uid, filePath, fileInfo, expr);
+        String dc = fileService.getFileDC(uid, filePath, fileInfo, expr, rate);
         return JsonResult.getInstance(dc);
     }
 
@@ -86,10 +88,12 @@ public class ResourceController {
     @AllowAnonymous
     @ResponseBody
     @NotBlock(level = ReadOnlyLevel.DATA_CHECKING)
-    public ResponseEntity<org.springframework.core.io.Resource> downloadByFDC(@PathVariable String code,
-                                                                              @RequestParam(required = false, defaultValue = "false") boolean download)
-            throws MalformedURLException, UnsupportedEncodingException {
-        return responseService.getResourceByDC(code, download);
+    public void downloadByFDC(@PathVariable String code,
+                              @RequestParam(required = false, defaultValue = "false") boolean download,
+                              HttpServletRequest request,
+                              HttpServletResponse response)
+            throws IOException {
+        responseService.sendFileByDC(code, download, request, response);
     }
 
 
@@ -99,12 +103,13 @@ public class ResourceController {
      */
     @RequestMapping(value = "fileContentByMD5/{md5}/**", method = RequestMethod.GET)
     @AllowAnonymous
-    public ResponseEntity<org.springframework.core.io.Resource> downloadByMD5(
+    public void downloadByMD5(
             @PathVariable("md5") String md5,
             @PathVariable("uid") int uid,
-            HttpServletRequest request
+            HttpServletRequest request,
+            HttpServletResponse response
     )
-            throws NoSuchFileException, MalformedURLException, UnsupportedEncodingException {
+            throws IOException {
         FileInfo file = fileService.getFileByMD5(md5);
         String path = URLUtils.getRequestFilePath(PREFIX + uid + "/fileContentByMD5/" + md5, request);
         String name;
@@ -114,7 +119,22 @@ public class ResourceController {
         } else {
             name = file.getName();
         }
-        return responseService.sendFile(file.getPath(), name);
+        responseService.sendFile(file, name, request, response);
+    }
+
+    /**
+     * 通过MD5获取网盘中图片文件的缩略图，缩略图内容不变，可被客户端长期缓存
+     * @param md5   文件MD5
+     * @param size  缩略图长边的像素数，向上取到128、256、512、1024之一
+     */
+    @GetMapping("thumbnail/{md5}")
+    @AllowAnonymous
+    @NotBlock(level = ReadOnlyLevel.DATA_CHECKING)
+    public void thumbnail(@PathVariable("md5") String md5,
+                          @RequestParam(value = "size", defaultValue = "256") int size,
+                          HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        thumbnailService.sendThumbnail(md5, size, request, response);
     }
 
 }
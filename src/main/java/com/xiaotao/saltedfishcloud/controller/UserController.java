@@ -16,7 +16,6 @@ import com.xiaotao.saltedfishcloud.service.user.UserService;
 import com.xiaotao.saltedfishcloud.utils.SecureUtils;
 import com.xiaotao.saltedfishcloud.validator.UID;
 import lombok.var;
-import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.stereotype.Controller;
 import org.springframework.validation.annotation.Validated;
@@ -25,11 +24,11 @@ import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.Resource;
 import javax.annotation.security.RolesAllowed;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
-import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -104,17 +103,13 @@ public class UserController {
             "avatar"
     })
     @AllowAnonymous
-    public ResponseEntity<org.springframework.core.io.Resource>
-                getAvatar(HttpServletResponse response, @PathVariable(required = false) String username) throws IOException {
-        try {
-            String profilePath = username == null ? DiskConfig.getLoginUserProfileRoot() : DiskConfig.getUserProfileRoot(username);
-            File[] avatars = new File(profilePath).listFiles(pathname -> pathname.getName().contains("avatar"));
-
-            // 数组越界，空指针操作均视为头像不存在
-            return responseService.sendFile(avatars[0].getPath());
-        } catch (Exception e) {
+    public void getAvatar(HttpServletRequest request, HttpServletResponse response, @PathVariable(required = false) String username) throws IOException {
+        if (username == null) {
+            User user = SecureUtils.getSpringSecurityUser();
+            username = user == null ? null : user.getUsername();
+        }
+        if (username == null || !responseService.sendAvatar(username, request, response)) {
             response.sendRedirect("/api/static/static/defaultAvatar.png");
-            return null;
         }
     }
 
@@ -3,12 +3,17 @@ package com.xiaotao.saltedfishcloud.controller.admin;
 import com.xiaotao.saltedfishcloud.dao.mybatis.UserDao;
 import com.xiaotao.saltedfishcloud.po.JsonResult;
 import com.xiaotao.saltedfishcloud.po.User;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskManager;
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
+import com.xiaotao.saltedfishcloud.service.file.cache.HotObjectService;
+import com.xiaotao.saltedfishcloud.service.file.pool.PoolRebalancer;
 import com.xiaotao.saltedfishcloud.service.manager.AdminService;
 import com.xiaotao.saltedfishcloud.service.sync.SyncService;
 import lombok.var;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.io.IOException;
 
 @RestController
 @RequestMapping(StoreController.prefix)
@@ -21,15 +26,39 @@ public class StoreController {
     private SyncService syncService;
     @Resource
     private UserDao userDao;
+    @Resource
+    private PoolRebalancer poolRebalancer;
+    @Resource
+    private StoreTypeSwitch storeTypeSwitch;
+    @Resource
+    private TaskManager taskManager;
+    @Resource
+    private HotObjectService hotObjectService;
 
     /**
      * 获取存储状态
      */
     @GetMapping("state")
-    public JsonResult getStoreState() {
+    public JsonResult getStoreState() throws IOException {
         return JsonResult.getInstance(adminService.getStoreState());
     }
 
+    /**
+     * 获取断点续传任务的统计，包括各用户的任务数、预留空间与已上传数据量
+     */
+    @GetMapping("breakpoint")
+    public JsonResult getBreakpointStat() throws Exception {
+        return JsonResult.getInstance(taskManager.getStat());
+    }
+
+    /**
+     * 获取热点文件缓存的统计，包括命中率、准入与淘汰次数，缓存关闭时数据为null
+     */
+    @GetMapping("hotCache")
+    public JsonResult getHotCacheStat() {
+        return JsonResult.getInstance(hotObjectService.getStat());
+    }
+
     /**
      * 立即执行同步
      */
@@ -46,4 +75,32 @@ public class StoreController {
         }
         return JsonResult.getInstance();
     }
+
+    /**
+     * 在后台将唯一存储仓库中的文件迁移到其所属的存储卷，用于增减存储卷后
+     */
+    @PostMapping("rebalance")
+    public JsonResult rebalance() {
+        poolRebalancer.start();
+        return JsonResult.getInstance();
+    }
+
+    /**
+     * 获取存储模式切换的进度
+     */
+    @GetMapping("switch")
+    public JsonResult getSwitchStatus() {
+        return JsonResult.getInstance(storeTypeSwitch.getStatus());
+    }
+
+    /**
+     * 继续中断或部分用户失败的存储模式切换
+     */
+    @PostMapping("switch/resume")
+    public JsonResult resumeSwitch() throws IOException {
+        if (!storeTypeSwitch.resume()) {
+            return JsonResult.getInstance(202, storeTypeSwitch.getStatus(), "没有需要继续的存储模式切换");
+        }
+        return JsonResult.getInstance();
+    }
 }
@@ -40,7 +40,7 @@ public class SysController {
 
 
     @GetMapping("overview")
-    public JsonResult getOverview() {
+    public JsonResult getOverview() throws IOException {
         LinkedHashMap<String, Object> res = JsonResult.getDataMap();
         res.put("store", adminService.getStoreState());
         res.put("invite_reg_code", DiskConfig.REG_CODE);
@@ -83,7 +83,7 @@ public class SysController {
                 return JsonResult.getInstance(202, DiskConfig.STORE_TYPE.toString(), "请求被忽略，模式无变化");
             }
         } catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException("无效的类型，可选RAW或UNIQUE");
+            throw new IllegalArgumentException("无效的类型，可选RAW、UNIQUE或CHUNKED");
         }
     }
 
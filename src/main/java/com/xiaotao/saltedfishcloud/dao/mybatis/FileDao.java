@@ -17,6 +17,16 @@ public interface FileDao {
     @Select("SELECT * FROM file_table WHERE md5 = #{md5} AND size != -1 LIMIT #{limit}")
     List<FileInfo> getFilesByMD5(@Param("md5") String md5, @Param("limit") int limit);
 
+    /**
+     * 分页获取引用某个MD5的所有文件信息，按用户、节点与文件名排序
+     * @param md5       文件MD5
+     * @param offset    跳过的文件数
+     * @param limit     每页的文件数
+     * @return          文件信息列表
+     */
+    @Select("SELECT * FROM file_table WHERE md5 = #{md5} AND size != -1 ORDER BY uid, node, name LIMIT #{offset}, #{limit}")
+    List<FileInfo> getFilesByMD5Page(@Param("md5") String md5, @Param("offset") int offset, @Param("limit") int limit);
+
     /**
      * 取数据库中存在的有效的文件MD5
      * @param md5 文件MD5集合
@@ -56,6 +66,23 @@ public interface FileDao {
     @Select("SELECT uid, name, node, size, md5, created_at, updated_at FROM file_table WHERE uid = #{uid} AND node = #{nid}")
     List<FileInfo> getFileListByNodeId(@Param("uid") Integer uid, @Param("nid") String nodeId);
 
+    /**
+     * 按文件名顺序分批获取用户某个节点下的文件，用于遍历文件数量较多的目录
+     * @param uid       用户ID
+     * @param nodeId    节点ID
+     * @param after     上一批最后一个文件的文件名，为null时从第一个文件开始
+     * @param limit     本批最多获取的文件数
+     * @return 文件信息列表，按文件名排序
+     */
+    @Select({
+            "<script>",
+                "SELECT uid, name, node, size, md5, created_at, updated_at FROM file_table WHERE uid = #{uid} AND node = #{nid}",
+                "<if test='after != null'> AND name &gt; #{after}</if>",
+                " ORDER BY name LIMIT #{limit}",
+            "</script>"
+    })
+    List<FileInfo> getFileListByNodeIdAfter(@Param("uid") Integer uid, @Param("nid") String nodeId, @Param("after") String after, @Param("limit") int limit);
+
     /**
      * 搜索某个用户的文件
      * @param uid       用户ID
@@ -85,6 +112,23 @@ public interface FileDao {
                     @Param("md5") String md5,
                     @Param("node") String nodeId);
 
+    /**
+     * 批量添加文件记录，已存在的同名文件记录将被更新
+     * @param uid   用户ID 0表示公共
+     * @param files 文件信息，需包含name、size、md5与所在目录的节点ID node
+     * @return 影响的行数
+     */
+    @Insert({
+            "<script>",
+                "INSERT INTO file_table (uid,name,size,md5,node,created_at) VALUES ",
+                "<foreach collection='files' item='f' separator=','>",
+                    "(#{uid},#{f.name},#{f.size},#{f.md5},#{f.node},NOW())",
+                "</foreach>",
+                " ON DUPLICATE KEY UPDATE size=VALUES(size), md5=VALUES(md5), updated_at=NOW()",
+            "</script>"
+    })
+    int addRecords(@Param("uid") Integer uid, @Param("files") Collection<? extends FileInfo> files);
+
 
 
     /**
@@ -0,0 +1,12 @@
+package com.xiaotao.saltedfishcloud.exception;
+
+import java.io.IOException;
+
+/**
+ * 响应数据已开始写出后发生的错误。此时无法再返回错误信息，由容器直接断开连接，使客户端得知传输失败
+ */
+public class ResponseAbortedException extends IOException {
+    public ResponseAbortedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,29 @@
+package com.xiaotao.saltedfishcloud.init;
+
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 启动时加载磁盘上未完成的断点续传任务，客户端可在重启后继续上传，按用户的任务限制与统计也包含这些任务
+ */
+@Component
+@Slf4j
+@Order(6)
+public class BreakpointTaskLoader implements ApplicationRunner {
+    @Resource
+    private TaskManager taskManager;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        int count = taskManager.load();
+        if (count > 0) {
+            log.info("[初始化]已恢复{}个断点续传任务", count);
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package com.xiaotao.saltedfishcloud.init;
 
 import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.Resource;
 import java.io.File;
 import java.util.Arrays;
 
@@ -17,6 +19,9 @@ import java.util.Arrays;
 @Slf4j
 @Order(3)
 public class DirInitializer implements ApplicationRunner {
+    @Resource
+    private StoragePool storagePool;
+
     @Override
     public void run(ApplicationArguments args) throws Exception {
         File[] files = {
@@ -31,5 +36,7 @@ public class DirInitializer implements ApplicationRunner {
                 file.mkdirs();
             }
         });
+        // 各存储卷的目录在存储池初始化时创建
+        storagePool.getVolumes().forEach(volume -> log.info("[存储卷{}]{}", volume.getId(), volume.getRoot()));
     }
 }
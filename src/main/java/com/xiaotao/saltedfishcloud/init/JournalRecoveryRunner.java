@@ -0,0 +1,44 @@
+package com.xiaotao.saltedfishcloud.init;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.enums.ReadOnlyLevel;
+import com.xiaotao.saltedfishcloud.service.file.journal.JournalService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 启动时对操作日志中未完成的网盘操作进行对账，恢复上次异常退出时数据库与本地文件的一致性
+ */
+@Component
+@Slf4j
+@Order(4)
+public class JournalRecoveryRunner implements ApplicationRunner {
+    @Resource
+    private JournalService journalService;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (journalService.getJournal().getPending().isEmpty()) {
+            journalService.getJournal().truncate();
+            return;
+        }
+        boolean enterReadOnly = DiskConfig.getReadOnlyLevel() == null;
+        if (enterReadOnly) {
+            DiskConfig.setReadOnlyLevel(ReadOnlyLevel.DATA_CHECKING);
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            int cnt = journalService.recover();
+            log.info("[操作日志]已恢复{}个未完成的操作，耗时{}ms", cnt, System.currentTimeMillis() - begin);
+        } finally {
+            if (enterReadOnly) {
+                DiskConfig.setReadOnlyLevel(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.xiaotao.saltedfishcloud.init;
+
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 启动时继续上次未完成的存储模式切换
+ */
+@Component
+@Slf4j
+@Order(5)
+public class StoreSwitchRunner implements ApplicationRunner {
+    @Resource
+    private StoreTypeSwitch storeTypeSwitch;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (storeTypeSwitch.resume()) {
+            log.info("[初始化]存储模式切换已在后台继续");
+        }
+    }
+}
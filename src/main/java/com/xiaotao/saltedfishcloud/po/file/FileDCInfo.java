@@ -12,4 +12,8 @@ import lombok.NoArgsConstructor;
 public class FileDCInfo extends BasicFileInfo{
     private int uid;
     private String dir;
+    /**
+     * 通过该下载码下载的总速率（KiB/s），为0时使用配置的默认值
+     */
+    private int rate;
 }
@@ -0,0 +1,28 @@
+package com.xiaotao.saltedfishcloud.po.file;
+
+import lombok.Data;
+
+/**
+ * 秒传校验挑战，要求客户端提供文件中指定区间数据的摘要以证明其确实持有文件内容
+ */
+@Data
+public class QuickSaveChallenge {
+    private int uid;
+    private String md5;
+    private long size;
+
+    /**
+     * 需要摘要的数据起始位置
+     */
+    private long offset;
+
+    /**
+     * 需要摘要的数据长度
+     */
+    private int length;
+
+    /**
+     * 随机数，摘要为 md5(nonce + 文件[offset, offset+length)) 的十六进制字符串
+     */
+    private String nonce;
+}
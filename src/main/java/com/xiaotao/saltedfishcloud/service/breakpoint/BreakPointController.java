@@ -9,14 +9,21 @@ import org.springframework.web.multipart.MultipartFile;
  */
 public interface BreakPointController {
 
+    /**
+     * 上传文件片段
+     * @param file  片段数据
+     * @param id    任务ID
+     * @param part  文件块编号，可以是单个编号或连续的编号范围，如3-5
+     * @param md5   片段数据的MD5，提供时将校验上传的数据
+     */
     @ResponseBody
     @PostMapping
-    Object uploadPart(MultipartFile file, @PathVariable String id, @PathVariable String part) throws Exception;
+    Object uploadPart(MultipartFile file, @PathVariable String id, @PathVariable String part, @RequestParam(value = "md5", required = false) String md5) throws Exception;
 
     /**
      * 创建断点续传任务
-     * @param data 任务元数据，应当包含fileName和length
-     * @return 任务被创建完后完整的任务元数据，必须包含任务ID
+     * @param data 任务元数据，应当包含fileName和length，可包含各文件块的MD5（chunkHashes）以复用已有的文件块
+     * @return 任务被创建完后的任务状态，必须包含任务ID，finishPart中为已复用的文件块
      */
     @ResponseBody
     @PostMapping
@@ -1,9 +1,11 @@
 package com.xiaotao.saltedfishcloud.service.breakpoint;
 
 import com.xiaotao.saltedfishcloud.po.JsonResult;
+import com.xiaotao.saltedfishcloud.po.User;
 import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
 import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskNotFoundException;
 import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskManager;
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
 import lombok.var;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.multipart.MultipartFile;
@@ -20,16 +22,18 @@ public class BreakPointControllerImpl implements BreakPointController {
     }
 
     @Override
-    public Object uploadPart(MultipartFile file, String id, String part) throws Exception {
-        manager.save(id, part, file.getInputStream());
+    public Object uploadPart(MultipartFile file, String id, String part, String md5) throws Exception {
+        manager.save(id, part, file.getInputStream(), md5);
         return JsonResult.getInstance();
     }
 
     @Override
     public TaskMetadata createTask(@Validated TaskMetadata data) throws Exception {
+        User user = SecureUtils.getSpringSecurityUser();
+        data.setUid(user == null ? 0 : user.getId());
         String taskId = manager.createTask(data);
-        data.setTaskId(taskId);
-        return data;
+        // 返回任务状态，包含已复用的文件块
+        return manager.queryTask(taskId);
     }
 
     @Override
@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 
 public class MergeMultipartFile implements MultipartFile {
@@ -57,11 +58,34 @@ public class MergeMultipartFile implements MultipartFile {
 
     @Override
     public InputStream getInputStream() throws IOException {
-        return taskData.getMergeInputStream();
+        return taskData.getInputStream();
+    }
+
+    /**
+     * 获取上传过程中计算得出的文件MD5
+     * @return  文件MD5，未能得出时返回null
+     */
+    public String getMd5() {
+        return taskData.getMd5();
+    }
+
+    /**
+     * 获取完整文件的本地路径，预分配模式的任务可直接移动该文件完成存储
+     * @return  本地文件路径，需要合并文件块时返回null
+     */
+    public Path getLocalFile() {
+        return taskData.getDataFile();
     }
 
     @Override
     public void transferTo(File dest) throws IOException, IllegalStateException {
-        Files.copy(getInputStream(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Path local = getLocalFile();
+        if (local != null) {
+            Files.move(local, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        try (InputStream in = getInputStream()) {
+            Files.copy(in, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 }
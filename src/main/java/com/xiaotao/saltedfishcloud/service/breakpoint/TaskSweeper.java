@@ -0,0 +1,27 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint;
+
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * 定期清理客户端未完成且已闲置过期的断点续传任务，释放临时目录的空间。<br>
+ * 启动后首次清理会加载磁盘上的所有任务，使按用户的任务限制与统计包含重启前创建的任务
+ */
+@Slf4j
+public class TaskSweeper {
+    private final TaskManager manager;
+
+    public TaskSweeper(TaskManager manager) {
+        this.manager = manager;
+    }
+
+    @Scheduled(initialDelay = 60 * 1000, fixedDelay = 10 * 60 * 1000)
+    public void sweep() {
+        try {
+            manager.sweep();
+        } catch (Exception e) {
+            log.error("[断点续传]过期任务清理出错", e);
+        }
+    }
+}
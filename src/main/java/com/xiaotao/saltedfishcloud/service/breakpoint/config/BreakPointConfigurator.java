@@ -3,13 +3,26 @@ package com.xiaotao.saltedfishcloud.service.breakpoint.config;
 import com.xiaotao.saltedfishcloud.service.breakpoint.BreakPointController;
 import com.xiaotao.saltedfishcloud.service.breakpoint.BreakPointControllerImpl;
 import com.xiaotao.saltedfishcloud.service.breakpoint.ProxyProcessor;
+import com.xiaotao.saltedfishcloud.service.breakpoint.TaskSweeper;
 import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskManager;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskStateStore;
 import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.DefaultTaskManager;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.FileTaskStateStore;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.PreallocatedTaskManager;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.RedisTaskStateStore;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.utils.TaskStorePath;
+import com.xiaotao.saltedfishcloud.service.file.ChunkIndexService;
+import com.xiaotao.saltedfishcloud.service.file.StoreService;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.util.StringUtils;
 import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
 
 import javax.annotation.Resource;
+import java.nio.file.Paths;
 
 /**
  * 断点续传相关Bean自动配置类
@@ -18,6 +31,56 @@ import javax.annotation.Resource;
 public class BreakPointConfigurator {
     @Resource
     private RequestMappingHandlerMapping mapping;
+    @Resource
+    private StoragePool storagePool;
+    @Resource
+    private StoreService storeService;
+    @Resource
+    private ChunkIndexService chunkIndexService;
+    @Resource
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * 任务的固定存放目录，为空时存放在各存储卷的暂存目录中
+     */
+    @Value("${breakpoint-root:}")
+    private String root;
+
+    /**
+     * 任务状态的存储方式，file为保存在任务目录中，redis为保存在Redis中供多实例共享
+     */
+    @Value("${breakpoint-store:file}")
+    private String store;
+
+    /**
+     * 是否使用预分配模式存储文件块
+     */
+    @Value("${breakpoint-preallocate:true}")
+    private boolean preallocate;
+
+    /**
+     * 任务闲置的过期时间（小时）
+     */
+    @Value("${breakpoint-ttl:24}")
+    private int ttl;
+
+    /**
+     * 每个用户同时存在的任务数上限
+     */
+    @Value("${breakpoint-user-max-tasks:16}")
+    private int maxTasks;
+
+    /**
+     * 每个用户所有任务的文件长度之和的上限（GiB）
+     */
+    @Value("${breakpoint-user-max-size:100}")
+    private long maxSize;
+
+    /**
+     * 创建任务时复用已有文件块的时间上限（秒），为0时不限制
+     */
+    @Value("${breakpoint-reuse-timeout:10}")
+    private int reuseTimeout;
 
     /**
      * 控制路由注册
@@ -40,7 +103,30 @@ public class BreakPointConfigurator {
      */
     @Bean
     public TaskManager taskManager() {
-        return new DefaultTaskManager();
+        TaskStorePath.setLocator(new StagingLocator(storagePool, storeService, StringUtils.hasText(root) ? Paths.get(root) : null));
+        TaskStateStore stateStore;
+        if ("redis".equalsIgnoreCase(store)) {
+            stateStore = new RedisTaskStateStore(redisTemplate);
+        } else if ("file".equalsIgnoreCase(store)) {
+            stateStore = new FileTaskStateStore();
+        } else {
+            throw new IllegalArgumentException("无效的断点续传任务状态存储方式：" + store);
+        }
+        DefaultTaskManager manager = preallocate ? new PreallocatedTaskManager(stateStore) : new DefaultTaskManager(stateStore);
+        manager.setTtl(ttl * 60L * 60);
+        manager.setMaxTasks(maxTasks);
+        manager.setMaxSize(maxSize * 1024 * 1024 * 1024);
+        manager.setChunkSource(chunkIndexService);
+        manager.setReuseTimeout(reuseTimeout * 1000L);
+        return manager;
+    }
+
+    /**
+     * 过期任务清理
+     */
+    @Bean
+    public TaskSweeper taskSweeper() {
+        return new TaskSweeper(taskManager());
     }
 
     /**
@@ -32,7 +32,7 @@ public class MappingInitializer {
         var createMethod = controller.getClass().getMethod("createTask", TaskMetadata.class);
         var queryMethod = controller.getClass().getMethod("queryTask", String.class);
         var deleteMethod = controller.getClass().getMethod("clearTask", String.class);
-        var uploadMethod = controller.getClass().getMethod("uploadPart", MultipartFile.class, String.class, String.class);
+        var uploadMethod = controller.getClass().getMethod("uploadPart", MultipartFile.class, String.class, String.class, String.class);
         registerMapping(createMethod, RequestMethod.POST);
         registerMapping(queryMethod, RequestMethod.GET);
         registerMapping(deleteMethod, RequestMethod.DELETE);
@@ -0,0 +1,54 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.config;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.utils.TaskStorePath;
+import com.xiaotao.saltedfishcloud.service.file.StoreService;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * 将断点续传任务存放在存储卷的暂存目录中，与用户网盘目录位于同一卷，任务完成后存入文件只需重命名。<br>
+ * 配置了固定存放目录时所有任务都存放在该目录中。查找任务时同时查找旧版本使用的系统临时目录
+ */
+public class StagingLocator implements TaskStorePath.Locator {
+    private static final String DIR_NAME = "breakpoint";
+
+    private final StoragePool storagePool;
+    private final StoreService storeService;
+    private final Path fixedRoot;
+
+    /**
+     * @param fixedRoot 固定的存放目录，为null时按存储卷存放
+     */
+    public StagingLocator(StoragePool storagePool, StoreService storeService, Path fixedRoot) {
+        this.storagePool = storagePool;
+        this.storeService = storeService;
+        this.fixedRoot = fixedRoot;
+    }
+
+    @Override
+    public Path getBase(int uid) {
+        if (fixedRoot != null) {
+            return fixedRoot;
+        }
+        return storeService.getStagingRoot(uid, null).resolve(DIR_NAME);
+    }
+
+    @Override
+    public Collection<Path> getBases() {
+        Set<Path> res = new LinkedHashSet<>();
+        if (fixedRoot != null) {
+            res.add(fixedRoot);
+        } else {
+            for (StoragePool.Volume volume : storagePool.getVolumes()) {
+                res.add(volume.getStagingRoot().resolve(DIR_NAME));
+            }
+            res.add(Paths.get(DiskConfig.STORE_ROOT, "staging", DIR_NAME));
+        }
+        res.add(TaskStorePath.getDefaultBase());
+        return res;
+    }
+}
@@ -6,6 +6,7 @@ import lombok.*;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
+import java.util.List;
 
 /**
  * 断点续传任务元数据信息类
@@ -38,6 +39,21 @@ public class TaskMetadata {
 
     private long lastChunkSize = 0;
 
+    /**
+     * 创建任务的用户ID，由服务端设置
+     */
+    private int uid;
+
+    /**
+     * 任务闲置的过期时间（秒），超过该时间没有上传文件块的任务将被清理。为0或超过系统设置时使用系统设置
+     */
+    private long ttl;
+
+    /**
+     * 各文件块的MD5，可选。提供时上传的文件块将按其校验，且创建任务时会复用已有的相同文件块
+     */
+    private List<String> chunkHashes;
+
 
     public TaskMetadata(String taskId, @NotBlank String fileName, long length) {
         this.taskId = taskId;
@@ -45,6 +61,18 @@ public class TaskMetadata {
         this.length = length;
     }
 
+    /**
+     * 复制任务元数据
+     * @param other 要复制的任务元数据
+     */
+    public TaskMetadata(TaskMetadata other) {
+        this(other.taskId, other.fileName, other.length);
+        this.chunkSize = other.chunkSize;
+        this.uid = other.uid;
+        this.ttl = other.ttl;
+        this.chunkHashes = other.chunkHashes;
+    }
+
     private void updateChunkInfo() {
         if (chunkCount == 0) {
             this.chunkCount = (int)Math.ceil((double)length / chunkSize);
@@ -63,6 +91,15 @@ public class TaskMetadata {
         return lastChunkSize;
     }
 
+    /**
+     * 获取某个文件块的MD5
+     * @param part  文件块序号
+     * @return      文件块MD5，未提供时返回null
+     */
+    public String getChunkHash(int part) {
+        return chunkHashes == null ? null : chunkHashes.get(part - 1);
+    }
+
     /**
      * 获取某个文件块的大小
      * @param part 文件块序号
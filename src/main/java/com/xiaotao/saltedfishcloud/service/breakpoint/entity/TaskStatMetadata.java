@@ -1,78 +1,119 @@
 package com.xiaotao.saltedfishcloud.service.breakpoint.entity;
 
-import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskNotFoundException;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.utils.TaskStorePath;
 import com.xiaotao.saltedfishcloud.service.breakpoint.merge.MergeInputStream;
 import com.xiaotao.saltedfishcloud.service.breakpoint.merge.MultipleFileMergeInputStreamGenerator;
-import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.BitSet;
 import java.util.List;
 import java.util.stream.Collectors;
 
 /**
  * 任务状态数据，除了元数据本身，还附加了任务的当前完成状态
  */
-@Slf4j
 public class TaskStatMetadata extends TaskMetadata {
 
+    private final BitSet finished;
+    private final int finishCount;
+    private final boolean preallocated;
+    private final String md5;
     private List<Integer> finishPart;
 
     /**
-     * @param data 基础的任务元数据
-     * @throws TaskNotFoundException 任务ID不存在
+     * @param data          基础的任务元数据
+     * @param finished      已完成的文件块位图，第n位对应第n+1个文件块
+     * @param finishCount   已完成的文件块数量
+     * @param preallocated  是否为预分配模式的任务
+     * @param md5           整个文件的MD5，尚未得出时为null
      */
-    public TaskStatMetadata(TaskMetadata data) {
-        super(data.getTaskId(), data.getFileName(), data.getLength());
-        if (!Files.exists(TaskStorePath.getRoot(data.getTaskId()))) {
-            throw new TaskNotFoundException(data.getTaskId());
-        }
+    public TaskStatMetadata(TaskMetadata data, BitSet finished, int finishCount, boolean preallocated, String md5) {
+        super(data);
+        this.finished = finished;
+        this.finishCount = finishCount;
+        this.preallocated = preallocated;
+        this.md5 = md5;
     }
 
+    /**
+     * 是否为预分配模式的任务，该模式下各文件块直接写入预分配的数据文件，完成后不需要合并
+     */
+    public boolean isPreallocated() {
+        return preallocated;
+    }
 
     /**
-     * 更新任务的完成状态信息。
-     * @TODO 通过文件大小进行数据校验
+     * 获取整个文件的MD5，在上传过程中按文件块顺序增量计算
+     * @return  文件MD5，任务未完成或尚未计算完成时返回null
      */
-    public void fresh() throws IOException {
-        finishPart = Files.list(TaskStorePath.getRoot(getTaskId()))
-                    .filter(e -> e.toString().endsWith(".part"))
-                    .map(e -> Integer.parseInt(e.getFileName().toString().replaceAll(".part", "")))
-                    .sorted()
-                    .collect(Collectors.toList());
+    public String getMd5() {
+        return md5;
     }
 
-    public List<Integer> getFinishPart() throws IOException {
+    /**
+     * 获取已完成的文件块编号
+     */
+    public List<Integer> getFinishPart() {
         if (finishPart == null) {
-            fresh();
+            finishPart = finished.stream().map(e -> e + 1).boxed().collect(Collectors.toList());
         }
         return finishPart;
     }
 
+    /**
+     * 判断文件块是否已完成
+     * @param part  文件块编号（从1开始）
+     */
+    public boolean isFinish(int part) {
+        return finished.get(part - 1);
+    }
+
     /**
      * 返回该分块任务是否已完成
      */
     public boolean isFinish() {
-        try {
-            return getFinishPart().size() == getChunkCount();
-        } catch (IOException e) {
-            if (log.isDebugEnabled()) {
-                e.printStackTrace();
-            }
-            return false;
+        return finishCount == getChunkCount();
+    }
+
+    /**
+     * 获取完整文件的本地路径，仅预分配模式下可用
+     * @return  数据文件路径，非预分配模式返回null
+     * @throws IllegalStateException 任务未完成
+     */
+    @JsonIgnore
+    public Path getDataFile() {
+        if (!isPreallocated()) {
+            return null;
+        }
+        if (!this.isFinish()) {
+            throw new IllegalStateException("断点续传任务未完成,文件块不完整");
         }
+        return TaskStorePath.getDataFile(taskId);
+    }
+
+    /**
+     * 获取完整文件的数据流，预分配模式下直接读取数据文件，否则依次读取合并各文件块
+     * @throws IllegalStateException 任务未完成
+     */
+    @JsonIgnore
+    public InputStream getInputStream() throws IOException {
+        Path dataFile = getDataFile();
+        return dataFile != null ? Files.newInputStream(dataFile) : getMergeInputStream();
     }
 
+    @JsonIgnore
     public MergeInputStream getMergeInputStream() throws IOException {
         if (!this.isFinish()) {
             throw new IllegalStateException("断点续传任务未完成,文件块不完整");
         }
         int len = getChunkCount();
         Path[] paths = new Path[len];
-        for (Integer integer : finishPart) {
-            paths[integer - 1] = TaskStorePath.getPartFile(taskId, integer);
+        for (int i = 1; i <= len; i++) {
+            paths[i - 1] = TaskStorePath.getPartFile(taskId, i);
         }
         return new MergeInputStream(new MultipleFileMergeInputStreamGenerator(paths));
     }
@@ -0,0 +1,15 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.exception;
+
+/**
+ * 断点续传文件块已完成或正在上传，不能再次写入
+ */
+public class ChunkConflictException extends RuntimeException {
+    /**
+     * @param id        任务ID
+     * @param part      文件块编号
+     * @param finished  文件块是否已完成，否则为正在上传
+     */
+    public ChunkConflictException(String id, int part, boolean finished) {
+        super("断点续传任务" + id + "的文件块" + part + (finished ? "已完成，不能重复上传" : "正在上传"));
+    }
+}
@@ -0,0 +1,14 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.exception;
+
+/**
+ * 断点续传文件块数据校验失败
+ */
+public class ChunkVerifyException extends RuntimeException {
+    /**
+     * @param id    任务ID
+     * @param part  文件块
+     */
+    public ChunkVerifyException(String id, String part) {
+        super("断点续传任务" + id + "的文件块" + part + "校验失败");
+    }
+}
@@ -0,0 +1,10 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.exception;
+
+/**
+ * 用户的断点续传任务数或占用空间超出限制
+ */
+public class TaskLimitException extends RuntimeException {
+    public TaskLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,27 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.manager;
+
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskStatMetadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 可复用文件块的来源。创建任务时若客户端提供了各文件块的MD5，任务管理器会先从来源中获取已有的文件块，
+ * 客户端只需上传缺少的部分
+ */
+public interface ChunkSource {
+    /**
+     * 获取已有的文件块数据，取得的数据仍会按MD5校验
+     * @param uid   创建任务的用户ID
+     * @param md5   文件块MD5
+     * @param size  文件块大小
+     * @return      文件块数据流，没有可用的数据时返回null
+     */
+    InputStream open(int uid, String md5, long size) throws IOException;
+
+    /**
+     * 记录已完成任务的文件块，供之后的任务复用
+     * @param task  已完成且带有文件块MD5的任务
+     */
+    void record(TaskStatMetadata task) throws IOException;
+}
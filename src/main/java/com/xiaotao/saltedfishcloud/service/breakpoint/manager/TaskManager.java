@@ -4,6 +4,7 @@ import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
 import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskStatMetadata;
 
 import java.io.InputStream;
+import java.util.Map;
 
 public interface TaskManager {
 
@@ -34,4 +35,32 @@ public interface TaskManager {
      * @param stream    文件流
      */
     void save(String id, String part, InputStream stream) throws Exception;
+
+    /**
+     * 保存部分的断点续传任务文件片段，并校验片段数据
+     * @param id        任务ID
+     * @param part      文件块编号（从1开始）
+     * @param stream    文件流
+     * @param md5       片段数据的MD5，为null时不校验
+     */
+    default void save(String id, String part, InputStream stream, String md5) throws Exception {
+        save(id, part, stream);
+    }
+
+    /**
+     * 加载所有存放目录中的任务，用于服务启动时恢复未完成的任务
+     * @return  加载的任务数
+     */
+    int load() throws Exception;
+
+    /**
+     * 清理过期的任务
+     * @return  清理的任务数
+     */
+    int sweep() throws Exception;
+
+    /**
+     * 获取任务统计数据，包括任务数、预留空间与已上传数据量，以及按用户的统计
+     */
+    Map<String, Object> getStat() throws Exception;
 }
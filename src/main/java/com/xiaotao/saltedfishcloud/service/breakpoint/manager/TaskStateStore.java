@@ -0,0 +1,83 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.manager;
+
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * 断点续传任务状态存储，保存任务元数据、文件块完成位图与最后活动时间。文件块数据始终存放在任务目录中，
+ * 多实例部署时任务目录需位于各实例共享的存储上，任务状态则通过共享的状态存储在实例间同步
+ */
+public interface TaskStateStore {
+    /**
+     * 保存新创建任务的元数据，完成位图初始为空，任务目录需已创建
+     * @param info  任务元数据
+     */
+    void create(TaskMetadata info) throws IOException;
+
+    /**
+     * 读取任务元数据
+     * @param id    任务ID
+     * @return      任务元数据，任务不存在时返回null
+     */
+    TaskMetadata getMetadata(String id) throws IOException;
+
+    /**
+     * 读取文件块完成位图
+     * @param id    任务ID
+     * @return      完成位图，第n位对应第n+1个文件块，任务不存在时返回null
+     */
+    BitSet getFinished(String id) throws IOException;
+
+    /**
+     * 将文件块标记为已完成，并更新任务的最后活动时间。同一任务的调用由调用方串行化
+     * @param info  任务元数据
+     * @param part  文件块编号（从1开始）
+     * @param finished  标记后任务在本实例中的完成位图
+     */
+    void mark(TaskMetadata info, int part, BitSet finished) throws IOException;
+
+    /**
+     * 认领文件块的写入权，写入结束后需调用{@link #release}。共享的状态存储需保证同一文件块同时只能被一个实例认领，
+     * 非共享的状态存储只在一个实例中使用，由注册表在内存中互斥，默认总是成功
+     * @param id    任务ID
+     * @param part  文件块编号（从1开始）
+     * @return      是否认领成功，文件块正由其他实例写入时返回false
+     */
+    default boolean claim(String id, int part) throws IOException {
+        return true;
+    }
+
+    /**
+     * 释放{@link #claim}认领的文件块写入权
+     * @param id    任务ID
+     * @param part  文件块编号（从1开始）
+     */
+    default void release(String id, int part) throws IOException {
+    }
+
+    /**
+     * 获取任务的最后活动时间
+     * @param id    任务ID
+     * @return      最后活动时间的毫秒时间戳，未知时返回-1
+     */
+    long getLastActive(String id) throws IOException;
+
+    /**
+     * 列出所有任务ID
+     */
+    Collection<String> list() throws IOException;
+
+    /**
+     * 删除任务状态，不会删除任务目录中的文件块数据
+     * @param id    任务ID
+     */
+    void remove(String id) throws IOException;
+
+    /**
+     * 状态是否由多个服务实例共享。共享时其他实例可能同时修改任务状态，每次查询任务都需重新读取完成位图
+     */
+    boolean isShared();
+}
@@ -1,47 +1,208 @@
 package com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
 import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskStatMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.ChunkConflictException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.ChunkVerifyException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskLimitException;
 import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskNotFoundException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.ChunkSource;
 import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskManager;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskStateStore;
 import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.utils.PartParser;
 import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.utils.TaskStorePath;
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import lombok.var;
-import org.springframework.util.StreamUtils;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
 
 /**
- * 断点续传任务管理器，管理任务的创建，查询，删除和文件块的存储
+ * 断点续传任务管理器，管理任务的创建，查询，删除和文件块的存储。
+ * 任务状态保存在{@link TaskStateStore}中，默认保存在任务目录中，使用共享的状态存储与共享的任务目录时可多实例部署
  */
 @Slf4j
 public class DefaultTaskManager implements TaskManager {
-    private final ObjectMapper mapper = new ObjectMapper();
+    protected static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * 过期清理时每批清理的任务数
+     */
+    private static final int SWEEP_BATCH = 20;
+
+    /**
+     * 过期清理时每批之间的间隔（毫秒）
+     */
+    private static final long SWEEP_PAUSE = 500;
+
+    /**
+     * 同时进行文件块复用的任务数上限，超出时新任务不复用，由客户端上传全部文件块
+     */
+    private static final int MAX_REUSE_CONCURRENCY = 4;
 
+    protected final TaskRegistry registry;
+
+    /**
+     * 任务闲置的过期时间（秒）
+     */
+    @Setter
+    private long ttl = 24 * 60 * 60;
+
+    /**
+     * 每个用户同时存在的任务数上限，为0时不限制
+     */
+    @Setter
+    private int maxTasks = 0;
+
+    /**
+     * 每个用户所有任务的文件长度之和的上限（字节），为0时不限制
+     */
+    @Setter
+    private long maxSize = 0;
+
+    /**
+     * 可复用文件块的来源，为null时不复用
+     */
+    @Setter
+    private ChunkSource chunkSource;
+
+    /**
+     * 创建任务时复用文件块的时间上限（毫秒），超时后剩余的文件块由客户端上传，为0时不限制
+     */
+    @Setter
+    private long reuseTimeout = 10 * 1000;
+
+    private final Semaphore reuseLimit = new Semaphore(MAX_REUSE_CONCURRENCY);
+
+    /**
+     * 使用任务目录保存任务状态，仅适用于单实例部署
+     */
+    public DefaultTaskManager() {
+        this(new FileTaskStateStore());
+    }
+
+    /**
+     * @param stateStore    任务状态存储
+     */
+    public DefaultTaskManager(TaskStateStore stateStore) {
+        this.registry = new TaskRegistry(stateStore);
+    }
 
     /**
      * 创建断点续传任务
      * @param info  任务元数据
      * @return      创建成功后的任务ID
      * @throws IOException 任务数据存储目录无法写入
+     * @throws TaskLimitException 用户的任务数或占用空间超出限制
+     * @throws IllegalArgumentException 文件块MD5的数量或格式错误
      */
     @Override
     public String createTask(TaskMetadata info) throws IOException {
+        var hashes = info.getChunkHashes();
+        if (hashes != null) {
+            if (hashes.size() != info.getChunkCount()) {
+                throw new IllegalArgumentException("文件块MD5数量应为" + info.getChunkCount());
+            }
+            for (int i = 0; i < hashes.size(); i++) {
+                if (hashes.get(i) == null || !hashes.get(i).matches("^[0-9a-fA-F]{32}$")) {
+                    throw new IllegalArgumentException("无效的文件块MD5：" + hashes.get(i));
+                }
+                hashes.set(i, hashes.get(i).toLowerCase());
+            }
+        }
         var id = UUID.randomUUID().toString();
         info.setTaskId(id);
-        var taskDir = TaskStorePath.getRoot(id);
-        Files.createDirectories(taskDir);
-        Files.write(TaskStorePath.getMetadata(id),mapper.writeValueAsBytes(info));
+        if (info.getTtl() <= 0 || info.getTtl() > ttl) {
+            info.setTtl(ttl);
+        }
+        // 检查限制与注册需保持原子，避免并发创建绕过限制。多实例部署时各实例间不加锁，并发创建可能略微超出限制
+        synchronized (this) {
+            var usage = registry.getUsage(info.getUid());
+            if (maxTasks > 0 && usage[0] >= maxTasks) {
+                throw new TaskLimitException("断点续传任务数超出限制：" + maxTasks);
+            }
+            if (maxSize > 0 && usage[1] + info.getLength() > maxSize) {
+                throw new TaskLimitException("断点续传任务占用空间超出限制：" + maxSize + "字节");
+            }
+            var taskDir = TaskStorePath.create(id, info.getUid());
+            Files.createDirectories(taskDir);
+            prepare(info);
+            registry.register(info);
+        }
 
-        log.debug("Create Breakpoint Task：" + taskDir);
+        log.debug("Create Breakpoint Task：" + TaskStorePath.getRoot(id));
+        try {
+            reuse(info);
+        } catch (IOException | RuntimeException e) {
+            // 任务已注册，创建失败时清理，避免残留任务占用用户的任务数与空间配额
+            try {
+                clear(id);
+            } catch (IOException | RuntimeException ex) {
+                log.warn("[断点续传]创建失败的任务{}清理失败：{}", id, ex.getMessage());
+            }
+            throw e;
+        }
         return id;
     }
 
+    /**
+     * 从可复用来源中获取任务已有的文件块，数据在服务端以流的方式复制，不需要客户端上传。<br>
+     * 复用在创建任务的请求中进行，客户端随后只上传缺失的文件块，因此限制复用的耗时与并发数，
+     * 超时或并发已满时剩余的文件块由客户端上传
+     * @param info  带有文件块MD5的任务元数据
+     */
+    private void reuse(TaskMetadata info) throws IOException {
+        if (chunkSource == null || info.getChunkHashes() == null) {
+            return;
+        }
+        if (!reuseLimit.tryAcquire()) {
+            log.debug("[断点续传]复用并发数已满，任务{}不复用文件块", info.getTaskId());
+            return;
+        }
+        try {
+            long deadline = reuseTimeout > 0 ? System.currentTimeMillis() + reuseTimeout : Long.MAX_VALUE;
+            int count = 0;
+            for (int i = 1; i <= info.getChunkCount(); i++) {
+                if (System.currentTimeMillis() > deadline) {
+                    log.debug("[断点续传]任务{}复用文件块超时，剩余文件块由客户端上传", info.getTaskId());
+                    break;
+                }
+                try (var in = chunkSource.open(info.getUid(), info.getChunkHash(i), info.getPartSize(i))) {
+                    if (in == null) {
+                        continue;
+                    }
+                    save(info.getTaskId(), String.valueOf(i), in);
+                    count++;
+                } catch (ChunkVerifyException | ChunkConflictException | EOFException e) {
+                    log.debug("[断点续传]文件块复用失败：{}", e.getMessage());
+                }
+            }
+            if (count > 0) {
+                log.debug("[断点续传]任务{}复用已有文件块{}个", info.getTaskId(), count);
+            }
+        } finally {
+            reuseLimit.release();
+        }
+    }
+
+    /**
+     * 任务目录创建后、注册前的准备工作，由子类扩展
+     * @param info  任务元数据
+     */
+    protected void prepare(TaskMetadata info) throws IOException {
+    }
+
     /**
      * 查询任务信息
      * @param id 任务ID
@@ -50,13 +211,7 @@ public class DefaultTaskManager implements TaskManager {
      */
     @Override
     public TaskStatMetadata queryTask(String id) throws IOException {
-        var metadataPath = TaskStorePath.getMetadata(id);
-        if (!Files.exists(metadataPath)) {
-            throw new TaskNotFoundException(id);
-        }
-
-        var basicInfo = mapper.readValue(Files.readAllBytes(metadataPath), TaskMetadata.class);
-        return new TaskStatMetadata(basicInfo);
+        return registry.get(id);
     }
 
     /**
@@ -67,17 +222,111 @@ public class DefaultTaskManager implements TaskManager {
     @Override
     public void clear(String id) throws IOException {
         var taskPath = TaskStorePath.getRoot(id);
+        if (chunkSource != null && Files.exists(taskPath)) {
+            // 已完成任务的文件块记录到复用来源，记录失败不影响清理
+            try {
+                var task = queryTask(id);
+                if (task.isFinish() && task.getMd5() != null && task.getChunkHashes() != null) {
+                    chunkSource.record(task);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("[断点续传]任务{}的文件块记录失败：{}", id, e.getMessage());
+            }
+        }
+        registry.remove(id);
         if (!Files.exists(taskPath)) {
             throw new TaskNotFoundException(id);
         }
-        Files.list(taskPath).forEach(path -> {
+        try (Stream<Path> list = Files.list(taskPath)) {
+            list.forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        Files.delete(taskPath);
+        TaskStorePath.remove(id);
+    }
+
+    /**
+     * 加载状态存储中的所有任务，用于服务启动时恢复未完成的任务
+     * @return  加载的任务数
+     */
+    @Override
+    public int load() throws IOException {
+        int count = 0;
+        for (String id : registry.list()) {
             try {
-                Files.delete(path);
-            } catch (IOException e) {
-                e.printStackTrace();
+                queryTask(id);
+                count++;
+            } catch (TaskNotFoundException | IOException e) {
+                log.warn("[断点续传]任务{}加载失败：{}", id, e.getMessage());
             }
-        });
-        Files.delete(taskPath);
+        }
+        return count;
+    }
+
+    /**
+     * 清理闲置超过过期时间的任务，任务的最后活动时间为最后一次标记文件块完成的时间，
+     * 状态存储中没有记录的残留任务目录按目录的修改时间判断。
+     * 每清理{@link #SWEEP_BATCH}个任务暂停一段时间，避免集中删除大量文件影响正在进行的上传
+     * @return  清理的任务数
+     */
+    @Override
+    public int sweep() throws IOException {
+        int count = 0;
+        var ids = new LinkedHashSet<>(registry.list());
+        ids.addAll(TaskStorePath.list());
+        for (String id : ids) {
+            try {
+                if (!isExpired(id, System.currentTimeMillis())) {
+                    continue;
+                }
+                clear(id);
+            } catch (TaskNotFoundException | IOException e) {
+                log.warn("[断点续传]过期任务{}清理失败：{}", id, e.getMessage());
+                continue;
+            }
+            log.debug("[断点续传]清理过期任务：{}", id);
+            if (++count % SWEEP_BATCH == 0) {
+                try {
+                    Thread.sleep(SWEEP_PAUSE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if (count > 0) {
+            log.info("[断点续传]清理过期任务{}个", count);
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, Object> getStat() throws IOException {
+        return registry.getStat();
+    }
+
+    /**
+     * 判断任务是否已过期，元数据缺失或损坏的残留目录按系统设置的过期时间判断，任务目录已不存在的残留状态视为已过期
+     */
+    private boolean isExpired(String id, long now) throws IOException {
+        long taskTtl = ttl;
+        try {
+            taskTtl = queryTask(id).getTtl();
+        } catch (TaskNotFoundException | IOException ignored) { }
+        var active = registry.getLastActive(id);
+        if (active < 0) {
+            var root = TaskStorePath.getRoot(id);
+            if (!Files.exists(root)) {
+                return true;
+            }
+            active = Files.getLastModifiedTime(root).toMillis();
+        }
+        return now - active > (taskTtl > 0 ? taskTtl : ttl) * 1000;
     }
 
     /**
@@ -88,18 +337,89 @@ public class DefaultTaskManager implements TaskManager {
      */
     @Override
     public void save(String id, String part, InputStream stream) throws IOException {
-        var root = TaskStorePath.getRoot(id);
-        if (!Files.exists(root)) {
-            throw new TaskNotFoundException(id);
-        }
+        save(id, part, stream, null);
+    }
+
+    /**
+     * 保存部分的断点续传任务文件片段，写入的同时校验数据并计算整个文件的MD5，任务带有文件块MD5时逐块校验。<br>
+     * 若片段恰好紧接着已计算MD5的部分，则在写入时直接计算，否则在前面的文件块到达后从磁盘读取补算。
+     * 已完成或正在写入的文件块不能再次写入
+     * @param id        任务ID
+     * @param part      文件块编号（从1开始）
+     * @param stream    文件流
+     * @param md5       片段数据的MD5，为null时不校验
+     * @throws ChunkVerifyException 片段数据MD5校验失败
+     * @throws ChunkConflictException 文件块已完成或正在写入
+     */
+    @Override
+    public void save(String id, String part, InputStream stream, String md5) throws IOException {
         var parts = PartParser.parse(part);
         var taskInfo = queryTask(id);
-        for (int i : parts) {
-            var size = taskInfo.getPartSize(i);
-            var out = Files.newOutputStream(TaskStorePath.getPartFile(id, i));
-            StreamUtils.copyRange(stream, out, 0, size - 1);
-            out.close();
+        var verify = md5 == null ? null : TaskRegistry.newDigest();
+        try {
+            registry.beginWrite(id, parts);
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+        MessageDigest hash = null;
+        boolean success = false;
+        try {
+            hash = registry.beginHash(id, parts[0]);
+            InputStream in = verify == null ? stream : new DigestInputStream(stream, verify);
+            if (hash != null) {
+                in = new DigestInputStream(in, hash);
+            }
+            for (int i : parts) {
+                var expect = taskInfo.getChunkHash(i);
+                if (expect == null) {
+                    writePart(taskInfo, i, in);
+                    continue;
+                }
+                var partDigest = TaskRegistry.newDigest();
+                writePart(taskInfo, i, new DigestInputStream(in, partDigest));
+                if (!SecureUtils.bytesToHex(partDigest.digest()).equals(expect)) {
+                    throw new ChunkVerifyException(id, String.valueOf(i));
+                }
+            }
+            if (verify != null && !SecureUtils.bytesToHex(verify.digest()).equalsIgnoreCase(md5)) {
+                throw new ChunkVerifyException(id, part);
+            }
+            for (int i : parts) {
+                registry.mark(id, i);
+            }
+            if (hash != null) {
+                registry.commitHash(id, parts[parts.length - 1], hash);
+            }
+            success = true;
+        } finally {
+            stream.close();
+            if (!success && hash != null) {
+                registry.abortHash(id);
+            }
+            registry.endWrite(id, parts);
+        }
+    }
+
+    /**
+     * 写入一个文件块的数据
+     * @param taskInfo  任务信息
+     * @param part      文件块编号（从1开始）
+     * @param stream    数据流，从中读取恰好一个文件块长度的数据
+     * @throws EOFException 数据不完整
+     */
+    protected void writePart(TaskStatMetadata taskInfo, int part, InputStream stream) throws IOException {
+        var size = taskInfo.getPartSize(part);
+        byte[] buf = new byte[BUFFER_SIZE];
+        try (var out = Files.newOutputStream(TaskStorePath.getPartFile(taskInfo.getTaskId(), part))) {
+            while (size > 0) {
+                int n = stream.read(buf, 0, (int) Math.min(buf.length, size));
+                if (n < 0) {
+                    throw new EOFException("文件块" + part + "数据不完整");
+                }
+                out.write(buf, 0, n);
+                size -= n;
+            }
         }
-        stream.close();
     }
 }
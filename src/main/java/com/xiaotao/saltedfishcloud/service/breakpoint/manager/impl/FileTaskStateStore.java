@@ -0,0 +1,112 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskStateStore;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.utils.TaskStorePath;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.stream.Stream;
+
+/**
+ * 基于任务目录的任务状态存储，元数据保存在metadata.json中，完成位图保存在chunks.bitmap中，
+ * 每个文件块占1位，标记文件块完成时只写入其所在的1个字节。最后活动时间为位图文件的修改时间。<br>
+ * 旧任务没有位图文件时根据.part文件重建。仅适用于单实例部署
+ */
+@Slf4j
+public class FileTaskStateStore implements TaskStateStore {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Override
+    public void create(TaskMetadata info) throws IOException {
+        String id = info.getTaskId();
+        Files.write(TaskStorePath.getMetadata(id), mapper.writeValueAsBytes(info));
+        Files.write(TaskStorePath.getBitmap(id), new byte[(info.getChunkCount() + 7) / 8]);
+    }
+
+    @Override
+    public TaskMetadata getMetadata(String id) throws IOException {
+        Path metadataPath = TaskStorePath.getMetadata(id);
+        if (!Files.exists(metadataPath)) {
+            return null;
+        }
+        return mapper.readValue(Files.readAllBytes(metadataPath), TaskMetadata.class);
+    }
+
+    @Override
+    public BitSet getFinished(String id) throws IOException {
+        Path bitmap = TaskStorePath.getBitmap(id);
+        if (Files.exists(bitmap)) {
+            return BitSet.valueOf(Files.readAllBytes(bitmap));
+        }
+        TaskMetadata info = getMetadata(id);
+        if (info == null) {
+            return null;
+        }
+        BitSet finished = rebuild(id, info);
+        byte[] data = new byte[(info.getChunkCount() + 7) / 8];
+        byte[] bits = finished.toByteArray();
+        System.arraycopy(bits, 0, data, 0, bits.length);
+        Files.write(bitmap, data);
+        log.debug("[断点续传]重建任务{}的文件块位图", id);
+        return finished;
+    }
+
+    @Override
+    public void mark(TaskMetadata info, int part, BitSet finished) throws IOException {
+        int offset = (part - 1) / 8;
+        int b = 0;
+        for (int i = 0; i < 8; i++) {
+            if (finished.get(offset * 8 + i)) {
+                b |= 1 << i;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(TaskStorePath.getBitmap(info.getTaskId()), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) b}), offset);
+        }
+    }
+
+    @Override
+    public long getLastActive(String id) throws IOException {
+        Path bitmap = TaskStorePath.getBitmap(id);
+        return Files.exists(bitmap) ? Files.getLastModifiedTime(bitmap).toMillis() : -1;
+    }
+
+    @Override
+    public Collection<String> list() throws IOException {
+        return TaskStorePath.list();
+    }
+
+    @Override
+    public void remove(String id) {
+        // 状态文件位于任务目录中，随任务目录一起删除
+    }
+
+    @Override
+    public boolean isShared() {
+        return false;
+    }
+
+    /**
+     * 根据旧任务的.part文件重建完成位图
+     */
+    private static BitSet rebuild(String id, TaskMetadata info) throws IOException {
+        BitSet finished = new BitSet();
+        try (Stream<Path> list = Files.list(TaskStorePath.getRoot(id))) {
+            list.map(e -> e.getFileName().toString())
+                    .filter(e -> e.matches("^\\d+\\.part$"))
+                    .mapToInt(e -> Integer.parseInt(e.substring(0, e.length() - 5)))
+                    .filter(e -> e >= 1 && e <= info.getChunkCount())
+                    .forEach(e -> finished.set(e - 1));
+        }
+        return finished;
+    }
+}
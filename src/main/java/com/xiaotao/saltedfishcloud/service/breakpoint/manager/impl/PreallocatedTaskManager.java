@@ -0,0 +1,67 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl;
+
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskStatMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskStateStore;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.utils.TaskStorePath;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 预分配模式的断点续传任务管理器。创建任务时按文件长度预分配数据文件，各文件块通过定位写入直接写到数据文件中的对应位置，
+ * 不同文件块可以并发上传。任务完成后数据文件即为完整文件，存储时只需移动，不需要再合并文件块。<br>
+ * 文件块全部写入并落盘后才会在完成位图中标记，写入中断的文件块不会被视为已完成。切换模式前创建的分块模式任务仍按分块模式处理
+ */
+@Slf4j
+public class PreallocatedTaskManager extends DefaultTaskManager {
+    public PreallocatedTaskManager() {
+        super();
+    }
+
+    /**
+     * @param stateStore    任务状态存储
+     */
+    public PreallocatedTaskManager(TaskStateStore stateStore) {
+        super(stateStore);
+    }
+
+    @Override
+    protected void prepare(TaskMetadata info) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(TaskStorePath.getDataFile(info.getTaskId()).toFile(), "rw")) {
+            file.setLength(info.getLength());
+        }
+    }
+
+    @Override
+    protected void writePart(TaskStatMetadata taskInfo, int part, InputStream stream) throws IOException {
+        if (!taskInfo.isPreallocated()) {
+            super.writePart(taskInfo, part, stream);
+            return;
+        }
+        byte[] buf = new byte[BUFFER_SIZE];
+        try (FileChannel channel = FileChannel.open(TaskStorePath.getDataFile(taskInfo.getTaskId()), StandardOpenOption.WRITE)) {
+            long position = (long) (part - 1) * taskInfo.getChunkSize();
+            long remaining = taskInfo.getPartSize(part);
+            while (remaining > 0) {
+                int n = stream.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) {
+                    throw new EOFException("文件块" + part + "数据不完整");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(buf, 0, n);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                remaining -= n;
+            }
+            // 需在数据落盘后标记完成，避免崩溃后将未写入的数据视为已完成
+            channel.force(false);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskStateStore;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * 基于Redis的任务状态存储，供多实例部署时各实例共享任务状态，同一任务的文件块可以由任意实例接收。<br>
+ * 每个任务的元数据与最后活动时间保存在哈希表 xyy:breakpoint:task:{id} 中，完成位图保存在 xyy:breakpoint:bitmap:{id} 中，
+ * 通过SETBIT标记单个文件块，所有任务ID保存在集合 xyy:breakpoint:tasks 中。任务目录需位于各实例共享的存储上。<br>
+ * 正在写入的文件块通过 xyy:breakpoint:writing:{id}:{part} 认领，值为认领实例的标识，设有过期时间，实例异常退出后自动失效
+ */
+public class RedisTaskStateStore implements TaskStateStore {
+    private static final String PREFIX = "xyy:breakpoint:";
+    private static final String TASKS_KEY = PREFIX + "tasks";
+    private static final String METADATA_FIELD = "metadata";
+    private static final String ACTIVE_FIELD = "active";
+
+    /**
+     * 文件块写入权的有效期，需大于单个文件块的上传时间
+     */
+    static final Duration CLAIM_TTL = Duration.ofMinutes(10);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final StringRedisTemplate redisTemplate;
+
+    /**
+     * 本实例的标识，释放写入权时确认仍由本实例持有，不会误删过期后被其他实例重新认领的写入权
+     */
+    private final String owner = UUID.randomUUID().toString();
+
+    public RedisTaskStateStore(StringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @Override
+    public void create(TaskMetadata info) throws IOException {
+        Map<String, String> task = new HashMap<>();
+        task.put(METADATA_FIELD, mapper.writeValueAsString(info));
+        task.put(ACTIVE_FIELD, String.valueOf(System.currentTimeMillis()));
+        redisTemplate.opsForHash().putAll(taskKey(info.getTaskId()), task);
+        redisTemplate.opsForSet().add(TASKS_KEY, info.getTaskId());
+    }
+
+    @Override
+    public TaskMetadata getMetadata(String id) throws IOException {
+        Object metadata = redisTemplate.opsForHash().get(taskKey(id), METADATA_FIELD);
+        return metadata == null ? null : mapper.readValue(metadata.toString(), TaskMetadata.class);
+    }
+
+    @Override
+    public BitSet getFinished(String id) {
+        byte[] key = bitmapKey(id).getBytes(StandardCharsets.UTF_8);
+        byte[] bits = redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+        if (bits == null) {
+            return Boolean.TRUE.equals(redisTemplate.hasKey(taskKey(id))) ? new BitSet() : null;
+        }
+        // Redis位图中偏移0为首字节的最高位
+        BitSet finished = new BitSet(bits.length * 8);
+        for (int i = 0; i < bits.length; i++) {
+            for (int j = 0; j < 8; j++) {
+                if ((bits[i] & (0x80 >>> j)) != 0) {
+                    finished.set(i * 8 + j);
+                }
+            }
+        }
+        return finished;
+    }
+
+    @Override
+    public void mark(TaskMetadata info, int part, BitSet finished) {
+        byte[] bitmapKey = bitmapKey(info.getTaskId()).getBytes(StandardCharsets.UTF_8);
+        byte[] taskKey = taskKey(info.getTaskId()).getBytes(StandardCharsets.UTF_8);
+        byte[] active = String.valueOf(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.setBit(bitmapKey, part - 1, true);
+            connection.hSet(taskKey, ACTIVE_FIELD.getBytes(StandardCharsets.UTF_8), active);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean claim(String id, int part) {
+        return Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(claimKey(id, part), owner, CLAIM_TTL));
+    }
+
+    @Override
+    public void release(String id, int part) {
+        String key = claimKey(id, part);
+        if (owner.equals(redisTemplate.opsForValue().get(key))) {
+            redisTemplate.delete(key);
+        }
+    }
+
+    @Override
+    public long getLastActive(String id) {
+        Object active = redisTemplate.opsForHash().get(taskKey(id), ACTIVE_FIELD);
+        return active == null ? -1 : Long.parseLong(active.toString());
+    }
+
+    @Override
+    public Collection<String> list() {
+        Set<String> ids = redisTemplate.opsForSet().members(TASKS_KEY);
+        return ids == null ? Collections.emptyList() : ids;
+    }
+
+    @Override
+    public void remove(String id) {
+        redisTemplate.delete(Arrays.asList(taskKey(id), bitmapKey(id)));
+        redisTemplate.opsForSet().remove(TASKS_KEY, id);
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    private static String taskKey(String id) {
+        return PREFIX + "task:" + id;
+    }
+
+    private static String bitmapKey(String id) {
+        return PREFIX + "bitmap:" + id;
+    }
+
+    private static String claimKey(String id, int part) {
+        return PREFIX + "writing:" + id + ":" + part;
+    }
+}
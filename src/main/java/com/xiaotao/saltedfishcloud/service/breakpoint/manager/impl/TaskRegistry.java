@@ -0,0 +1,486 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl;
+
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskStatMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.ChunkConflictException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskNotFoundException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.TaskStateStore;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.utils.TaskStorePath;
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 断点续传任务注册表，在内存中缓存任务元数据与文件块完成位图，查询任务与判断完成状态不需要再读取状态存储。<br>
+ * 任务状态持久化在{@link TaskStateStore}中，内存中没有的任务（如服务重启后或由其他实例创建的任务）在首次访问时从状态存储加载。
+ * 状态存储由多个实例共享时，每次查询与标记都会合并状态存储中其他实例标记的文件块。<br>
+ * 注册表同时按文件块顺序增量计算整个文件的MD5，最后一个文件块到达时即可得出，不需要在合并后重新读取整个文件。
+ * MD5计算状态只保存在内存中，从状态存储加载的任务在下一个文件块完成时从头补算，
+ * 多实例部署时接收文件块的每个实例各自计算
+ */
+@Slf4j
+public class TaskRegistry {
+    private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+    private final TaskStateStore store;
+
+    public TaskRegistry(TaskStateStore store) {
+        this.store = store;
+    }
+
+    /**
+     * 已注册的任务
+     */
+    private static class Task {
+        final TaskMetadata metadata;
+        final BitSet finished;
+        /**
+         * 正在写入的文件块
+         */
+        final BitSet writing = new BitSet();
+        final boolean preallocated;
+        int finishCount;
+
+        /**
+         * 从第1个文件块开始连续计算的文件MD5状态
+         */
+        MessageDigest digest = newDigest();
+
+        /**
+         * 已计入MD5的文件块数量
+         */
+        int hashed;
+
+        /**
+         * 是否有线程正在推进MD5计算
+         */
+        boolean hashing;
+
+        /**
+         * 整个文件的MD5，所有文件块都计入后得出
+         */
+        String md5;
+
+        Task(TaskMetadata metadata, BitSet finished, boolean preallocated) {
+            this.metadata = metadata;
+            this.finished = finished;
+            this.preallocated = preallocated;
+            this.finishCount = finished.cardinality();
+        }
+    }
+
+    /**
+     * 注册新创建的任务并保存到状态存储，任务目录需已创建
+     * @param info  任务元数据
+     */
+    public void register(TaskMetadata info) throws IOException {
+        String id = info.getTaskId();
+        store.create(info);
+        tasks.put(id, new Task(new TaskMetadata(info), new BitSet(), Files.exists(TaskStorePath.getDataFile(id))));
+    }
+
+    /**
+     * 查询任务状态
+     * @param id    任务ID
+     * @return      任务状态的快照
+     * @throws TaskNotFoundException 任务不存在
+     */
+    public TaskStatMetadata get(String id) throws IOException {
+        Task task = tasks.get(id);
+        if (task == null) {
+            task = load(id);
+        } else if (store.isShared()) {
+            refresh(task);
+        }
+        synchronized (task) {
+            return new TaskStatMetadata(task.metadata, (BitSet) task.finished.clone(), task.finishCount, task.preallocated, task.md5);
+        }
+    }
+
+    /**
+     * 开始写入文件块，写入结束后需调用{@link #endWrite}。<br>
+     * 已完成的文件块可能已计入文件MD5，重新写入会使数据与MD5不一致，因此不允许重复写入已完成或正在写入的文件块。
+     * 本实例内通过内存中的写入位图互斥，实例之间通过状态存储认领文件块互斥
+     * @param id    任务ID
+     * @param parts 要写入的文件块编号（从1开始）
+     * @throws ChunkConflictException 文件块已完成或正在写入
+     */
+    public void beginWrite(String id, int[] parts) throws IOException {
+        Task task = load(id);
+        if (store.isShared()) {
+            refresh(task);
+        }
+        synchronized (task) {
+            for (int part : parts) {
+                if (task.finished.get(part - 1)) {
+                    throw new ChunkConflictException(id, part, true);
+                }
+                if (task.writing.get(part - 1)) {
+                    throw new ChunkConflictException(id, part, false);
+                }
+            }
+            for (int part : parts) {
+                task.writing.set(part - 1);
+            }
+        }
+
+        int claimed = 0;
+        boolean success = false;
+        try {
+            for (int part : parts) {
+                if (!store.claim(id, part)) {
+                    throw new ChunkConflictException(id, part, false);
+                }
+                claimed++;
+            }
+            if (store.isShared()) {
+                // 认领前其他实例可能刚完成文件块并释放认领
+                refresh(task);
+                synchronized (task) {
+                    for (int part : parts) {
+                        if (task.finished.get(part - 1)) {
+                            throw new ChunkConflictException(id, part, true);
+                        }
+                    }
+                }
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                release(task, parts, claimed);
+            }
+        }
+    }
+
+    /**
+     * 结束文件块的写入
+     * @param id    任务ID
+     * @param parts {@link #beginWrite}时的文件块编号
+     */
+    public void endWrite(String id, int[] parts) throws IOException {
+        release(load(id), parts, parts.length);
+    }
+
+    /**
+     * 释放文件块的认领并清除写入标记，释放认领失败时认领在过期后自动失效
+     * @param parts     要清除写入标记的文件块编号
+     * @param claimed   其中前claimed个文件块已在状态存储中认领
+     */
+    private void release(Task task, int[] parts, int claimed) {
+        String id = task.metadata.getTaskId();
+        try {
+            for (int i = 0; i < claimed; i++) {
+                try {
+                    store.release(id, parts[i]);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("[断点续传]任务{}的文件块{}释放认领失败：{}", id, parts[i], e.getMessage());
+                }
+            }
+        } finally {
+            synchronized (task) {
+                for (int part : parts) {
+                    task.writing.clear(part - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * 将文件块标记为已完成，需在文件块数据完整写入后调用。若文件块补上了MD5计算进度的缺口，将从磁盘读取后续已完成的文件块继续计算
+     * @param id    任务ID
+     * @param part  文件块编号（从1开始）
+     * @throws TaskNotFoundException 任务不存在
+     */
+    public void mark(String id, int part) throws IOException {
+        Task task = load(id);
+        int index = part - 1;
+        synchronized (task) {
+            if (!task.finished.get(index)) {
+                task.finished.set(index);
+                task.finishCount++;
+                store.mark(task.metadata, part, task.finished);
+            }
+        }
+        if (store.isShared()) {
+            // 其他实例完成的文件块也需计入，以便继续推进MD5计算
+            refresh(task);
+        }
+        synchronized (task) {
+            if (task.hashing || task.md5 != null || !task.finished.get(task.hashed)) {
+                return;
+            }
+            task.hashing = true;
+        }
+        advance(task);
+    }
+
+    /**
+     * 尝试在写入文件块时同时计算文件MD5，仅当该文件块紧接着已计算的部分且没有其他线程在计算时可用。<br>
+     * 成功后调用方需在文件块写入并标记完成后调用{@link #commitHash}，失败时调用{@link #abortHash}
+     * @param id    任务ID
+     * @param part  要写入的首个文件块编号（从1开始）
+     * @return      MD5计算状态的副本，不可用时返回null
+     */
+    public MessageDigest beginHash(String id, int part) throws IOException {
+        Task task = load(id);
+        synchronized (task) {
+            if (task.hashing || task.md5 != null || task.hashed != part - 1 || task.finished.get(part - 1)) {
+                return null;
+            }
+            task.hashing = true;
+            try {
+                return (MessageDigest) task.digest.clone();
+            } catch (CloneNotSupportedException e) {
+                task.hashing = false;
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 提交写入时计算的MD5状态，并继续计算后续已完成的文件块
+     * @param id        任务ID
+     * @param lastPart  已计入的最后一个文件块编号
+     * @param digest    {@link #beginHash}返回并已计入数据的MD5状态
+     */
+    public void commitHash(String id, int lastPart, MessageDigest digest) throws IOException {
+        Task task = load(id);
+        synchronized (task) {
+            task.digest = digest;
+            task.hashed = lastPart;
+        }
+        advance(task);
+    }
+
+    /**
+     * 放弃写入时的MD5计算
+     * @param id    任务ID
+     */
+    public void abortHash(String id) throws IOException {
+        Task task = load(id);
+        synchronized (task) {
+            task.hashing = false;
+        }
+    }
+
+    /**
+     * 获取用户已注册任务的数量与预留空间
+     * @param uid   用户ID
+     * @return      任务数与预留空间（所有任务的文件长度之和）
+     */
+    public long[] getUsage(int uid) throws IOException {
+        sync();
+        long[] res = new long[2];
+        for (Task task : tasks.values()) {
+            if (task.metadata.getUid() == uid) {
+                res[0]++;
+                res[1] += task.metadata.getLength();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * 获取已注册任务的统计数据
+     */
+    public Map<String, Object> getStat() throws IOException {
+        sync();
+        if (store.isShared()) {
+            for (Task task : tasks.values()) {
+                try {
+                    refresh(task);
+                } catch (TaskNotFoundException ignored) { }
+            }
+        }
+        Map<Integer, long[]> users = new TreeMap<>();
+        long[] total = new long[3];
+        for (Task task : tasks.values()) {
+            long staged;
+            synchronized (task) {
+                staged = (long) task.finishCount * task.metadata.getChunkSize();
+                int count = task.metadata.getChunkCount();
+                if (count > 0 && task.finished.get(count - 1)) {
+                    staged -= task.metadata.getChunkSize() - task.metadata.getLastChunkSize();
+                }
+            }
+            long[] user = users.computeIfAbsent(task.metadata.getUid(), k -> new long[3]);
+            for (long[] e : new long[][]{user, total}) {
+                e[0]++;
+                e[1] += task.metadata.getLength();
+                e[2] += staged;
+            }
+        }
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("task_count", total[0]);
+        res.put("reserved_size", total[1]);
+        res.put("staged_size", total[2]);
+        Map<Integer, Object> byUser = new LinkedHashMap<>();
+        users.forEach((uid, e) -> {
+            Map<String, Object> user = new LinkedHashMap<>();
+            user.put("task_count", e[0]);
+            user.put("reserved_size", e[1]);
+            user.put("staged_size", e[2]);
+            byUser.put(uid, user);
+        });
+        res.put("users", byUser);
+        return res;
+    }
+
+    /**
+     * 获取任务的最后活动时间
+     * @param id    任务ID
+     * @return      最后活动时间的毫秒时间戳，未知时返回-1
+     */
+    public long getLastActive(String id) throws IOException {
+        return store.getLastActive(id);
+    }
+
+    /**
+     * 列出状态存储中的所有任务ID
+     */
+    public Collection<String> list() throws IOException {
+        return store.list();
+    }
+
+    /**
+     * 从注册表与状态存储中移除任务，不会删除任务目录中的文件块数据
+     * @param id    任务ID
+     */
+    public void remove(String id) throws IOException {
+        tasks.remove(id);
+        store.remove(id);
+    }
+
+    private Task load(String id) throws IOException {
+        Task task = tasks.get(id);
+        if (task != null) {
+            return task;
+        }
+        TaskMetadata info = store.getMetadata(id);
+        BitSet finished = info == null ? null : store.getFinished(id);
+        if (finished == null) {
+            throw new TaskNotFoundException(id);
+        }
+        task = new Task(info, finished, Files.exists(TaskStorePath.getDataFile(id)));
+        Task exist = tasks.putIfAbsent(id, task);
+        return exist == null ? task : exist;
+    }
+
+    /**
+     * 合并共享的状态存储中其他实例标记的文件块，任务已被其他实例删除时从注册表中移除
+     * @throws TaskNotFoundException 任务已被删除
+     */
+    private void refresh(Task task) throws IOException {
+        String id = task.metadata.getTaskId();
+        BitSet finished = store.getFinished(id);
+        if (finished == null) {
+            tasks.remove(id);
+            throw new TaskNotFoundException(id);
+        }
+        synchronized (task) {
+            task.finished.or(finished);
+            task.finishCount = task.finished.cardinality();
+        }
+    }
+
+    /**
+     * 同步共享的状态存储中的任务列表，加载其他实例创建的任务，移除已被其他实例删除的任务
+     */
+    private void sync() throws IOException {
+        if (!store.isShared()) {
+            return;
+        }
+        Set<String> ids = new HashSet<>(store.list());
+        tasks.keySet().retainAll(ids);
+        for (String id : ids) {
+            try {
+                load(id);
+            } catch (TaskNotFoundException e) {
+                log.debug("[断点续传]任务{}已被删除", id);
+            }
+        }
+    }
+
+    /**
+     * 推进MD5计算，依次读取已完成的后续文件块，直到遇到未完成的文件块或全部完成。调用前需已取得计算权
+     */
+    private void advance(Task task) {
+        while (true) {
+            int next;
+            synchronized (task) {
+                if (task.hashed == task.metadata.getChunkCount()) {
+                    task.md5 = SecureUtils.bytesToHex(task.digest.digest());
+                    task.hashing = false;
+                    return;
+                }
+                if (!task.finished.get(task.hashed)) {
+                    task.hashing = false;
+                    return;
+                }
+                next = task.hashed + 1;
+            }
+            try {
+                readPart(task, next);
+            } catch (IOException e) {
+                log.warn("[断点续传]任务{}的文件块{}读取失败，无法计算文件MD5：{}", task.metadata.getTaskId(), next, e.getMessage());
+                synchronized (task) {
+                    task.hashing = false;
+                }
+                return;
+            }
+            synchronized (task) {
+                task.hashed = next;
+            }
+        }
+    }
+
+    /**
+     * 读取文件块数据计入MD5
+     */
+    private static void readPart(Task task, int part) throws IOException {
+        String id = task.metadata.getTaskId();
+        long size = task.metadata.getPartSize(part);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 64 * 1024));
+        if (task.preallocated) {
+            try (FileChannel channel = FileChannel.open(TaskStorePath.getDataFile(id), StandardOpenOption.READ)) {
+                digest(channel, (long) (part - 1) * task.metadata.getChunkSize(), size, buffer, task.digest);
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(TaskStorePath.getPartFile(id, part), StandardOpenOption.READ)) {
+                digest(channel, 0, size, buffer, task.digest);
+            }
+        }
+    }
+
+    private static void digest(FileChannel channel, long position, long size, ByteBuffer buffer, MessageDigest digest) throws IOException {
+        while (size > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("文件块数据不完整");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += n;
+            size -= n;
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,20 +1,138 @@
 package com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.utils;
 
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskNotFoundException;
 import com.xiaotao.saltedfishcloud.utils.PathUtils;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
+/**
+ * 断点续传任务数据的存储路径。任务目录的存放位置由{@link Locator}决定，默认为系统临时目录下的xyy目录，
+ * 任务创建后其目录位置被记录，之后通过任务ID即可找到
+ */
 public class TaskStorePath {
+    private static final Pattern ID_PATTERN = Pattern.compile("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+    private static final Map<String, Path> roots = new ConcurrentHashMap<>();
+    private static final Locator DEFAULT_LOCATOR = new Locator() {
+        @Override
+        public Path getBase(int uid) {
+            return getDefaultBase();
+        }
+
+        @Override
+        public Collection<Path> getBases() {
+            return Collections.singletonList(getDefaultBase());
+        }
+    };
+    private static volatile Locator locator = DEFAULT_LOCATOR;
+
+    /**
+     * 任务目录的存放位置
+     */
+    public interface Locator {
+        /**
+         * 获取新任务目录的存放目录
+         * @param uid   创建任务的用户ID
+         */
+        Path getBase(int uid);
+
+        /**
+         * 获取所有可能存放任务目录的目录，用于查找任务与启动时重建任务
+         */
+        Collection<Path> getBases();
+    }
+
     /**
-     * 获取任务数据文件夹路径
+     * 设置任务目录的存放位置，已记录的任务目录位置将被清除
+     * @param locator   存放位置，为null时恢复默认
+     */
+    public static void setLocator(Locator locator) {
+        TaskStorePath.locator = locator == null ? DEFAULT_LOCATOR : locator;
+        roots.clear();
+    }
+
+    /**
+     * 默认的任务存放目录，位于系统临时目录
+     */
+    public static Path getDefaultBase() {
+        return Paths.get(PathUtils.getTempDirectory(), "xyy");
+    }
+
+    /**
+     * 为新任务分配任务数据文件夹
+     * @param id    任务ID
+     * @param uid   创建任务的用户ID
+     */
+    public static Path create(String id, int uid) {
+        Path root = locator.getBase(uid).resolve(id);
+        roots.put(id, root);
+        return root;
+    }
+
+    /**
+     * 获取任务数据文件夹路径，任务不存在时返回的路径不存在
      * @param id 任务ID
+     * @throws TaskNotFoundException 任务ID格式错误
      */
     public static Path getRoot(String id) {
         if (id == null) {
             throw new NullPointerException();
         }
-        return Paths.get(PathUtils.getTempDirectory() + "/xyy/" + id);
+        if (!ID_PATTERN.matcher(id).matches()) {
+            throw new TaskNotFoundException(id);
+        }
+        Path root = roots.get(id);
+        if (root != null) {
+            return root;
+        }
+        Collection<Path> bases = locator.getBases();
+        for (Path base : bases) {
+            Path p = base.resolve(id);
+            if (Files.isDirectory(p)) {
+                roots.put(id, p);
+                return p;
+            }
+        }
+        return bases.iterator().next().resolve(id);
+    }
+
+    /**
+     * 移除任务目录位置的记录
+     * @param id    任务ID
+     */
+    public static void remove(String id) {
+        roots.remove(id);
+    }
+
+    /**
+     * 列出所有存放目录中的任务ID
+     */
+    public static List<String> list() throws IOException {
+        List<String> res = new ArrayList<>();
+        for (Path base : locator.getBases()) {
+            if (!Files.isDirectory(base)) {
+                continue;
+            }
+            try (Stream<Path> list = Files.list(base)) {
+                list.filter(Files::isDirectory).forEach(e -> {
+                    String id = e.getFileName().toString();
+                    if (!ID_PATTERN.matcher(id).matches()) {
+                        return;
+                    }
+                    roots.putIfAbsent(id, e);
+                    if (e.equals(roots.get(id))) {
+                        res.add(id);
+                    }
+                });
+            }
+        }
+        return res;
     }
 
     /**
@@ -26,6 +144,22 @@ public class TaskStorePath {
         return Paths.get(getRoot(id) + "/" + part + ".part");
     }
 
+    /**
+     * 获取预分配模式下的任务数据文件路径，各文件块直接写入该文件的对应位置
+     * @param id    任务ID
+     */
+    public static Path getDataFile(String id) {
+        return Paths.get(getRoot(id) + "/data.bin");
+    }
+
+    /**
+     * 获取文件块完成位图路径
+     * @param id    任务ID
+     */
+    public static Path getBitmap(String id) {
+        return Paths.get(getRoot(id) + "/chunks.bitmap");
+    }
+
     /**
      * 获取任务元数据路径
      * @param id    任务ID
@@ -3,7 +3,7 @@ package com.xiaotao.saltedfishcloud.service.config;
 import com.xiaotao.saltedfishcloud.config.DiskConfig;
 import com.xiaotao.saltedfishcloud.config.StoreType;
 import com.xiaotao.saltedfishcloud.dao.mybatis.ConfigDao;
-import com.xiaotao.saltedfishcloud.enums.ReadOnlyLevel;
+import com.xiaotao.saltedfishcloud.exception.JsonException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -18,8 +18,6 @@ public class ConfigService {
     private ConfigDao configDao;
     @Resource
     private StoreTypeSwitch storeTypeSwitch;
-    @Resource
-    private DiskConfig diskConfig;
 
     /**
      * 从配置表读取一个配置项的值
@@ -59,8 +57,9 @@ public class ConfigService {
     /**
      * 设置存储类型
      * @param type 存储类型
-     * @return true表示切换成功，false表示切换被忽略
+     * @return true表示切换已开始，false表示切换被忽略
      * @throws IllegalStateException 数据库配置表无相关信息
+     * @throws JsonException 上一次切换尚未完成
      */
     @Transactional(rollbackFor = Exception.class)
     public boolean setStoreType(StoreType type) throws IOException {
@@ -74,16 +73,9 @@ public class ConfigService {
             return false;
         }
         log.info("存储切换：" + storeType.toString() + " -> " + type.toString());
-        try {
-            DiskConfig.setReadOnlyLevel(ReadOnlyLevel.DATA_MOVING);
-            configDao.setConfigure(StoreType.getConfigKey(), type.toString());
-            diskConfig.setStoreType(type.toString());
-            storeTypeSwitch.switchTo(type);
-            DiskConfig.setReadOnlyLevel(null);
-        } catch (IOException | RuntimeException e) {
-            DiskConfig.setReadOnlyLevel(null);
-            throw e;
-        }
+        configDao.setConfigure(StoreType.getConfigKey(), type.toString());
+        // 数据迁移在后台进行，迁移完成前对应用户的网盘只读
+        storeTypeSwitch.start(storeType, type);
         return true;
     }
 
@@ -1,106 +1,489 @@
 package com.xiaotao.saltedfishcloud.service.config;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.xiaotao.saltedfishcloud.config.DiskConfig;
 import com.xiaotao.saltedfishcloud.config.StoreType;
 import com.xiaotao.saltedfishcloud.dao.mybatis.ConfigDao;
+import com.xiaotao.saltedfishcloud.dao.mybatis.FileDao;
 import com.xiaotao.saltedfishcloud.dao.mybatis.UserDao;
+import com.xiaotao.saltedfishcloud.exception.JsonException;
 import com.xiaotao.saltedfishcloud.po.User;
 import com.xiaotao.saltedfishcloud.po.file.FileInfo;
-import com.xiaotao.saltedfishcloud.service.file.FileService;
-import com.xiaotao.saltedfishcloud.service.file.StoreService;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
 import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.io.InputStream;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 存储模式切换任务。切换在后台执行，按用户并行迁移本地文件数据，RAW与UNIQUE之间的迁移尽量通过硬链接完成，不复制文件内容。<br>
+ * 每完成一个用户的迁移即写入检查点，服务重启后从未完成的用户继续（{@link #resume}）。<br>
+ * 切换期间只有尚未完成迁移的用户处于只读状态，已完成的用户可正常读写；读取文件时按文件实际所在位置选择分块存储库或本地文件。
+ */
 @Component
 @Slf4j
 public class StoreTypeSwitch {
+    private static final String STATE_FILE = "store_switch.json";
+
+    private final ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
     @Resource
     private UserDao userDao;
     @Resource
-    private StoreService storeService;
-    @Resource
     private ConfigDao configDao;
     @Resource
-    private FileService fileService;
+    private FileDao fileDao;
+    @Resource
+    private ChunkStoreService chunkStoreService;
+    @Resource
+    private StoragePool storagePool;
 
-    public void switchTo(StoreType targetType) throws IOException {
-        if (targetType == StoreType.RAW) switchToRaw();
-        else switchToUnique();
+    private volatile SwitchState state;
+    private volatile Set<Integer> pending = Collections.emptySet();
+    private volatile boolean running;
+    private final Map<Integer, String> failed = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> working = new ConcurrentHashMap<>();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong linked = new AtomicLong();
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+
+    /**
+     * 切换任务的检查点
+     */
+    @Data
+    public static class SwitchState {
+        private StoreType from;
+        private StoreType to;
+        private long startTime;
+        /**
+         * 需要迁移数据的用户
+         */
+        private List<Integer> users = new ArrayList<>();
+        /**
+         * 已完成迁移的用户
+         */
+        private Set<Integer> done = new LinkedHashSet<>();
     }
 
-    private void switchToRaw() throws IOException {
-        log.info("切换到RAW");
-        if (!Files.exists(Paths.get(DiskConfig.getRawStoreRoot()))) Files.createDirectories(Paths.get(DiskConfig.getRawStoreRoot()));
-        List<User> users = userDao.getUserList();
+    /**
+     * 开始切换存储模式：写入检查点并对所有用户启用只读后，将系统存储模式切换到目标模式，在后台迁移本地文件数据
+     * @param originType    原存储模式
+     * @param targetType    目标存储模式
+     * @throws JsonException 上一次切换尚未完成
+     */
+    public synchronized void start(StoreType originType, StoreType targetType) throws IOException {
+        if (state != null) {
+            throw new JsonException(400, "存储模式切换中，请等待当前切换完成：" + state.getFrom() + " -> " + state.getTo());
+        }
+        SwitchState s = new SwitchState();
+        s.setFrom(originType);
+        s.setTo(targetType);
+        s.setStartTime(System.currentTimeMillis());
+        for (User user : getUsers(targetType)) {
+            s.getUsers().add(user.getId());
+        }
+        saveState(s);
+        launch(s);
+    }
 
+    /**
+     * 从检查点继续上次未完成的切换
+     * @return 存在未完成的切换并已在后台继续时返回true
+     */
+    public synchronized boolean resume() throws IOException {
+        if (running) {
+            return false;
+        }
+        SwitchState s = state;
+        if (s == null) {
+            Path file = getStateFile();
+            if (!Files.exists(file)) {
+                return false;
+            }
+            s = mapper.readValue(file.toFile(), SwitchState.class);
+        }
+        if (s.getTo() != DiskConfig.STORE_TYPE) {
+            log.error("[存储切换]检查点的目标模式{}与当前存储模式{}不一致，放弃继续切换", s.getTo(), DiskConfig.STORE_TYPE);
+            return false;
+        }
+        log.info("[存储切换]继续未完成的切换：{} -> {}，已完成{}/{}个用户", s.getFrom(), s.getTo(), s.getDone().size(), s.getUsers().size());
+        launch(s);
+        return true;
+    }
+
+    private void launch(SwitchState s) {
+        Set<Integer> users = ConcurrentHashMap.newKeySet();
+        users.addAll(s.getUsers());
+        users.removeAll(s.getDone());
+        pending = users;
+        state = s;
+        DiskConfig.STORE_TYPE = s.getTo();
+        failed.clear();
+        running = true;
+        Thread thread = new Thread(() -> run(s), "store-switch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 等待后台切换任务结束
+     * @param timeout   最长等待时间，单位毫秒
+     * @return          任务已结束返回true，超时返回false
+     */
+    public boolean await(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (running) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    /**
+     * 是否有未完成的存储模式切换
+     */
+    public boolean isSwitching() {
+        return state != null;
+    }
+
+    /**
+     * 是否有涉及指定存储模式的未完成切换
+     * @param type  存储模式
+     */
+    public boolean isSwitching(StoreType type) {
+        SwitchState s = state;
+        return s != null && (s.getFrom() == type || s.getTo() == type);
+    }
+
+    /**
+     * 用户是否因数据尚未完成迁移而处于只读状态
+     * @param uid   用户ID
+     */
+    public boolean isFenced(int uid) {
+        return pending.contains(uid);
+    }
+
+    /**
+     * 检查用户网盘是否可写入
+     * @param uid   用户ID
+     * @throws JsonException 用户数据尚未完成迁移
+     */
+    public void checkWritable(int uid) {
+        if (isFenced(uid)) {
+            throw new JsonException(501, "存储模式切换中，该网盘的数据尚未完成迁移，暂时只读，请稍后再试");
+        }
+    }
+
+    /**
+     * 获取切换任务的进度
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        SwitchState s = state;
+        res.put("switching", s != null);
+        res.put("running", running);
+        if (s == null) {
+            return res;
+        }
+        res.put("from", s.getFrom());
+        res.put("to", s.getTo());
+        res.put("start_time", s.getStartTime());
+        res.put("total_users", s.getUsers().size());
+        res.put("done_users", s.getDone().size());
+        res.put("working_users", new HashMap<>(working));
+        res.put("failed_users", new HashMap<>(failed));
+        res.put("files", files.get());
+        res.put("bytes", bytes.get());
+        res.put("linked", linked.get());
+        res.put("copied", copied.get());
+        res.put("missing", missing.get());
+        return res;
+    }
+
+    private Path getStateFile() {
+        return Paths.get(DiskConfig.STORE_ROOT, STATE_FILE);
+    }
+
+    private synchronized void saveState(SwitchState s) throws IOException {
+        Path file = getStateFile();
+        Path tmp = file.resolveSibling(STATE_FILE + ".tmp");
+        Files.createDirectories(file.getParent());
+        Files.write(tmp, mapper.writeValueAsBytes(s));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 获取需要迁移数据的用户列表（包括公共用户）
+     */
+    private List<User> getUsers(StoreType targetType) {
+        List<User> users = userDao.getUserList();
         // 1.0.0 -> 1.1.0切换兼容
-        String v = configDao.getConfigure(ConfigName.VERSION);
-        if (v != null) {
+        if (targetType != StoreType.RAW || configDao.getConfigure(ConfigName.VERSION) != null) {
             users.add(User.getPublicUser());
         }
-        for (User user : users) {
-            int uid = user.getId();
-            log.info("Processing user data: " + user.getUsername());
-            Map<String, List<FileInfo>> allFile = fileService.collectFiles(uid, false);
-            for (Map.Entry<String, List<FileInfo>> entry : allFile.entrySet()) {
-                String p = entry.getKey();
-                List<FileInfo> files = entry.getValue();
-
-                Path dirPath = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, p, null));
-                if (Files.exists(dirPath)) FileUtils.delete(dirPath);
-                Files.createDirectory(dirPath);
-                log.info("Create Dir " + dirPath);
-                for (FileInfo file : files) {
-                    if (file.isDir()) continue;
-                    Path source = Paths.get(DiskConfig.uniquePathHandler.getStorePath(uid, p, file));
-                    Path target = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, p, file));
-                    if (!Files.exists(source)) {
-                        log.warn("存储库文件丢失：" + file.getName() + " MD5:" + file.getMd5());
-                        continue;
-                    }
-                    log.info("Copy file: " + source + " -> " + target);
-                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        return users;
+    }
+
+    private void run(SwitchState s) {
+        log.info("[存储切换]开始迁移数据：{} -> {}，{}个用户，并行数{}", s.getFrom(), s.getTo(), pending.size(), DiskConfig.STORE_SWITCH_THREADS);
+        long begin = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, DiskConfig.STORE_SWITCH_THREADS), r -> {
+            Thread t = new Thread(r, "store-switch-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Map<Integer, Future<?>> futures = new LinkedHashMap<>();
+            for (Integer uid : new ArrayList<>(pending)) {
+                futures.put(uid, executor.submit(() -> {
+                    migrateUser(s, uid);
+                    return null;
+                }));
+            }
+            for (Map.Entry<Integer, Future<?>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    log.error("[存储切换]用户" + entry.getKey() + "的数据迁移失败", e.getCause());
+                    failed.put(entry.getKey(), String.valueOf(e.getCause().getMessage()));
                 }
             }
+            if (failed.isEmpty()) {
+                finish(s);
+                log.info("[存储切换]切换完成：{} -> {}，文件数{}，链接{}，复制{}，丢失{}，耗时{}s",
+                        s.getFrom(), s.getTo(), files.get(), linked.get(), copied.get(), missing.get(), (System.currentTimeMillis() - begin) / 1000);
+            } else {
+                log.error("[存储切换]{}个用户的数据迁移失败，这些用户保持只读，可在排除问题后重新继续切换", failed.size());
+            }
+        } catch (Exception e) {
+            log.error("[存储切换]切换出错", e);
+        } finally {
+            executor.shutdown();
+            running = false;
         }
-        //  清理存储库
-        FileUtils.delete(Paths.get(DiskConfig.getUniqueStoreRoot()));
     }
 
+    /**
+     * 所有用户迁移完成后清理原存储模式的存储库并删除检查点
+     */
+    private void finish(SwitchState s) throws IOException {
+        if (s.getFrom() == StoreType.UNIQUE) {
+            cleanUniqueRepo();
+        } else if (s.getFrom() == StoreType.CHUNKED) {
+            chunkStoreService.close();
+            Path chunkRoot = Paths.get(DiskConfig.getChunkStoreRoot());
+            if (Files.exists(chunkRoot)) FileUtils.delete(chunkRoot);
+        }
+        synchronized (this) {
+            Files.deleteIfExists(getStateFile());
+            state = null;
+            pending = Collections.emptySet();
+        }
+        files.set(0);
+        bytes.set(0);
+        linked.set(0);
+        copied.set(0);
+        missing.set(0);
+    }
 
-    private void switchToUnique() throws IOException {
-        log.info("切换到Unique");
-        if (!Files.exists(Paths.get(DiskConfig.getUniqueStoreRoot()))) Files.createDirectories(Paths.get(DiskConfig.getUniqueStoreRoot()));
-        List<User> users = userDao.getUserList();
-        users.add(User.getPublicUser());
-        for (User user : users) {
-            log.info("Processing user data: " + user.getUsername());
-            LinkedHashMap<String, List<FileInfo>> allFile = fileService.collectFiles(user.getId(), false);
-            //  创建本地文件
-            for (Map.Entry<String, List<FileInfo>> entry : allFile.entrySet()) {
-                String path = entry.getKey();
-                List<FileInfo> v = entry.getValue();
-                for (FileInfo fileInfo : v) {
-                    if(fileInfo.isDir()) continue;
-                    Path source = Paths.get(DiskConfig.rawPathHandler.getStorePath(user.getId(), path, fileInfo));
-                    String target = DiskConfig.uniquePathHandler.getStorePath(user.getId(), path, fileInfo);
-                    if (!Files.exists(source)) {
-                        log.warn("未同步的文件：" + path + "/" + fileInfo.getName());
+    /**
+     * 清理所有存储卷上的唯一存储仓库
+     */
+    private void cleanUniqueRepo() throws IOException {
+        for (StoragePool.Volume volume : storagePool.getVolumes()) {
+            if (Files.exists(volume.getRepoRoot())) {
+                FileUtils.delete(volume.getRepoRoot());
+            }
+        }
+    }
+
+    /**
+     * 迁移一个用户的数据。按目录逐层遍历数据库中的文件记录，每次只加载一个目录的文件列表。<br>
+     * 每个文件的迁移操作均可重复执行，中断后从头重新迁移该用户即可
+     */
+    private void migrateUser(SwitchState s, int uid) throws IOException {
+        log.info("[存储切换]迁移用户数据：{}", uid);
+        working.put(uid, 0L);
+        try {
+            Deque<String[]> dirs = new ArrayDeque<>();
+            dirs.push(new String[]{"/", "root"});
+            while (!dirs.isEmpty()) {
+                String[] dir = dirs.pop();
+                String path = dir[0];
+                if (s.getFrom() == StoreType.CHUNKED) {
+                    Files.createDirectories(Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, path, null)));
+                }
+                for (FileInfo file : fileDao.getFileListByNodeId(uid, dir[1])) {
+                    if (file.isDir()) {
+                        dirs.push(new String[]{"/".equals(path) ? "/" + file.getName() : path + "/" + file.getName(), file.getMd5()});
                         continue;
                     }
-                    log.info("Copy file: " + source + " -> " + target);
-                    storeService.store(user.getId(), Files.newInputStream(source), path, fileInfo);
+                    migrateFile(s, uid, path, file);
+                    files.incrementAndGet();
+                    working.merge(uid, 1L, Long::sum);
                 }
             }
+            synchronized (this) {
+                s.getDone().add(uid);
+                saveState(s);
+                pending.remove(uid);
+            }
+            log.info("[存储切换]用户{}迁移完成，进度{}/{}", uid, s.getDone().size(), s.getUsers().size());
+        } finally {
+            working.remove(uid);
+        }
+    }
+
+    private void migrateFile(SwitchState s, int uid, String path, FileInfo file) throws IOException {
+        Path local = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, path, file));
+        String md5 = file.getMd5();
+        if (s.getFrom() == StoreType.CHUNKED) {
+            restoreFromChunked(local, md5);
+            if (s.getTo() == StoreType.UNIQUE) {
+                linkToRepo(local, md5);
+            }
+        } else if (s.getTo() == StoreType.CHUNKED) {
+            if (Files.exists(local)) {
+                try (InputStream in = Files.newInputStream(local)) {
+                    chunkStoreService.store(in, file);
+                }
+                bytes.addAndGet(file.getSize());
+                copied.incrementAndGet();
+                Files.delete(local);
+            } else if (!chunkStoreService.exists(md5)) {
+                missing.incrementAndGet();
+                log.warn("[存储切换]未同步的文件：{}", local);
+            }
+        } else if (s.getTo() == StoreType.UNIQUE) {
+            linkToRepo(local, md5);
+        } else {
+            detachFromRepo(local, md5);
+        }
+    }
+
+    /**
+     * 从分块存储库还原文件到网盘目录，本地文件已存在时跳过
+     */
+    private void restoreFromChunked(Path local, String md5) throws IOException {
+        if (Files.exists(local, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (!chunkStoreService.exists(md5)) {
+            missing.incrementAndGet();
+            log.warn("[存储切换]分块存储库文件丢失：{} MD5:{}", local, md5);
+            return;
+        }
+        Path tmp = local.resolveSibling("." + local.getFileName() + ".switch");
+        long size = storagePool.withPermit(local, () -> {
+            try (InputStream in = chunkStoreService.open(md5)) {
+                return Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+        });
+        Files.move(tmp, local, StandardCopyOption.ATOMIC_MOVE);
+        bytes.addAndGet(size);
+        copied.incrementAndGet();
+    }
+
+    /**
+     * 将网盘目录中的文件收录到唯一存储仓库。存储仓库中没有该文件时，在文件所在卷的存储仓库中创建指向它的硬链接，
+     * 无需复制文件内容（文件不在存储池的放置位置，可在之后通过重平衡迁移）；已有该文件时将网盘文件替换为指向存储仓库的链接以去重
+     */
+    private void linkToRepo(Path local, String md5) throws IOException {
+        if (!Files.exists(local)) {
+            missing.incrementAndGet();
+            log.warn("[存储切换]未同步的文件：{}", local);
+            return;
+        }
+        Path blob = storagePool.locateBlob(md5);
+        if (blob == null) {
+            StoragePool.Volume volume = storagePool.getVolume(local);
+            Path candidate = (volume != null ? volume : storagePool.place(md5)).getBlobPath(md5);
+            FileUtils.createParentDirectory(candidate);
+            try {
+                Files.createLink(candidate, local);
+                linked.incrementAndGet();
+                return;
+            } catch (FileAlreadyExistsException e) {
+                // 其他用户的迁移线程已收录相同的文件
+                blob = candidate;
+            } catch (FileSystemException e) {
+                // 不在同一文件系统（如公共网盘目录），复制到存储池中
+                Path target = storagePool.place(md5).getBlobPath(md5);
+                FileUtils.createParentDirectory(target);
+                Path tmp = target.resolveSibling(md5 + ".tmp");
+                long size = storagePool.withPermit(target, () -> {
+                    Files.copy(local, tmp, StandardCopyOption.REPLACE_EXISTING);
+                    return Files.size(tmp);
+                });
+                try {
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException ignored) {
+                    Files.deleteIfExists(tmp);
+                }
+                bytes.addAndGet(size);
+                copied.incrementAndGet();
+                blob = target;
+            }
+        }
+        if (Files.isSameFile(local, blob)) {
+            return;
+        }
+        if (Files.size(local) != Files.size(blob)) {
+            log.warn("[存储切换]文件与存储仓库中相同MD5的文件大小不一致，保留原文件：{} MD5:{}", local, md5);
+            return;
+        }
+        storagePool.relink(local, blob);
+        linked.incrementAndGet();
+    }
+
+    /**
+     * 使网盘文件脱离唯一存储仓库，成为独立的文件。网盘文件通常已是存储仓库文件的硬链接，
+     * 删除存储仓库后文件内容仍然保留，无需复制；只有符号链接或丢失的文件需要复制
+     */
+    private void detachFromRepo(Path local, String md5) throws IOException {
+        Path source;
+        if (Files.isSymbolicLink(local)) {
+            source = Files.readSymbolicLink(local);
+        } else if (Files.exists(local, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        } else {
+            source = storagePool.locateBlob(md5);
+            if (source == null) {
+                missing.incrementAndGet();
+                log.warn("[存储切换]存储库文件丢失：{} MD5:{}", local, md5);
+                return;
+            }
+            FileUtils.createParentDirectory(local);
+            try {
+                Files.createLink(local, source);
+                linked.incrementAndGet();
+                return;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (FileSystemException ignored) { }
         }
+        Path tmp = local.resolveSibling("." + local.getFileName() + ".switch");
+        Path from = source;
+        long size = storagePool.withPermit(local, () -> {
+            Files.copy(from, tmp, StandardCopyOption.REPLACE_EXISTING);
+            return Files.size(tmp);
+        });
+        Files.move(tmp, local, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        bytes.addAndGet(size);
+        copied.incrementAndGet();
     }
 }
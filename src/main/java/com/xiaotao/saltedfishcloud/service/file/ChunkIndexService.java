@@ -0,0 +1,106 @@
+package com.xiaotao.saltedfishcloud.service.file;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskStatMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.ChunkSource;
+import com.xiaotao.saltedfishcloud.service.file.chunk.PackStore;
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+
+/**
+ * 断点续传文件块索引，记录已完成的断点续传任务中各文件块在存储库文件中的位置，
+ * 用户再次上传修改过少量内容的大文件时，未变化的文件块直接从存储库中的旧文件复制，不需要重新上传。<br>
+ * 索引保存在存储根目录下的chunk_index目录中，键为 md5(用户ID:文件块MD5)，只复用同一用户上传过的文件块，
+ * 避免仅凭文件块MD5获取他人文件的内容。值为 文件MD5(16字节) + 文件大小(8字节) + 文件块大小(4字节) + 文件块序号(4字节)。<br>
+ * 所指向的文件被删除后索引记录失效，使用时发现后删除
+ */
+@Service
+@Slf4j
+public class ChunkIndexService implements ChunkSource {
+    private static final int RECORD_SIZE = 16 + 8 + 4 + 4;
+
+    @Resource
+    private QuickSaveService quickSaveService;
+
+    private PackStore store;
+    private String storeRoot;
+
+    /**
+     * 获取索引存储，首次使用时打开，存储根目录变更后会重新打开
+     */
+    private synchronized PackStore getStore() throws IOException {
+        String root = DiskConfig.STORE_ROOT;
+        if (store == null || !root.equals(storeRoot)) {
+            if (store != null) {
+                store.close();
+            }
+            store = new PackStore(Paths.get(root, "chunk_index"));
+            storeRoot = root;
+        }
+        return store;
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+    }
+
+    @Override
+    public InputStream open(int uid, String md5, long size) throws IOException {
+        String key = key(uid, md5);
+        PackStore store = getStore();
+        if (!store.contains(key)) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.wrap(store.get(key));
+        byte[] fileMd5 = new byte[16];
+        record.get(fileMd5);
+        long fileSize = record.getLong();
+        int chunkSize = record.getInt();
+        int index = record.getInt();
+        long offset = (long) index * chunkSize;
+        if (offset + size > fileSize) {
+            return null;
+        }
+        try {
+            return quickSaveService.openRange(SecureUtils.bytesToHex(fileMd5), fileSize, offset, size);
+        } catch (NoSuchFileException e) {
+            store.delete(key);
+            return null;
+        }
+    }
+
+    @Override
+    public void record(TaskStatMetadata task) throws IOException {
+        PackStore store = getStore();
+        byte[] fileMd5 = SecureUtils.hexToBytes(task.getMd5());
+        for (int i = 1; i <= task.getChunkCount(); i++) {
+            String key = key(task.getUid(), task.getChunkHash(i));
+            // 已有记录时保留旧记录，除非其已失效被删除
+            if (store.contains(key)) {
+                continue;
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.put(fileMd5).putLong(task.getLength()).putInt(task.getChunkSize()).putInt(i - 1);
+            store.put(key, record.array(), 0, RECORD_SIZE);
+        }
+    }
+
+    private static String key(int uid, String md5) {
+        return DigestUtils.md5DigestAsHex((uid + ":" + md5.toLowerCase()).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -6,16 +6,21 @@ import com.xiaotao.saltedfishcloud.config.DiskConfig;
 import com.xiaotao.saltedfishcloud.config.StoreType;
 import com.xiaotao.saltedfishcloud.dao.mybatis.FileDao;
 import com.xiaotao.saltedfishcloud.exception.JsonException;
+import com.xiaotao.saltedfishcloud.exception.UnableOverwriteException;
 import com.xiaotao.saltedfishcloud.helper.PathBuilder;
 import com.xiaotao.saltedfishcloud.po.NodeInfo;
 import com.xiaotao.saltedfishcloud.po.file.BasicFileInfo;
 import com.xiaotao.saltedfishcloud.po.file.FileDCInfo;
 import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.breakpoint.MergeMultipartFile;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
 import com.xiaotao.saltedfishcloud.service.file.exception.DirectoryAlreadyExistsException;
+import com.xiaotao.saltedfishcloud.service.file.journal.JournalService;
+import com.xiaotao.saltedfishcloud.service.file.journal.OperationRecord;
+import com.xiaotao.saltedfishcloud.service.file.thumbnail.ThumbnailService;
 import com.xiaotao.saltedfishcloud.service.node.NodeService;
 import com.xiaotao.saltedfishcloud.utils.FileUtils;
 import com.xiaotao.saltedfishcloud.utils.JwtUtils;
-import com.xiaotao.saltedfishcloud.utils.SetUtils;
 import lombok.extern.slf4j.Slf4j;
 import lombok.var;
 import org.springframework.dao.DuplicateKeyException;
@@ -44,6 +49,37 @@ public class FileService {
     StoreService storeService;
     @javax.annotation.Resource
     NodeService nodeService;
+    @javax.annotation.Resource
+    ChunkStoreService chunkStoreService;
+    @javax.annotation.Resource
+    JournalService journalService;
+    @javax.annotation.Resource
+    ThumbnailService thumbnailService;
+
+    /**
+     * 构造一条操作日志记录
+     */
+    private static OperationRecord record(OperationRecord.Type type, int uid, String path, Collection<String> names) {
+        OperationRecord record = new OperationRecord();
+        record.setType(type);
+        record.setUid(uid);
+        record.setPath(path);
+        record.setNames(new ArrayList<>(names));
+        return record;
+    }
+
+    /**
+     * 记录操作开始，用于不声明IOException的方法
+     * @throws JsonException 操作日志写入失败
+     */
+    private void begin(OperationRecord record) {
+        try {
+            journalService.begin(record);
+        } catch (IOException e) {
+            log.error("操作日志写入失败", e);
+            throw new JsonException(500, "操作日志写入失败");
+        }
+    }
 
     /**
      * 在网盘中连同所有父级目录，创建一个目录
@@ -102,12 +138,22 @@ public class FileService {
         if (PathBuilder.formatPath(source).equals(PathBuilder.formatPath(target)) && sourceName.equals(targetName)) {
             throw new IllegalArgumentException("无法原地复制");
         }
+        OperationRecord record = record(OperationRecord.Type.COPY, uid, source, Collections.singletonList(sourceName));
+        record.setTarget(target);
+        record.setTargetUid(targetUid);
+        record.setTargetName(targetName);
+        record.setOverwrite(overwrite);
+        long op = journalService.begin(record);
+        if (overwrite) {
+            stashRawFile(op, targetUid, target, targetName);
+        }
         fileRecordService.copy(uid, source, target, targetUid, sourceName, targetName,overwrite);
         storeService.copy(uid, source, target, targetUid, sourceName, targetName, overwrite);
     }
 
     /**
-     * 移动网盘中的文件或目录到指定目录下
+     * 移动网盘中的文件或目录到指定目录下。<br>
+     * RAW模式下被覆盖的目标文件或因目标已存在而删除的源文件先移入回收目录，事务回滚时还原；目录合并不在此列
      * @param uid       用户ID
      * @param source    要被移动的网盘文件或目录所在目录
      * @param target    要移动到的目标目录
@@ -120,6 +166,18 @@ public class FileService {
             if (PathBuilder.formatPath(target).equals(PathBuilder.formatPath(source))) {
                 throw new IllegalArgumentException("无法原地移动");
             }
+            OperationRecord record = record(OperationRecord.Type.MOVE, uid, source, Collections.singletonList(name));
+            record.setTarget(target);
+            record.setOverwrite(overwrite);
+            long op = journalService.begin(record);
+            if (DiskConfig.STORE_TYPE == StoreType.RAW) {
+                BasicFileInfo info = new BasicFileInfo(name, null);
+                Path sourceLocal = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, source, info));
+                Path targetLocal = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, target, info));
+                if (Files.isRegularFile(sourceLocal, LinkOption.NOFOLLOW_LINKS) && Files.isRegularFile(targetLocal, LinkOption.NOFOLLOW_LINKS)) {
+                    journalService.stash(op, overwrite ? targetLocal : sourceLocal);
+                }
+            }
             fileRecordService.move(uid, source, target, name, overwrite);
             storeService.move(uid, source, target, name, overwrite);
         } catch (DuplicateKeyException e) {
@@ -265,7 +323,10 @@ public class FileService {
      * @throws IOException      存储出错
      */
     public void moveToSaveFile(int uid, Path nativeFilePath, String path, FileInfo fileInfo) throws IOException {
+        long op = beginSave(uid, path, fileInfo.getName(), fileInfo);
+        stashRawFile(op, uid, path, fileInfo.getName());
         storeService.moveToSave(uid, nativeFilePath, path, fileInfo);
+        afterSave(uid, path, fileInfo);
         int res = fileRecordService.addRecord(uid, fileInfo.getName(), fileInfo.getSize(), fileInfo.getMd5(), path);
         if ( res == 0) {
             fileRecordService.updateFileRecord(uid, fileInfo.getName(), path, fileInfo.getSize(), fileInfo.getMd5());
@@ -289,8 +350,11 @@ public class FileService {
         if (fileInfo.getMd5() == null) {
             fileInfo.updateMd5();
         }
+        long op = beginSave(uid, path, fileInfo.getName(), fileInfo);
+        stashRawFile(op, uid, path, fileInfo.getName());
         storeService.store(uid, stream, path, fileInfo);
 
+        afterSave(uid, path, fileInfo);
         int res = fileRecordService.addRecord(uid, fileInfo.getName(), fileInfo.getSize(), fileInfo.getMd5(), path);
         if ( res == 0) {
             return fileRecordService.updateFileRecord(uid, fileInfo.getName(), path, fileInfo.getSize(), fileInfo.getMd5());
@@ -315,15 +379,33 @@ public class FileService {
                         String md5) throws IOException, JsonException {
 
         FileInfo fileInfo = new FileInfo(file);
-        // 获取上传的文件信息 并看情况计算MD5
-        if (md5 != null) {
+        // 获取上传的文件信息 并看情况计算MD5，断点续传文件优先使用上传过程中计算得出的MD5
+        String computed = file instanceof MergeMultipartFile ? ((MergeMultipartFile) file).getMd5() : null;
+        if (computed != null) {
+            if (md5 != null && !md5.equalsIgnoreCase(computed)) {
+                throw new JsonException(400, "文件MD5校验失败");
+            }
+            fileInfo.setMd5(computed);
+        } else if (md5 != null) {
             fileInfo.setMd5(md5);
         } else {
             fileInfo.updateMd5();
         }
 
+        Path localFile = file instanceof MergeMultipartFile ? ((MergeMultipartFile) file).getLocalFile() : null;
+        if (localFile != null) {
+            // 预分配模式的断点续传文件已是完整文件，直接移动存储
+            if (Files.isDirectory(Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, requestPath, fileInfo)), LinkOption.NOFOLLOW_LINKS)) {
+                throw new UnableOverwriteException(409, "已存在同名目录: " + requestPath + "/" + fileInfo.getName());
+            }
+            moveToSaveFile(uid, localFile, requestPath, fileInfo);
+            return 1;
+        }
+        long op = beginSave(uid, requestPath, file.getOriginalFilename(), fileInfo);
+        stashRawFile(op, uid, requestPath, file.getOriginalFilename());
         storeService.store(uid, file.getInputStream(), requestPath, fileInfo);
 
+        afterSave(uid, requestPath, fileInfo);
         int res = fileRecordService.addRecord(uid, file.getOriginalFilename(), fileInfo.getSize(), fileInfo.getMd5(), requestPath);
         if ( res == 0) {
             return fileRecordService.updateFileRecord(uid, file.getOriginalFilename(), requestPath, file.getSize(), fileInfo.getMd5());
@@ -332,6 +414,150 @@ public class FileService {
         }
     }
 
+    /**
+     * 保存请求体数据流到网盘系统中，数据只读取一次，边写入边计算MD5，不经过multipart临时文件<br>
+     * CHUNKED模式下直接切分写入分块存储库，其他模式下写入文件最终所在卷上的暂存文件后以重命名的方式存入
+     * @param uid       用户ID 0表示公共
+     * @param stream    请求体数据流
+     * @param path      文件要保存到的网盘目录
+     * @param fileInfo  文件信息，size小于0表示未知大小，md5为null表示不校验，保存后为实际的MD5与大小
+     * @throws JsonException 数据大小或MD5与声明的不一致，或存在同名目录
+     */
+    public int saveStream(int uid, InputStream stream, String path, FileInfo fileInfo) throws IOException {
+        Path rawTarget = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, path, fileInfo));
+        if (Files.isDirectory(rawTarget, LinkOption.NOFOLLOW_LINKS)) {
+            throw new UnableOverwriteException(409, "已存在同名目录: " + path + "/" + fileInfo.getName());
+        }
+        if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+            String md5 = fileInfo.getMd5();
+            long size = fileInfo.getSize();
+            beginSave(uid, path, fileInfo.getName(), fileInfo);
+            // 声明的MD5未经校验，不能用于命中已有文件而跳过读取数据，否则可绕过秒传校验直接引用他人文件。
+            // 总是切分实际数据并计算MD5，存储后再与声明值比对
+            fileInfo.setMd5(null);
+            storeService.store(uid, stream, path, fileInfo);
+            if ((size >= 0 && size != fileInfo.getSize()) || (md5 != null && !md5.equalsIgnoreCase(fileInfo.getMd5()))) {
+                // 数据不完整或被篡改，回收刚写入的分块文件
+                journalService.gc(Collections.singleton(fileInfo.getMd5()));
+                throw new JsonException(400, "文件数据校验失败");
+            }
+        } else {
+            Path staging = storeService.stage(uid, stream, fileInfo);
+            try {
+                long op = beginSave(uid, path, fileInfo.getName(), fileInfo);
+                stashRawFile(op, uid, path, fileInfo.getName());
+                storeService.moveToSave(uid, staging, path, fileInfo);
+            } finally {
+                Files.deleteIfExists(staging);
+            }
+        }
+        afterSave(uid, path, fileInfo);
+        int res = fileRecordService.addRecord(uid, fileInfo.getName(), fileInfo.getSize(), fileInfo.getMd5(), path);
+        if ( res == 0) {
+            return fileRecordService.updateFileRecord(uid, fileInfo.getName(), path, fileInfo.getSize(), fileInfo.getMd5());
+        } else {
+            return res;
+        }
+    }
+
+    /**
+     * 批量保存已写入存储的文件，所有文件的数据库记录在同一个事务中批量写入，用于归档导入等大量小文件的场景
+     * @param uid       用户ID 0表示公共
+     * @param root      文件所在的网盘根目录，用于操作日志
+     * @param files     文件信息，path为文件所在网盘目录（root或其子目录），node为该目录的节点ID
+     * @param staged    与files一一对应的暂存文件，由{@link StoreService#stage}写入；CHUNKED模式下数据已存入分块存储库，为null
+     */
+    public void saveBatch(int uid, String root, List<FileInfo> files, List<Path> staged) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        OperationRecord record = record(OperationRecord.Type.IMPORT, uid, root, files.stream()
+                .map(f -> PathBuilder.formatPath(f.getPath() + "/" + f.getName(), true))
+                .collect(Collectors.toList()));
+        record.setMd5s(files.stream().map(FileInfo::getMd5).collect(Collectors.toList()));
+        journalService.begin(record);
+        if (staged != null) {
+            for (int i = 0; i < files.size(); i++) {
+                storeService.moveToSave(uid, staged.get(i), files.get(i).getPath(), files.get(i));
+            }
+        }
+        fileDao.addRecords(uid, files);
+        for (FileInfo file : files) {
+            afterSave(uid, file.getPath(), file);
+        }
+    }
+
+    /**
+     * 使用存储库中已有的相同文件保存文件到网盘系统中（秒传），不需要传输文件数据
+     * @param uid       用户ID 0表示公共
+     * @param path      文件要保存到的网盘目录
+     * @param fileInfo  文件信息，需包含文件名、MD5与大小
+     * @return          存储库中存在相同文件并保存成功时返回true，不存在时返回false，此时需要上传完整文件
+     * @throws JsonException 文件夹同名时抛出
+     */
+    public boolean quickSaveFile(int uid, String path, FileInfo fileInfo) throws IOException {
+        long op = beginSave(uid, path, fileInfo.getName(), fileInfo);
+        if (DiskConfig.STORE_TYPE == StoreType.RAW) {
+            // 原始存储模式没有存储仓库，从网盘中任一相同文件复制
+            Path source;
+            try {
+                source = Paths.get(getFileByMD5(fileInfo.getMd5()).getPath());
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            if (!Files.isRegularFile(source) || Files.size(source) != fileInfo.getSize()) {
+                return false;
+            }
+            Path target = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, path, fileInfo));
+            if (!Files.exists(target) || !Files.isSameFile(source, target)) {
+                stashRawFile(op, uid, path, fileInfo.getName());
+                try (InputStream in = Files.newInputStream(source)) {
+                    storeService.store(uid, in, path, fileInfo);
+                }
+            }
+        } else if (!storeService.quickStore(uid, path, fileInfo)) {
+            return false;
+        }
+        afterSave(uid, path, fileInfo);
+        int res = fileRecordService.addRecord(uid, fileInfo.getName(), fileInfo.getSize(), fileInfo.getMd5(), path);
+        if ( res == 0) {
+            fileRecordService.updateFileRecord(uid, fileInfo.getName(), path, fileInfo.getSize(), fileInfo.getMd5());
+        }
+        return true;
+    }
+
+    /**
+     * 文件记录提交后在后台为图片预先生成缩略图
+     */
+    private void afterSave(int uid, String path, FileInfo fileInfo) {
+        journalService.afterCommit(() -> thumbnailService.submit(uid, path, fileInfo));
+    }
+
+    /**
+     * 记录保存文件操作的开始。CHUNKED模式下MD5可能在存储时被修正，日志中记录的是请求的MD5
+     * @return 操作ID
+     */
+    private long beginSave(int uid, String path, String name, BasicFileInfo fileInfo) throws IOException {
+        OperationRecord record = record(OperationRecord.Type.SAVE, uid, path, Collections.singletonList(name));
+        record.setMd5(fileInfo.getMd5());
+        record.setSize(fileInfo.getSize());
+        return journalService.begin(record);
+    }
+
+    /**
+     * RAW模式下将即将被覆盖的本地文件移入操作的回收目录，事务回滚时由对账还原。其他模式下文件可从存储仓库还原，不做处理
+     * @param op    操作ID
+     */
+    private void stashRawFile(long op, int uid, String path, String name) throws IOException {
+        if (DiskConfig.STORE_TYPE != StoreType.RAW) {
+            return;
+        }
+        Path local = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, path, new BasicFileInfo(name, null)));
+        if (Files.isRegularFile(local, LinkOption.NOFOLLOW_LINKS)) {
+            journalService.stash(op, local);
+        }
+    }
+
     /**
      * 创建文件夹
      * @param uid 用户ID 0表示公共
@@ -340,6 +566,7 @@ public class FileService {
      * @throws NoSuchFileException 当目标目录不存在时抛出
      */
     public void mkdir(int uid, String path, String name) throws JsonException, NoSuchFileException, FileAlreadyExistsException, DirectoryAlreadyExistsException {
+        begin(record(OperationRecord.Type.MKDIR, uid, path, Collections.singletonList(name)));
         if ( !storeService.mkdir(uid, path, name) ) {
             throw new JsonException("在" + path + "创建文件夹失败");
         }
@@ -347,7 +574,7 @@ public class FileService {
     }
 
     /**
-     * 删除文件
+     * 删除文件。RAW模式下本地文件与目录移入操作的回收目录，事务提交后清除，回滚时还原
      * @param uid   用户ID 0表示公共
      * @param path  请求路径
      * @param name  文件名列表
@@ -357,18 +584,29 @@ public class FileService {
     public long deleteFile(int uid, String path, List<String> name) throws IOException {
         // 计数删除数
         long res = 0L;
+        long op = journalService.begin(record(OperationRecord.Type.DELETE, uid, path, name));
         List<FileInfo> fileInfos = fileRecordService.deleteRecords(uid, path, name);
-        res += storeService.delete(uid, path, name);
-        if (DiskConfig.STORE_TYPE == StoreType.UNIQUE && fileInfos.size() > 0) {
-            Set<String> all = fileInfos.stream().filter(BasicFileInfo::isFile).map(BasicFileInfo::getMd5).collect(Collectors.toSet());
-            if (all.size() == 0) {
-                return res;
-            }
-            Set<String> valid = new HashSet<>(fileDao.getValidFileMD5s(all));
-            Set<String> invalid = SetUtils.diff(all, valid);
-            for (String md5 : invalid) {
-                storeService.delete(md5);
+        if (DiskConfig.STORE_TYPE == StoreType.RAW) {
+            for (String n : name) {
+                Path local = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, path, new BasicFileInfo(n, null)));
+                boolean isDir = Files.isDirectory(local, LinkOption.NOFOLLOW_LINKS);
+                if (journalService.stash(op, local) && !isDir) {
+                    res++;
+                }
             }
+        } else {
+            res += storeService.delete(uid, path, name);
+        }
+        if (DiskConfig.STORE_TYPE != StoreType.RAW && fileInfos.size() > 0) {
+            Set<String> all = fileInfos.stream().filter(BasicFileInfo::isFile).map(BasicFileInfo::getMd5).collect(Collectors.toSet());
+            // 事务提交后再回收存储库文件，避免事务回滚后记录指向已删除的文件
+            journalService.afterCommit(() -> {
+                try {
+                    journalService.gc(all);
+                } catch (IOException e) {
+                    log.error("存储库文件回收失败", e);
+                }
+            });
         }
         return res;
     }
@@ -382,6 +620,9 @@ public class FileService {
      * @param newName 新文件名
      */
     public void rename(int uid, String path, String name, String newName) throws JsonException, NoSuchFileException {
+        OperationRecord record = record(OperationRecord.Type.RENAME, uid, path, Collections.singletonList(name));
+        record.setTargetName(newName);
+        begin(record);
         fileRecordService.rename(uid, path, name, newName);
         storeService.rename(uid, path, name, newName);
     }
@@ -394,8 +635,21 @@ public class FileService {
      * @param expr  下载码有效时长（单位：天），若小于0，则无限制
      */
     public String getFileDC(int uid, String path, BasicFileInfo fileInfo, int expr) throws JsonProcessingException {
+        return getFileDC(uid, path, fileInfo, expr, 0);
+    }
+
+    /**
+     * 获取网盘中文件的下载码
+     * @param uid 用户ID
+     * @param path 文件所在网盘目录
+     * @param fileInfo 文件信息
+     * @param expr  下载码有效时长（单位：天），若小于0，则无限制
+     * @param rate  通过该下载码下载的总速率（KiB/s），为0时使用配置的默认值
+     */
+    public String getFileDC(int uid, String path, BasicFileInfo fileInfo, int expr, int rate) throws JsonProcessingException {
         Path localPath = Paths.get(DiskConfig.getPathHandler().getStorePath(uid, path, fileInfo));
-        if ( !Files.exists(localPath) ){
+        boolean exist = DiskConfig.STORE_TYPE == StoreType.CHUNKED ? chunkStoreService.exists(fileInfo.getMd5()) : Files.exists(localPath);
+        if ( !exist ){
             throw new JsonException(404, "文件不存在");
         }
         FileDCInfo info = new FileDCInfo();
@@ -403,6 +657,7 @@ public class FileService {
         info.setMd5(fileInfo.getMd5());
         info.setName(fileInfo.getName());
         info.setUid(uid);
+        info.setRate(Math.max(0, rate));
         String token = JwtUtils.generateToken(new ObjectMapper().writeValueAsString(info), expr < 0 ? expr : expr*60*60*24);
         return token;
     }
@@ -0,0 +1,336 @@
+package com.xiaotao.saltedfishcloud.service.file;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.exception.JsonException;
+import com.xiaotao.saltedfishcloud.po.file.BasicFileInfo;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.po.file.QuickSaveChallenge;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
+import com.xiaotao.saltedfishcloud.utils.JwtUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.Resource;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒传服务。客户端上传前先提交文件的MD5与大小，存储库中已有相同文件时直接在目标目录创建文件，不需要传输文件数据。<br>
+ * 仅凭MD5与大小秒传时，知道他人文件MD5的用户即可获取该文件，因此默认要求客户端完成一次校验（{@link #check}）：
+ * 服务端随机指定文件中的一个区间与随机数，客户端需提交 md5(随机数 + 区间数据) 证明其确实持有文件内容，
+ * 该摘要无法仅凭文件MD5预先计算。<br>
+ * 每个校验信息只能使用一次，已使用的随机数在校验信息有效期内被记录，避免截获的token与摘要被重放。
+ * 记录保存在内存中，多实例部署时仅在各实例内有效。<br>
+ * 存储库是否存在某个文件对请求者可见，这是所有去重存储共有的取舍。
+ */
+@Service
+@Slf4j
+public class QuickSaveService {
+    /**
+     * 校验区间的最大长度
+     */
+    public static final int PROOF_LENGTH = 64 * 1024;
+
+    /**
+     * 校验信息的有效时长，单位为秒
+     */
+    public static final int CHALLENGE_EXPR = 300;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * 已使用的校验随机数与其记录的过期时间（毫秒时间戳）
+     */
+    private final Map<String, Long> usedNonces = new ConcurrentHashMap<>();
+
+    @Resource
+    private FileService fileService;
+    @Resource
+    private StoragePool storagePool;
+    @Resource
+    private ChunkStoreService chunkStoreService;
+
+    /**
+     * 秒传预检，查询存储库中是否存在相同文件，存在且需要校验时生成校验信息
+     * @param uid   保存到的用户ID
+     * @param md5   文件MD5
+     * @param size  文件大小
+     * @return      exists表示文件是否存在，文件存在且需要校验时包含token、nonce、offset、length
+     */
+    public Map<String, Object> check(int uid, String md5, long size) throws IOException {
+        md5 = normalizeMd5(md5);
+        Map<String, Object> res = new LinkedHashMap<>();
+        boolean exists = exists(md5, size);
+        res.put("exists", exists);
+        if (exists && DiskConfig.QUICK_SAVE_PROOF) {
+            QuickSaveChallenge challenge = createChallenge(uid, md5, size);
+            res.put("token", JwtUtils.generateToken(new ObjectMapper().writeValueAsString(challenge), CHALLENGE_EXPR));
+            res.put("nonce", challenge.getNonce());
+            res.put("offset", challenge.getOffset());
+            res.put("length", challenge.getLength());
+        }
+        return res;
+    }
+
+    /**
+     * 秒传文件
+     * @param uid   用户ID
+     * @param path  保存到的网盘目录
+     * @param name  文件名
+     * @param md5   文件MD5
+     * @param size  文件大小
+     * @param token 预检时获得的校验token，不要求校验时可为null
+     * @param proof 客户端计算的校验摘要，不要求校验时可为null
+     * @return      保存成功返回true，存储库中没有该文件时返回false，此时需要上传完整文件
+     * @throws JsonException 校验信息缺失、与请求不符、已被使用或校验失败
+     */
+    public boolean save(int uid, String path, String name, String md5, long size, String token, String proof) throws IOException {
+        md5 = normalizeMd5(md5);
+        if (DiskConfig.QUICK_SAVE_PROOF) {
+            if (token == null || proof == null) {
+                throw new JsonException(400, "缺少秒传校验信息");
+            }
+            QuickSaveChallenge challenge = parseChallenge(token);
+            if (challenge.getUid() != uid || !challenge.getMd5().equals(md5) || challenge.getSize() != size) {
+                throw new JsonException(400, "秒传校验信息与请求不符");
+            }
+            // 校验前即标记为已使用，校验失败的token也不能再次提交
+            if (usedNonces.putIfAbsent(challenge.getNonce(), System.currentTimeMillis() + CHALLENGE_EXPR * 1000L) != null) {
+                throw new JsonException(400, "秒传校验信息已被使用");
+            }
+            byte[] data;
+            try {
+                data = readRange(md5, size, challenge.getOffset(), challenge.getLength());
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            if (!digest(challenge.getNonce(), data).equalsIgnoreCase(proof)) {
+                log.warn("[秒传]校验失败 uid={} md5={}", uid, md5);
+                throw new JsonException(403, "秒传校验失败");
+            }
+        }
+        FileInfo fileInfo = new FileInfo();
+        fileInfo.setName(name);
+        fileInfo.setMd5(md5);
+        fileInfo.setSize(size);
+        fileInfo.setType(BasicFileInfo.TYPE_FILE);
+        fileInfo.setLastModified(System.currentTimeMillis());
+        boolean hit = fileService.quickSaveFile(uid, path, fileInfo);
+        log.debug("[秒传]{} {} {}", hit ? "HIT" : "MISS", md5, path + "/" + name);
+        return hit;
+    }
+
+    /**
+     * 清理已过期的随机数记录，过期后token本身已失效，不再需要记录
+     */
+    @Scheduled(fixedDelay = 60 * 1000)
+    public void sweepNonces() {
+        long now = System.currentTimeMillis();
+        usedNonces.values().removeIf(expire -> expire < now);
+    }
+
+    /**
+     * 校验MD5格式并转为小写，MD5会被用于拼接存储仓库路径
+     * @throws JsonException MD5格式错误
+     */
+    private static String normalizeMd5(String md5) {
+        if (md5 == null || !md5.matches("[0-9a-fA-F]{32}")) {
+            throw new JsonException(400, "无效的MD5");
+        }
+        return md5.toLowerCase();
+    }
+
+    /**
+     * 生成校验信息，随机选取文件中的一个区间
+     */
+    static QuickSaveChallenge createChallenge(int uid, String md5, long size) {
+        QuickSaveChallenge challenge = new QuickSaveChallenge();
+        challenge.setUid(uid);
+        challenge.setMd5(md5);
+        challenge.setSize(size);
+        int length = (int)Math.min(size, PROOF_LENGTH);
+        long range = size - length;
+        challenge.setLength(length);
+        challenge.setOffset(range == 0 ? 0 : Math.floorMod(RANDOM.nextLong(), range + 1));
+        byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        challenge.setNonce(DigestUtils.md5DigestAsHex(nonce));
+        return challenge;
+    }
+
+    private static QuickSaveChallenge parseChallenge(String token) {
+        try {
+            return new ObjectMapper()
+                    .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                    .readValue((String)JwtUtils.parse(token), QuickSaveChallenge.class);
+        } catch (JsonProcessingException | ClassCastException e) {
+            throw new JsonException(400, "秒传校验信息无效");
+        }
+    }
+
+    /**
+     * 计算校验摘要 md5(nonce + data)
+     * @param nonce 随机数
+     * @param data  文件区间数据
+     * @return      十六进制摘要
+     */
+    public static String digest(String nonce, byte[] data) {
+        byte[] n = nonce.getBytes(StandardCharsets.UTF_8);
+        byte[] input = new byte[n.length + data.length];
+        System.arraycopy(n, 0, input, 0, n.length);
+        System.arraycopy(data, 0, input, n.length, data.length);
+        return DigestUtils.md5DigestAsHex(input);
+    }
+
+    /**
+     * 存储库中是否存在MD5与大小都相同的文件
+     */
+    private boolean exists(String md5, long size) throws IOException {
+        if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+            return chunkStoreService.exists(md5) && chunkStoreService.getSize(md5) == size;
+        }
+        return locate(md5, size) != null;
+    }
+
+    /**
+     * 查找UNIQUE或RAW模式下MD5与大小都相同的本地文件
+     * @return  本地文件路径，不存在时返回null
+     */
+    private Path locate(String md5, long size) throws IOException {
+        Path path;
+        if (DiskConfig.STORE_TYPE == StoreType.UNIQUE) {
+            path = storagePool.locateBlob(md5);
+        } else {
+            try {
+                path = Paths.get(fileService.getFileByMD5(md5).getPath());
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+        return path != null && Files.isRegularFile(path) && Files.size(path) == size ? path : null;
+    }
+
+    /**
+     * 读取存储库中文件的指定区间
+     * @throws NoSuchFileException 文件不存在
+     */
+    byte[] readRange(String md5, long size, long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        try (InputStream in = openRange(md5, size, offset, length)) {
+            int read = 0;
+            while (read < length) {
+                int n = in.read(data, read, length - read);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 打开存储库中文件指定区间的数据流，数据边读取边从文件或分块存储库获取，不预先读入内存
+     * @param md5       文件MD5
+     * @param size      文件大小
+     * @param offset    区间起始位置
+     * @param length    区间长度，数据流读取到该长度后结束
+     * @throws NoSuchFileException 文件不存在
+     */
+    public InputStream openRange(String md5, long size, long offset, long length) throws IOException {
+        if (!exists(md5, size)) {
+            throw new NoSuchFileException(md5);
+        }
+        InputStream in;
+        if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+            in = chunkStoreService.open(md5);
+            try {
+                long skip = offset;
+                while (skip > 0) {
+                    long n = in.skip(skip);
+                    if (n <= 0) {
+                        throw new EOFException();
+                    }
+                    skip -= n;
+                }
+            } catch (IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+        } else {
+            Path path = locate(md5, size);
+            if (path == null) {
+                throw new NoSuchFileException(md5);
+            }
+            FileChannel channel = FileChannel.open(path);
+            channel.position(offset);
+            in = Channels.newInputStream(channel);
+        }
+        return limit(in, length);
+    }
+
+    /**
+     * 限制数据流最多读取的字节数
+     */
+    private static InputStream limit(InputStream in, long length) {
+        return new FilterInputStream(in) {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = super.read();
+                if (b >= 0) {
+                    remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int n = super.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0) {
+                    remaining -= n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(Math.min(n, remaining));
+                remaining -= skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(super.available(), remaining);
+            }
+        };
+    }
+}
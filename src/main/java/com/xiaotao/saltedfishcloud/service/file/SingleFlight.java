@@ -0,0 +1,79 @@
+package com.xiaotao.saltedfishcloud.service.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按键合并并发操作的协调器。同一时刻每个键只有一个线程（领头者）执行操作，其余线程等待领头者结束后再执行自己的操作。<br>
+ * 用于存储仓库文件的写入：操作先检查文件是否已存在，不存在时才写入，等待者在领头者写入完成后直接复用已写入的文件，
+ * 领头者失败时由下一个等待者重新写入。
+ * @param <K> 键类型，通常为文件MD5
+ */
+public class SingleFlight<K> {
+    /**
+     * 可抛出IO异常的操作
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+        T run() throws IOException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<Void>> flights = new ConcurrentHashMap<>();
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+
+    /**
+     * 执行操作，同一键已有操作在执行时等待其结束
+     * @param key   键
+     * @param task  操作
+     * @return      操作结果
+     */
+    public <T> T execute(K key, Task<T> task) throws IOException {
+        CompletableFuture<Void> mine = new CompletableFuture<>();
+        while (true) {
+            CompletableFuture<Void> running = flights.putIfAbsent(key, mine);
+            if (running == null) {
+                break;
+            }
+            waits.incrementAndGet();
+            try {
+                running.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("等待同一文件的写入时被中断");
+            } catch (ExecutionException ignored) { }
+        }
+        leaders.incrementAndGet();
+        try {
+            return task.run();
+        } finally {
+            flights.remove(key, mine);
+            mine.complete(null);
+        }
+    }
+
+    /**
+     * 正在执行操作的键数量
+     */
+    public int getInFlight() {
+        return flights.size();
+    }
+
+    /**
+     * 累计执行操作的次数
+     */
+    public long getLeaders() {
+        return leaders.get();
+    }
+
+    /**
+     * 累计因同一键已有操作在执行而等待的次数
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+}
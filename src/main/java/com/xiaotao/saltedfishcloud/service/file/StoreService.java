@@ -7,20 +7,31 @@ import com.xiaotao.saltedfishcloud.exception.UnableOverwriteException;
 import com.xiaotao.saltedfishcloud.po.file.BasicFileInfo;
 import com.xiaotao.saltedfishcloud.po.file.DirCollection;
 import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
 import com.xiaotao.saltedfishcloud.service.file.exception.DirectoryAlreadyExistsException;
 import com.xiaotao.saltedfishcloud.service.file.path.PathHandler;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
 import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
 import com.xiaotao.saltedfishcloud.utils.StringUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -29,9 +40,30 @@ import java.util.concurrent.atomic.AtomicLong;
 @Service
 @Slf4j
 public class StoreService {
+    /**
+     * 暂存文件的后缀
+     */
+    private static final String STAGING_SUFFIX = ".uploading";
+
+    /**
+     * 暂存文件的保留时间（毫秒），超过该时间未修改的暂存文件视为服务中断等原因残留的文件
+     */
+    private static final long STAGING_EXPIRE = 24 * 60 * 60 * 1000;
+
+    @Resource
+    private ChunkStoreService chunkStoreService;
+    @Resource
+    private StoragePool storagePool;
+
+    /**
+     * 存储仓库文件的写入协调器，相同MD5的文件同时只有一个线程写入，其余线程等待后直接链接已写入的文件
+     */
+    private final SingleFlight<String> blobFlight = new SingleFlight<>();
+
     /**
      * 通过文件移动的方式存储文件到网盘系统，相对于{@link #store}方法，避免了文件的重复写入操作。对本地文件操作后，原路径文件不再存在<br><br>
      * 如果是UNIQUE存储模式，则会先将文件移动到存储仓库（若仓库已存在文件则忽略该操作），随后再在目标网盘目录创建文件链接<br><br>
+     * 如果是CHUNKED存储模式，则会将文件内容切分存入分块存储库，随后删除本地文件<br><br>
      * 如果是RAW存储模式，则会直接移动到目标位置。若本地文件路径与网盘路径对应的本地路径相同，操作将忽略。
      * @param uid           用户ID
      * @param nativePath    本地文件路径
@@ -42,24 +74,37 @@ public class StoreService {
         Path sourcePath = nativePath; // 本地源文件
         Path targetPath = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, diskPath, fileInfo)); // 被移动到的目标位置
         if (DiskConfig.STORE_TYPE == StoreType.UNIQUE) {
-            // 唯一文件仓库中的路径
-            sourcePath = Paths.get(DiskConfig.uniquePathHandler.getStorePath(uid, diskPath, fileInfo)); // 文件仓库源文件路径
-            if (Files.exists(sourcePath)) {
-                // 已存在相同文件时，直接删除本地文件
-                log.debug("file md5 HIT: {}", fileInfo.getMd5());
-                Files.delete(nativePath);
-                if (Files.exists(targetPath)) {
+            // 链接也在写入协调器中创建，避免与同一文件的迁移或回收交错
+            blobFlight.execute(fileInfo.getMd5(), () -> {
+                // 唯一文件仓库中的路径，需在协调器中获取，文件可能刚被迁移到其他卷
+                Path repoPath = Paths.get(DiskConfig.uniquePathHandler.getStorePath(uid, diskPath, fileInfo));
+                if (Files.exists(repoPath)) {
+                    // 已存在相同文件时，直接删除本地文件
+                    log.debug("file md5 HIT: {}", fileInfo.getMd5());
+                    Files.delete(nativePath);
+                } else {
+                    // 将本地文件移动到唯一仓库
+                    log.debug("file md5 NOT HIT: {}", fileInfo.getMd5());
+                    FileUtils.createParentDirectory(repoPath);
+                    Path tmp = getSavingPath(repoPath);
+                    // 本地文件与存储仓库不在同一个卷时移动会退化为复制，需要占用目标卷的IO许可，复制完成后再原子地放入仓库
+                    storagePool.withPermit(repoPath, () -> Files.move(nativePath, tmp, StandardCopyOption.REPLACE_EXISTING));
+                    Files.move(tmp, repoPath, StandardCopyOption.ATOMIC_MOVE);
+                }
+                if (Files.exists(targetPath, LinkOption.NOFOLLOW_LINKS)) {
                     Files.delete(targetPath);
                 }
-            } else {
-                // 将本地文件移动到唯一仓库
-                log.debug("file md5 NOT HIT: {}", fileInfo.getMd5());
-                FileUtils.createParentDirectory(sourcePath);
-                Files.move(nativePath, sourcePath, StandardCopyOption.REPLACE_EXISTING);
+                // 在目标网盘位置创建文件仓库中的文件链接
+                log.debug("Create file link: {} <==> {}", targetPath, repoPath);
+                storagePool.link(targetPath, repoPath);
+                return null;
+            });
+        } else if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+            // 分块模式，网盘目录中不保留文件，仅存入分块存储库
+            try (InputStream in = Files.newInputStream(nativePath)) {
+                chunkStoreService.store(in, fileInfo);
             }
-            // 在目标网盘位置创建文件仓库中的文件链接
-            log.debug("Create file link: {} <==> {}", targetPath, sourcePath);
-            Files.createLink(targetPath, sourcePath);
+            Files.delete(nativePath);
         } else {
             // 非唯一模式，直接将文件移动到目标位置
             if (!sourcePath.equals(targetPath)) {
@@ -69,6 +114,125 @@ public class StoreService {
         }
     }
 
+    /**
+     * 在存储仓库文件的写入协调器中执行操作，与同一MD5文件的写入、链接、迁移与回收互斥
+     * @param md5   文件MD5
+     * @param task  操作
+     * @return      操作结果
+     */
+    public <T> T withBlob(String md5, SingleFlight.Task<T> task) throws IOException {
+        return blobFlight.execute(md5, task);
+    }
+
+    /**
+     * 获取写入存储仓库文件时使用的临时文件路径，与目标文件位于同一目录，不会被识别为仓库文件
+     * @param repoPath  存储仓库文件路径
+     */
+    private static Path getSavingPath(Path repoPath) {
+        return repoPath.resolveSibling("." + repoPath.getFileName() + ".saving");
+    }
+
+    /**
+     * 将数据流写入暂存文件，写入的同时计算MD5，数据只读取一次。暂存文件位于文件最终存放的存储卷上，
+     * 随后通过{@link #moveToSave}以重命名的方式存入，不产生额外的复制<br>
+     * 写入完成后校验数据大小与MD5（若提供），并将实际的MD5与大小写入fileInfo
+     * @param uid       用户ID 0表示公共
+     * @param input     数据流
+     * @param fileInfo  文件信息，size小于0表示未知大小，md5为null表示不校验
+     * @return          暂存文件路径，由调用方负责删除或存入
+     * @throws JsonException 数据大小或MD5与声明的不一致
+     */
+    public Path stage(int uid, InputStream input, BasicFileInfo fileInfo) throws IOException {
+        Path dir = getStagingRoot(uid, fileInfo.getMd5());
+        Files.createDirectories(dir);
+        Path staging = dir.resolve(UUID.randomUUID() + STAGING_SUFFIX);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            long size = storagePool.withPermit(staging, () -> Files.copy(new DigestInputStream(input, digest), staging));
+            if (fileInfo.getSize() >= 0 && size != fileInfo.getSize()) {
+                throw new JsonException(400, "文件数据不完整，期望" + fileInfo.getSize() + "字节，实际" + size + "字节");
+            }
+            String md5 = SecureUtils.bytesToHex(digest.digest());
+            if (fileInfo.getMd5() != null && !fileInfo.getMd5().equalsIgnoreCase(md5)) {
+                throw new JsonException(400, "文件MD5校验失败");
+            }
+            fileInfo.setMd5(md5);
+            fileInfo.setSize(size);
+            return staging;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(staging);
+            throw e;
+        }
+    }
+
+    /**
+     * 定期清理残留的暂存文件。暂存文件在存入或出错时由调用方删除，服务在写入或存入期间中断时会残留在暂存目录中，
+     * 启动后不久执行第一次清理
+     */
+    @Scheduled(initialDelay = 5 * 60 * 1000, fixedDelay = 60 * 60 * 1000)
+    public void cleanStaging() {
+        int count = cleanStaging(System.currentTimeMillis() - STAGING_EXPIRE);
+        if (count > 0) {
+            log.info("[暂存清理]清理残留的暂存文件{}个", count);
+        }
+    }
+
+    /**
+     * 删除所有暂存目录中最后修改时间早于指定时间的暂存文件，暂存目录中的其他文件（如断点续传任务）不受影响
+     * @param before    时间戳（毫秒）
+     * @return          删除的文件数
+     */
+    int cleanStaging(long before) {
+        Set<Path> roots = new LinkedHashSet<>();
+        for (StoragePool.Volume volume : storagePool.getVolumes()) {
+            roots.add(volume.getStagingRoot());
+        }
+        roots.add(Paths.get(DiskConfig.STORE_ROOT, "staging"));
+        int count = 0;
+        for (Path root : roots) {
+            if (!Files.isDirectory(root)) {
+                continue;
+            }
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, "*" + STAGING_SUFFIX)) {
+                for (Path path : stream) {
+                    try {
+                        if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS) && Files.getLastModifiedTime(path).toMillis() < before) {
+                            Files.delete(path);
+                            count++;
+                        }
+                    } catch (NoSuchFileException ignored) {
+                    } catch (IOException e) {
+                        log.warn("[暂存清理]暂存文件删除失败：{}", path);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("[暂存清理]暂存目录读取失败：{}", root);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 获取上传数据的暂存目录。UNIQUE模式下已知MD5时使用存储仓库文件的放置卷，否则使用用户网盘目录所在的卷，
+     * 网盘目录不在存储池中时（如公共网盘）使用存储根目录
+     * @param uid   用户ID
+     * @param md5   文件MD5，可为null
+     */
+    public Path getStagingRoot(int uid, String md5) {
+        StoragePool.Volume volume = null;
+        if (DiskConfig.STORE_TYPE == StoreType.UNIQUE && md5 != null) {
+            volume = storagePool.place(md5);
+        } else if (uid != 0) {
+            volume = storagePool.getVolume(Paths.get(DiskConfig.getRawFileStoreRootPath(uid)));
+        }
+        return volume != null ? volume.getStagingRoot() : Paths.get(DiskConfig.STORE_ROOT, "staging");
+    }
+
     /**
      * 在本地存储中复制用户网盘文件
      * @param uid     用户ID
@@ -82,6 +246,11 @@ public class StoreService {
         String localSource = DiskConfig.getPathHandler().getStorePath(uid, source, fileInfo);
         String localTarget = DiskConfig.getPathHandler().getStorePath(targetId, target, null);
 
+        // 分块模式下网盘目录中只有目录结构，文件只需复制数据库记录
+        if (DiskConfig.STORE_TYPE == StoreType.CHUNKED && !Files.isDirectory(Paths.get(localSource))) {
+            return;
+        }
+
         fileInfo = FileInfo.getLocal(localSource);
         Path sourcePath = Paths.get(localSource);
 
@@ -124,7 +293,7 @@ public class StoreService {
                 String dest = localTarget + "/" + targetName + src;
                 if (DiskConfig.STORE_TYPE == StoreType.UNIQUE) {
                     log.debug("create hard link: " + file + " ==> " + dest);
-                    Files.createLink(Paths.get(dest), Paths.get(file.getPath()));
+                    storagePool.link(Paths.get(dest), Paths.get(file.getPath()));
                 } else {
                     log.debug("local filesystem copy: " + file + " ==> " + dest);
                     try { Files.copy(Paths.get(file.getPath()), Paths.get(dest), option); }
@@ -141,38 +310,92 @@ public class StoreService {
      * @param targetDir    保存到的目标网盘目录位置（注意：不是本地真是路径）
      * @param fileInfo 文件信息
      * @throws JsonException 存储文件出错
-     * @throws DuplicateKeyException UNIQUE模式下两个不相同的文件发生MD5碰撞
+     * @throws DuplicateKeyException UNIQUE或CHUNKED模式下两个不相同的文件发生MD5碰撞
      * @throws UnableOverwriteException 保存位置存在同名的目录
      */
     public void store(int uid, InputStream input, String targetDir, FileInfo fileInfo) throws JsonException, IOException {
-        Path md5Target = Paths.get(DiskConfig.uniquePathHandler.getStorePath(uid, targetDir, fileInfo));
-        if (DiskConfig.STORE_TYPE == StoreType.UNIQUE) {
-            if (Files.exists(md5Target)) {
-                log.debug("file md5 HIT:" + fileInfo.getMd5());
-                if (Files.size(md5Target) != fileInfo.getSize()) {
-                    throw new DuplicateKeyException("文件MD5冲突");
-                }
-            } else {
-                log.debug("file md5 NOT HIT, saving:" + fileInfo.getMd5());
-                FileUtils.createParentDirectory(md5Target);
-                Files.copy(input, md5Target, StandardCopyOption.REPLACE_EXISTING);
-            }
-        }
         Path rawTarget = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, targetDir, fileInfo));
         if (Files.exists(rawTarget) && Files.isDirectory(rawTarget)) {
             throw new UnableOverwriteException(409, "已存在同名目录: " + targetDir + "/" + fileInfo.getName());
         }
-        FileUtils.createParentDirectory(rawTarget);
         if (DiskConfig.STORE_TYPE == StoreType.UNIQUE) {
-            log.info("create hard link:" + md5Target + " <==> "  + rawTarget);
-            if (Files.exists(rawTarget)) Files.delete(rawTarget);
-            Files.createLink(rawTarget, md5Target);
+            // 链接也在写入协调器中创建，避免与同一文件的迁移或回收交错
+            blobFlight.execute(fileInfo.getMd5(), () -> {
+                // 需在协调器中获取仓库路径，文件可能刚被迁移到其他卷
+                Path md5Target = Paths.get(DiskConfig.uniquePathHandler.getStorePath(uid, targetDir, fileInfo));
+                if (Files.exists(md5Target)) {
+                    log.debug("file md5 HIT:" + fileInfo.getMd5());
+                    if (Files.size(md5Target) != fileInfo.getSize()) {
+                        throw new DuplicateKeyException("文件MD5冲突");
+                    }
+                } else {
+                    log.debug("file md5 NOT HIT, saving:" + fileInfo.getMd5());
+                    FileUtils.createParentDirectory(md5Target);
+                    // 先写入临时文件，写入完整后再原子地放入仓库，避免其他请求读到不完整的文件
+                    Path tmp = getSavingPath(md5Target);
+                    try {
+                        long size = storagePool.withPermit(md5Target, () -> Files.copy(input, tmp, StandardCopyOption.REPLACE_EXISTING));
+                        if (size != fileInfo.getSize()) {
+                            throw new JsonException(400, "文件数据不完整，期望" + fileInfo.getSize() + "字节，实际" + size + "字节");
+                        }
+                        Files.move(tmp, md5Target, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        Files.deleteIfExists(tmp);
+                    }
+                }
+                FileUtils.createParentDirectory(rawTarget);
+                log.info("create hard link:" + md5Target + " <==> "  + rawTarget);
+                if (Files.exists(rawTarget, LinkOption.NOFOLLOW_LINKS)) Files.delete(rawTarget);
+                storagePool.link(rawTarget, md5Target);
+                return null;
+            });
+            return;
+        } else if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+            chunkStoreService.store(input, fileInfo);
+        }
+        FileUtils.createParentDirectory(rawTarget);
+        if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+            log.debug("chunked file stored:" + fileInfo.getMd5());
         } else {
             log.info("save file:" + rawTarget);
             Files.copy(input, rawTarget, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
+    /**
+     * 使用存储库中已有的相同文件向用户网盘目录中保存一个文件（秒传），不需要传输文件数据<br>
+     * UNIQUE模式下在目标位置创建存储仓库文件的链接，CHUNKED模式下只需确认分块存储库中存在该文件，
+     * RAW模式没有存储仓库，由调用方复制已有文件
+     * @param uid       用户ID 0表示公共
+     * @param targetDir 保存到的目标网盘目录
+     * @param fileInfo  文件信息，需包含MD5与大小
+     * @return          存储库中存在MD5与大小都相同的文件并保存成功时返回true，否则返回false
+     * @throws UnableOverwriteException 保存位置存在同名的目录
+     */
+    public boolean quickStore(int uid, String targetDir, BasicFileInfo fileInfo) throws IOException {
+        Path rawTarget = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, targetDir, fileInfo));
+        if (Files.isDirectory(rawTarget, LinkOption.NOFOLLOW_LINKS)) {
+            throw new UnableOverwriteException(409, "已存在同名目录: " + targetDir + "/" + fileInfo.getName());
+        }
+        if (DiskConfig.STORE_TYPE == StoreType.UNIQUE) {
+            // 在写入协调器中链接，避免与同一文件的写入或回收交错
+            return blobFlight.execute(fileInfo.getMd5(), () -> {
+                Path blob = storagePool.locateBlob(fileInfo.getMd5());
+                if (blob == null || Files.size(blob) != fileInfo.getSize()) {
+                    return false;
+                }
+                FileUtils.createParentDirectory(rawTarget);
+                if (Files.exists(rawTarget, LinkOption.NOFOLLOW_LINKS)) Files.delete(rawTarget);
+                log.debug("quick store, create file link: {} <==> {}", rawTarget, blob);
+                storagePool.link(rawTarget, blob);
+                return true;
+            });
+        } else if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+            return chunkStoreService.exists(fileInfo.getMd5()) && chunkStoreService.getSize(fileInfo.getMd5()) == fileInfo.getSize();
+        }
+        return false;
+    }
+
     /**
      * 在本地存储中移动用户网盘文件
      * @param uid     用户ID
@@ -186,6 +409,10 @@ public class StoreService {
         BasicFileInfo fileInfo = new BasicFileInfo(name, null);
         Path sourcePath = Paths.get(pathHandler.getStorePath(uid, source, fileInfo));
         Path targetPath = Paths.get(pathHandler.getStorePath(uid, target, fileInfo));
+        if (DiskConfig.STORE_TYPE == StoreType.CHUNKED && !Files.exists(sourcePath)) {
+            // 分块模式下文件不存在于网盘目录中，只需移动数据库记录
+            return;
+        }
         if (Files.exists(targetPath)) {
             if (Files.isDirectory(sourcePath) != Files.isDirectory(targetPath)) {
                 throw new UnsupportedOperationException("文件类型不一致，无法移动");
@@ -218,6 +445,9 @@ public class StoreService {
         File origin = new File(base + "/" + path + "/" + oldName);
         File dist = new File(base + "/" + path + "/" + newName);
         if (!origin.exists()) {
+            if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+                return;
+            }
             throw new JsonException("原文件不存在");
         }
         if (dist.exists()) {
@@ -262,7 +492,10 @@ public class StoreService {
      */
     public int delete(String md5) throws IOException {
         int res = 1;
-        Path filePath = Paths.get(DiskConfig.getUniqueStoreRoot() + "/" + StringUtils.getUniquePath(md5));
+        Path filePath = storagePool.locateBlob(md5);
+        if (filePath == null) {
+            throw new NoSuchFileException(DiskConfig.getUniqueStoreRoot() + "/" + StringUtils.getUniquePath(md5));
+        }
         Files.delete(filePath);
         log.debug("删除本地文件：" + filePath);
         DirectoryStream<Path> paths = Files.newDirectoryStream(filePath.getParent());
@@ -325,6 +558,9 @@ public class StoreService {
                 } catch (IOException e) {
                     throw new JsonException(500, e.getMessage());
                 }
+            } else if (DiskConfig.STORE_TYPE == StoreType.CHUNKED && !file.exists()) {
+                // 分块模式下文件不存在于网盘目录中，由调用者回收存储库数据
+                cnt.incrementAndGet();
             } else {
                 if (!file.delete()){
                     log.error("文件删除失败：" + file.getPath());
@@ -0,0 +1,207 @@
+package com.xiaotao.saltedfishcloud.service.file.archive;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.dao.mybatis.FileDao;
+import com.xiaotao.saltedfishcloud.dao.mybatis.NodeDao;
+import com.xiaotao.saltedfishcloud.exception.ResponseAbortedException;
+import com.xiaotao.saltedfishcloud.helper.PathBuilder;
+import com.xiaotao.saltedfishcloud.po.NodeInfo;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
+import com.xiaotao.saltedfishcloud.service.http.ResponseService;
+import com.xiaotao.saltedfishcloud.service.node.NodeService;
+import com.xiaotao.saltedfishcloud.service.ratelimit.RateLimitService;
+import com.xiaotao.saltedfishcloud.service.ratelimit.RateLimiter;
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * 归档下载服务，将网盘中的目录或选中的多个文件与目录打包为zip，边遍历节点树边读取文件写入响应，
+ * 不在磁盘上生成中间归档文件。打包过程中出错时放弃归档，不写入中央目录，并断开连接使客户端得知下载失败。<br>
+ * 目录按深度优先遍历，每个目录的文件按文件名分批从数据库读取，内存中只保存当前路径上待遍历的子目录与一批文件信息。
+ * 图片、音视频与压缩包等已压缩的文件使用STORE方式直接存储，其余文件使用DEFLATE压缩
+ */
+@Service
+@Slf4j
+public class ArchiveDownloadService {
+    /**
+     * 每批从数据库读取的文件数
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    /**
+     * 已压缩格式的文件后缀，这些文件再次压缩几乎不能减小体积，直接存储
+     */
+    private static final Set<String> COMPRESSED_SUFFIX = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif",
+            "mp4", "m4v", "mkv", "mov", "avi", "webm", "flv", "wmv", "rmvb", "ts",
+            "mp3", "m4a", "aac", "flac", "ogg", "opus", "wma", "ape",
+            "zip", "rar", "7z", "gz", "tgz", "bz2", "xz", "zst", "lz4", "lzma", "cab",
+            "jar", "war", "apk", "ipa", "docx", "xlsx", "pptx", "odt", "epub"
+    ));
+
+    @Resource
+    private NodeService nodeService;
+    @Resource
+    private NodeDao nodeDao;
+    @Resource
+    private FileDao fileDao;
+    @Resource
+    private ChunkStoreService chunkStoreService;
+    @Resource
+    private ResponseService responseService;
+    @Resource
+    private RateLimitService rateLimitService;
+
+    /**
+     * 待遍历的目录
+     */
+    private static class PendingDir {
+        final String nodeId;
+        /**
+         * 目录在网盘中的完整路径
+         */
+        final String path;
+        /**
+         * 目录在归档中的路径，以/结尾，归档根目录为空字符串
+         */
+        final String entry;
+
+        PendingDir(String nodeId, String path, String entry) {
+            this.nodeId = nodeId;
+            this.path = path;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * 将网盘目录或目录中选中的文件与子目录打包为zip响应给客户端
+     * @param uid       用户ID
+     * @param dir       网盘目录
+     * @param names     选中的文件或子目录名称，为null或空时打包整个目录
+     * @param request   请求
+     * @param response  响应
+     * @throws NoSuchFileException 目录或选中的文件不存在
+     * @throws ResponseAbortedException 归档数据已开始写出后出错，需要断开连接
+     */
+    public void sendZip(int uid, String dir, Collection<String> names, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        NodeInfo node = nodeService.getLastNodeInfoByPath(uid, dir);
+        List<FileInfo> files = new ArrayList<>();
+        Deque<PendingDir> dirs = new ArrayDeque<>();
+        String archiveName;
+        if (names == null || names.isEmpty()) {
+            dirs.push(new PendingDir(node.getId(), dir, ""));
+            archiveName = node.isRootNode() ? "download" : node.getName();
+        } else {
+            // 数据写出前先检查所有选中项，不存在时仍可以正常响应错误
+            for (String name : new LinkedHashSet<>(names)) {
+                FileInfo file = fileDao.getFileInfo(uid, name, node.getId());
+                if (file != null && file.isFile()) {
+                    files.add(file);
+                    continue;
+                }
+                // 文件表中的目录记录没有数据，选中的子目录通过节点遍历打包
+                NodeInfo child = nodeDao.getNodeByParentId(uid, node.getId(), name);
+                if (child == null) {
+                    throw new NoSuchFileException("文件 " + name + " 不存在");
+                }
+                dirs.addLast(new PendingDir(child.getId(), PathBuilder.formatPath(dir + "/" + name, true), name + "/"));
+            }
+            archiveName = names.size() == 1 ? names.iterator().next() : (node.isRootNode() ? "download" : node.getName());
+        }
+
+        response.setHeader("Content-Type", "application/zip");
+        response.setHeader("Content-Disposition", "attachment;filename*=UTF-8''" + URLEncoder.encode(archiveName + ".zip", "utf-8"));
+        RateLimiter limiter = rateLimitService.getDownloadLimiter(request);
+        OutputStream out = limiter == null ? response.getOutputStream() : limiter.wrap(response.getOutputStream());
+        try (ZipStreamWriter zip = new ZipStreamWriter(out)) {
+            try {
+                writeEntries(zip, uid, dir, files, dirs);
+                zip.finish();
+            } catch (IOException | RuntimeException e) {
+                zip.abort();
+                if (response.isCommitted()) {
+                    throw new ResponseAbortedException("打包下载中断：" + dir, e);
+                }
+                // 数据尚未写出，可以正常响应错误
+                response.reset();
+                throw e;
+            }
+            log.debug("用户{}打包下载{}，条目数：{}，大小：{}", uid, dir, zip.getEntries(), zip.getWritten());
+        }
+    }
+
+    /**
+     * 按深度优先顺序写入选中的文件与目录树中的所有条目
+     */
+    private void writeEntries(ZipStreamWriter zip, int uid, String dir, List<FileInfo> files, Deque<PendingDir> dirs) throws IOException {
+        for (FileInfo file : files) {
+            putFile(zip, uid, dir, "", file);
+        }
+        while (!dirs.isEmpty()) {
+            PendingDir current = dirs.pop();
+            if (!current.entry.isEmpty()) {
+                zip.putDirectory(current.entry, System.currentTimeMillis());
+            }
+            String after = null;
+            List<FileInfo> batch;
+            do {
+                batch = fileDao.getFileListByNodeIdAfter(uid, current.nodeId, after, BATCH_SIZE);
+                for (FileInfo file : batch) {
+                    after = file.getName();
+                    // 子目录记录跳过，由下面的节点遍历写入
+                    if (file.isFile()) {
+                        putFile(zip, uid, current.path, current.entry, file);
+                    }
+                }
+            } while (batch.size() == BATCH_SIZE);
+
+            List<NodeInfo> children = nodeDao.getChildNodes(uid, Collections.singletonList(current.nodeId));
+            for (NodeInfo child : children) {
+                dirs.push(new PendingDir(
+                        child.getId(),
+                        PathBuilder.formatPath(current.path + "/" + child.getName(), true),
+                        current.entry + child.getName() + "/"
+                ));
+            }
+        }
+    }
+
+    /**
+     * 判断文件是否应使用DEFLATE压缩
+     * @param name  文件名
+     */
+    static boolean isCompressible(String name) {
+        return name.indexOf('.') == -1 || !COMPRESSED_SUFFIX.contains(FileUtils.getSuffix(name));
+    }
+
+    private void putFile(ZipStreamWriter zip, int uid, String dir, String entry, FileInfo file) throws IOException {
+        Date time = file.getUpdated_at() != null ? file.getUpdated_at() : file.getCreated_at();
+        long lastModified = time == null ? System.currentTimeMillis() : time.getTime();
+        try (InputStream input = open(uid, dir, file)) {
+            zip.putFile(entry + file.getName(), file.getSize(), lastModified, isCompressible(file.getName()), input);
+        }
+    }
+
+    /**
+     * 打开网盘文件的数据流，CHUNKED存储模式下从分块存储库读取
+     */
+    private InputStream open(int uid, String dir, FileInfo file) throws IOException {
+        String localPath = DiskConfig.getPathHandler().getStorePath(uid, dir, file);
+        if (responseService.isChunkedRead(file.getMd5(), localPath)) {
+            return chunkStoreService.open(file.getMd5());
+        }
+        return Files.newInputStream(Paths.get(localPath));
+    }
+}
@@ -0,0 +1,22 @@
+package com.xiaotao.saltedfishcloud.service.file.archive;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 归档文件中的一个条目
+ */
+@Data
+@AllArgsConstructor
+public class ArchiveEntry {
+    /**
+     * 条目在归档中的路径，以/分隔
+     */
+    private String name;
+    private boolean dir;
+
+    /**
+     * 条目数据大小，未知时为-1
+     */
+    private long size;
+}
@@ -0,0 +1,280 @@
+package com.xiaotao.saltedfishcloud.service.file.archive;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.dao.mybatis.FileDao;
+import com.xiaotao.saltedfishcloud.dao.mybatis.NodeDao;
+import com.xiaotao.saltedfishcloud.exception.JsonException;
+import com.xiaotao.saltedfishcloud.helper.PathBuilder;
+import com.xiaotao.saltedfishcloud.po.NodeInfo;
+import com.xiaotao.saltedfishcloud.po.file.BasicFileInfo;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.file.FileService;
+import com.xiaotao.saltedfishcloud.service.file.StoreService;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
+import com.xiaotao.saltedfishcloud.service.file.exception.DirectoryAlreadyExistsException;
+import com.xiaotao.saltedfishcloud.service.file.journal.JournalService;
+import com.xiaotao.saltedfishcloud.service.node.NodeService;
+import com.xiaotao.saltedfishcloud.validator.FileNameValidator;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * 归档导入服务，将上传的zip或tar归档数据流边读取边解包到网盘目录中，归档本身不写入磁盘。<br>
+ * 每个文件条目在读取时写入存储（暂存文件或分块存储库），每{@link #BATCH_SIZE}个文件在一个事务中批量存入并写入数据库记录，
+ * 避免大量小文件逐个上传时每个请求的鉴权、路径解析与数据库开销
+ */
+@Service
+@Slf4j
+public class ArchiveIngestService {
+    /**
+     * 每个事务批量写入的文件数
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    /**
+     * 结果中记录的被跳过条目的最大数量
+     */
+    private static final int MAX_SKIPPED = 100;
+
+    @Resource
+    private FileService fileService;
+    @Resource
+    private StoreService storeService;
+    @Resource
+    private ChunkStoreService chunkStoreService;
+    @Resource
+    private NodeService nodeService;
+    @Resource
+    private NodeDao nodeDao;
+    @Resource
+    private FileDao fileDao;
+    @Resource
+    private JournalService journalService;
+
+    /**
+     * 导入结果
+     */
+    @Data
+    public static class IngestResult {
+        private int files;
+        private int dirs;
+        private long bytes;
+        private int skipped;
+        /**
+         * 被跳过的条目及原因
+         */
+        private List<String> skippedEntries = new ArrayList<>();
+
+        private void skip(String name, String reason) {
+            skipped++;
+            if (skippedEntries.size() < MAX_SKIPPED) {
+                skippedEntries.add(name + "：" + reason);
+            }
+        }
+    }
+
+    /**
+     * 一次导入的状态
+     */
+    private class Ingest {
+        final int uid;
+        final String root;
+        final IngestResult result = new IngestResult();
+        /**
+         * 网盘目录与节点ID的对应关系
+         */
+        final Map<String, String> nodes = new HashMap<>();
+        final List<FileInfo> files = new ArrayList<>();
+        final List<Path> staged = new ArrayList<>();
+        /**
+         * 当前批次中尚未存入的文件路径
+         */
+        final Set<String> pending = new HashSet<>();
+
+        Ingest(int uid, String root, String rootNode) {
+            this.uid = uid;
+            this.root = root;
+            nodes.put(root, rootNode);
+        }
+
+        /**
+         * 确保目录存在
+         * @param parts 相对于导入根目录的路径
+         * @return      网盘目录，与文件同名冲突时返回null
+         */
+        String ensureDir(List<String> parts) throws IOException {
+            String dir = root;
+            for (String name : parts) {
+                String child = PathBuilder.formatPath(dir + "/" + name, true);
+                if (!nodes.containsKey(child)) {
+                    if (pending.contains(child)) {
+                        return null;
+                    }
+                    String parentNode = nodes.get(dir);
+                    try {
+                        fileService.mkdir(uid, dir, name);
+                        result.dirs++;
+                    } catch (DirectoryAlreadyExistsException ignored) {
+                    } catch (FileAlreadyExistsException | DuplicateKeyException e) {
+                        return null;
+                    }
+                    NodeInfo node = nodeDao.getNodeByParentId(uid, parentNode, name);
+                    if (node == null) {
+                        return null;
+                    }
+                    nodes.put(child, node.getId());
+                }
+                dir = child;
+            }
+            return dir;
+        }
+
+        void flush() throws IOException {
+            if (files.isEmpty()) {
+                return;
+            }
+            fileService.saveBatch(uid, root, files, DiskConfig.STORE_TYPE == StoreType.CHUNKED ? null : staged);
+            files.clear();
+            staged.clear();
+            pending.clear();
+        }
+
+        /**
+         * 丢弃未存入的批次，删除暂存文件，分块存储模式下回收已写入的清单与分块
+         */
+        void discard() {
+            if (DiskConfig.STORE_TYPE == StoreType.CHUNKED && !files.isEmpty()) {
+                try {
+                    journalService.gc(files.stream().map(FileInfo::getMd5).collect(Collectors.toSet()));
+                } catch (IOException e) {
+                    log.warn("[归档导入]未存入文件的分块清单回收失败：{}", e.getMessage());
+                }
+            }
+            for (Path path : staged) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.warn("[归档导入]暂存文件删除失败：{}", path);
+                }
+            }
+            staged.clear();
+            files.clear();
+            pending.clear();
+        }
+    }
+
+    /**
+     * 导入归档数据流到网盘目录
+     * @param uid   用户ID 0表示公共
+     * @param root  导入到的网盘目录，需已存在
+     * @param input 归档数据流
+     * @param type  归档类型，zip或tar，为null时自动识别
+     * @return      导入结果
+     * @throws JsonException 目标目录不存在或归档格式错误
+     */
+    public IngestResult ingest(int uid, String root, InputStream input, String type) throws IOException {
+        root = PathBuilder.formatPath(root, true);
+        NodeInfo rootNode;
+        try {
+            rootNode = nodeService.getLastNodeInfoByPath(uid, root);
+        } catch (NoSuchFileException e) {
+            throw new JsonException(404, "目录" + root + "不存在");
+        }
+        Ingest ingest = new Ingest(uid, root, rootNode.getId());
+        ArchiveReader reader;
+        try {
+            reader = ArchiveReader.open(input, type);
+        } catch (IllegalArgumentException e) {
+            throw new JsonException(400, e.getMessage());
+        }
+        try (ArchiveReader r = reader) {
+            ArchiveEntry entry;
+            while ((entry = r.next()) != null) {
+                List<String> parts = splitName(entry.getName());
+                if (parts == null) {
+                    ingest.result.skip(entry.getName(), "非法路径");
+                    continue;
+                }
+                if (parts.isEmpty()) {
+                    continue;
+                }
+                if (entry.isDir()) {
+                    if (ingest.ensureDir(parts) == null) {
+                        ingest.result.skip(entry.getName(), "存在同名文件");
+                    }
+                    continue;
+                }
+                String name = parts.remove(parts.size() - 1);
+                String dir = ingest.ensureDir(parts);
+                if (dir == null) {
+                    ingest.result.skip(entry.getName(), "存在同名文件");
+                    continue;
+                }
+                FileInfo fileInfo = new FileInfo();
+                fileInfo.setName(name);
+                fileInfo.setType(BasicFileInfo.TYPE_FILE);
+                fileInfo.setSize(entry.getSize());
+                fileInfo.setPath(dir);
+                fileInfo.setNode(ingest.nodes.get(dir));
+                String fullPath = PathBuilder.formatPath(dir + "/" + name, true);
+                if (ingest.pending.contains(fullPath) || fileDao.getFileInfo(uid, name, fileInfo.getNode()) != null) {
+                    ingest.result.skip(entry.getName(), "存在同名文件");
+                    continue;
+                }
+                Path rawTarget = Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, dir, fileInfo));
+                if (Files.isDirectory(rawTarget, LinkOption.NOFOLLOW_LINKS)) {
+                    ingest.result.skip(entry.getName(), "存在同名目录");
+                    continue;
+                }
+                if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+                    chunkStoreService.store(r.getInputStream(), fileInfo);
+                } else {
+                    ingest.staged.add(storeService.stage(uid, r.getInputStream(), fileInfo));
+                }
+                ingest.files.add(fileInfo);
+                ingest.pending.add(fullPath);
+                ingest.result.files++;
+                ingest.result.bytes += fileInfo.getSize();
+                if (ingest.files.size() >= BATCH_SIZE) {
+                    ingest.flush();
+                }
+            }
+            ingest.flush();
+        } catch (IllegalArgumentException e) {
+            throw new JsonException(400, "归档格式错误：" + e.getMessage());
+        } finally {
+            ingest.discard();
+        }
+        log.info("[归档导入]uid={} {} 文件：{} 目录：{} 跳过：{}", uid, root, ingest.result.files, ingest.result.dirs, ingest.result.skipped);
+        return ingest.result;
+    }
+
+    /**
+     * 拆分条目路径
+     * @param name  条目路径
+     * @return      路径的各级名称，包含..或非法文件名时返回null
+     */
+    static List<String> splitName(String name) {
+        List<String> res = new ArrayList<>();
+        for (String part : name.split("[/\\\\]+")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..") || !FileNameValidator.valid(part)) {
+                return null;
+            }
+            res.add(part);
+        }
+        return res;
+    }
+}
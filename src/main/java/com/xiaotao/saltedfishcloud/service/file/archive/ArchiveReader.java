@@ -0,0 +1,59 @@
+package com.xiaotao.saltedfishcloud.service.file.archive;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 流式读取归档文件，按顺序逐个读取条目，不需要将归档写入磁盘
+ */
+public interface ArchiveReader extends Closeable {
+
+    /**
+     * 读取下一个条目，未读完的上一个条目数据会被跳过
+     * @return  条目信息，没有更多条目时返回null
+     */
+    ArchiveEntry next() throws IOException;
+
+    /**
+     * 获取当前条目的数据流，读取到条目末尾时返回-1，关闭该数据流不会关闭归档
+     */
+    InputStream getInputStream();
+
+    /**
+     * 打开归档数据流
+     * @param input 归档数据流
+     * @param type  归档类型，zip或tar，为null时根据数据头部自动识别
+     * @throws IllegalArgumentException 不支持的归档类型
+     */
+    static ArchiveReader open(InputStream input, String type) throws IOException {
+        if (type == null) {
+            BufferedInputStream buffered = new BufferedInputStream(input, TarArchiveReader.BLOCK_SIZE);
+            byte[] head = new byte[TarArchiveReader.BLOCK_SIZE];
+            buffered.mark(head.length);
+            int len = 0;
+            int n;
+            while (len < head.length && (n = buffered.read(head, len, head.length - len)) > 0) {
+                len += n;
+            }
+            buffered.reset();
+            input = buffered;
+            if (len >= 4 && head[0] == 'P' && head[1] == 'K' && head[2] == 3 && head[3] == 4) {
+                type = "zip";
+            } else if (len == head.length && TarArchiveReader.isHeader(head)) {
+                type = "tar";
+            } else {
+                throw new IllegalArgumentException("无法识别的归档格式");
+            }
+        }
+        switch (type.toLowerCase()) {
+            case "zip":
+                return new ZipArchiveReader(input);
+            case "tar":
+                return new TarArchiveReader(input);
+            default:
+                throw new IllegalArgumentException("不支持的归档格式：" + type);
+        }
+    }
+}
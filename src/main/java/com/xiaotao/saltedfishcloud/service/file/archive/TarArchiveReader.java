@@ -0,0 +1,265 @@
+package com.xiaotao.saltedfishcloud.service.file.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 流式读取tar归档，支持ustar格式以及GNU长文件名（L）与PAX扩展头（x）中的path、size属性。
+ * 符号链接、设备文件等其他类型的条目会被跳过
+ */
+public class TarArchiveReader implements ArchiveReader {
+    public static final int BLOCK_SIZE = 512;
+
+    private final InputStream input;
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    /**
+     * 当前条目剩余未读取的数据长度
+     */
+    private long remaining;
+
+    /**
+     * 当前条目数据末尾的填充长度
+     */
+    private long padding;
+
+    private final InputStream entryInput = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = input.read();
+            if (b < 0) {
+                throw new EOFException("tar条目数据不完整");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = input.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("tar条目数据不完整");
+            }
+            remaining -= n;
+            return n;
+        }
+    };
+
+    public TarArchiveReader(InputStream input) {
+        this.input = input;
+    }
+
+    @Override
+    public ArchiveEntry next() throws IOException {
+        String longName = null;
+        Long paxSize = null;
+        while (true) {
+            skip(remaining + padding);
+            remaining = padding = 0;
+            if (!readBlock()) {
+                return null;
+            }
+            if (isZero(header)) {
+                // 归档结束标记
+                return null;
+            }
+            if (!checksum(header)) {
+                throw new IOException("tar头部校验失败");
+            }
+            long size = parseNumber(header, 124, 12);
+            char flag = (char) header[156];
+            setEntry(size);
+            if (flag == 'L') {
+                longName = trimNul(readData(size));
+                continue;
+            }
+            if (flag == 'x') {
+                String pax = new String(readData(size), StandardCharsets.UTF_8);
+                String path = paxValue(pax, "path");
+                if (path != null) {
+                    longName = path;
+                }
+                String s = paxValue(pax, "size");
+                if (s != null) {
+                    paxSize = Long.parseLong(s);
+                }
+                continue;
+            }
+            String name = longName != null ? longName : headerName();
+            if (paxSize != null) {
+                size = paxSize;
+                setEntry(size);
+            }
+            longName = null;
+            paxSize = null;
+            if (flag == '5') {
+                return new ArchiveEntry(name, true, 0);
+            }
+            if (flag == '0' || flag == '\0' || flag == '7') {
+                return new ArchiveEntry(name, false, size);
+            }
+            // 其他类型的条目，跳过其数据
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return entryInput;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * 判断数据块是否为tar头部
+     */
+    static boolean isHeader(byte[] block) {
+        return block.length >= BLOCK_SIZE && !isZero(block) && checksum(block);
+    }
+
+    private void setEntry(long size) {
+        remaining = size;
+        padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+    }
+
+    private boolean readBlock() throws IOException {
+        int len = 0;
+        while (len < BLOCK_SIZE) {
+            int n = input.read(header, len, BLOCK_SIZE - len);
+            if (n < 0) {
+                if (len == 0) {
+                    return false;
+                }
+                throw new EOFException("tar头部不完整");
+            }
+            len += n;
+        }
+        return true;
+    }
+
+    private byte[] readData(long size) throws IOException {
+        if (size > 1024 * 1024) {
+            throw new IOException("tar扩展头过大");
+        }
+        byte[] data = new byte[(int) size];
+        int len = 0;
+        while (len < data.length) {
+            int n = entryInput.read(data, len, data.length - len);
+            if (n < 0) {
+                throw new EOFException("tar扩展头不完整");
+            }
+            len += n;
+        }
+        return data;
+    }
+
+    private void skip(long n) throws IOException {
+        while (n > 0) {
+            long skipped = input.skip(n);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new EOFException("tar条目数据不完整");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private String headerName() {
+        String name = trimNul(slice(0, 100));
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r') {
+            String prefix = trimNul(slice(345, 155));
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private byte[] slice(int offset, int len) {
+        byte[] res = new byte[len];
+        System.arraycopy(header, offset, res, 0, len);
+        return res;
+    }
+
+    private static String trimNul(byte[] data) {
+        int end = 0;
+        while (end < data.length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, 0, end, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 解析数值字段，支持八进制文本与GNU的base-256编码（首字节最高位为1）
+     */
+    private static long parseNumber(byte[] block, int offset, int len) {
+        if ((block[offset] & 0x80) != 0) {
+            long res = block[offset] & 0x7f;
+            for (int i = 1; i < len; i++) {
+                res = (res << 8) | (block[offset + i] & 0xff);
+            }
+            return res;
+        }
+        long res = 0;
+        for (int i = offset; i < offset + len; i++) {
+            byte b = block[i];
+            if (b == 0 || b == ' ') {
+                if (res != 0) break;
+                continue;
+            }
+            if (b < '0' || b > '7') {
+                throw new IllegalArgumentException("无效的tar数值字段");
+            }
+            res = (res << 3) + (b - '0');
+        }
+        return res;
+    }
+
+    private static boolean checksum(byte[] block) {
+        long expected;
+        try {
+            expected = parseNumber(block, 148, 8);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : (block[i] & 0xff);
+        }
+        return sum == expected;
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (block[i] != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 从PAX扩展头中取属性值，扩展头由若干"长度 键=值\n"记录组成
+     */
+    private static String paxValue(String pax, String key) {
+        String res = null;
+        for (String line : pax.split("\n")) {
+            int space = line.indexOf(' ');
+            int eq = line.indexOf('=');
+            if (space > 0 && eq > space && line.substring(space + 1, eq).equals(key)) {
+                res = line.substring(eq + 1);
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,43 @@
+package com.xiaotao.saltedfishcloud.service.file.archive;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * 流式读取zip归档，条目名使用UTF-8编码
+ */
+public class ZipArchiveReader implements ArchiveReader {
+    private final ZipInputStream zip;
+    private final InputStream entryInput;
+
+    public ZipArchiveReader(InputStream input) {
+        zip = new ZipInputStream(input, StandardCharsets.UTF_8);
+        entryInput = new FilterInputStream(zip) {
+            @Override
+            public void close() { }
+        };
+    }
+
+    @Override
+    public ArchiveEntry next() throws IOException {
+        ZipEntry entry = zip.getNextEntry();
+        if (entry == null) {
+            return null;
+        }
+        return new ArchiveEntry(entry.getName(), entry.isDirectory(), entry.isDirectory() ? 0 : entry.getSize());
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return entryInput;
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+}
@@ -0,0 +1,387 @@
+package com.xiaotao.saltedfishcloud.service.file.archive;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 流式zip归档写入器，条目数据边读取边写入输出流，不需要预先知道CRC与压缩后大小，也不需要可随机写的输出。<br>
+ * 文件条目均使用数据描述符（通用标志位3）在数据之后记录CRC与大小，文件名使用UTF-8编码（通用标志位11）。
+ * 文件大小或偏移超过4GiB、条目数超过65535时自动使用ZIP64扩展。<br>
+ * 中央目录记录在每个条目写完后即编码保存，超过{@link #CENTRAL_MEMORY_LIMIT}后转存到临时文件，
+ * 内存占用与归档大小及条目数无关。<br>
+ * 注意：STORE方式的条目同样使用数据描述符，按中央目录读取的解压工具均可正常处理，
+ * 但{@link java.util.zip.ZipInputStream}等只按本地文件头顺序读取的实现不支持这种条目
+ */
+public class ZipStreamWriter implements Closeable {
+    /**
+     * 中央目录记录在内存中保存的最大字节数，超过后转存到临时文件
+     */
+    public static final int CENTRAL_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long ZIP32_MAX = 0xFFFFFFFFL;
+    private static final int ZIP16_MAX = 0xFFFF;
+
+    private static final int LOCAL_SIG = 0x04034b50;
+    private static final int DESCRIPTOR_SIG = 0x08074b50;
+    private static final int CENTRAL_SIG = 0x02014b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int FLAG_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int DOS_DIR_ATTR = 0x10;
+
+    private final OutputStream out;
+    private final byte[] scratch = new byte[8];
+    private final byte[] inBuf = new byte[BUFFER_SIZE];
+    private final byte[] outBuf = new byte[BUFFER_SIZE];
+    private final CRC32 crc = new CRC32();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    /**
+     * 已写出的字节数，即下一个写入位置的偏移
+     */
+    private long written;
+
+    /**
+     * 已写入的条目数
+     */
+    private long entries;
+
+    private ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private Path centralSpill;
+    private OutputStream centralSpillOut;
+    private long centralSize;
+    private boolean finished;
+
+    /**
+     * @param out   归档输出流，关闭写入器时不会关闭该流
+     */
+    public ZipStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @return  已写出的字节数
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return  已写入的条目数
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * 写入一个目录条目
+     * @param name          目录在归档中的路径，不以/结尾时自动补充
+     * @param lastModified  最后修改时间，毫秒时间戳
+     */
+    public void putDirectory(String name, long lastModified) throws IOException {
+        ensureOpen();
+        byte[] nameBytes = encodeName(name.endsWith("/") ? name : name + "/");
+        long offset = written;
+        long dosTime = toDosTime(lastModified);
+        writeLocalHeader(nameBytes, FLAG_UTF8, METHOD_STORED, dosTime, false);
+        addCentralRecord(nameBytes, FLAG_UTF8, METHOD_STORED, dosTime, 0, 0, 0, offset, DOS_DIR_ATTR);
+    }
+
+    /**
+     * 写入一个文件条目，从输入流读取数据直到流结束，不会关闭输入流
+     * @param name          文件在归档中的路径
+     * @param size          文件的预期大小，用于预先判断是否需要ZIP64扩展，实际大小以读取的数据为准
+     * @param lastModified  最后修改时间，毫秒时间戳
+     * @param compress      是否使用DEFLATE压缩，为false时使用STORE方式直接存储
+     * @param input         文件数据输入流
+     * @throws IOException 实际数据超过4GiB但预期大小未超过，无法在已写出的本地文件头中使用ZIP64时抛出
+     */
+    public void putFile(String name, long size, long lastModified, boolean compress, InputStream input) throws IOException {
+        ensureOpen();
+        byte[] nameBytes = encodeName(name);
+        long offset = written;
+        long dosTime = toDosTime(lastModified);
+        int flags = FLAG_UTF8 | FLAG_DESCRIPTOR;
+        int method = compress ? METHOD_DEFLATED : METHOD_STORED;
+        boolean zip64 = (compress ? deflateBound(size) : size) >= ZIP32_MAX;
+        writeLocalHeader(nameBytes, flags, method, dosTime, zip64);
+
+        crc.reset();
+        long length = 0;
+        long compressedLength;
+        if (compress) {
+            deflater.reset();
+            int n;
+            while ((n = input.read(inBuf)) != -1) {
+                crc.update(inBuf, 0, n);
+                length += n;
+                deflater.setInput(inBuf, 0, n);
+                while (!deflater.needsInput()) {
+                    writeDeflated();
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeDeflated();
+            }
+            compressedLength = deflater.getBytesWritten();
+        } else {
+            int n;
+            while ((n = input.read(inBuf)) != -1) {
+                crc.update(inBuf, 0, n);
+                write(inBuf, 0, n);
+                length += n;
+            }
+            compressedLength = length;
+        }
+        if (!zip64 && (length >= ZIP32_MAX || compressedLength >= ZIP32_MAX)) {
+            throw new IOException("文件 " + name + " 的实际大小 " + length + " 超过了预期大小 " + size + "，无法写入归档");
+        }
+
+        long crcValue = crc.getValue();
+        writeInt(DESCRIPTOR_SIG);
+        writeInt(crcValue);
+        if (zip64) {
+            writeLong(compressedLength);
+            writeLong(length);
+        } else {
+            writeInt(compressedLength);
+            writeInt(length);
+        }
+        addCentralRecord(nameBytes, flags, method, dosTime, crcValue, compressedLength, length, offset, 0);
+    }
+
+    /**
+     * 写入中央目录与结束记录，完成归档。之后不能再写入条目
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        long centralOffset = written;
+        if (centralSpill == null) {
+            central.writeTo(out);
+            written += central.size();
+            central = null;
+        } else {
+            centralSpillOut.close();
+            centralSpillOut = null;
+            written += Files.copy(centralSpill, out);
+        }
+
+        boolean zip64 = entries >= ZIP16_MAX || centralSize >= ZIP32_MAX || centralOffset >= ZIP32_MAX;
+        if (zip64) {
+            long zip64EndOffset = written;
+            writeInt(ZIP64_END_SIG);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries);
+            writeLong(entries);
+            writeLong(centralSize);
+            writeLong(centralOffset);
+
+            writeInt(ZIP64_LOCATOR_SIG);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+
+        writeInt(END_SIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort((int) Math.min(entries, ZIP16_MAX));
+        writeShort((int) Math.min(entries, ZIP16_MAX));
+        writeInt(Math.min(centralSize, ZIP32_MAX));
+        writeInt(Math.min(centralOffset, ZIP32_MAX));
+        writeShort(0);
+        out.flush();
+    }
+
+    /**
+     * 放弃归档，不写入中央目录与结束记录，用于写入条目出错时。<br>
+     * 已写出的数据不是有效的zip文件，调用者应中断传输，避免客户端把截断的归档当作完整文件
+     */
+    public void abort() {
+        finished = true;
+    }
+
+    /**
+     * 完成归档（已放弃的归档不再写入）并释放资源，不会关闭底层输出流
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            deflater.end();
+            if (centralSpillOut != null) {
+                centralSpillOut.close();
+            }
+            if (centralSpill != null) {
+                Files.deleteIfExists(centralSpill);
+            }
+        }
+    }
+
+    /**
+     * 估算DEFLATE压缩后的最大长度，与zlib的deflateBound一致
+     */
+    static long deflateBound(long size) {
+        return size + (size >> 12) + (size >> 14) + (size >> 25) + 13;
+    }
+
+    private void writeDeflated() throws IOException {
+        int n = deflater.deflate(outBuf, 0, outBuf.length, Deflater.NO_FLUSH);
+        if (n > 0) {
+            write(outBuf, 0, n);
+        }
+    }
+
+    private void writeLocalHeader(byte[] nameBytes, int flags, int method, long dosTime, boolean zip64) throws IOException {
+        writeInt(LOCAL_SIG);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(flags);
+        writeShort(method);
+        writeInt(dosTime);
+        // CRC与大小记录在数据描述符中
+        writeInt(0);
+        writeInt(zip64 ? ZIP32_MAX : 0);
+        writeInt(zip64 ? ZIP32_MAX : 0);
+        writeShort(nameBytes.length);
+        writeShort(zip64 ? 20 : 0);
+        write(nameBytes, 0, nameBytes.length);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(0);
+            writeLong(0);
+        }
+    }
+
+    private void addCentralRecord(byte[] nameBytes, int flags, int method, long dosTime, long crcValue,
+                                  long compressedLength, long length, long offset, int externalAttr) throws IOException {
+        boolean lengthOver = length >= ZIP32_MAX;
+        boolean compressedOver = compressedLength >= ZIP32_MAX;
+        boolean offsetOver = offset >= ZIP32_MAX;
+        int extraLength = (lengthOver ? 8 : 0) + (compressedOver ? 8 : 0) + (offsetOver ? 8 : 0);
+        boolean zip64 = extraLength > 0;
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(46 + nameBytes.length + (zip64 ? extraLength + 4 : 0));
+        DataOutputStream dos = new DataOutputStream(record);
+        dos.writeInt(Integer.reverseBytes(CENTRAL_SIG));
+        dos.writeShort(Short.reverseBytes((short) VERSION_ZIP64));
+        dos.writeShort(Short.reverseBytes((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT)));
+        dos.writeShort(Short.reverseBytes((short) flags));
+        dos.writeShort(Short.reverseBytes((short) method));
+        dos.writeInt(Integer.reverseBytes((int) dosTime));
+        dos.writeInt(Integer.reverseBytes((int) crcValue));
+        dos.writeInt(Integer.reverseBytes((int) Math.min(compressedLength, ZIP32_MAX)));
+        dos.writeInt(Integer.reverseBytes((int) Math.min(length, ZIP32_MAX)));
+        dos.writeShort(Short.reverseBytes((short) nameBytes.length));
+        dos.writeShort(Short.reverseBytes((short) (zip64 ? extraLength + 4 : 0)));
+        // 注释长度、起始磁盘号、内部属性
+        dos.writeShort(0);
+        dos.writeShort(0);
+        dos.writeShort(0);
+        dos.writeInt(Integer.reverseBytes(externalAttr));
+        dos.writeInt(Integer.reverseBytes((int) Math.min(offset, ZIP32_MAX)));
+        dos.write(nameBytes);
+        if (zip64) {
+            dos.writeShort(Short.reverseBytes((short) ZIP64_EXTRA_ID));
+            dos.writeShort(Short.reverseBytes((short) extraLength));
+            if (lengthOver) dos.writeLong(Long.reverseBytes(length));
+            if (compressedOver) dos.writeLong(Long.reverseBytes(compressedLength));
+            if (offsetOver) dos.writeLong(Long.reverseBytes(offset));
+        }
+
+        if (centralSpill == null && central.size() + record.size() > CENTRAL_MEMORY_LIMIT) {
+            centralSpill = Files.createTempFile("xyy-zip-central", ".tmp");
+            centralSpillOut = new BufferedOutputStream(Files.newOutputStream(centralSpill), BUFFER_SIZE);
+            central.writeTo(centralSpillOut);
+            central = null;
+        }
+        record.writeTo(centralSpill == null ? central : centralSpillOut);
+        centralSize += record.size();
+        entries++;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("归档已完成，无法继续写入条目");
+        }
+    }
+
+    private static byte[] encodeName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > ZIP16_MAX) {
+            throw new IllegalArgumentException("归档条目名称过长：" + name);
+        }
+        return bytes;
+    }
+
+    /**
+     * 将毫秒时间戳转为MS-DOS格式的日期时间，高16位为日期，低16位为时间
+     */
+    private static long toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        int year = time.getYear();
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        if (year > 2107) {
+            year = 2107;
+        }
+        return ((long) (year - 1980) << 25)
+                | ((long) time.getMonthValue() << 21)
+                | ((long) time.getDayOfMonth() << 16)
+                | ((long) time.getHour() << 11)
+                | ((long) time.getMinute() << 5)
+                | (time.getSecond() >> 1);
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private void writeShort(int v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        write(scratch, 0, 2);
+    }
+
+    private void writeInt(long v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        scratch[2] = (byte) (v >>> 16);
+        scratch[3] = (byte) (v >>> 24);
+        write(scratch, 0, 4);
+    }
+
+    private void writeLong(long v) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            scratch[i] = (byte) (v >>> (i * 8));
+        }
+        write(scratch, 0, 8);
+    }
+}
@@ -0,0 +1,71 @@
+package com.xiaotao.saltedfishcloud.service.file.cache;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 内存缓冲区中的文件内容资源，用于响应热点缓存中的文件。<br>
+ * 输入流的skip操作为直接定位，每次获取输入流都从缓冲区的独立视图读取，可并发使用
+ */
+public class ByteBufferResource extends AbstractResource {
+    private final ByteBuffer data;
+    private final String description;
+
+    public ByteBufferResource(ByteBuffer data, String description) {
+        this.data = data;
+        this.description = description;
+    }
+
+    @Override
+    public String getDescription() {
+        return "cached file [" + description + "]";
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        ByteBuffer buffer = data.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+                buffer.position(buffer.position() + skipped);
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        };
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return data.remaining();
+    }
+}
@@ -0,0 +1,75 @@
+package com.xiaotao.saltedfishcloud.service.file.cache;
+
+/**
+ * 访问频率估计器（Count-Min Sketch），以固定大小的4位计数器表估计每个键的近期访问次数，不保存键本身。<br>
+ * 计数器总增加次数达到表宽的10倍时所有计数器减半，使估计值反映近期的访问频率
+ */
+class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb87f7b1b, 0x61b2f1cd, 0x3c6ef372};
+
+    private final byte[] table;
+    private final int width;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries   预期需要区分的键数量，决定计数器表的宽度
+     */
+    FrequencySketch(long expectedEntries) {
+        int w = Integer.highestOneBit((int) Math.max(64, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+        this.width = w;
+        this.table = new byte[ROWS * w];
+        this.sampleSize = 10 * w;
+    }
+
+    /**
+     * 记录一次访问
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < ROWS; i++) {
+            int index = indexOf(hash, i);
+            if (table[index] < MAX_COUNT) {
+                table[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * 估计键的近期访问次数，最大为15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int i = 0; i < ROWS; i++) {
+            min = Math.min(min, table[indexOf(hash, i)]);
+        }
+        return min;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (byte) (table[i] >>> 1);
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return row * width + (h & (width - 1));
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
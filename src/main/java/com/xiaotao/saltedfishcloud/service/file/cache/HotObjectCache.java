@@ -0,0 +1,224 @@
+package com.xiaotao.saltedfishcloud.service.file.cache;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * 热点小文件的内存缓存，文件内容保存在堆外的直接缓冲区中，按总字节数限制大小。<br>
+ * 淘汰按LRU顺序，准入采用TinyLFU策略：所有键的访问频率由{@link FrequencySketch}估计，
+ * 缓存已满时只有比将被淘汰的对象访问更频繁的新对象才会被放入，一次性访问的文件不会挤出热点文件
+ */
+public class HotObjectCache {
+
+    /**
+     * 缓存的文件内容
+     */
+    public static class Entry {
+        private final ByteBuffer data;
+        /**
+         * 文件名，用于确定响应的内容类型
+         */
+        @Getter
+        private final String name;
+        @Getter
+        private final long lastModified;
+
+        Entry(ByteBuffer data, String name, long lastModified) {
+            this.data = data;
+            this.name = name;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return  文件内容的只读视图，各调用者的读取位置互不影响
+         */
+        public ByteBuffer getData() {
+            return data.duplicate();
+        }
+
+        public int size() {
+            return data.capacity();
+        }
+    }
+
+    /**
+     * 缓存统计
+     */
+    @Getter
+    public static class Stat {
+        private long hits;
+        private long misses;
+        private double hitRate;
+        private long admissions;
+        private long rejections;
+        private long evictions;
+        private int count;
+        private long bytes;
+        private long maxBytes;
+    }
+
+    private final long maxBytes;
+    private final int maxObjectSize;
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long admissions;
+    private long rejections;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * @param maxBytes      缓存的最大总字节数
+     * @param maxObjectSize 可缓存的单个文件的最大字节数
+     */
+    public HotObjectCache(long maxBytes, int maxObjectSize) {
+        this.maxBytes = maxBytes;
+        this.maxObjectSize = maxObjectSize;
+        // 按平均对象大小为上限的1/4估计可缓存的对象数，计数器表取其数倍以降低冲突
+        this.sketch = new FrequencySketch(maxBytes / Math.max(1, maxObjectSize / 4) * 4);
+    }
+
+    /**
+     * @return  可缓存的单个文件的最大字节数
+     */
+    public int getMaxObjectSize() {
+        return maxObjectSize;
+    }
+
+    /**
+     * 获取缓存的文件内容并记录一次访问
+     * @param key   缓存键
+     * @return      缓存的文件内容，未缓存时返回null
+     */
+    public synchronized Entry get(String key) {
+        sketch.increment(key);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * 获取缓存的文件内容，不记录访问频率与命中统计，用于读取前确认其他线程是否已放入
+     * @param key   缓存键
+     * @return      缓存的文件内容，未缓存时返回null
+     */
+    public synchronized Entry peek(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * 判断未缓存的对象是否可以放入缓存，用于在读取文件前避免无用的读取。不会淘汰任何对象
+     * @param key   缓存键
+     * @param size  对象大小
+     */
+    public synchronized boolean admit(String key, long size) {
+        if (size > maxObjectSize || size > maxBytes) {
+            return false;
+        }
+        return selectVictims(size, sketch.frequency(key)) != null;
+    }
+
+    /**
+     * 获取失效代数，每次使对象失效时增加。读取文件前获取，放入时传入，
+     * 用于丢弃读取期间已被修改的文件内容
+     */
+    public synchronized long getGeneration() {
+        return invalidations;
+    }
+
+    /**
+     * 放入对象，缓存已满时按准入策略决定是否淘汰最久未访问的对象以放入新对象
+     * @param key           缓存键
+     * @param name          文件名
+     * @param data          对象内容，调用后不能再修改
+     * @param lastModified  最后修改时间
+     * @param generation    读取对象内容前通过{@link #getGeneration()}获取的失效代数，期间有对象失效时不放入
+     * @return              放入的缓存对象，未被准入时返回null
+     */
+    public synchronized Entry put(String key, String name, ByteBuffer data, long lastModified, long generation) {
+        if (generation != invalidations) {
+            return null;
+        }
+        Entry old = entries.get(key);
+        if (old != null) {
+            return old;
+        }
+        int size = data.capacity();
+        List<String> victims = size > maxObjectSize || size > maxBytes ? null : selectVictims(size, sketch.frequency(key));
+        if (victims == null) {
+            rejections++;
+            return null;
+        }
+        for (String victim : victims) {
+            bytes -= entries.remove(victim).size();
+            evictions++;
+        }
+        Entry entry = new Entry(data.asReadOnlyBuffer(), name, lastModified);
+        entries.put(key, entry);
+        bytes += size;
+        admissions++;
+        return entry;
+    }
+
+    /**
+     * 使缓存的对象失效
+     * @param key   缓存键
+     */
+    public synchronized void invalidate(String key) {
+        invalidations++;
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.size();
+        }
+    }
+
+    /**
+     * 获取缓存统计
+     */
+    public synchronized Stat getStat() {
+        Stat stat = new Stat();
+        stat.hits = hits;
+        stat.misses = misses;
+        stat.hitRate = hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        stat.admissions = admissions;
+        stat.rejections = rejections;
+        stat.evictions = evictions;
+        stat.count = entries.size();
+        stat.bytes = bytes;
+        stat.maxBytes = maxBytes;
+        return stat;
+    }
+
+    /**
+     * 选择为放入新对象需要淘汰的对象，从最久未访问的对象开始
+     * @param size      新对象的大小
+     * @param frequency 新对象的访问频率
+     * @return          需要淘汰的对象，新对象不应被准入时返回null
+     */
+    private List<String> selectVictims(long size, int frequency) {
+        long need = bytes + size - maxBytes;
+        if (need <= 0) {
+            return Collections.emptyList();
+        }
+        List<String> res = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (sketch.frequency(e.getKey()) >= frequency) {
+                return null;
+            }
+            res.add(e.getKey());
+            need -= e.getValue().size();
+            if (need <= 0) {
+                return res;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,117 @@
+package com.xiaotao.saltedfishcloud.service.file.cache;
+
+import com.xiaotao.saltedfishcloud.service.file.SingleFlight;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 热点小文件缓存服务，将频繁访问的小文件（头像、分享的图片、小文档等）缓存在堆外内存中，命中时响应不访问文件系统。<br>
+ * 网盘文件以文件MD5为键，内容改变时MD5随之改变，旧内容不会再被访问，最终被淘汰；
+ * 头像等以固定名称保存的文件使用自定义的键，修改时需调用{@link #invalidate(String)}使缓存失效。<br>
+ * 同一个键的并发读取只有一个线程读取文件，其余线程等待后直接使用放入的缓存。<br>
+ * 缓存大小为0时关闭缓存
+ */
+@Service
+@Slf4j
+public class HotObjectService {
+    /**
+     * 头像缓存键的前缀
+     */
+    private static final String AVATAR_KEY_PREFIX = "avatar:";
+
+    @Value("${hot-cache-size:64}")
+    private int cacheSize;
+
+    @Value("${hot-cache-max-object-size:256}")
+    private int maxObjectSize;
+
+    private HotObjectCache cache;
+
+    private final SingleFlight<String> flights = new SingleFlight<>();
+
+    @PostConstruct
+    public void init() {
+        if (cacheSize > 0 && maxObjectSize > 0) {
+            cache = new HotObjectCache(cacheSize * 1024L * 1024, maxObjectSize * 1024);
+            log.info("热点文件缓存大小：{}MiB，单个文件上限：{}KiB", cacheSize, maxObjectSize);
+        }
+    }
+
+    /**
+     * 获取用户头像的缓存键
+     * @param username  用户名
+     */
+    public static String getAvatarKey(String username) {
+        return AVATAR_KEY_PREFIX + username;
+    }
+
+    /**
+     * 获取缓存的文件，并记录一次访问
+     * @param key   缓存键
+     * @return      缓存的文件，未缓存或缓存已关闭时返回null
+     */
+    public HotObjectCache.Entry get(String key) {
+        return cache == null ? null : cache.get(key);
+    }
+
+    /**
+     * 读取未命中的文件并尝试放入缓存，文件过大或访问频率不足以准入时不读取文件。
+     * 同一个键同时只有一个线程读取，其他线程在其完成后直接返回已放入的缓存
+     * @param key           缓存键
+     * @param name          文件名
+     * @param size          文件大小
+     * @param lastModified  最后修改时间
+     * @param opener        打开文件数据流的操作
+     * @return              放入的缓存对象，未被准入或文件实际大小与size不符（读取期间被修改）时返回null
+     */
+    public HotObjectCache.Entry load(String key, String name, long size, long lastModified, SingleFlight.Task<InputStream> opener) throws IOException {
+        if (cache == null || !cache.admit(key, size)) {
+            return null;
+        }
+        return flights.execute(key, () -> {
+            HotObjectCache.Entry cached = cache.peek(key);
+            if (cached != null) {
+                return cached;
+            }
+            long generation = cache.getGeneration();
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            try (InputStream input = opener.run(); ReadableByteChannel channel = Channels.newChannel(input)) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        return null;
+                    }
+                }
+                if (input.read() != -1) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            return cache.put(key, name, buffer, lastModified, generation);
+        });
+    }
+
+    /**
+     * 使缓存的文件失效
+     * @param key   缓存键
+     */
+    public void invalidate(String key) {
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * 获取缓存统计，缓存已关闭时返回null
+     */
+    public HotObjectCache.Stat getStat() {
+        return cache == null ? null : cache.getStat();
+    }
+}
@@ -0,0 +1,206 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 数据块编解码器，对单个数据块进行透明压缩。每个数据块独立压缩，读取文件的某个范围时只需解压涉及的数据块。<br>
+ * 压缩前对数据进行抽样计算字节熵，熵值过高（如已压缩的图片、视频、压缩包）的数据块直接原样存储。<br>
+ * 存储格式：类型(1字节) + 数据，类型为{@link #TYPE_DEFLATE}时数据为 原始长度(4字节) + zlib格式的Deflate数据
+ */
+public class ChunkCodec {
+    public static final byte TYPE_RAW = 0;
+    public static final byte TYPE_DEFLATE = 1;
+
+    /**
+     * 抽样熵阈值（比特/字节），超过该值认为数据不可压缩
+     */
+    private static final double ENTROPY_THRESHOLD = 7.2;
+    private static final int SAMPLE_SIZE = 4096;
+    /**
+     * 压缩后至少节省的比例，否则原样存储
+     */
+    private static final double MIN_SAVING = 0.1;
+
+    private final boolean compress;
+    private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+    private final AtomicLong inputBytes = new AtomicLong();
+    private final AtomicLong outputBytes = new AtomicLong();
+    private final AtomicLong compressedChunks = new AtomicLong();
+    private final AtomicLong skippedChunks = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong decodeBytes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+    /**
+     * @param compress  是否启用压缩，不启用时所有数据块原样存储
+     */
+    public ChunkCodec(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * 抽样估算数据的字节熵
+     * @return 熵值，单位为比特/字节，取值0~8
+     */
+    static double sampleEntropy(byte[] buf, int off, int len) {
+        int[] freq = new int[256];
+        int step = Math.max(1, len / SAMPLE_SIZE);
+        int cnt = 0;
+        for (int i = 0; i < len; i += step) {
+            freq[buf[off + i] & 0xff]++;
+            cnt++;
+        }
+        double entropy = 0;
+        for (int f : freq) {
+            if (f == 0) continue;
+            double p = (double) f / cnt;
+            entropy -= p * Math.log(p) / Math.log(2);
+        }
+        return entropy;
+    }
+
+    /**
+     * 编码一个数据块
+     * @return  编码后的存储数据
+     */
+    public byte[] encode(byte[] buf, int off, int len) {
+        long begin = System.nanoTime();
+        byte[] res = null;
+        if (compress && len > 64) {
+            if (sampleEntropy(buf, off, len) > ENTROPY_THRESHOLD) {
+                skippedChunks.incrementAndGet();
+            } else {
+                res = deflate(buf, off, len);
+            }
+        }
+        if (res == null) {
+            res = new byte[len + 1];
+            res[0] = TYPE_RAW;
+            System.arraycopy(buf, off, res, 1, len);
+        } else {
+            compressedChunks.incrementAndGet();
+        }
+        inputBytes.addAndGet(len);
+        outputBytes.addAndGet(res.length);
+        encodeNanos.addAndGet(System.nanoTime() - begin);
+        return res;
+    }
+
+    /**
+     * 压缩数据，压缩收益不足时返回null
+     */
+    private byte[] deflate(byte[] buf, int off, int len) {
+        Deflater d = deflater.get();
+        d.reset();
+        d.setInput(buf, off, len);
+        d.finish();
+        int limit = (int) (len * (1 - MIN_SAVING));
+        byte[] out = new byte[5 + limit];
+        int pos = 5;
+        while (!d.finished() && pos < out.length) {
+            pos += d.deflate(out, pos, out.length - pos);
+        }
+        if (!d.finished()) {
+            return null;
+        }
+        out[0] = TYPE_DEFLATE;
+        out[1] = (byte) (len >>> 24);
+        out[2] = (byte) (len >>> 16);
+        out[3] = (byte) (len >>> 8);
+        out[4] = (byte) len;
+        byte[] res = new byte[pos];
+        System.arraycopy(out, 0, res, 0, pos);
+        return res;
+    }
+
+    /**
+     * 解码一个数据块
+     * @param data  存储数据
+     * @return      数据块原始内容
+     */
+    public byte[] decode(byte[] data) throws IOException {
+        long begin = System.nanoTime();
+        byte[] res;
+        if (data.length == 0) {
+            throw new IOException("数据块已损坏");
+        }
+        switch (data[0]) {
+            case TYPE_RAW:
+                res = new byte[data.length - 1];
+                System.arraycopy(data, 1, res, 0, res.length);
+                break;
+            case TYPE_DEFLATE:
+                int len = ((data[1] & 0xff) << 24) | ((data[2] & 0xff) << 16) | ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+                res = new byte[len];
+                Inflater i = inflater.get();
+                i.reset();
+                i.setInput(data, 5, data.length - 5);
+                try {
+                    int pos = 0;
+                    while (pos < len) {
+                        int cnt = i.inflate(res, pos, len - pos);
+                        if (cnt == 0 && (i.finished() || i.needsInput())) {
+                            throw new IOException("数据块已损坏");
+                        }
+                        pos += cnt;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("数据块已损坏", e);
+                }
+                break;
+            default:
+                throw new IOException("未知的数据块编码类型：" + data[0]);
+        }
+        decodeBytes.addAndGet(res.length);
+        decodeNanos.addAndGet(System.nanoTime() - begin);
+        return res;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * 自启动以来写入的数据块原始字节数
+     */
+    public long getInputBytes() {
+        return inputBytes.get();
+    }
+
+    /**
+     * 自启动以来写入的数据块编码后字节数
+     */
+    public long getOutputBytes() {
+        return outputBytes.get();
+    }
+
+    public long getCompressedChunks() {
+        return compressedChunks.get();
+    }
+
+    public long getSkippedChunks() {
+        return skippedChunks.get();
+    }
+
+    /**
+     * 编码吞吐量，单位MiB/s
+     */
+    public double getEncodeThroughput() {
+        long nanos = encodeNanos.get();
+        return nanos == 0 ? 0 : inputBytes.get() / 1048576.0 / (nanos / 1e9);
+    }
+
+    /**
+     * 解码吞吐量，单位MiB/s
+     */
+    public double getDecodeThroughput() {
+        long nanos = decodeNanos.get();
+        return nanos == 0 ? 0 : decodeBytes.get() / 1048576.0 / (nanos / 1e9);
+    }
+}
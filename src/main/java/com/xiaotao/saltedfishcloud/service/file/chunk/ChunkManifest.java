@@ -0,0 +1,117 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 分块存储的文件清单，记录一个文件（以整体MD5标识）由哪些数据块按顺序组成。<br>
+ * 持久化为紧凑的二进制格式：魔数 + 文件MD5 + 文件大小 + 块数量 + 块列表（块MD5 + 块长度）
+ */
+public class ChunkManifest {
+    private static final int MAGIC = 0x58434D31; // XCM1
+
+    private final String md5;
+    private final List<String> chunks;
+    private final int[] lengths;
+    private final long[] offsets;
+    private final long size;
+
+    public ChunkManifest(String md5, List<String> chunks, int[] lengths) {
+        if (chunks.size() != lengths.length) {
+            throw new IllegalArgumentException("块数量与块长度数量不一致");
+        }
+        this.md5 = md5;
+        this.chunks = chunks;
+        this.lengths = lengths;
+        this.offsets = new long[lengths.length];
+        long pos = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i] = pos;
+            pos += lengths[i];
+        }
+        this.size = pos;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    public String getChunk(int index) {
+        return chunks.get(index);
+    }
+
+    public List<String> getChunks() {
+        return chunks;
+    }
+
+    public int getChunkLength(int index) {
+        return lengths[index];
+    }
+
+    public long getChunkOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * 获取文件中某个位置所在的块序号
+     * @param pos   文件内位置，需小于文件大小
+     * @return      块序号
+     */
+    public int indexOf(long pos) {
+        if (pos < 0 || pos >= size) {
+            throw new IndexOutOfBoundsException("位置超出文件范围：" + pos);
+        }
+        int i = Arrays.binarySearch(offsets, pos);
+        // 未命中时返回(-(插入点) - 1)，所在块为插入点的前一个
+        return i >= 0 ? i : -i - 2;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        dos.writeInt(MAGIC);
+        dos.write(SecureUtils.hexToBytes(md5));
+        dos.writeLong(size);
+        dos.writeInt(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            dos.write(SecureUtils.hexToBytes(chunks.get(i)));
+            dos.writeInt(lengths[i]);
+        }
+        dos.flush();
+    }
+
+    public static ChunkManifest readFrom(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("无效的块清单文件");
+        }
+        byte[] hash = new byte[16];
+        dis.readFully(hash);
+        String md5 = SecureUtils.bytesToHex(hash);
+        long size = dis.readLong();
+        int count = dis.readInt();
+        List<String> chunks = new ArrayList<>(count);
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            dis.readFully(hash);
+            chunks.add(SecureUtils.bytesToHex(hash));
+            lengths[i] = dis.readInt();
+        }
+        ChunkManifest manifest = new ChunkManifest(md5, chunks, lengths);
+        if (manifest.getSize() != size) {
+            throw new IOException("块清单文件已损坏：" + md5);
+        }
+        return manifest;
+    }
+}
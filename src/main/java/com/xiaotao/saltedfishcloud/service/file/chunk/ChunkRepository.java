@@ -0,0 +1,202 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
+import com.xiaotao.saltedfishcloud.utils.StringUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 内容寻址的分块存储库，文件被切分为内容定义的数据块，相同的块在整个存储库中只保存一份。<br>
+ * 数据块与文件块清单均为小对象，分别打包存储在追加写的分段文件中（见{@link PackStore}），避免海量小文件占用inode与目录项：<br>
+ *     root/pack/chunk      数据块<br>
+ *     root/pack/manifest   文件块清单<br>
+ * 数据块在写入时由{@link ChunkCodec}进行透明压缩，每个数据块即一个压缩块。
+ */
+@Slf4j
+public class ChunkRepository implements Closeable {
+    /**
+     * 失效数据占比超过该值的分段会在回收时被压缩
+     */
+    private static final double COMPACT_RATIO = 0.3;
+    private final PackStore chunkStore;
+    private final PackStore manifestStore;
+    private final FastCdcChunker chunker;
+    private final ChunkCodec codec;
+    /**
+     * 存储文件时持有读锁，回收时持有写锁，避免回收掉已写入数据块但清单尚未写入的文件
+     */
+    private final ReadWriteLock gcLock = new ReentrantReadWriteLock();
+
+    public ChunkRepository(Path root) throws IOException {
+        this(root, new FastCdcChunker(), new ChunkCodec(true), PackStore.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public ChunkRepository(Path root, FastCdcChunker chunker, ChunkCodec codec, long segmentSize) throws IOException {
+        this.chunkStore = new PackStore(root.resolve("pack").resolve("chunk"), segmentSize);
+        this.manifestStore = new PackStore(root.resolve("pack").resolve("manifest"), segmentSize);
+        this.chunker = chunker;
+        this.codec = codec;
+    }
+
+    /**
+     * 切分并存储一个文件，已存在的块不会重复写入
+     * @param in    文件输入流
+     * @return      文件块清单，其中的MD5为根据实际内容计算的结果
+     */
+    public ChunkManifest store(InputStream in) throws IOException {
+        MessageDigest fileDigest = newDigest();
+        MessageDigest chunkDigest = newDigest();
+        List<String> chunks = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        gcLock.readLock().lock();
+        try {
+            chunker.split(in, (buf, off, len) -> {
+                fileDigest.update(buf, off, len);
+                chunkDigest.update(buf, off, len);
+                String hash = SecureUtils.bytesToHex(chunkDigest.digest());
+                if (!chunkStore.contains(hash)) {
+                    byte[] data = codec.encode(buf, off, len);
+                    chunkStore.put(hash, data, 0, data.length);
+                }
+                chunks.add(hash);
+                lengths.add(len);
+            });
+            int[] lens = new int[lengths.size()];
+            for (int i = 0; i < lens.length; i++) {
+                lens[i] = lengths.get(i);
+            }
+            ChunkManifest manifest = new ChunkManifest(SecureUtils.bytesToHex(fileDigest.digest()), chunks, lens);
+            if (!manifestStore.contains(manifest.getMd5())) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                manifest.writeTo(out);
+                byte[] data = out.toByteArray();
+                // 清单写入前确保数据块已落盘
+                chunkStore.sync();
+                manifestStore.put(manifest.getMd5(), data, 0, data.length);
+                manifestStore.sync();
+            }
+            return manifest;
+        } finally {
+            gcLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 判断存储库中是否存在指定文件
+     * @param md5   文件MD5
+     */
+    public boolean exists(String md5) {
+        return manifestStore.contains(md5);
+    }
+
+    /**
+     * 读取文件块清单
+     * @param md5   文件MD5
+     * @throws NoSuchFileException 文件不存在
+     */
+    public ChunkManifest getManifest(String md5) throws IOException {
+        return ChunkManifest.readFrom(new ByteArrayInputStream(manifestStore.get(md5)));
+    }
+
+    /**
+     * 打开一个可随机定位的文件输入流
+     * @param md5   文件MD5
+     * @throws NoSuchFileException 文件不存在
+     */
+    public ChunkedInputStream open(String md5) throws IOException {
+        return new ChunkedInputStream(this, getManifest(md5));
+    }
+
+    /**
+     * 删除文件块清单，数据块需等待{@link #gc()}回收
+     * @param md5   文件MD5
+     * @return      清单存在并被删除返回true
+     */
+    public boolean deleteManifest(String md5) throws IOException {
+        return manifestStore.delete(md5);
+    }
+
+    /**
+     * 读取一个数据块的全部内容
+     * @param hash  块MD5
+     */
+    byte[] readChunk(String hash) throws IOException {
+        return codec.decode(chunkStore.get(hash));
+    }
+
+    /**
+     * 标记-清除回收不再被任何清单引用的数据块，随后压缩失效数据较多的分段
+     * @return  被回收的块数量
+     */
+    public long gc() throws IOException {
+        gcLock.writeLock().lock();
+        try {
+            Set<String> referenced = new HashSet<>();
+            for (String md5 : manifestStore.keys()) {
+                referenced.addAll(getManifest(md5).getChunks());
+            }
+            long cnt = 0;
+            for (String hash : chunkStore.keys()) {
+                if (!referenced.contains(hash) && chunkStore.delete(hash)) {
+                    cnt++;
+                }
+            }
+            long reclaimed = chunkStore.compact(COMPACT_RATIO) + manifestStore.compact(COMPACT_RATIO);
+            log.info("块存储回收完成，回收块数：{}，存活块数：{}，释放空间：{}", cnt, referenced.size(), StringUtils.getFormatSize(reclaimed));
+            return cnt;
+        } finally {
+            gcLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 存储库中存活数据块占用的字节数（压缩后）
+     */
+    public long getStoredSize() {
+        return chunkStore.getLiveBytes();
+    }
+
+    /**
+     * 获取存储库统计信息
+     */
+    public Map<String, Object> getStat() throws IOException {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("file_count", manifestStore.getCount());
+        res.put("chunk_count", chunkStore.getCount());
+        res.put("chunk_live_size", chunkStore.getLiveBytes());
+        res.put("pack_total_size", chunkStore.getTotalBytes() + manifestStore.getTotalBytes());
+        res.put("pack_segment_count", chunkStore.getSegmentCount() + manifestStore.getSegmentCount());
+        // 压缩统计为本次启动以来新写入的数据块
+        res.put("compress_enabled", codec.isCompress());
+        res.put("compress_input_size", codec.getInputBytes());
+        res.put("compress_output_size", codec.getOutputBytes());
+        res.put("compress_ratio", codec.getOutputBytes() == 0 ? 1.0 : (double) codec.getInputBytes() / codec.getOutputBytes());
+        res.put("compressed_chunk_count", codec.getCompressedChunks());
+        res.put("incompressible_chunk_count", codec.getSkippedChunks());
+        res.put("compress_throughput", codec.getEncodeThroughput());
+        res.put("decompress_throughput", codec.getDecodeThroughput());
+        return res;
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunkStore.close();
+        manifestStore.close();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.exception.JsonException;
+import com.xiaotao.saltedfishcloud.po.file.BasicFileInfo;
+import com.xiaotao.saltedfishcloud.service.file.SingleFlight;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+
+/**
+ * CHUNKED存储模式下的文件内容存储服务，文件内容以内容定义分块的方式保存在存储根目录下的chunk目录中。<br>
+ * 该模式下用户网盘目录中只保留目录结构，文件的命名空间以数据库记录为准。
+ */
+@Service
+@Slf4j
+public class ChunkStoreService {
+    private final SingleFlight<String> storeFlight = new SingleFlight<>();
+    private ChunkRepository repository;
+    private String repositoryRoot;
+    private volatile boolean dirty = true;
+
+    /**
+     * 获取分块存储库，首次使用时打开，存储根目录变更后会重新打开
+     * @throws JsonException 存储库打开失败
+     */
+    public synchronized ChunkRepository getRepository() {
+        String root = DiskConfig.getChunkStoreRoot();
+        if (repository == null || !root.equals(repositoryRoot)) {
+            try {
+                if (repository != null) {
+                    repository.close();
+                }
+                repository = new ChunkRepository(Paths.get(root), new FastCdcChunker(), new ChunkCodec(DiskConfig.STORE_COMPRESS), PackStore.DEFAULT_SEGMENT_SIZE);
+                repositoryRoot = root;
+            } catch (IOException e) {
+                log.error("分块存储库打开失败：" + root, e);
+                throw new JsonException(500, "分块存储库打开失败");
+            }
+        }
+        return repository;
+    }
+
+    /**
+     * 关闭分块存储库，下次使用时重新打开
+     */
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (repository != null) {
+            repository.close();
+            repository = null;
+        }
+    }
+
+    /**
+     * 判断分块存储库中是否存在文件
+     * @param md5   文件MD5
+     */
+    public boolean exists(String md5) {
+        return md5 != null && getRepository().exists(md5);
+    }
+
+    /**
+     * 存储一个文件到分块存储库。若存储库中已存在相同MD5的文件，则不会读取输入流。
+     * 相同MD5的文件同时存储时只有一个线程切分写入，其余线程等待其完成后直接复用。<br>
+     * 存储完成后，fileInfo的MD5会被更新为根据实际内容计算的MD5
+     * @param input     文件输入流
+     * @param fileInfo  文件信息，MD5未经校验时应为null，总是读取并切分输入流
+     * @throws DuplicateKeyException 两个不相同的文件发生MD5碰撞
+     */
+    public void store(InputStream input, BasicFileInfo fileInfo) throws IOException {
+        if (fileInfo.getMd5() == null) {
+            doStore(input, fileInfo);
+        } else {
+            storeFlight.execute(fileInfo.getMd5(), () -> {
+                doStore(input, fileInfo);
+                return null;
+            });
+        }
+    }
+
+    private void doStore(InputStream input, BasicFileInfo fileInfo) throws IOException {
+        ChunkRepository repo = getRepository();
+        if (exists(fileInfo.getMd5())) {
+            log.debug("chunk manifest HIT: {}", fileInfo.getMd5());
+            if (repo.getManifest(fileInfo.getMd5()).getSize() != fileInfo.getSize()) {
+                throw new DuplicateKeyException("文件MD5冲突");
+            }
+            return;
+        }
+        ChunkManifest manifest = repo.store(input);
+        if (fileInfo.getMd5() != null && !fileInfo.getMd5().equals(manifest.getMd5())) {
+            log.warn("文件MD5与实际内容不符，已使用实际MD5：{} -> {}", fileInfo.getMd5(), manifest.getMd5());
+        }
+        fileInfo.setMd5(manifest.getMd5());
+        fileInfo.setSize(manifest.getSize());
+    }
+
+    /**
+     * 在文件MD5对应的互斥区内执行操作，与相同MD5的文件存储互斥。
+     * 用于回收块清单时重新确认文件未被引用，避免删除并发存储刚复用的块清单
+     * @param md5   文件MD5
+     * @param task  要执行的操作
+     */
+    public <T> T withManifest(String md5, SingleFlight.Task<T> task) throws IOException {
+        return storeFlight.execute(md5, task);
+    }
+
+    /**
+     * 打开分块存储库中的文件
+     * @param md5   文件MD5
+     * @throws NoSuchFileException 文件不存在
+     */
+    public ChunkedInputStream open(String md5) throws IOException {
+        return getRepository().open(md5);
+    }
+
+    /**
+     * 获取文件大小
+     * @param md5   文件MD5
+     * @throws NoSuchFileException 文件不存在
+     */
+    public long getSize(String md5) throws IOException {
+        return getRepository().getManifest(md5).getSize();
+    }
+
+    /**
+     * 删除分块存储库中的文件，数据块将在下一次回收时被清理
+     * @param md5   文件MD5
+     */
+    public void delete(String md5) throws IOException {
+        if (getRepository().deleteManifest(md5)) {
+            log.debug("删除块清单：{}", md5);
+            dirty = true;
+        }
+    }
+
+    /**
+     * 定期回收不再被引用的数据块，仅在有文件被删除后执行
+     */
+    @Scheduled(initialDelay = 10 * 60 * 1000, fixedDelay = 6 * 60 * 60 * 1000)
+    public void gc() throws IOException {
+        if (DiskConfig.STORE_TYPE != StoreType.CHUNKED || !dirty) {
+            return;
+        }
+        // 先清除标记再回收，回收期间新的删除会重新标记；回收失败时恢复标记以便下次重试
+        dirty = false;
+        try {
+            getRepository().gc();
+        } catch (IOException | RuntimeException e) {
+            dirty = true;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 分块存储文件的输入流，按需加载当前位置所在的数据块。<br>
+ * 支持通过{@link #seek(long)}或{@link #skip(long)}直接定位到任意位置，跳过的数据块不会被读取，适用于Range请求。
+ */
+public class ChunkedInputStream extends InputStream {
+    private final ChunkRepository repository;
+    private final ChunkManifest manifest;
+    private long pos = 0;
+    private int currentIndex = -1;
+    private byte[] current;
+
+    public ChunkedInputStream(ChunkRepository repository, ChunkManifest manifest) {
+        this.repository = repository;
+        this.manifest = manifest;
+    }
+
+    public ChunkManifest getManifest() {
+        return manifest;
+    }
+
+    public long getPosition() {
+        return pos;
+    }
+
+    /**
+     * 定位到文件中的指定位置
+     * @param position  文件内位置，超出文件大小时定位到文件末尾
+     */
+    public void seek(long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("位置不能为负数：" + position);
+        }
+        pos = Math.min(position, manifest.getSize());
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= manifest.getSize()) {
+            return -1;
+        }
+        int total = 0;
+        while (len > 0 && pos < manifest.getSize()) {
+            int index = manifest.indexOf(pos);
+            if (index != currentIndex) {
+                current = repository.readChunk(manifest.getChunk(index));
+                currentIndex = index;
+            }
+            int inChunk = (int) (pos - manifest.getChunkOffset(index));
+            int cnt = Math.min(len, current.length - inChunk);
+            System.arraycopy(current, inChunk, b, off, cnt);
+            off += cnt;
+            len -= cnt;
+            total += cnt;
+            pos += cnt;
+        }
+        return total;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, manifest.getSize() - pos);
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        if (currentIndex == -1 || pos >= manifest.getSize()) {
+            return 0;
+        }
+        long chunkEnd = manifest.getChunkOffset(currentIndex) + manifest.getChunkLength(currentIndex);
+        return (int) Math.max(0, chunkEnd - pos);
+    }
+
+    @Override
+    public void close() {
+        current = null;
+    }
+}
@@ -0,0 +1,42 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 分块存储文件的资源对象，用于响应文件下载。<br>
+ * 输入流的skip操作为直接定位，配合Spring的Range请求处理时不会读取被跳过的数据块。
+ */
+public class ChunkedResource extends AbstractResource {
+    private final ChunkStoreService chunkStoreService;
+    private final String md5;
+    private final long size;
+
+    public ChunkedResource(ChunkStoreService chunkStoreService, String md5) throws IOException {
+        this.chunkStoreService = chunkStoreService;
+        this.md5 = md5;
+        this.size = chunkStoreService.getSize(md5);
+    }
+
+    @Override
+    public String getDescription() {
+        return "chunked file [" + md5 + "]";
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return chunkStoreService.open(md5);
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return size;
+    }
+}
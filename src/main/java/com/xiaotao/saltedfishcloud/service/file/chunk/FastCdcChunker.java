@@ -0,0 +1,144 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * 基于Gear滚动哈希的内容定义分块器（FastCDC），用于将文件切分为与内容相关的数据块。<br>
+ * 切分点仅取决于附近的字节内容，因此文件中间插入或删除数据时，只有附近的少量块会发生变化，其余块仍可被去重复用。<br>
+ * 采用归一化分块：在平均块长度前使用更严格的掩码，之后使用更宽松的掩码，使块长度集中在平均值附近。
+ */
+public class FastCdcChunker {
+    public static final int DEFAULT_MIN_SIZE = 16 * 1024;
+    public static final int DEFAULT_AVG_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+    /**
+     * Gear表，使用固定种子生成，保证不同进程、不同版本之间的切分结果一致
+     */
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x5A17EDF15L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskS;
+    private final long maskL;
+
+    /**
+     * 块数据消费者
+     */
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        /**
+         * 接收一个数据块，buf中的数据在方法返回后会被覆盖，如需保留需自行复制
+         * @param buf   缓冲区
+         * @param off   块起始位置
+         * @param len   块长度
+         */
+        void accept(byte[] buf, int off, int len) throws IOException;
+    }
+
+    public FastCdcChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param minSize   最小块长度
+     * @param avgSize   平均块长度，必须为2的幂
+     * @param maxSize   最大块长度
+     */
+    public FastCdcChunker(int minSize, int avgSize, int maxSize) {
+        if (Integer.bitCount(avgSize) != 1) {
+            throw new IllegalArgumentException("平均块长度必须为2的幂：" + avgSize);
+        }
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException("块长度参数不合法：" + minSize + "/" + avgSize + "/" + maxSize);
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        this.maskS = mask(bits + 2);
+        this.maskL = mask(bits - 2);
+    }
+
+    /**
+     * 生成高位掩码。Gear哈希每处理一个字节左移一位，高位比特受最近的更多字节影响，分布更均匀
+     */
+    private static long mask(int bits) {
+        if (bits <= 0) return 0;
+        return -1L << (64 - bits);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 在缓冲区指定范围内寻找第一个切分点
+     * @param buf   缓冲区
+     * @param off   起始位置
+     * @param len   可用数据长度
+     * @return      第一个块的长度
+     */
+    public int cut(byte[] buf, int off, int len) {
+        if (len <= minSize) {
+            return len;
+        }
+        int n = Math.min(len, maxSize);
+        int normal = Math.min(n, avgSize);
+        long fp = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + GEAR[buf[off + i] & 0xff];
+            if ((fp & maskS) == 0) return i + 1;
+        }
+        for (; i < n; i++) {
+            fp = (fp << 1) + GEAR[buf[off + i] & 0xff];
+            if ((fp & maskL) == 0) return i + 1;
+        }
+        return n;
+    }
+
+    /**
+     * 读取整个输入流并按内容切分，依次将数据块交给消费者处理
+     * @param in        输入流
+     * @param consumer  块消费者
+     */
+    public void split(InputStream in, ChunkConsumer consumer) throws IOException {
+        byte[] buf = new byte[maxSize * 2];
+        int start = 0, end = 0;
+        boolean eof = false;
+        while (true) {
+            // 保证缓冲区中至少有一个最大块长度的数据，否则压缩缓冲区并继续读取
+            if (!eof && end - start < maxSize) {
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+                while (end < buf.length) {
+                    int cnt = in.read(buf, end, buf.length - end);
+                    if (cnt == -1) {
+                        eof = true;
+                        break;
+                    }
+                    end += cnt;
+                }
+            }
+            if (start == end) {
+                return;
+            }
+            int len = cut(buf, start, end - start);
+            consumer.accept(buf, start, len);
+            start += len;
+        }
+    }
+}
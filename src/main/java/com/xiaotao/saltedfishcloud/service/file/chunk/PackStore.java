@@ -0,0 +1,434 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 追加写的小对象打包存储，将大量小数据块（以MD5为键）顺序写入少量的分段文件中，避免每个小对象占用一个inode和目录项。<br>
+ * 目录结构：<br>
+ *     00000001.pack    数据分段，只追加写入<br>
+ *     index.log        索引日志，记录每个对象所在的分段、偏移与长度，以及删除标记<br>
+ * 启动时回放索引日志在内存中重建索引，读取时通过分段文件的定位读取（positional read）直接获取对象数据。
+ * 被删除的对象所占空间由{@link #compact(double)}回收。
+ */
+@Slf4j
+public class PackStore implements Closeable {
+    public static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+    private static final String INDEX_FILE = "index.log";
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DEL = 2;
+    /**
+     * 索引记录长度：操作类型(1) + 键(16) + 分段号(4) + 偏移(8) + 长度(4)
+     */
+    private static final int RECORD_SIZE = 33;
+
+    private final Path root;
+    private final long segmentSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Entry> index = new HashMap<>();
+    private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+    /**
+     * 各分段中已删除对象占用的字节数
+     */
+    private final Map<Integer, Long> deadBytes = new HashMap<>();
+    private FileChannel indexChannel;
+    private int activeSegment;
+    private long liveBytes;
+
+    private static class Entry {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Entry(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public PackStore(Path root) throws IOException {
+        this(root, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param root          存储目录
+     * @param segmentSize   单个分段文件的大小上限，达到后切换到新分段
+     */
+    public PackStore(Path root, long segmentSize) throws IOException {
+        this.root = root;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(root);
+        load();
+    }
+
+    /**
+     * 打开已有的分段文件并回放索引日志
+     */
+    private void load() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            }
+        }
+
+        Path indexPath = root.resolve(INDEX_FILE);
+        long records = 0;
+        if (Files.exists(indexPath)) {
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 4096);
+                byte[] key = new byte[16];
+                boolean eof = false;
+                // 末尾不完整的记录为写入时中断，忽略
+                while (!eof) {
+                    eof = channel.read(buf) == -1;
+                    buf.flip();
+                    while (buf.remaining() >= RECORD_SIZE) {
+                        byte op = buf.get();
+                        buf.get(key);
+                        Entry entry = new Entry(buf.getInt(), buf.getLong(), buf.getInt());
+                        replay(op, SecureUtils.bytesToHex(key), entry);
+                        records++;
+                    }
+                    buf.compact();
+                }
+            }
+        }
+        for (Entry entry : index.values()) {
+            liveBytes += entry.length;
+        }
+        activeSegment = segments.isEmpty() ? 1 : segments.lastKey();
+        if (!segments.containsKey(activeSegment)) {
+            segments.put(activeSegment, openSegment(activeSegment));
+        }
+
+        // 失效记录过多时重写索引日志
+        if (records > index.size() * 2L + 1024) {
+            rewriteIndex();
+        }
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        log.debug("打包存储加载完成：{}，对象数：{}，分段数：{}", root, index.size(), segments.size());
+    }
+
+    private void replay(byte op, String key, Entry entry) throws IOException {
+        Entry old = index.remove(key);
+        if (old != null) {
+            deadBytes.merge(old.segment, (long) old.length, Long::sum);
+        }
+        if (op == OP_PUT) {
+            FileChannel channel = segments.get(entry.segment);
+            // 数据未完整落盘的对象视为不存在
+            if (channel == null || entry.offset + entry.length > channel.size()) {
+                return;
+            }
+            index.put(key, entry);
+        }
+    }
+
+    private FileChannel openSegment(int id) throws IOException {
+        return FileChannel.open(getSegmentPath(id), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path getSegmentPath(int id) {
+        return root.resolve(String.format("%08d%s", id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * 判断对象是否存在
+     * @param key   对象MD5
+     */
+    public boolean contains(String key) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 写入一个对象，已存在时忽略
+     * @param key   对象MD5
+     * @param buf   数据缓冲区
+     * @param off   数据起始位置
+     * @param len   数据长度
+     * @return      是否实际写入了数据
+     */
+    public boolean put(String key, byte[] buf, int off, int len) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (index.containsKey(key)) {
+                return false;
+            }
+            append(key, ByteBuffer.wrap(buf, off, len));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 追加写入数据到活动分段并记录索引，调用者需持有写锁
+     */
+    private void append(String key, ByteBuffer data) throws IOException {
+        FileChannel channel = segments.get(activeSegment);
+        if (channel.size() >= segmentSize) {
+            activeSegment++;
+            channel = openSegment(activeSegment);
+            segments.put(activeSegment, channel);
+        }
+        long offset = channel.size();
+        int length = data.remaining();
+        long pos = offset;
+        while (data.hasRemaining()) {
+            pos += channel.write(data, pos);
+        }
+        Entry entry = new Entry(activeSegment, offset, length);
+        writeRecord(OP_PUT, key, entry);
+        index.put(key, entry);
+        liveBytes += length;
+    }
+
+    private void writeRecord(byte op, String key, Entry entry) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(op).put(SecureUtils.hexToBytes(key)).putInt(entry.segment).putLong(entry.offset).putInt(entry.length);
+        record.flip();
+        while (record.hasRemaining()) {
+            indexChannel.write(record);
+        }
+    }
+
+    /**
+     * 读取一个对象的全部数据
+     * @param key   对象MD5
+     * @throws NoSuchFileException 对象不存在
+     */
+    public byte[] get(String key) throws IOException {
+        lock.readLock().lock();
+        try {
+            Entry entry = index.get(key);
+            if (entry == null) {
+                throw new NoSuchFileException(key);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(entry.length);
+            FileChannel channel = segments.get(entry.segment);
+            long pos = entry.offset;
+            while (buf.hasRemaining()) {
+                int cnt = channel.read(buf, pos);
+                if (cnt == -1) {
+                    throw new EOFException("分段文件已损坏：" + getSegmentPath(entry.segment));
+                }
+                pos += cnt;
+            }
+            return buf.array();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 删除一个对象，所占空间在压缩时回收
+     * @param key   对象MD5
+     * @return      对象存在并被删除返回true
+     */
+    public boolean delete(String key) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Entry entry = index.remove(key);
+            if (entry == null) {
+                return false;
+            }
+            writeRecord(OP_DEL, key, entry);
+            deadBytes.merge(entry.segment, (long) entry.length, Long::sum);
+            liveBytes -= entry.length;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 获取所有对象的键的快照
+     */
+    public Set<String> keys() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<>(index.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 将分段数据与索引日志刷入磁盘
+     */
+    public void sync() throws IOException {
+        lock.readLock().lock();
+        try {
+            segments.get(activeSegment).force(false);
+            indexChannel.force(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 压缩分段，将失效数据占比超过阈值的非活动分段中的存活对象重新写入活动分段，随后删除原分段
+     * @param deadRatio 失效数据占比阈值，取值0~1
+     * @return  回收的字节数
+     */
+    public long compact(double deadRatio) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long reclaimed = 0;
+            for (Integer id : new ArrayList<>(segments.keySet())) {
+                if (id == activeSegment) continue;
+                FileChannel channel = segments.get(id);
+                long size = channel.size();
+                long dead = deadBytes.getOrDefault(id, 0L);
+                if (size > 0 && (double) dead / size < deadRatio) continue;
+
+                List<Map.Entry<String, Entry>> live = new ArrayList<>();
+                for (Map.Entry<String, Entry> e : index.entrySet()) {
+                    if (e.getValue().segment == id) live.add(e);
+                }
+                for (Map.Entry<String, Entry> e : live) {
+                    Entry entry = e.getValue();
+                    ByteBuffer buf = ByteBuffer.allocate(entry.length);
+                    long pos = entry.offset;
+                    while (buf.hasRemaining()) {
+                        int cnt = channel.read(buf, pos);
+                        if (cnt == -1) {
+                            throw new EOFException("分段文件已损坏：" + getSegmentPath(id));
+                        }
+                        pos += cnt;
+                    }
+                    buf.flip();
+                    // 先写入新位置再替换索引项，写入失败时原索引项仍然有效
+                    append(e.getKey(), buf);
+                    liveBytes -= entry.length;
+                }
+                segments.get(activeSegment).force(false);
+                indexChannel.force(false);
+                channel.close();
+                segments.remove(id);
+                deadBytes.remove(id);
+                Files.delete(getSegmentPath(id));
+                reclaimed += dead;
+                log.info("压缩打包分段 {}，迁移对象数：{}，回收字节数：{}", getSegmentPath(id), live.size(), dead);
+            }
+            if (reclaimed > 0) {
+                indexChannel.close();
+                rewriteIndex();
+                indexChannel = FileChannel.open(root.resolve(INDEX_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            return reclaimed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 以当前内存中的索引重写索引日志，去除已失效的记录
+     */
+    private void rewriteIndex() throws IOException {
+        Path tmp = root.resolve(INDEX_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 4096);
+            for (Map.Entry<String, Entry> e : index.entrySet()) {
+                if (buf.remaining() < RECORD_SIZE) {
+                    buf.flip();
+                    while (buf.hasRemaining()) channel.write(buf);
+                    buf.clear();
+                }
+                Entry entry = e.getValue();
+                buf.put(OP_PUT).put(SecureUtils.hexToBytes(e.getKey())).putInt(entry.segment).putLong(entry.offset).putInt(entry.length);
+            }
+            buf.flip();
+            while (buf.hasRemaining()) channel.write(buf);
+            channel.force(true);
+        }
+        Files.move(tmp, root.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 存活对象数量
+     */
+    public int getCount() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 存活对象占用的字节数
+     */
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 所有分段文件的总字节数（包含未回收的失效数据）
+     */
+    public long getTotalBytes() throws IOException {
+        lock.readLock().lock();
+        try {
+            long res = 0;
+            for (FileChannel channel : segments.values()) {
+                res += channel.size();
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 分段文件数量
+     */
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (FileChannel channel : segments.values()) {
+                channel.close();
+            }
+            segments.clear();
+            if (indexChannel != null) {
+                indexChannel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
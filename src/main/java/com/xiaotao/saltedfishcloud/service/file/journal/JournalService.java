@@ -0,0 +1,606 @@
+package com.xiaotao.saltedfishcloud.service.file.journal;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.dao.mybatis.FileDao;
+import com.xiaotao.saltedfishcloud.exception.JsonException;
+import com.xiaotao.saltedfishcloud.po.file.BasicFileInfo;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
+import com.xiaotao.saltedfishcloud.service.file.StoreService;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
+import com.xiaotao.saltedfishcloud.service.node.NodeService;
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 网盘操作日志服务，保证数据库与本地文件系统在崩溃后的一致性。<br>
+ * 网盘操作开始前写入操作意图（{@link #begin}），操作所在的数据库事务提交后写入COMMIT；事务回滚时立即按数据库记录对账，
+ * 撤销已完成的文件系统操作后写入ABORT。启动时对日志中所有未完成的操作进行对账（{@link #recover}）：
+ * 数据库已提交的操作补齐文件系统操作，未提交的操作撤销文件系统操作。<br>
+ * 对账以数据库记录为准，只涉及操作相关的文件与目录，不需要扫描整个存储。<br>
+ * RAW存储模式下本地文件无法从存储仓库还原，操作要删除或覆盖的本地文件先通过{@link #stash}移入所在卷的回收目录，
+ * 对账时按数据库记录决定移回原位置或清除。对账失败的操作在后台定期重试。
+ */
+@Service
+@Slf4j
+public class JournalService {
+    @Resource
+    private FileDao fileDao;
+    @Resource
+    private NodeService nodeService;
+    @Resource
+    private StoreService storeService;
+    @Resource
+    private ChunkStoreService chunkStoreService;
+    @Resource
+    private StoragePool storagePool;
+    @Resource
+    private StoreTypeSwitch storeTypeSwitch;
+
+    /**
+     * 回收目录名，位于各存储卷根目录下，按操作ID分目录保存移入的本地文件
+     */
+    private static final String TRASH_DIR = "trash";
+
+    /**
+     * 回收目录中记录文件原路径的附属文件后缀
+     */
+    private static final String ORIGIN_SUFFIX = ".origin";
+
+    private OperationJournal journal;
+    private String journalRoot;
+
+    /**
+     * 对账失败、仍处于未完成状态的操作，值为操作所在事务是否已提交
+     */
+    private final Map<Long, Boolean> failed = new ConcurrentHashMap<>();
+
+    /**
+     * 事务尚未结束的保存操作引用的文件MD5及引用计数，回收时跳过这些文件
+     */
+    private final Map<String, AtomicInteger> pins = new ConcurrentHashMap<>();
+
+    /**
+     * 获取操作日志，首次使用时打开，存储根目录变更后重新打开
+     */
+    public synchronized OperationJournal getJournal() throws IOException {
+        String root = DiskConfig.STORE_ROOT;
+        if (journal == null || !root.equals(journalRoot)) {
+            if (journal != null) {
+                journal.close();
+            }
+            journal = new OperationJournal(Paths.get(root, "journal", "operation.log"));
+            journalRoot = root;
+        }
+        return journal;
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * 记录一个网盘操作的开始，并在当前数据库事务结束时记录操作结果
+     * @param record    操作信息
+     * @return          操作ID
+     * @throws JsonException 操作涉及的用户网盘因存储模式切换处于只读状态
+     */
+    public long begin(OperationRecord record) throws IOException {
+        storeTypeSwitch.checkWritable(record.getUid());
+        if (record.getTargetUid() != null) {
+            storeTypeSwitch.checkWritable(record.getTargetUid());
+        }
+        OperationJournal journal = getJournal();
+        long id = journal.begin(record);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            List<String> pinned = pin(record);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    unpin(pinned);
+                    complete(journal, record, status == STATUS_COMMITTED);
+                }
+            });
+        } else {
+            log.debug("[操作日志]操作{}不在事务中，将在下次启动时对账", id);
+        }
+        return id;
+    }
+
+    /**
+     * 在当前数据库事务提交后执行操作，不在事务中时立即执行
+     * @param action    要执行的操作
+     */
+    public void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * 固定保存操作引用的文件MD5，直到操作所在事务结束，期间其他操作的回收不会删除这些文件
+     * @return  固定的MD5
+     */
+    private List<String> pin(OperationRecord record) {
+        List<String> md5s = new ArrayList<>();
+        if (record.getMd5() != null) {
+            md5s.add(record.getMd5());
+        }
+        if (record.getMd5s() != null) {
+            md5s.addAll(record.getMd5s());
+        }
+        for (String md5 : md5s) {
+            pins.computeIfAbsent(md5, k -> new AtomicInteger()).incrementAndGet();
+        }
+        return md5s;
+    }
+
+    private void unpin(List<String> md5s) {
+        for (String md5 : md5s) {
+            pins.computeIfPresent(md5, (k, cnt) -> cnt.decrementAndGet() == 0 ? null : cnt);
+        }
+    }
+
+    private void complete(OperationJournal journal, OperationRecord record, boolean committed) {
+        try {
+            if (!committed) {
+                log.info("[操作日志]事务回滚，撤销操作：{} {}", record.getType(), record.getId());
+                reconcile(record);
+            }
+            purge(record.getId());
+            journal.end(record.getId(), committed);
+            failed.remove(record.getId());
+        } catch (Exception e) {
+            // 保留未完成状态，由后台任务重试
+            log.error("[操作日志]操作" + record.getId() + "对账失败", e);
+            failed.put(record.getId(), committed);
+        }
+    }
+
+    /**
+     * 定期重试对账失败的操作。已提交的操作只需清除回收目录并记录结果，
+     * 未提交的操作重新按数据库记录对账，完成后日志可被截断
+     */
+    @Scheduled(initialDelay = 60 * 1000, fixedDelay = 60 * 1000)
+    public void retryFailed() {
+        if (failed.isEmpty()) {
+            return;
+        }
+        try {
+            OperationJournal journal = getJournal();
+            Map<Long, OperationRecord> pending = journal.getPending().stream()
+                    .collect(Collectors.toMap(OperationRecord::getId, e -> e));
+            for (Map.Entry<Long, Boolean> e : new ArrayList<>(failed.entrySet())) {
+                OperationRecord record = pending.get(e.getKey());
+                if (record == null) {
+                    failed.remove(e.getKey());
+                } else {
+                    log.info("[操作日志]重试对账失败的操作：{} {}", record.getType(), record.getId());
+                    complete(journal, record, e.getValue());
+                }
+            }
+        } catch (IOException e) {
+            log.error("[操作日志]读取操作日志失败", e);
+        }
+    }
+
+    /**
+     * 对日志中所有未完成的操作进行对账
+     * @return  对账的操作数
+     */
+    public int recover() throws IOException {
+        OperationJournal journal = getJournal();
+        List<OperationRecord> pending = journal.getPending();
+        int cnt = 0;
+        for (OperationRecord record : pending) {
+            try {
+                log.info("[操作日志]恢复未完成的操作：{} {} uid={} {}", record.getType(), record.getId(), record.getUid(), record.getPath());
+                reconcile(record);
+                purge(record.getId());
+                journal.end(record.getId(), false);
+                cnt++;
+            } catch (Exception e) {
+                log.error("[操作日志]操作" + record.getId() + "恢复失败", e);
+            }
+        }
+        // 清除已结束但回收目录未能清除的操作
+        Set<Long> remain = journal.getPending().stream().map(OperationRecord::getId).collect(Collectors.toSet());
+        for (Path trash : trashRoots()) {
+            try (Stream<Path> stream = Files.list(trash)) {
+                for (Path dir : stream.collect(Collectors.toList())) {
+                    try {
+                        if (!remain.contains(Long.parseLong(dir.getFileName().toString()))) {
+                            FileUtils.delete(dir);
+                        }
+                    } catch (NumberFormatException ignored) { }
+                }
+            }
+        }
+        journal.truncate();
+        return cnt;
+    }
+
+    /**
+     * RAW存储模式下，将操作要删除或覆盖的本地文件或目录移入所在卷的回收目录，代替直接删除。<br>
+     * 事务提交后清除；事务回滚或崩溃恢复时，对账按数据库记录将其移回原位置
+     * @param id    操作ID
+     * @param local 本地文件或目录
+     * @return      是否已移入，文件不存在时返回false
+     */
+    public boolean stash(long id, Path local) throws IOException {
+        if (!Files.exists(local, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        Path dir = trashRoot(local).resolve(String.valueOf(id));
+        Files.createDirectories(dir);
+        String name = UUID.randomUUID().toString();
+        Files.write(dir.resolve(name + ORIGIN_SUFFIX), local.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(local, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+        log.debug("[操作日志]移入回收目录：{} 操作：{}", local, id);
+        return true;
+    }
+
+    /**
+     * 查找操作移入回收目录的本地文件
+     * @param id    操作ID
+     * @param local 文件原路径
+     * @return      回收目录中的文件，不存在时返回null
+     */
+    private Path findStashed(long id, Path local) throws IOException {
+        Path dir = trashRoot(local).resolve(String.valueOf(id));
+        if (!Files.isDirectory(dir)) {
+            return null;
+        }
+        String origin = local.toAbsolutePath().toString();
+        try (Stream<Path> stream = Files.list(dir)) {
+            for (Path p : stream.collect(Collectors.toList())) {
+                String fileName = p.getFileName().toString();
+                if (fileName.endsWith(ORIGIN_SUFFIX)
+                        && origin.equals(new String(Files.readAllBytes(p), StandardCharsets.UTF_8))) {
+                    Path stashed = p.resolveSibling(fileName.substring(0, fileName.length() - ORIGIN_SUFFIX.length()));
+                    if (Files.exists(stashed, LinkOption.NOFOLLOW_LINKS)) {
+                        return stashed;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 将回收目录中的文件移回原路径，原路径已存在的内容会被替换
+     * @return  是否已移回，操作未移入该文件时返回false
+     */
+    private boolean unstash(long id, Path local) throws IOException {
+        Path stashed = findStashed(id, local);
+        if (stashed == null) {
+            return false;
+        }
+        if (Files.isDirectory(local, LinkOption.NOFOLLOW_LINKS)) {
+            FileUtils.delete(local);
+        } else {
+            Files.deleteIfExists(local);
+        }
+        FileUtils.createParentDirectory(local);
+        Files.move(stashed, local, StandardCopyOption.ATOMIC_MOVE);
+        log.info("[操作日志]从回收目录还原：{} 操作：{}", local, id);
+        return true;
+    }
+
+    /**
+     * 清除操作在各存储卷回收目录中的文件
+     */
+    private void purge(long id) throws IOException {
+        for (Path trash : trashRoots()) {
+            Path dir = trash.resolve(String.valueOf(id));
+            if (Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+                FileUtils.delete(dir);
+            }
+        }
+    }
+
+    /**
+     * 获取本地文件所在卷的回收目录，移入回收目录的文件不会跨文件系统复制
+     */
+    private Path trashRoot(Path local) {
+        StoragePool.Volume volume = storagePool.getVolume(local);
+        return (volume == null ? Paths.get(DiskConfig.STORE_ROOT) : volume.getRoot()).resolve(TRASH_DIR);
+    }
+
+    /**
+     * 获取所有已存在的回收目录
+     */
+    private List<Path> trashRoots() {
+        Set<Path> roots = new LinkedHashSet<>();
+        roots.add(Paths.get(DiskConfig.STORE_ROOT).resolve(TRASH_DIR));
+        for (StoragePool.Volume volume : storagePool.getVolumes()) {
+            roots.add(volume.getRoot().resolve(TRASH_DIR));
+        }
+        return roots.stream().filter(Files::isDirectory).collect(Collectors.toList());
+    }
+
+    /**
+     * 按数据库记录对账一个操作涉及的本地文件
+     * @param record    操作信息
+     */
+    void reconcile(OperationRecord record) throws IOException {
+        long op = record.getId();
+        int uid = record.getUid();
+        String path = record.getPath();
+        String name = record.firstName();
+        switch (record.getType()) {
+            case SAVE: {
+                FileInfo rec = lookup(uid, path, name);
+                if (rec == null) {
+                    removeLocal(uid, path, name, false);
+                } else {
+                    if (!rec.getMd5().equals(record.getMd5())) {
+                        // 覆盖未提交，还原被覆盖的文件
+                        unstash(op, localPath(uid, path, name));
+                    }
+                    restore(op, uid, path, rec);
+                }
+                if (rec == null || !rec.getMd5().equals(record.getMd5())) {
+                    gc(record.getMd5());
+                }
+                break;
+            }
+            case MKDIR: {
+                FileInfo rec = lookup(uid, path, name);
+                if (rec != null) {
+                    restore(op, uid, path, rec);
+                } else {
+                    Path local = localPath(uid, path, name);
+                    try {
+                        Files.deleteIfExists(local);
+                    } catch (DirectoryNotEmptyException ignored) { }
+                }
+                break;
+            }
+            case DELETE: {
+                for (String n : record.getNames()) {
+                    FileInfo rec = lookup(uid, path, n);
+                    if (rec == null) {
+                        removeLocal(uid, path, n, true);
+                    } else {
+                        restore(op, uid, path, rec);
+                    }
+                }
+                break;
+            }
+            case MOVE:
+                reconcileMove(op, uid, path, name, record.getTarget(), name);
+                break;
+            case RENAME:
+                reconcileMove(op, uid, path, name, path, record.getTargetName());
+                break;
+            case COPY: {
+                int targetUid = record.getTargetUid();
+                FileInfo rec = lookup(targetUid, record.getTarget(), record.getTargetName());
+                Path targetLocal = localPath(targetUid, record.getTarget(), record.getTargetName());
+                if (rec != null && !rec.isDir() && findStashed(op, targetLocal) != null) {
+                    // 覆盖复制的目标文件记录与源文件不同说明覆盖未提交，还原被覆盖的文件
+                    FileInfo sourceRec = lookup(uid, path, name);
+                    if (sourceRec == null || !Objects.equals(sourceRec.getMd5(), rec.getMd5())) {
+                        unstash(op, targetLocal);
+                    }
+                }
+                if (rec == null) {
+                    removeLocal(targetUid, record.getTarget(), record.getTargetName(), true);
+                } else if (DiskConfig.STORE_TYPE == StoreType.RAW && !Files.exists(localPath(targetUid, record.getTarget(), record.getTargetName()))) {
+                    // 原始存储模式下无法从存储仓库还原，重新复制
+                    storeService.copy(uid, path, record.getTarget(), targetUid, name, record.getTargetName(), record.getOverwrite());
+                } else {
+                    restore(op, targetUid, record.getTarget(), rec);
+                }
+                break;
+            }
+            case IMPORT: {
+                Set<String> invalid = new HashSet<>();
+                for (int i = 0; i < record.getNames().size(); i++) {
+                    String full = record.getNames().get(i);
+                    int idx = full.lastIndexOf('/');
+                    String dir = idx <= 0 ? "/" : full.substring(0, idx);
+                    String n = full.substring(idx + 1);
+                    String md5 = record.getMd5s().get(i);
+                    FileInfo rec = lookup(uid, dir, n);
+                    if (rec == null) {
+                        removeLocal(uid, dir, n, false);
+                    } else {
+                        restore(op, uid, dir, rec);
+                    }
+                    if (rec == null || !rec.getMd5().equals(md5)) {
+                        invalid.add(md5);
+                    }
+                }
+                gc(invalid);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("未知的操作类型：" + record.getType());
+        }
+    }
+
+    /**
+     * 对账移动或重命名操作。源位置已无记录说明数据库已提交，本地文件应位于目标位置，否则应位于源位置。<br>
+     * 源文件被移入回收目录（目标已存在且不覆盖）时目标位置仍是原有文件，不移回源位置
+     */
+    private void reconcileMove(long op, int uid, String source, String sourceName, String target, String targetName) throws IOException {
+        FileInfo sourceRec = lookup(uid, source, sourceName);
+        FileInfo targetRec = lookup(uid, target, targetName);
+        Path sourceLocal = localPath(uid, source, sourceName);
+        Path targetLocal = localPath(uid, target, targetName);
+        boolean sourceExists = Files.exists(sourceLocal, LinkOption.NOFOLLOW_LINKS);
+        boolean targetExists = Files.exists(targetLocal, LinkOption.NOFOLLOW_LINKS);
+        if (sourceRec == null) {
+            if (sourceExists && !targetExists) {
+                Files.move(sourceLocal, targetLocal);
+            } else if (sourceExists) {
+                removeLocal(uid, source, sourceName, true);
+            }
+        } else if (targetExists && !sourceExists && findStashed(op, sourceLocal) == null
+                && (targetRec == null || !Objects.equals(targetRec.getMd5(), sourceRec.getMd5()) || findStashed(op, targetLocal) != null)) {
+            Files.move(targetLocal, sourceLocal);
+        }
+        if (sourceRec != null) {
+            restore(op, uid, source, sourceRec);
+        }
+        if (targetRec != null) {
+            restore(op, uid, target, targetRec);
+        }
+    }
+
+    /**
+     * 查询网盘文件的数据库记录
+     * @return 文件记录，不存在时返回null
+     */
+    private FileInfo lookup(int uid, String path, String name) {
+        try {
+            return fileDao.getFileInfo(uid, name, nodeService.getLastNodeInfoByPath(uid, path).getId());
+        } catch (NoSuchFileException | JsonException e) {
+            return null;
+        }
+    }
+
+    private static Path localPath(int uid, String path, String name) {
+        return Paths.get(DiskConfig.rawPathHandler.getStorePath(uid, path, new BasicFileInfo(name, null)));
+    }
+
+    /**
+     * 删除本地文件
+     * @param withDir   是否同时删除同名的目录
+     */
+    private void removeLocal(int uid, String path, String name, boolean withDir) throws IOException {
+        Path local = localPath(uid, path, name);
+        if (!Files.exists(local, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (Files.isDirectory(local, LinkOption.NOFOLLOW_LINKS)) {
+            if (withDir) {
+                FileUtils.delete(local);
+            }
+        } else {
+            Files.delete(local);
+        }
+    }
+
+    /**
+     * 使本地文件与数据库记录一致。目录会递归处理；UNIQUE模式下文件从存储仓库重新链接，
+     * RAW模式下本地文件丢失时从操作的回收目录移回，CHUNKED模式下本地不保存文件
+     * @param op    操作ID
+     * @param uid   用户ID
+     * @param path  记录所在网盘目录
+     * @param rec   数据库记录
+     */
+    private void restore(long op, int uid, String path, FileInfo rec) throws IOException {
+        Path local = localPath(uid, path, rec.getName());
+        if (DiskConfig.STORE_TYPE == StoreType.RAW && !Files.exists(local, LinkOption.NOFOLLOW_LINKS)) {
+            unstash(op, local);
+        }
+        if (rec.isDir()) {
+            Files.createDirectories(local);
+            String dir = path.endsWith("/") ? path + rec.getName() : path + "/" + rec.getName();
+            for (FileInfo child : fileDao.getFileListByNodeId(uid, rec.getMd5())) {
+                restore(op, uid, dir, child);
+            }
+            return;
+        }
+        if (DiskConfig.STORE_TYPE == StoreType.UNIQUE) {
+            Path blob = storagePool.locateBlob(rec.getMd5());
+            if (blob == null) {
+                log.warn("[操作日志]存储库文件丢失：{} MD5:{}", local, rec.getMd5());
+            } else if (!Files.exists(local, LinkOption.NOFOLLOW_LINKS)) {
+                FileUtils.createParentDirectory(local);
+                storagePool.link(local, blob);
+            } else if (!Files.exists(local) || !Files.isSameFile(local, blob)) {
+                storagePool.relink(local, blob);
+            }
+        } else if (DiskConfig.STORE_TYPE == StoreType.RAW && !Files.exists(local)) {
+            log.warn("[操作日志]本地文件丢失：{}", local);
+        }
+    }
+
+    /**
+     * 回收不再被引用的存储仓库文件。<br>
+     * 每个文件在与存储同一MD5互斥的区域内重新确认未被引用后才删除：事务未结束的保存操作引用的文件、
+     * UNIQUE模式下仍被链接到用户目录的文件都会被跳过，由这些操作自己的对账负责回收
+     * @param md5s  可能不再被引用的文件MD5
+     */
+    public void gc(Collection<String> md5s) throws IOException {
+        if (DiskConfig.STORE_TYPE == StoreType.RAW || md5s.isEmpty()) {
+            return;
+        }
+        Set<String> invalid = new HashSet<>(md5s);
+        invalid.removeAll(fileDao.getValidFileMD5s(md5s));
+        for (String md5 : invalid) {
+            if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+                chunkStoreService.withManifest(md5, () -> {
+                    if (isUnreferenced(md5)) {
+                        chunkStoreService.delete(md5);
+                    }
+                    return null;
+                });
+            } else {
+                storeService.withBlob(md5, () -> {
+                    Path blob = storagePool.locateBlob(md5);
+                    if (blob != null && isUnreferenced(md5) && !isLinked(blob)) {
+                        storeService.delete(md5);
+                    }
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * 确认文件没有数据库记录引用，也没有事务未结束的保存操作引用
+     */
+    private boolean isUnreferenced(String md5) {
+        return !pins.containsKey(md5) && fileDao.getValidFileMD5s(Collections.singleton(md5)).isEmpty();
+    }
+
+    /**
+     * 判断存储仓库文件是否仍有硬链接指向，不支持链接计数的文件系统上视为没有
+     */
+    private static boolean isLinked(Path blob) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(blob, "unix:nlink")).intValue() > 1;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void gc(String md5) throws IOException {
+        if (md5 != null) {
+            gc(Collections.singleton(md5));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.xiaotao.saltedfishcloud.service.file.journal;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * 只追加的操作日志（预写意图日志），每行一条JSON格式的{@link OperationRecord}。<br>
+ * BEGIN记录在返回前落盘；多个线程同时写入时合并为一次fsync（组提交）。COMMIT与ABORT记录不单独落盘，
+ * 随下一次落盘或关闭时写入磁盘，丢失时恢复流程会将该操作重新对账一次，结果不变。<br>
+ * 打开时回放日志得到未完成的操作，末尾因崩溃而不完整的记录会被忽略。没有未完成的操作且日志超过一定大小时自动清空。
+ */
+@Slf4j
+public class OperationJournal implements Closeable {
+    private static final long TRUNCATE_SIZE = 4 * 1024 * 1024;
+
+    private final ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final Path file;
+    private final FileChannel channel;
+    private final Map<Long, OperationRecord> pending = new LinkedHashMap<>();
+    private final Object syncLock = new Object();
+    private long nextId;
+    private volatile long written;
+    private long synced;
+    private long syncCount;
+
+    /**
+     * 打开操作日志，不存在时创建
+     * @param file  日志文件
+     */
+    public OperationJournal(Path file) throws IOException {
+        this.file = file;
+        Files.createDirectories(file.getParent());
+        long maxId = 0;
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    OperationRecord record;
+                    try {
+                        record = mapper.readValue(line, OperationRecord.class);
+                    } catch (IOException e) {
+                        log.warn("[操作日志]忽略损坏的记录：{}", line);
+                        continue;
+                    }
+                    maxId = Math.max(maxId, record.getId());
+                    if (OperationRecord.BEGIN.equals(record.getState())) {
+                        pending.put(record.getId(), record);
+                    } else {
+                        pending.remove(record.getId());
+                    }
+                }
+            }
+        }
+        nextId = maxId + 1;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 记录一个操作的开始，记录落盘后返回
+     * @param record    操作信息
+     * @return          操作ID
+     */
+    public long begin(OperationRecord record) throws IOException {
+        long seq;
+        synchronized (this) {
+            record.setId(nextId++);
+            record.setState(OperationRecord.BEGIN);
+            record.setTime(System.currentTimeMillis());
+            seq = write(record);
+            pending.put(record.getId(), record);
+        }
+        sync(seq);
+        return record.getId();
+    }
+
+    /**
+     * 记录一个操作的结束
+     * @param id        操作ID
+     * @param committed 操作是否成功提交
+     */
+    public synchronized void end(long id, boolean committed) throws IOException {
+        if (pending.remove(id) == null) {
+            return;
+        }
+        OperationRecord record = new OperationRecord();
+        record.setId(id);
+        record.setState(committed ? OperationRecord.COMMIT : OperationRecord.ABORT);
+        write(record);
+        if (pending.isEmpty() && channel.size() > TRUNCATE_SIZE) {
+            truncate();
+        }
+    }
+
+    /**
+     * 获取未完成的操作
+     */
+    public synchronized List<OperationRecord> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * 在没有未完成的操作时清空日志
+     */
+    public synchronized void truncate() throws IOException {
+        if (!pending.isEmpty()) {
+            return;
+        }
+        channel.truncate(0);
+        channel.force(true);
+        synchronized (syncLock) {
+            synced = written;
+        }
+    }
+
+    private long write(OperationRecord record) throws IOException {
+        byte[] line = (mapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.wrap(line);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        return ++written;
+    }
+
+    /**
+     * 组提交：若其他线程的fsync已覆盖该记录则直接返回，否则执行一次fsync，覆盖此前写入的所有记录
+     * @param seq   记录的写入序号
+     */
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= seq) {
+                return;
+            }
+            long target = written;
+            channel.force(false);
+            synced = target;
+            syncCount++;
+        }
+    }
+
+    /**
+     * 自打开以来执行fsync的次数
+     */
+    public long getSyncCount() {
+        synchronized (syncLock) {
+            return syncCount;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            channel.force(false);
+        }
+        channel.close();
+    }
+}
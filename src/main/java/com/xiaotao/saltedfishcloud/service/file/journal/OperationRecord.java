@@ -0,0 +1,68 @@
+package com.xiaotao.saltedfishcloud.service.file.journal;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 操作日志中的一条记录。一个网盘操作对应一条BEGIN记录，操作结束后追加一条相同ID的COMMIT或ABORT记录
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class OperationRecord {
+    public static final String BEGIN = "BEGIN";
+    public static final String COMMIT = "COMMIT";
+    public static final String ABORT = "ABORT";
+
+    /**
+     * 网盘操作类型
+     */
+    public enum Type {
+        SAVE, MKDIR, COPY, MOVE, RENAME, DELETE, IMPORT
+    }
+
+    private long id;
+    private String state;
+    private Type type;
+    private Long time;
+
+    /**
+     * 操作的用户ID
+     */
+    private Integer uid;
+    /**
+     * 操作的网盘目录（复制、移动时为源目录）
+     */
+    private String path;
+    /**
+     * 操作的文件名，删除时可有多个，批量导入时为文件的完整网盘路径
+     */
+    private List<String> names;
+    /**
+     * 复制、移动的目标目录
+     */
+    private String target;
+    /**
+     * 复制的目标用户ID
+     */
+    private Integer targetUid;
+    /**
+     * 复制、重命名后的文件名
+     */
+    private String targetName;
+    private String md5;
+    /**
+     * 批量导入时与names一一对应的文件MD5
+     */
+    private List<String> md5s;
+    private Long size;
+    private Boolean overwrite;
+
+    /**
+     * 获取第一个文件名
+     */
+    public String firstName() {
+        return names == null || names.isEmpty() ? null : names.get(0);
+    }
+}
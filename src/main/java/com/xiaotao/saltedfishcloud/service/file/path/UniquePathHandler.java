@@ -26,6 +26,10 @@ public class UniquePathHandler implements PathHandler {
                 throw new JsonException(500, "无效MD5");
             }
             String md5 = fileInfo.getMd5();
+            if (DiskConfig.storagePool != null) {
+                // 多卷存储池下文件可能位于任一存储卷
+                return DiskConfig.storagePool.getBlobPath(md5).toString();
+            }
             return DiskConfig.getUniqueStoreRoot()
                     + "/"
                     + md5.substring(0,2)
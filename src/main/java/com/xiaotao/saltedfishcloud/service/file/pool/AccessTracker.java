@@ -0,0 +1,240 @@
+package com.xiaotao.saltedfishcloud.service.file.pool;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 唯一存储仓库文件的访问统计，记录每个文件最后一次被读取的时间与读取次数，供{@link TieringService}判断文件冷热。<br>
+ * 读取请求只将事件放入有界队列，由后台定期汇总，队列已满时丢弃事件，不会阻塞下载。统计数据定期保存到存储根目录下的access_stat文件。<br>
+ * 文件格式：开始统计的时间(8字节) + 记录，每条记录为 MD5(16字节) + 最后读取时间(8字节) + 读取次数(4字节) + 近期读取次数(4字节)
+ */
+@Component
+@Slf4j
+public class AccessTracker {
+    private static final int QUEUE_SIZE = 65536;
+    private static final int RECORD_SIZE = 16 + 8 + 4 + 4;
+
+    private final BlockingQueue<Supplier<String>> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Map<String, Stat> stats = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean loaded = false;
+    private long since;
+
+    /**
+     * 文件访问统计
+     */
+    public static class Stat {
+        /**
+         * 最后读取时间
+         */
+        volatile long lastRead;
+        /**
+         * 累计读取次数
+         */
+        volatile int count;
+        /**
+         * 自上一个分层周期以来的读取次数
+         */
+        volatile int recent;
+
+        public long getLastRead() {
+            return lastRead;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getRecent() {
+            return recent;
+        }
+    }
+
+    /**
+     * 记录一次文件读取
+     * @param md5   文件MD5
+     */
+    public void record(String md5) {
+        if (md5 != null) {
+            record(() -> md5);
+        }
+    }
+
+    /**
+     * 记录一次文件读取，文件MD5在后台汇总时才获取，适用于读取时无法直接得到MD5的场景（如FTP）
+     * @param md5Supplier   文件MD5获取方法，返回null时忽略该事件
+     */
+    public void record(Supplier<String> md5Supplier) {
+        if (DiskConfig.STORE_TYPE != StoreType.UNIQUE) {
+            return;
+        }
+        if (!queue.offer(md5Supplier)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * 汇总队列中的访问事件
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void drain() {
+        load();
+        Supplier<String> e;
+        long now = System.currentTimeMillis();
+        while ((e = queue.poll()) != null) {
+            String md5;
+            try {
+                md5 = e.get();
+            } catch (RuntimeException ex) {
+                log.debug("访问事件解析失败", ex);
+                continue;
+            }
+            if (md5 == null || md5.length() != 32) continue;
+            Stat stat = stats.computeIfAbsent(md5, k -> new Stat());
+            synchronized (stat) {
+                stat.lastRead = now;
+                stat.count++;
+                stat.recent++;
+            }
+        }
+    }
+
+    /**
+     * 获取文件的访问统计
+     * @param md5   文件MD5
+     * @return      访问统计，从未被记录读取时返回null
+     */
+    public Stat getStat(String md5) {
+        load();
+        return stats.get(md5);
+    }
+
+    /**
+     * 开始新的分层周期，清空所有文件的近期读取次数
+     */
+    public void resetRecent() {
+        for (Stat stat : stats.values()) {
+            stat.recent = 0;
+        }
+    }
+
+    /**
+     * 开始统计的时间，早于该时间的读取没有记录
+     */
+    public long getSince() {
+        load();
+        return since;
+    }
+
+    /**
+     * 选出访问统计满足条件的文件
+     * @param filter    筛选条件
+     * @return          文件MD5
+     */
+    public List<String> select(Predicate<Stat> filter) {
+        load();
+        List<String> res = new ArrayList<>();
+        for (Map.Entry<String, Stat> e : stats.entrySet()) {
+            if (filter.test(e.getValue())) {
+                res.add(e.getKey());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * 判断文件是否有访问统计
+     * @param md5   文件MD5
+     */
+    public boolean isTracked(String md5) {
+        load();
+        return stats.containsKey(md5);
+    }
+
+    /**
+     * 移除已不存在的文件的统计
+     * @param md5   文件MD5
+     */
+    public void remove(String md5) {
+        stats.remove(md5);
+    }
+
+    public int size() {
+        return stats.size();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private Path getStatFile() {
+        return Paths.get(DiskConfig.STORE_ROOT, "access_stat");
+    }
+
+    private synchronized void load() {
+        if (loaded || DiskConfig.STORE_ROOT == null) {
+            return;
+        }
+        loaded = true;
+        since = System.currentTimeMillis();
+        Path file = getStatFile();
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] hash = new byte[16];
+            long len = Files.size(file) - 8;
+            since = in.readLong();
+            for (long i = 0; i < len / RECORD_SIZE; i++) {
+                in.readFully(hash);
+                Stat stat = new Stat();
+                stat.lastRead = in.readLong();
+                stat.count = in.readInt();
+                stat.recent = in.readInt();
+                stats.putIfAbsent(SecureUtils.bytesToHex(hash), stat);
+            }
+            log.info("[访问统计]已加载{}条记录", stats.size());
+        } catch (IOException e) {
+            log.error("访问统计加载失败", e);
+        }
+    }
+
+    /**
+     * 将统计数据写入文件，先写临时文件再原子替换
+     */
+    @PreDestroy
+    public synchronized void save() throws IOException {
+        if (!loaded || DiskConfig.STORE_ROOT == null) {
+            return;
+        }
+        Path file = getStatFile();
+        Path tmp = file.resolveSibling("access_stat.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(since);
+            for (Map.Entry<String, Stat> e : stats.entrySet()) {
+                out.write(SecureUtils.hexToBytes(e.getKey()));
+                out.writeLong(e.getValue().lastRead);
+                out.writeInt(e.getValue().count);
+                out.writeInt(e.getValue().recent);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,222 @@
+package com.xiaotao.saltedfishcloud.service.file.pool;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.dao.mybatis.FileDao;
+import com.xiaotao.saltedfishcloud.exception.JsonException;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
+import com.xiaotao.saltedfishcloud.service.file.StoreService;
+import com.xiaotao.saltedfishcloud.service.node.NodeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * 存储池重平衡服务，在增减存储卷后将唯一存储仓库中的文件迁移到其所在层级哈希环上的放置卷。<br>
+ * 迁移在线进行：文件先复制到目标卷的临时文件再原子重命名，随后将引用该文件的网盘文件原子地替换为指向新位置的链接，最后删除原文件。
+ * 迁移期间文件在原位置仍可读取。
+ */
+@Service
+@Slf4j
+public class PoolRebalancer {
+    /**
+     * 每批从数据库读取的引用文件数
+     */
+    private static final int REFERRER_BATCH = 1000;
+
+    @Resource
+    private StoragePool storagePool;
+    @Resource
+    private FileDao fileDao;
+    @Resource
+    private NodeService nodeService;
+    @Resource
+    private StoreTypeSwitch storeTypeSwitch;
+    @Resource
+    private StoreService storeService;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong movedBytes = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * 在后台线程中开始重平衡
+     * @throws JsonException 非UNIQUE存储模式、存储模式切换中或已有重平衡任务在执行
+     */
+    public void start() {
+        if (DiskConfig.STORE_TYPE != StoreType.UNIQUE) {
+            throw new JsonException(400, "仅UNIQUE存储模式支持存储卷重平衡");
+        }
+        if (storeTypeSwitch.isSwitching()) {
+            throw new JsonException(400, "存储模式切换中，请等待切换完成后再执行重平衡");
+        }
+        if (!running.compareAndSet(false, true)) {
+            throw new JsonException(400, "重平衡任务正在执行");
+        }
+        scanned.set(0);
+        moved.set(0);
+        movedBytes.set(0);
+        failed.set(0);
+        Thread thread = new Thread(() -> {
+            try {
+                rebalance();
+            } catch (Throwable e) {
+                log.error("[存储池]重平衡出错", e);
+            } finally {
+                running.set(false);
+            }
+        }, "pool-rebalancer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 扫描所有存储卷，迁移不在放置卷上的文件
+     */
+    void rebalance() throws IOException {
+        log.info("[存储池]开始重平衡");
+        long begin = System.currentTimeMillis();
+        for (StoragePool.Volume volume : storagePool.getVolumes()) {
+            if (!Files.exists(volume.getRepoRoot())) continue;
+            // 边遍历边迁移，不在内存中保存卷上的所有文件路径
+            try (Stream<Path> s = Files.walk(volume.getRepoRoot())) {
+                Iterator<Path> it = s.iterator();
+                while (it.hasNext()) {
+                    Path blob = it.next();
+                    String md5 = blob.getFileName().toString();
+                    if (md5.length() != 32 || !Files.isRegularFile(blob)) {
+                        continue;
+                    }
+                    scanned.incrementAndGet();
+                    // 文件保持在当前所在的存储层级
+                    StoragePool.Volume target = storagePool.place(md5, volume.isCold());
+                    if (target == volume) continue;
+                    try {
+                        movedBytes.addAndGet(migrate(md5, blob, target));
+                        moved.incrementAndGet();
+                    } catch (IOException | RuntimeException e) {
+                        failed.incrementAndGet();
+                        log.error("[存储池]迁移失败：" + blob, e);
+                    }
+                }
+            }
+        }
+        log.info("[存储池]重平衡完成，扫描{}个文件，迁移{}个，失败{}个，耗时{}ms",
+                scanned.get(), moved.get(), failed.get(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 将唯一存储仓库中的一个文件迁移到目标卷。迁移过程中文件在原位置与新位置始终至少有一处可读，
+     * 网盘中引用该文件的链接被原子替换，已打开原文件的读取不受影响。重平衡与分层迁移不会同时迁移文件。<br>
+     * 迁移在存储仓库文件的写入协调器中进行，期间同一文件的保存与秒传等待迁移完成，不会链接到即将删除的原文件。
+     * 所有引用都重新链接成功后才删除原文件，否则保留原文件，由下次重平衡或分层迁移重试
+     * @param md5       文件MD5
+     * @param source    文件当前位置
+     * @param target    目标卷
+     * @return          迁移的字节数，文件已不在原位置时返回0
+     * @throws IOException 复制失败或部分引用未能重新链接
+     */
+    public synchronized long migrate(String md5, Path source, StoragePool.Volume target) throws IOException {
+        return storeService.withBlob(md5, () -> doMigrate(md5, source, target));
+    }
+
+    private long doMigrate(String md5, Path source, StoragePool.Volume target) throws IOException {
+        if (!Files.exists(source)) {
+            return 0;
+        }
+        Path dest = target.getBlobPath(md5);
+        Path tmp = dest.resolveSibling("." + md5 + ".tmp");
+        Files.createDirectories(dest.getParent());
+        long size = Files.size(source);
+        storagePool.withPermit(source, () -> storagePool.withPermit(dest, () -> {
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            return Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }));
+        log.debug("[存储池]迁移文件：{} -> {}", source, dest);
+
+        // 将引用原文件的网盘文件替换为指向新位置的链接
+        int failures = 0;
+        int offset = 0;
+        List<FileInfo> batch;
+        do {
+            batch = fileDao.getFilesByMD5Page(md5, offset, REFERRER_BATCH);
+            offset += batch.size();
+            for (Path referrer : getReferrers(batch)) {
+                try {
+                    if (Files.exists(referrer) && Files.isSameFile(referrer, source)) {
+                        storagePool.relink(referrer, dest);
+                    }
+                } catch (IOException e) {
+                    failures++;
+                    log.warn("[存储池]重新链接失败：" + referrer, e);
+                }
+            }
+        } while (batch.size() == REFERRER_BATCH);
+        if (failures > 0) {
+            throw new IOException("文件" + md5 + "有" + failures + "个引用未能重新链接，保留原文件");
+        }
+
+        // 仍有数据库中没有记录的硬链接（如尚未提交的保存）引用原文件时保留原文件
+        Object links = getLinkCount(source);
+        if (links instanceof Integer && (Integer) links > 1) {
+            throw new IOException("文件" + md5 + "仍有" + ((Integer) links - 1) + "个未记录的引用，保留原文件");
+        }
+        Files.deleteIfExists(source);
+        return size;
+    }
+
+    /**
+     * 获取文件的硬链接数，文件系统不支持时返回null
+     */
+    private static Object getLinkCount(Path path) {
+        try {
+            return Files.getAttribute(path, "unix:nlink");
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 获取文件记录对应的网盘文件本地路径
+     * @param files 引用某个文件的网盘文件记录
+     */
+    private List<Path> getReferrers(List<FileInfo> files) {
+        List<Path> res = new ArrayList<>();
+        for (FileInfo file : files) {
+            try {
+                String dir = nodeService.getPathByNode(file.getUid(), file.getNode());
+                res.add(Paths.get(DiskConfig.rawPathHandler.getStorePath(file.getUid(), dir, file)));
+            } catch (JsonException e) {
+                log.warn("[存储池]无效的文件记录：{} uid={} node={}", file.getName(), file.getUid(), file.getNode());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * 获取重平衡任务状态
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("running", running.get());
+        res.put("scanned", scanned.get());
+        res.put("moved", moved.get());
+        res.put("moved_bytes", movedBytes.get());
+        res.put("failed", failed.get());
+        return res;
+    }
+}
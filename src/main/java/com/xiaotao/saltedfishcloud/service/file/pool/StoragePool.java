@@ -0,0 +1,459 @@
+package com.xiaotao.saltedfishcloud.service.file.pool;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
+import com.xiaotao.saltedfishcloud.utils.StringUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 多卷存储池，将存储根目录（STORE_ROOT）与额外配置的存储卷（store-volumes）组成一个存储池。<br>
+ * 每个卷下的目录结构与单卷时相同：repo为唯一存储仓库，user_file为用户网盘目录。<br>
+ * 唯一存储仓库中的文件按MD5在一致性哈希环上放置，各卷在环上的虚拟节点数与其容量成正比，剩余空间不足的卷不再接收新文件；
+ * 用户网盘目录一旦创建即固定在所在的卷上。每个卷的并发IO数受信号量限制。<br>
+ * 配置了冷存储卷（store-cold-volumes）时，存储池分为热、冷两个层级，每个层级各有一个哈希环，新文件只放置在热层级，
+ * 由{@link TieringService}根据访问统计在层级间迁移。
+ */
+@Component
+@Slf4j
+public class StoragePool {
+    /**
+     * 容量最大的卷在哈希环上的虚拟节点数
+     */
+    private static final int MAX_VIRTUAL_NODES = 160;
+    private static final int MIN_VIRTUAL_NODES = 8;
+    /**
+     * 卷的保留空间比例，剩余空间低于该比例时不再放置新文件
+     */
+    private static final double RESERVE_RATIO = 0.05;
+    /**
+     * 卷空间信息的缓存时间（毫秒），每次放置文件都会检查剩余空间，避免频繁的文件系统调用
+     */
+    private static final long SPACE_TTL = 2000;
+
+    private volatile List<Volume> volumes;
+    private volatile TreeMap<Long, Volume> hotRing;
+    private volatile TreeMap<Long, Volume> coldRing;
+    private String configKey;
+    private final Map<String, Path> userRoots = new ConcurrentHashMap<>();
+
+    /**
+     * 需要占用卷IO许可执行的操作
+     */
+    @FunctionalInterface
+    public interface IOTask<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * 获取存储池中的所有卷，第一个卷为STORE_ROOT。存储卷配置变更后会重新构建哈希环
+     */
+    public List<Volume> getVolumes() {
+        String key = DiskConfig.STORE_ROOT + "|" + DiskConfig.STORE_VOLUMES + "|" + DiskConfig.STORE_COLD_VOLUMES + "|" + DiskConfig.STORE_VOLUME_IO_LIMIT;
+        if (volumes == null || !key.equals(configKey)) {
+            synchronized (this) {
+                if (volumes == null || !key.equals(configKey)) {
+                    init();
+                    configKey = key;
+                }
+            }
+        }
+        return volumes;
+    }
+
+    private void init() {
+        List<Volume> list = new ArrayList<>();
+        Set<Path> coldRoots = new HashSet<>();
+        for (String root : DiskConfig.STORE_COLD_VOLUMES) {
+            coldRoots.add(Paths.get(root).toAbsolutePath().normalize());
+        }
+        List<String> roots = new ArrayList<>();
+        roots.add(DiskConfig.STORE_ROOT);
+        roots.addAll(DiskConfig.STORE_VOLUMES);
+        int id = 0;
+        for (String root : roots) {
+            Path path = Paths.get(root);
+            list.add(new Volume(id++, path, DiskConfig.STORE_VOLUME_IO_LIMIT, coldRoots.contains(path.toAbsolutePath().normalize())));
+        }
+        for (Volume volume : list) {
+            try {
+                Files.createDirectories(volume.getRepoRoot());
+                Files.createDirectories(volume.getUserFileRoot());
+            } catch (IOException e) {
+                log.error("存储卷初始化失败：" + volume.getRoot(), e);
+            }
+        }
+        List<Volume> hot = new ArrayList<>();
+        List<Volume> cold = new ArrayList<>();
+        for (Volume volume : list) {
+            (volume.isCold() ? cold : hot).add(volume);
+        }
+        if (hot.isEmpty()) {
+            log.warn("[存储池]所有存储卷都被配置为冷存储卷，将不区分层级");
+            hot = list;
+            cold = Collections.emptyList();
+        }
+        volumes = Collections.unmodifiableList(list);
+        hotRing = buildRing(hot);
+        coldRing = cold.isEmpty() ? null : buildRing(cold);
+        userRoots.clear();
+        log.info("[存储池]卷数量：{}，其中冷存储卷：{}", list.size(), cold.size());
+    }
+
+    /**
+     * 按卷容量构建一致性哈希环
+     */
+    static TreeMap<Long, Volume> buildRing(List<Volume> volumes) {
+        TreeMap<Long, Volume> res = new TreeMap<>();
+        long max = 1;
+        for (Volume volume : volumes) {
+            max = Math.max(max, volume.getTotalSpace());
+        }
+        for (Volume volume : volumes) {
+            int nodes = (int) Math.max(MIN_VIRTUAL_NODES, Math.round((double) MAX_VIRTUAL_NODES * volume.getTotalSpace() / max));
+            for (int i = 0; i < nodes; i++) {
+                res.put(hash(volume.getRoot().toString() + "#" + i), volume);
+            }
+        }
+        return res;
+    }
+
+    private static long hash(String key) {
+        return ByteBuffer.wrap(DigestUtils.md5Digest(key.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+
+    private static long hashMd5(String md5) {
+        return ByteBuffer.wrap(SecureUtils.hexToBytes(md5)).getLong();
+    }
+
+    /**
+     * 在哈希环上为键选择卷，跳过剩余空间不足的卷。所有卷都不足时选择剩余空间最大的卷
+     * @param ring      哈希环
+     * @param position  键在哈希环上的位置
+     */
+    private static Volume select(TreeMap<Long, Volume> ring, long position) {
+        Iterator<Volume> it = new RingIterator(ring, position);
+        // 通常第一个卷即有空间，只在需要跳过卷时才记录已检查的卷
+        BitSet visited = null;
+        Volume best = null;
+        while (it.hasNext()) {
+            Volume volume = it.next();
+            if (visited != null && visited.get(volume.getId())) continue;
+            if (volume.hasSpace()) return volume;
+            if (visited == null) {
+                visited = new BitSet();
+            }
+            visited.set(volume.getId());
+            if (best == null || volume.getUsableSpace() > best.getUsableSpace()) {
+                best = volume;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 是否配置了冷存储层级
+     */
+    public boolean isTiered() {
+        getVolumes();
+        return coldRing != null;
+    }
+
+    /**
+     * 获取文件MD5在热层级哈希环上的放置卷，新文件总是放置在热层级
+     * @param md5   文件MD5
+     */
+    public Volume place(String md5) {
+        return place(md5, false);
+    }
+
+    /**
+     * 获取文件MD5在指定层级哈希环上的放置卷
+     * @param md5   文件MD5
+     * @param cold  是否为冷存储层级，未配置冷存储卷时使用热层级
+     */
+    public Volume place(String md5, boolean cold) {
+        getVolumes();
+        TreeMap<Long, Volume> ring = cold && coldRing != null ? coldRing : hotRing;
+        return select(ring, hashMd5(md5));
+    }
+
+    /**
+     * 查找唯一存储仓库中已存在的文件，优先检查放置卷，再依次检查其他卷（如文件已迁移到冷存储层级或卷变更后尚未完成重平衡）
+     * @param md5   文件MD5
+     * @return      文件路径，不存在时返回null
+     */
+    public Path locateBlob(String md5) {
+        Volume primary = place(md5);
+        Path path = primary.getBlobPath(md5);
+        if (Files.exists(path)) return path;
+        Volume secondary = primary;
+        if (isTiered()) {
+            secondary = place(md5, true);
+            path = secondary.getBlobPath(md5);
+            if (Files.exists(path)) return path;
+        }
+        for (Volume volume : getVolumes()) {
+            if (volume == primary || volume == secondary) continue;
+            path = volume.getBlobPath(md5);
+            if (Files.exists(path)) return path;
+        }
+        return null;
+    }
+
+    /**
+     * 获取唯一存储仓库中文件的路径，文件已存在时返回其所在位置，否则返回放置卷上的路径
+     * @param md5   文件MD5
+     */
+    public Path getBlobPath(String md5) {
+        Path path = locateBlob(md5);
+        return path != null ? path : place(md5).getBlobPath(md5);
+    }
+
+    /**
+     * 获取用户网盘目录。已存在的用户目录固定在所在卷上，新用户按用户名在哈希环上放置
+     * @param username  用户名
+     */
+    public Path getUserRoot(String username) {
+        List<Volume> all = getVolumes();
+        if (all.size() == 1) {
+            return all.get(0).getUserFileRoot().resolve(username);
+        }
+        Path cached = userRoots.get(username);
+        if (cached != null && Files.exists(cached)) {
+            return cached;
+        }
+        Path res = null;
+        for (Volume volume : all) {
+            Path p = volume.getUserFileRoot().resolve(username);
+            if (Files.exists(p)) {
+                res = p;
+                break;
+            }
+        }
+        if (res == null) {
+            res = select(hotRing, hash("user:" + username)).getUserFileRoot().resolve(username);
+        } else {
+            userRoots.put(username, res);
+        }
+        return res;
+    }
+
+    /**
+     * 获取路径所在的卷
+     * @param path  本地路径
+     * @return      所在卷，不在存储池中时返回null
+     */
+    public Volume getVolume(Path path) {
+        Path p = path.toAbsolutePath().normalize();
+        Volume res = null;
+        for (Volume volume : getVolumes()) {
+            Path root = volume.getRoot().toAbsolutePath().normalize();
+            // 取最长匹配，允许卷目录嵌套
+            if (p.startsWith(root) && (res == null || root.getNameCount() > res.getRoot().toAbsolutePath().normalize().getNameCount())) {
+                res = volume;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * 占用路径所在卷的IO许可执行操作，许可不足时等待
+     * @param path  操作的本地路径
+     * @param task  操作
+     */
+    public <T> T withPermit(Path path, IOTask<T> task) throws IOException {
+        Volume volume = getVolume(path);
+        if (volume == null) {
+            return task.run();
+        }
+        try {
+            volume.getIoPermits().acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待存储卷IO许可时被中断", e);
+        }
+        try {
+            return task.run();
+        } finally {
+            volume.getIoPermits().release();
+        }
+    }
+
+    /**
+     * 在网盘目录中创建指向存储仓库文件的链接，优先使用硬链接，跨设备无法创建硬链接时使用符号链接
+     * @param link      链接位置
+     * @param target    存储仓库中的文件
+     */
+    public void link(Path link, Path target) throws IOException {
+        try {
+            Files.createLink(link, target);
+        } catch (FileSystemException e) {
+            if (e instanceof FileAlreadyExistsException || e instanceof NoSuchFileException) {
+                throw e;
+            }
+            log.debug("无法创建硬链接，使用符号链接：{} -> {}", link, target);
+            Files.createSymbolicLink(link, target.toAbsolutePath());
+        }
+    }
+
+    /**
+     * 将链接位置原子地替换为指向新目标的链接
+     * @param link      链接位置
+     * @param target    新的目标文件
+     */
+    public void relink(Path link, Path target) throws IOException {
+        Path tmp = link.resolveSibling("." + link.getFileName() + ".relink");
+        Files.deleteIfExists(tmp);
+        link(tmp, target);
+        Files.move(tmp, link, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 获取各卷的状态信息
+     */
+    public List<Map<String, Object>> getStat() {
+        List<Map<String, Object>> res = new ArrayList<>();
+        for (Volume volume : getVolumes()) {
+            Map<String, Object> stat = new LinkedHashMap<>();
+            stat.put("id", volume.getId());
+            stat.put("root", volume.getRoot().toString());
+            stat.put("total_space", volume.getTotalSpace());
+            stat.put("free_space", volume.getUsableSpace());
+            stat.put("io_available", volume.getIoPermits().availablePermits());
+            stat.put("cold", volume.isCold());
+            stat.put("accept_new_file", volume.hasSpace());
+            res.add(stat);
+        }
+        return res;
+    }
+
+    /**
+     * 从哈希环上某一位置开始顺时针遍历，到达末尾后回到开头
+     */
+    private static class RingIterator implements Iterator<Volume> {
+        private final Iterator<Volume> tail;
+        private final Iterator<Volume> head;
+        private int remain;
+
+        RingIterator(TreeMap<Long, Volume> ring, long position) {
+            this.tail = ring.tailMap(position, true).values().iterator();
+            this.head = ring.headMap(position, false).values().iterator();
+            this.remain = ring.size();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remain > 0 && (tail.hasNext() || head.hasNext());
+        }
+
+        @Override
+        public Volume next() {
+            remain--;
+            return tail.hasNext() ? tail.next() : head.next();
+        }
+    }
+
+    /**
+     * 存储卷
+     */
+    public static class Volume {
+        private final int id;
+        private final Path root;
+        private final Semaphore ioPermits;
+        private final boolean cold;
+        private volatile long totalSpace;
+        private volatile long usableSpace;
+        private volatile long spaceCheckedAt;
+
+        public Volume(int id, Path root, int ioLimit) {
+            this(id, root, ioLimit, false);
+        }
+
+        public Volume(int id, Path root, int ioLimit, boolean cold) {
+            this.id = id;
+            this.root = root;
+            this.ioPermits = new Semaphore(Math.max(1, ioLimit), true);
+            this.cold = cold;
+        }
+
+        /**
+         * 是否为冷存储卷
+         */
+        public boolean isCold() {
+            return cold;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Path getRoot() {
+            return root;
+        }
+
+        public Path getRepoRoot() {
+            return root.resolve("repo");
+        }
+
+        public Path getUserFileRoot() {
+            return root.resolve("user_file");
+        }
+
+        /**
+         * 上传数据的暂存目录，与存储仓库和用户目录位于同一个卷，暂存文件可以通过重命名存入
+         */
+        public Path getStagingRoot() {
+            return root.resolve("staging");
+        }
+
+        public Path getBlobPath(String md5) {
+            return getRepoRoot().resolve(StringUtils.getUniquePath(md5));
+        }
+
+        public Semaphore getIoPermits() {
+            return ioPermits;
+        }
+
+        public long getTotalSpace() {
+            refreshSpace();
+            return totalSpace;
+        }
+
+        public long getUsableSpace() {
+            refreshSpace();
+            return usableSpace;
+        }
+
+        /**
+         * 空间信息超过缓存时间后重新获取，并发刷新时结果相同，不需要加锁
+         */
+        private void refreshSpace() {
+            long now = System.currentTimeMillis();
+            if (now - spaceCheckedAt >= SPACE_TTL) {
+                File file = root.toFile();
+                totalSpace = file.getTotalSpace();
+                usableSpace = file.getUsableSpace();
+                spaceCheckedAt = now;
+            }
+        }
+
+        /**
+         * 剩余空间是否高于保留比例
+         */
+        public boolean hasSpace() {
+            long total = getTotalSpace();
+            return total == 0 || getUsableSpace() > total * RESERVE_RATIO;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.xiaotao.saltedfishcloud.service.file.pool;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * 冷热分层服务，定期根据访问统计在存储池的热、冷层级之间迁移唯一存储仓库中的文件：<br>
+ * 热层级中超过{@link DiskConfig#STORE_TIER_COLD_DAYS}天未被读取的文件迁移到冷层级，
+ * 冷层级中一个周期内读取次数达到{@link DiskConfig#STORE_TIER_HOT_READS}的文件迁回热层级。<br>
+ * 候选文件由{@link AccessTracker}中的统计选出，每个周期只访问候选文件，不扫描存储仓库。
+ * 从未被读取的文件没有统计，其最后读取时间以写入时间与开始统计时间中较晚者为准，
+ * 只有开始统计已超过{@link DiskConfig#STORE_TIER_COLD_DAYS}天时这些文件才可能变冷，
+ * 因此热层级仓库的逐个遍历每{@link DiskConfig#STORE_TIER_COLD_DAYS}天最多进行一次。<br>
+ * 迁移方式与重平衡相同，参见{@link PoolRebalancer#migrate}
+ */
+@Service
+@Slf4j
+public class TieringService {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Resource
+    private StoragePool storagePool;
+    @Resource
+    private AccessTracker accessTracker;
+    @Resource
+    private PoolRebalancer poolRebalancer;
+    @Resource
+    private StoreTypeSwitch storeTypeSwitch;
+
+    private final AtomicLong demoted = new AtomicLong();
+    private final AtomicLong promoted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long lastRun;
+
+    /**
+     * 上次遍历热层级仓库查找无统计文件的时间
+     */
+    private long lastScan;
+
+    /**
+     * 执行一个分层周期
+     */
+    @Scheduled(initialDelay = 30 * 60 * 1000, fixedDelay = 60 * 60 * 1000)
+    public synchronized void tier() throws IOException {
+        if (DiskConfig.STORE_TYPE != StoreType.UNIQUE || !storagePool.isTiered() || storeTypeSwitch.isSwitching()) {
+            return;
+        }
+        accessTracker.drain();
+        long begin = System.currentTimeMillis();
+        long coldBefore = begin - DiskConfig.STORE_TIER_COLD_DAYS * DAY;
+        int[] moved = new int[2];
+
+        // 冷层级中近期读取频繁的文件
+        for (String md5 : accessTracker.select(stat -> stat.getRecent() >= DiskConfig.STORE_TIER_HOT_READS)) {
+            tier(md5, false, moved);
+        }
+        // 热层级中超过期限未被读取的文件
+        for (String md5 : accessTracker.select(stat -> stat.getLastRead() < coldBefore)) {
+            tier(md5, true, moved);
+        }
+        // 没有统计的文件只在开始统计已足够久时才可能变冷，遍历时逐个处理，不在内存中保存文件列表
+        if (accessTracker.getSince() < coldBefore && lastScan < coldBefore) {
+            for (StoragePool.Volume volume : storagePool.getVolumes()) {
+                if (volume.isCold() || !Files.exists(volume.getRepoRoot())) {
+                    continue;
+                }
+                try (Stream<Path> s = Files.walk(volume.getRepoRoot())) {
+                    Iterator<Path> it = s.iterator();
+                    while (it.hasNext()) {
+                        Path blob = it.next();
+                        String md5 = blob.getFileName().toString();
+                        if (md5.length() != 32 || accessTracker.isTracked(md5) || !Files.isRegularFile(blob)) {
+                            continue;
+                        }
+                        if (Math.max(Files.getLastModifiedTime(blob).toMillis(), accessTracker.getSince()) < coldBefore) {
+                            migrate(md5, blob, volume, storagePool.place(md5, true), moved);
+                        }
+                    }
+                }
+            }
+            lastScan = begin;
+        }
+        demoted.addAndGet(moved[0]);
+        promoted.addAndGet(moved[1]);
+        accessTracker.resetRecent();
+        accessTracker.save();
+        lastRun = begin;
+        log.info("[分层存储]迁移到冷层级{}个文件，迁回热层级{}个文件，耗时{}ms", moved[0], moved[1], System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 将有统计的候选文件迁移到指定层级，文件已不存在时移除其统计
+     * @param cold  是否迁移到冷层级
+     * @param moved 迁移到冷层级与迁回热层级的文件数
+     */
+    private void tier(String md5, boolean cold, int[] moved) {
+        Path blob = storagePool.locateBlob(md5);
+        if (blob == null) {
+            accessTracker.remove(md5);
+            return;
+        }
+        StoragePool.Volume volume = storagePool.getVolume(blob);
+        if (volume == null || volume.isCold() == cold) {
+            return;
+        }
+        migrate(md5, blob, volume, storagePool.place(md5, cold), moved);
+    }
+
+    private void migrate(String md5, Path blob, StoragePool.Volume volume, StoragePool.Volume target, int[] moved) {
+        if (target == volume || !target.hasSpace()) {
+            return;
+        }
+        try {
+            if (poolRebalancer.migrate(md5, blob, target) > 0) {
+                moved[volume.isCold() ? 1 : 0]++;
+            }
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            log.error("[分层存储]迁移失败：" + blob, e);
+        }
+    }
+
+    /**
+     * 获取分层状态
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("enabled", storagePool.isTiered());
+        res.put("last_run", lastRun);
+        res.put("demoted", demoted.get());
+        res.put("promoted", promoted.get());
+        res.put("failed", failed.get());
+        res.put("tracked_files", accessTracker.size());
+        res.put("dropped_events", accessTracker.getDropped());
+        return res;
+    }
+}
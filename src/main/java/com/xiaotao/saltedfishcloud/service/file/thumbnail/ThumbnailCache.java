@@ -0,0 +1,187 @@
+package com.xiaotao.saltedfishcloud.service.file.thumbnail;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * 缩略图缓存目录，按总字节数进行LRU淘汰。<br>
+ * 缩略图文件保存在 根目录/键的前2个字符/键.jpg，访问顺序记录在内存中，启动时按文件修改时间恢复，
+ * 总大小超过上限时删除最久未被访问的缩略图。命中时更新文件的修改时间（每{@link #TOUCH_INTERVAL}毫秒最多一次），
+ * 使重启后恢复的顺序接近实际的访问顺序
+ */
+@Slf4j
+public class ThumbnailCache {
+    private static final String SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * 命中时更新缩略图修改时间的最小间隔（毫秒）
+     */
+    static final long TOUCH_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * 缓存的缩略图
+     */
+    private static class Entry {
+        final long size;
+        /**
+         * 最后一次更新文件修改时间的时间戳
+         */
+        long touched;
+
+        Entry(long size, long touched) {
+            this.size = size;
+            this.touched = touched;
+        }
+    }
+
+    private final Path root;
+    private final long maxBytes;
+
+    /**
+     * 缓存键与缩略图，按访问顺序排列，最久未访问的在前
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long evictions;
+
+    /**
+     * @param root      缓存目录
+     * @param maxBytes  缓存的最大总字节数
+     */
+    public ThumbnailCache(Path root, long maxBytes) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 扫描缓存目录，恢复已有的缩略图，并清理未完成写入的临时文件
+     */
+    public synchronized void load() throws IOException {
+        Files.createDirectories(root);
+        List<Object[]> found = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(root, 2)) {
+            Iterator<Path> it = stream.iterator();
+            while (it.hasNext()) {
+                Path path = it.next();
+                String name = path.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(path);
+                } else if (name.endsWith(SUFFIX)) {
+                    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                    found.add(new Object[]{name.substring(0, name.length() - SUFFIX.length()), attrs.size(), attrs.lastModifiedTime().toMillis()});
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(e -> (Long) e[2]));
+        entries.clear();
+        totalBytes = 0;
+        for (Object[] e : found) {
+            entries.put((String) e[0], new Entry((Long) e[1], (Long) e[2]));
+            totalBytes += (Long) e[1];
+        }
+        evict();
+        log.info("[缩略图缓存]已加载{}个缩略图，共{}字节", entries.size(), totalBytes);
+    }
+
+    /**
+     * 获取缓存的缩略图，并将其标记为最近访问
+     * @param key   缓存键
+     * @return      缩略图文件路径，未缓存时返回null
+     */
+    public synchronized Path get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        Path path = getPath(key);
+        long now = System.currentTimeMillis();
+        if (now - entry.touched >= TOUCH_INTERVAL) {
+            try {
+                Files.setLastModifiedTime(path, FileTime.fromMillis(now));
+                entry.touched = now;
+            } catch (NoSuchFileException e) {
+                totalBytes -= entries.remove(key).size;
+                return null;
+            } catch (IOException e) {
+                log.debug("[缩略图缓存]更新访问时间失败：{}", key, e);
+            }
+        } else if (!Files.exists(path)) {
+            totalBytes -= entries.remove(key).size;
+            return null;
+        }
+        return path;
+    }
+
+    /**
+     * 创建一个用于写入缩略图的临时文件，写入完成后通过{@link #put}存入缓存
+     */
+    public Path createTempFile() throws IOException {
+        Files.createDirectories(root);
+        return Files.createTempFile(root, "thumb", TEMP_SUFFIX);
+    }
+
+    /**
+     * 将写入完成的临时文件存入缓存，超过总大小上限时淘汰最久未访问的缩略图
+     * @param key   缓存键
+     * @param temp  {@link #createTempFile}创建的临时文件
+     * @return      缩略图文件路径
+     */
+    public synchronized Path put(String key, Path temp) throws IOException {
+        Path path = getPath(key);
+        Files.createDirectories(path.getParent());
+        long size = Files.size(temp);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Entry old = entries.put(key, new Entry(size, System.currentTimeMillis()));
+        totalBytes += size - (old == null ? 0 : old.size);
+        evict();
+        return path;
+    }
+
+    /**
+     * 已缓存的缩略图数量
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 已缓存的缩略图总字节数
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * 累计淘汰的缩略图数量
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private Path getPath(String key) {
+        return root.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        // 至少保留刚存入的缩略图
+        while (totalBytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue().size;
+            evictions++;
+            try {
+                Files.deleteIfExists(getPath(eldest.getKey()));
+            } catch (IOException e) {
+                log.warn("[缩略图缓存]删除缩略图失败：{}", eldest.getKey(), e);
+            }
+        }
+    }
+}
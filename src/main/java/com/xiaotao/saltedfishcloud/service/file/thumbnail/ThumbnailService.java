@@ -0,0 +1,290 @@
+package com.xiaotao.saltedfishcloud.service.file.thumbnail;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.dao.mybatis.FileDao;
+import com.xiaotao.saltedfishcloud.exception.JsonException;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.file.SingleFlight;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
+import com.xiaotao.saltedfishcloud.service.http.RangeSender;
+import com.xiaotao.saltedfishcloud.service.http.ResponseService;
+import com.xiaotao.saltedfishcloud.service.node.NodeService;
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * 图片缩略图服务。缩略图以文件MD5与尺寸为键缓存在 STORE_ROOT/thumbnail 目录中，网盘中内容相同的文件共用缩略图，
+ * 缓存总大小超过上限时按LRU淘汰。<br>
+ * 缩略图在首次请求时生成，新上传的图片在事务提交后提交到有界的后台线程池预先生成默认尺寸的缩略图，
+ * 队列已满时直接放弃，由首次请求时再生成。同一缩略图的并发生成请求只会执行一次。<br>
+ * 缩略图的URL包含文件MD5，内容不会改变，响应时设置长期的缓存头
+ */
+@Service
+@Slf4j
+public class ThumbnailService {
+    /**
+     * 可生成的缩略图尺寸（长边像素数），请求的尺寸向上取到其中之一，避免任意尺寸占满缓存
+     */
+    public static final int[] SIZES = {128, 256, 512, 1024};
+
+    /**
+     * 上传时预先生成的缩略图尺寸
+     */
+    public static final int DEFAULT_SIZE = 256;
+
+    /**
+     * 缩略图响应的缓存时间（秒）
+     */
+    public static final long CACHE_MAX_AGE = 365L * 24 * 3600;
+
+    private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-f]{32}");
+
+    @Resource
+    private FileDao fileDao;
+    @Resource
+    private NodeService nodeService;
+    @Resource
+    private ChunkStoreService chunkStoreService;
+    @Resource
+    private ResponseService responseService;
+    @Resource
+    private RangeSender rangeSender;
+
+    @Value("${thumbnail-cache-size:1024}")
+    private long cacheSize;
+
+    @Value("${thumbnail-threads:2}")
+    private int threads;
+
+    @Value("${thumbnail-queue-size:1000}")
+    private int queueSize;
+
+    @Value("${thumbnail-max-source-size:64}")
+    private long maxSourceSize;
+
+    private final SingleFlight<String> flights = new SingleFlight<>();
+    private ThreadPoolExecutor executor;
+    private ThumbnailCache cache;
+    private String cacheRoot;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread t = new Thread(r, "thumbnail-" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 获取缩略图缓存，存储根目录变化后重新加载
+     */
+    private synchronized ThumbnailCache getCache() throws IOException {
+        String root = DiskConfig.STORE_ROOT + "/thumbnail";
+        if (cache == null || !root.equals(cacheRoot)) {
+            ThumbnailCache res = new ThumbnailCache(Paths.get(root), cacheSize * 1024 * 1024);
+            res.load();
+            cache = res;
+            cacheRoot = root;
+        }
+        return cache;
+    }
+
+    /**
+     * 判断文件是否可生成缩略图
+     * @param name  文件名
+     */
+    public static boolean isSupported(String name) {
+        return name.indexOf('.') != -1 && Thumbnailer.isSupported(FileUtils.getSuffix(name));
+    }
+
+    /**
+     * 将请求的尺寸向上取到可生成的尺寸，超过最大尺寸时取最大尺寸
+     */
+    public static int normalizeSize(int size) {
+        for (int s : SIZES) {
+            if (size <= s) {
+                return s;
+            }
+        }
+        return SIZES[SIZES.length - 1];
+    }
+
+    /**
+     * 向客户端响应文件的缩略图，缓存中没有时立即生成。<br>
+     * 缩略图较小，读取到内存后再响应，避免发送期间文件被缓存淘汰删除；读取前已被淘汰时视为未命中，重新生成
+     * @param md5       文件MD5
+     * @param size      缩略图尺寸，向上取到{@link #SIZES}之一
+     * @param request   请求
+     * @param response  响应
+     * @throws JsonException 文件不存在或无法生成缩略图时抛出，状态码404
+     */
+    public void sendThumbnail(String md5, int size, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        md5 = md5.toLowerCase();
+        if (!MD5_PATTERN.matcher(md5).matches()) {
+            throw new JsonException(400, "无效的MD5");
+        }
+        int normalized = normalizeSize(size);
+        ByteArrayResource resource = null;
+        for (int i = 0; i < 2 && resource == null; i++) {
+            Path thumbnail = getThumbnail(md5, normalized);
+            if (thumbnail == null) {
+                throw new JsonException(404, "无法生成缩略图");
+            }
+            try {
+                resource = new ByteArrayResource(Files.readAllBytes(thumbnail));
+            } catch (NoSuchFileException e) {
+                log.debug("[缩略图]缩略图读取前已被淘汰：{}", thumbnail);
+            }
+        }
+        if (resource == null) {
+            throw new JsonException(404, "无法生成缩略图");
+        }
+        response.setHeader("Content-Type", "image/jpeg");
+        response.setHeader("Cache-Control", "public, max-age=" + CACHE_MAX_AGE + ", immutable");
+        rangeSender.send(request, response, resource, md5 + "-" + normalized, -1);
+    }
+
+    /**
+     * 获取文件的缩略图，缓存中没有时从网盘中任一相同MD5的文件生成
+     * @param md5   文件MD5
+     * @param size  缩略图尺寸，需为{@link #SIZES}之一
+     * @return      缩略图文件路径，文件不存在或不是可解码的图片时返回null
+     */
+    public Path getThumbnail(String md5, int size) throws IOException {
+        String key = md5 + "_" + size;
+        Path cached = getCache().get(key);
+        if (cached != null) {
+            return cached;
+        }
+        List<FileInfo> files = fileDao.getFilesByMD5(md5, 1);
+        if (files.isEmpty()) {
+            throw new NoSuchFileException("文件不存在: " + md5);
+        }
+        FileInfo file = files.get(0);
+        if (!isSupported(file.getName())) {
+            return null;
+        }
+        String dir = nodeService.getPathByNode(file.getUid(), file.getNode());
+        return generate(key, size, file, DiskConfig.getPathHandler().getStorePath(file.getUid(), dir, file));
+    }
+
+    /**
+     * 为新保存的文件在后台预先生成默认尺寸的缩略图，不是图片时忽略。应在文件记录提交后调用
+     * @param uid       用户ID
+     * @param dir       文件所在的网盘目录
+     * @param fileInfo  文件信息
+     */
+    public void submit(int uid, String dir, FileInfo fileInfo) {
+        if (fileInfo.getMd5() == null || !isSupported(fileInfo.getName())) {
+            return;
+        }
+        String md5 = fileInfo.getMd5().toLowerCase();
+        FileInfo source = new FileInfo();
+        source.setName(fileInfo.getName());
+        source.setMd5(md5);
+        source.setSize(fileInfo.getSize());
+        try {
+            String localPath = DiskConfig.getPathHandler().getStorePath(uid, dir, fileInfo);
+            executor.execute(() -> {
+                try {
+                    generate(md5 + "_" + DEFAULT_SIZE, DEFAULT_SIZE, source, localPath);
+                } catch (Exception e) {
+                    log.debug("[缩略图]预生成失败：{}", md5, e);
+                }
+            });
+        } catch (RuntimeException e) {
+            // 预生成失败不影响已提交的保存操作，首次请求时再生成
+            log.debug("[缩略图]提交预生成任务失败：{}", md5, e);
+        }
+    }
+
+    /**
+     * 生成缩略图并存入缓存，同一缩略图的并发请求只生成一次
+     * @param localPath 文件在网盘目录中的本地路径
+     * @return          缩略图文件路径，文件过大或无法解码时返回null
+     */
+    private Path generate(String key, int size, FileInfo file, String localPath) throws IOException {
+        if (file.getSize() > maxSourceSize * 1024 * 1024) {
+            return null;
+        }
+        ThumbnailCache cache = getCache();
+        return flights.execute(key, () -> {
+            Path cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            Path temp = cache.createTempFile();
+            try {
+                try (ImageInputStream input = open(file.getMd5(), localPath);
+                     OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                    Thumbnailer.generate(input, size, out);
+                } catch (IOException | RuntimeException e) {
+                    if (e instanceof NoSuchFileException) {
+                        throw e;
+                    }
+                    log.debug("[缩略图]无法生成缩略图：{} {}", file.getName(), e.getMessage());
+                    return null;
+                }
+                return cache.put(key, temp);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        });
+    }
+
+    /**
+     * 打开原图数据，本地文件可随机读取，分块存储库中的文件读取到内存中
+     */
+    private ImageInputStream open(String md5, String localPath) throws IOException {
+        if (responseService.isChunkedRead(md5, localPath)) {
+            InputStream stream = chunkStoreService.open(md5);
+            return new MemoryCacheImageInputStream(stream) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        stream.close();
+                    }
+                }
+            };
+        }
+        File file = new File(localPath);
+        if (!file.isFile()) {
+            throw new NoSuchFileException(localPath);
+        }
+        return new FileImageInputStream(file);
+    }
+}
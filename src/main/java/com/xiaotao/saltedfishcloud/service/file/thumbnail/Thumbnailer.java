@@ -0,0 +1,121 @@
+package com.xiaotao.saltedfishcloud.service.file.thumbnail;
+
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * 使用ImageIO解码图片并生成JPEG缩略图，不依赖本地图形库。<br>
+ * 解码时按目标尺寸进行源图像子采样，只解码到约2~4倍目标尺寸，大图的内存占用与解码耗时与原图像素数基本无关；
+ * 之后逐次减半缩小到2倍目标尺寸以内，最后以双线性插值缩放到目标尺寸，避免一次大比例缩放产生的锯齿
+ */
+public class Thumbnailer {
+    /**
+     * 可生成缩略图的原图最大像素数
+     */
+    public static final long MAX_PIXELS = 200_000_000L;
+
+    /**
+     * 缩略图的JPEG压缩质量
+     */
+    public static final float QUALITY = 0.85f;
+
+    private static final Set<String> SUFFIXES = new HashSet<>();
+
+    static {
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            SUFFIXES.add(suffix.toLowerCase());
+        }
+        // wbmp没有可用于识别格式的文件头，不作为缩略图来源
+        SUFFIXES.removeAll(Arrays.asList("", "wbmp"));
+    }
+
+    private Thumbnailer() {}
+
+    /**
+     * 判断文件后缀是否为可解码的图片格式
+     * @param suffix    文件后缀，不带'.'
+     */
+    public static boolean isSupported(String suffix) {
+        return SUFFIXES.contains(suffix.toLowerCase());
+    }
+
+    /**
+     * 生成缩略图，缩略图的长边不超过size，原图较小时不放大
+     * @param input 原图数据
+     * @param size  缩略图长边的最大像素数
+     * @param out   JPEG缩略图的输出流
+     * @throws IOException 无法识别或解码图片，或图片像素数超过{@link #MAX_PIXELS}
+     */
+    public static void generate(ImageInputStream input, int size, OutputStream out) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IIOException("无法识别的图片格式");
+        }
+        ImageReader reader = readers.next();
+        BufferedImage image;
+        try {
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if ((long) width * height > MAX_PIXELS) {
+                throw new IIOException("图片尺寸过大：" + width + "x" + height);
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            int subsampling = Math.max(1, Math.max(width, height) / (size * 2));
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            image = reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+
+        double scale = Math.min(1.0, size / (double) Math.max(image.getWidth(), image.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        while (image.getWidth() >= targetWidth * 2 && image.getHeight() >= targetHeight * 2) {
+            image = scale(image, image.getWidth() / 2, image.getHeight() / 2);
+        }
+        image = scale(image, targetWidth, targetHeight);
+        write(image, out);
+    }
+
+    /**
+     * 缩放图片，透明部分以白色填充
+     */
+    private static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = res.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return res;
+    }
+
+    private static void write(BufferedImage image, OutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream output = new MemoryCacheImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(QUALITY);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
@@ -1,13 +1,21 @@
 package com.xiaotao.saltedfishcloud.service.ftp;
 
 import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.dao.mybatis.FileDao;
 import com.xiaotao.saltedfishcloud.enums.ReadOnlyLevel;
 import com.xiaotao.saltedfishcloud.helper.PathBuilder;
 import com.xiaotao.saltedfishcloud.po.User;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
 import com.xiaotao.saltedfishcloud.service.file.FileService;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
 import com.xiaotao.saltedfishcloud.service.file.exception.DirectoryAlreadyExistsException;
+import com.xiaotao.saltedfishcloud.service.file.pool.AccessTracker;
+import com.xiaotao.saltedfishcloud.service.ftp.ftplet.FtpRateLimitHandler;
 import com.xiaotao.saltedfishcloud.service.ftp.utils.FtpDiskType;
 import com.xiaotao.saltedfishcloud.service.ftp.utils.FtpPathInfo;
+import com.xiaotao.saltedfishcloud.service.node.NodeService;
 import com.xiaotao.saltedfishcloud.utils.SecureUtils;
 import com.xiaotao.saltedfishcloud.utils.SpringContextHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -16,10 +24,7 @@ import org.apache.ftpserver.ftplet.FtpFile;
 import java.io.*;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.NoSuchFileException;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -28,6 +33,11 @@ public class DiskFtpFile implements FtpFile {
     private final DiskFtpUser user;
     private File nativeFile;
     private final FileService fileService = SpringContextHolder.getContext().getBean(FileService.class);
+    /**
+     * CHUNKED存储模式下，本地不存在的文件对应的数据库记录
+     */
+    private FileInfo record;
+    private boolean recordLoaded = false;
 
     /**
      * 构造一个网盘FTP文件
@@ -41,6 +51,34 @@ public class DiskFtpFile implements FtpFile {
             nativeFile = new File(pathInfo.toNativePath(user.getName()));
         }
     }
+    /**
+     * 获取CHUNKED存储模式下文件的数据库记录。该模式下网盘目录中只保留目录结构，文件信息需从数据库读取
+     * @return 文件记录，非CHUNKED模式、本地文件存在或文件不存在时返回null
+     */
+    private FileInfo getRecord() {
+        if (recordLoaded) {
+            return record;
+        }
+        recordLoaded = true;
+        if (!isChunkedView() || pathInfo.isFtpRoot() || pathInfo.isResourceRoot() || nativeFile.exists()) {
+            return null;
+        }
+        try {
+            int uid = pathInfo.isPublicArea() ? 0 : user.getId();
+            String nid = SpringContextHolder.getContext().getBean(NodeService.class).getLastNodeInfoByPath(uid, pathInfo.getResourceParent()).getId();
+            record = SpringContextHolder.getContext().getBean(FileDao.class).getFileInfo(uid, pathInfo.getName(), nid);
+        } catch (NoSuchFileException ignored) { }
+        return record;
+    }
+
+    /**
+     * 网盘目录中的文件是否可能只存在于分块存储库中（CHUNKED模式或涉及CHUNKED模式的存储切换期间）
+     */
+    private static boolean isChunkedView() {
+        return DiskConfig.STORE_TYPE == StoreType.CHUNKED
+                || SpringContextHolder.getContext().getBean(StoreTypeSwitch.class).isSwitching(StoreType.CHUNKED);
+    }
+
     @Override
     public String getAbsolutePath() {
         return pathInfo.getFullPath();
@@ -72,7 +110,7 @@ public class DiskFtpFile implements FtpFile {
 
     @Override
     public boolean doesExist() {
-        return pathInfo.isFtpRoot() || nativeFile.exists();
+        return pathInfo.isFtpRoot() || nativeFile.exists() || getRecord() != null;
     }
 
     @Override
@@ -85,6 +123,10 @@ public class DiskFtpFile implements FtpFile {
         if (DiskConfig.getReadOnlyLevel() == ReadOnlyLevel.DATA_MOVING) {
             return false;
         }
+        // 存储模式切换中尚未完成迁移的网盘只读
+        if (!pathInfo.isFtpRoot() && SpringContextHolder.getContext().getBean(StoreTypeSwitch.class).isFenced(pathInfo.isPublicArea() ? 0 : user.getId())) {
+            return false;
+        }
         // FTP根目录不可写
         if (pathInfo.isFtpRoot()) {
             log.debug("根目录写入拒绝");
@@ -120,6 +162,10 @@ public class DiskFtpFile implements FtpFile {
 
     @Override
     public long getLastModified() {
+        FileInfo record = getRecord();
+        if (record != null && record.getUpdated_at() != null) {
+            return record.getUpdated_at().getTime();
+        }
         return nativeFile.lastModified();
     }
 
@@ -130,7 +176,8 @@ public class DiskFtpFile implements FtpFile {
 
     @Override
     public long getSize() {
-        return nativeFile.length();
+        FileInfo record = getRecord();
+        return record != null ? record.getSize() : nativeFile.length();
     }
 
     @Override
@@ -216,7 +263,22 @@ public class DiskFtpFile implements FtpFile {
         if (files == null) {
             return new LinkedList<>();
         }
-        return Arrays.stream(files).map(f -> new DiskFtpFile(path + "/" + f.getName(), user)).collect(Collectors.toList());
+        List<DiskFtpFile> res = Arrays.stream(files).map(f -> new DiskFtpFile(path + "/" + f.getName(), user)).collect(Collectors.toList());
+        if (isChunkedView()) {
+            // 分块模式下网盘目录中只有目录，文件需从数据库记录中获取
+            Set<String> exists = Arrays.stream(files).map(File::getName).collect(Collectors.toSet());
+            try {
+                int uid = pathInfo.isPublicArea() ? 0 : user.getId();
+                for (FileInfo file : fileService.getUserFileList(uid, pathInfo.getResourcePath())[1]) {
+                    if (!exists.contains(file.getName())) {
+                        res.add(new DiskFtpFile(path + "/" + file.getName(), user));
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("[FTP]读取目录文件记录失败：{}", getAbsolutePath(), e);
+            }
+        }
+        return res;
     }
 
     /**
@@ -240,15 +302,36 @@ public class DiskFtpFile implements FtpFile {
         if (offset > 0) {
             throw new IOException("Not support random write");
         }
-        return new FileOutputStream(new File(tmpDir + File.separator + tag));
+        return FtpRateLimitHandler.wrap(new FileOutputStream(new File(tmpDir + File.separator + tag)));
     }
 
     @Override
     public InputStream createInputStream(long offset) throws IOException {
+        FileInfo record = getRecord();
+        if (record != null) {
+            InputStream inputStream = SpringContextHolder.getContext().getBean(ChunkStoreService.class).open(record.getMd5());
+            if (inputStream.skip(offset) != offset) {
+                throw new IOException("Out of offset");
+            }
+            return FtpRateLimitHandler.wrap(inputStream);
+        }
         FileInputStream inputStream = new FileInputStream(nativeFile);
         if (inputStream.skip(offset) != offset) {
             throw new IOException("Out of offset");
         }
-        return inputStream;
+        if (DiskConfig.STORE_TYPE == StoreType.UNIQUE) {
+            // 文件MD5需查询数据库，在访问统计的后台汇总时再获取
+            int uid = pathInfo.isPublicArea() ? 0 : user.getId();
+            SpringContextHolder.getContext().getBean(AccessTracker.class).record(() -> {
+                try {
+                    String nid = SpringContextHolder.getContext().getBean(NodeService.class).getLastNodeInfoByPath(uid, pathInfo.getResourceParent()).getId();
+                    FileInfo info = SpringContextHolder.getContext().getBean(FileDao.class).getFileInfo(uid, pathInfo.getName(), nid);
+                    return info == null ? null : info.getMd5();
+                } catch (NoSuchFileException e) {
+                    return null;
+                }
+            });
+        }
+        return FtpRateLimitHandler.wrap(inputStream);
     }
 }
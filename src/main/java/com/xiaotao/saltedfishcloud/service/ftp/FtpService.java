@@ -1,6 +1,7 @@
 package com.xiaotao.saltedfishcloud.service.ftp;
 
 import com.xiaotao.saltedfishcloud.config.FtpConfig;
+import com.xiaotao.saltedfishcloud.service.ftp.ftplet.FtpRateLimitHandler;
 import com.xiaotao.saltedfishcloud.service.ftp.ftplet.FtpUploadHandler;
 import org.apache.ftpserver.ConnectionConfigFactory;
 import org.apache.ftpserver.DataConnectionConfigurationFactory;
@@ -25,16 +26,19 @@ public class FtpService {
     private final DiskFtpUserManager ftpUserManager;
     private final DiskFtpFileSystemFactory ftpFileSystemFactory;
     private final FtpUploadHandler ftpUploadHandler;
+    private final FtpRateLimitHandler ftpRateLimitHandler;
 
     public FtpService(
         FtpConfig ftpConfig, // 仅声明依赖关系，FtpService依赖FtpConfig，否则FtpConfig被调用时可能未被Spring装配
         DiskFtpUserManager ftpUserManager,
         DiskFtpFileSystemFactory ftpFileSystemFactory,
-        FtpUploadHandler ftpUploadHandler
+        FtpUploadHandler ftpUploadHandler,
+        FtpRateLimitHandler ftpRateLimitHandler
     ) {
         this.ftpUserManager = ftpUserManager;
         this.ftpFileSystemFactory = ftpFileSystemFactory;
         this.ftpUploadHandler = ftpUploadHandler;
+        this.ftpRateLimitHandler = ftpRateLimitHandler;
     }
 
     @Bean
@@ -58,6 +62,7 @@ public class FtpService {
 
         Map<String, Ftplet> ftplets = new HashMap<>();
         ftplets.put("upload", ftpUploadHandler);
+        ftplets.put("rateLimit", ftpRateLimitHandler);
 
         //  服务实例配置
         FtpServerFactory serverFactory = new FtpServerFactory();
@@ -0,0 +1,69 @@
+package com.xiaotao.saltedfishcloud.service.ftp.ftplet;
+
+import com.xiaotao.saltedfishcloud.dao.mybatis.UserDao;
+import com.xiaotao.saltedfishcloud.service.ratelimit.RateLimitService;
+import com.xiaotao.saltedfishcloud.service.ratelimit.RateLimiter;
+import org.apache.ftpserver.ftplet.*;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import static com.xiaotao.saltedfishcloud.po.User.SYS_NAME_PUBLIC;
+
+/**
+ * FTP传输限速，下载与上传命令执行期间为当前线程绑定用户的限速器，与网页端传输共享同一用户的令牌桶。<br>
+ * FTP命令在同一线程中同步执行，{@link com.xiaotao.saltedfishcloud.service.ftp.DiskFtpFile}创建数据流时通过{@link #wrap}接入限速
+ */
+@Component
+public class FtpRateLimitHandler extends DefaultFtplet {
+    private static final ThreadLocal<RateLimiter> CURRENT = new ThreadLocal<>();
+
+    private final RateLimitService rateLimitService;
+    private final UserDao userDao;
+
+    public FtpRateLimitHandler(RateLimitService rateLimitService, UserDao userDao) {
+        this.rateLimitService = rateLimitService;
+        this.userDao = userDao;
+    }
+
+    /**
+     * 包装下载的数据流，当前命令不限速时原样返回
+     */
+    public static InputStream wrap(InputStream in) {
+        RateLimiter limiter = CURRENT.get();
+        return limiter == null ? in : limiter.wrap(in);
+    }
+
+    /**
+     * 包装上传的数据流，当前命令不限速时原样返回
+     */
+    public static OutputStream wrap(OutputStream out) {
+        RateLimiter limiter = CURRENT.get();
+        return limiter == null ? out : limiter.wrap(out);
+    }
+
+    @Override
+    public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+        CURRENT.remove();
+        String command = request.getCommand().toUpperCase();
+        boolean download = "RETR".equals(command);
+        boolean upload = "STOR".equals(command) || "STOU".equals(command) || "APPE".equals(command);
+        if ((download || upload) && session.getUser() != null) {
+            String name = session.getUser().getName();
+            com.xiaotao.saltedfishcloud.po.User user = SYS_NAME_PUBLIC.equals(name) ? null : userDao.getUserByUser(name);
+            InetSocketAddress client = session.getClientAddress();
+            String address = client == null || client.getAddress() == null ? "ftp" : client.getAddress().getHostAddress();
+            CURRENT.set(download ? rateLimitService.getDownloadLimiter(user, address) : rateLimitService.getUploadLimiter(user, address));
+        }
+        return super.beforeCommand(session, request);
+    }
+
+    @Override
+    public FtpletResult afterCommand(FtpSession session, FtpRequest request, FtpReply reply) throws FtpException, IOException {
+        CURRENT.remove();
+        return super.afterCommand(session, request, reply);
+    }
+}
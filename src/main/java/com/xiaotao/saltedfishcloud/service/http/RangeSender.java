@@ -0,0 +1,346 @@
+package com.xiaotao.saltedfishcloud.service.http;
+
+import com.xiaotao.saltedfishcloud.service.ratelimit.RateLimitService;
+import com.xiaotao.saltedfishcloud.service.ratelimit.RateLimiter;
+import lombok.Setter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 文件内容响应发送器，直接向Servlet响应写入文件内容，支持条件请求与Range请求：<br>
+ * <ul>
+ *     <li>以文件MD5作为强ETag，支持If-None-Match与If-Modified-Since，未修改时响应304</li>
+ *     <li>支持单区间与多区间（multipart/byteranges）的Range请求，重叠或相邻的区间会被合并</li>
+ *     <li>支持If-Range，校验值不匹配时忽略Range响应完整内容</li>
+ * </ul>
+ * 本地文件的完整内容或单个区间在Servlet容器支持时（Tomcat的NIO/NIO2/APR连接器）通过sendfile发送，
+ * 数据由内核直接从页缓存写入套接字，不经过JVM堆。其他情况下本地文件通过FileChannel按位置读取，
+ * 多个区间共用同一个文件通道，其他资源通过输入流的skip定位。
+ * 当前请求受{@link RateLimitService}限速时不使用sendfile，写入的数据经过限速器。
+ * Spring MVC自带的Range处理不支持If-Range，因此不经过消息转换器处理
+ */
+@Component
+public class RangeSender {
+    /**
+     * 单个请求允许的最大区间数，超过时忽略Range响应完整内容
+     */
+    public static final int MAX_RANGES = 32;
+    /**
+     * 使用sendfile发送的最小数据量，与Tomcat DefaultServlet的默认值相同，更小的数据直接写入更快
+     */
+    public static final long SENDFILE_MIN_SIZE = 48 * 1024;
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 是否在容器支持时使用sendfile发送本地文件
+     */
+    @Value("${download-sendfile:true}")
+    @Setter
+    private boolean sendfile = true;
+
+    @javax.annotation.Resource
+    @Setter
+    private RateLimitService rateLimitService;
+
+    /**
+     * 响应文件内容，调用前需已设置Content-Type与Content-Disposition等与内容无关的响应头
+     * @param request       请求
+     * @param response      响应
+     * @param resource      文件资源
+     * @param etag          文件MD5，作为ETag，为null时不使用ETag
+     * @param lastModified  最后修改时间的毫秒时间戳，小于0表示未知
+     */
+    public void send(HttpServletRequest request, HttpServletResponse response, Resource resource, String etag, long lastModified) throws IOException {
+        long length = resource.contentLength();
+        String tag = etag == null ? null : "\"" + etag + "\"";
+        // Last-Modified只精确到秒
+        long modified = lastModified < 0 ? -1 : lastModified / 1000 * 1000;
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (tag != null) {
+            response.setHeader(HttpHeaders.ETAG, tag);
+        }
+        if (modified >= 0) {
+            response.setDateHeader(HttpHeaders.LAST_MODIFIED, modified);
+        }
+        if (isNotModified(request, tag, modified)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+
+        List<long[]> ranges = null;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (range != null && "GET".equals(request.getMethod()) && isRangeApplicable(request, tag, modified)) {
+            ranges = parseRanges(range, length);
+        }
+        if (ranges != null && ranges.isEmpty()) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return;
+        }
+        boolean head = "HEAD".equals(request.getMethod());
+        RateLimiter limiter = rateLimitService == null ? null : rateLimitService.getDownloadLimiter(request);
+        if (ranges == null) {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentLengthLong(length);
+            if (!head && (limiter != null || !trySendfile(request, resource, 0, length))) {
+                write(resource, new long[][]{{0, length - 1}}, null, null, length, getOutputStream(response, limiter));
+            }
+            return;
+        }
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        long[][] regions = ranges.toArray(new long[0][]);
+        if (regions.length == 1) {
+            long[] r = regions[0];
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + r[0] + "-" + r[1] + "/" + length);
+            response.setContentLengthLong(r[1] - r[0] + 1);
+            if (limiter != null || !trySendfile(request, resource, r[0], r[1] + 1)) {
+                write(resource, regions, null, null, length, getOutputStream(response, limiter));
+            }
+            return;
+        }
+        String contentType = response.getContentType();
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        long total = 0;
+        for (long[] r : regions) {
+            total += partHeader(boundary, contentType, r, length).length + r[1] - r[0] + 1;
+        }
+        total += partEnd(boundary).length;
+        response.setContentLengthLong(total);
+        write(resource, regions, boundary, contentType, length, getOutputStream(response, limiter));
+    }
+
+    private static OutputStream getOutputStream(HttpServletResponse response, RateLimiter limiter) throws IOException {
+        return limiter == null ? response.getOutputStream() : limiter.wrap(response.getOutputStream());
+    }
+
+    /**
+     * 尝试交由Servlet容器通过sendfile发送本地文件的一段数据，容器在请求处理结束后发送，此时不能再写入响应体
+     * @param start 起始位置
+     * @param end   结束位置（不包含）
+     * @return      是否已交由容器发送
+     */
+    private boolean trySendfile(HttpServletRequest request, Resource resource, long start, long end) throws IOException {
+        if (!sendfile || end - start < SENDFILE_MIN_SIZE || !resource.isFile()
+                || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME_ATTR, resource.getFile().getAbsolutePath());
+        request.setAttribute(SENDFILE_START_ATTR, start);
+        request.setAttribute(SENDFILE_END_ATTR, end);
+        return true;
+    }
+
+    /**
+     * 判断If-None-Match或If-Modified-Since条件是否表明客户端的缓存仍有效，If-None-Match存在时忽略If-Modified-Since
+     */
+    static boolean isNotModified(HttpServletRequest request, String tag, long modified) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return false;
+        }
+        String noneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (noneMatch != null) {
+            if (tag == null) {
+                return false;
+            }
+            for (String e : noneMatch.split(",")) {
+                e = e.trim();
+                // If-None-Match使用弱比较
+                if (e.equals("*") || e.equals(tag) || e.equals("W/" + tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long since = getDateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        return modified >= 0 && since >= 0 && modified <= since;
+    }
+
+    /**
+     * 判断If-Range条件，没有If-Range或校验值匹配时Range有效。实体标签使用强比较，日期需与最后修改时间完全相同
+     */
+    static boolean isRangeApplicable(HttpServletRequest request, String tag, long modified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return tag != null && ifRange.equals(tag);
+        }
+        long date = getDateHeader(request, HttpHeaders.IF_RANGE);
+        return modified >= 0 && date == modified;
+    }
+
+    /**
+     * 解析Range请求头
+     * @param range     Range请求头
+     * @param length    文件长度
+     * @return          按起始位置排序并合并后的区间（包含首尾位置），格式错误或区间过多时返回null表示忽略Range，
+     *                  所有区间均无法满足时返回空列表
+     */
+    static List<long[]> parseRanges(String range, long length) {
+        range = range.trim();
+        if (!range.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> res = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start, end;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < length) {
+                res.add(new long[]{start, end});
+            }
+        }
+        res.sort(Comparator.comparingLong(e -> e[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] r : res) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && r[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], r[1]);
+            } else {
+                merged.add(r);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 写入各区间的数据，boundary不为null时按multipart/byteranges格式写入
+     */
+    private static void write(Resource resource, long[][] regions, String boundary, String contentType, long length, OutputStream out) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        if (resource.isFile()) {
+            try (FileChannel channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.wrap(buf);
+                for (long[] r : regions) {
+                    if (boundary != null) {
+                        out.write(partHeader(boundary, contentType, r, length));
+                    }
+                    long position = r[0];
+                    long remaining = r[1] - r[0] + 1;
+                    while (remaining > 0) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buf.length, remaining));
+                        int n = channel.read(buffer, position);
+                        if (n < 0) {
+                            throw new EOFException("文件长度不足：" + resource.getDescription());
+                        }
+                        out.write(buf, 0, n);
+                        position += n;
+                        remaining -= n;
+                    }
+                }
+            }
+        } else {
+            for (long[] r : regions) {
+                if (boundary != null) {
+                    out.write(partHeader(boundary, contentType, r, length));
+                }
+                try (InputStream in = resource.getInputStream()) {
+                    skipFully(in, r[0]);
+                    long remaining = r[1] - r[0] + 1;
+                    while (remaining > 0) {
+                        int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                        if (n < 0) {
+                            throw new EOFException("文件长度不足：" + resource.getDescription());
+                        }
+                        out.write(buf, 0, n);
+                        remaining -= n;
+                    }
+                }
+            }
+        }
+        if (boundary != null) {
+            out.write(partEnd(boundary));
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static byte[] partHeader(String boundary, String contentType, long[] range, long length) {
+        StringBuilder sb = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+        if (contentType != null) {
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        sb.append("Content-Range: bytes ").append(range[0]).append('-').append(range[1]).append('/').append(length).append("\r\n\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] partEnd(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+}
@@ -4,26 +4,38 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
 import com.xiaotao.saltedfishcloud.dao.mybatis.FileDao;
 import com.xiaotao.saltedfishcloud.exception.JsonException;
 import com.xiaotao.saltedfishcloud.helper.PathBuilder;
 import com.xiaotao.saltedfishcloud.po.file.FileDCInfo;
 import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
+import com.xiaotao.saltedfishcloud.service.file.cache.ByteBufferResource;
+import com.xiaotao.saltedfishcloud.service.file.cache.HotObjectCache;
+import com.xiaotao.saltedfishcloud.service.file.cache.HotObjectService;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkedResource;
+import com.xiaotao.saltedfishcloud.service.file.pool.AccessTracker;
 import com.xiaotao.saltedfishcloud.service.node.NodeService;
+import com.xiaotao.saltedfishcloud.service.ratelimit.RateLimitService;
 import com.xiaotao.saltedfishcloud.utils.FileUtils;
 import com.xiaotao.saltedfishcloud.utils.JwtUtils;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.ResponseEntity;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
 import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 
 @Service
 public class ResponseService {
@@ -31,60 +43,166 @@ public class ResponseService {
     private NodeService nodeService;
     @Resource
     private FileDao fileDao;
+    @Resource
+    private ChunkStoreService chunkStoreService;
+    @Resource
+    private AccessTracker accessTracker;
+    @Resource
+    private StoreTypeSwitch storeTypeSwitch;
+    @Resource
+    private RangeSender rangeSender;
+    @Resource
+    private RateLimitService rateLimitService;
+    @Resource
+    private HotObjectService hotObjectService;
 
 
     /**
-     * 获取用户网盘文件的资源响应
+     * 向客户端响应用户网盘文件的内容
      * @param uid       用户ID
      * @param filePath  请求的文件网盘中的完整路径
-     * @return          资源响应
+     * @param request   请求
+     * @param response  响应
      */
-    public ResponseEntity<org.springframework.core.io.Resource> getUserFileResponse(int uid, String filePath) throws NoSuchFileException, MalformedURLException, UnsupportedEncodingException {
+    public void sendUserFile(int uid, String filePath, HttpServletRequest request, HttpServletResponse response) throws IOException {
         PathBuilder pathBuilder = new PathBuilder();
         pathBuilder.append(filePath);
         String name = pathBuilder.getPath().getLast();
         String dir = pathBuilder.range(-1);
+        sendDiskFile(uid, dir, name, false, request, response);
+    }
+
+    /**
+     * 按网盘路径查询当前的文件记录并响应文件内容，ETag与热点文件缓存均使用当前记录的MD5
+     * @param uid               用户ID
+     * @param dir               文件所在网盘目录
+     * @param name              文件名
+     * @param directDownload    是否直接下载
+     * @throws NoSuchFileException 文件不存在或已被删除
+     */
+    private void sendDiskFile(int uid, String dir, String name, boolean directDownload, HttpServletRequest request, HttpServletResponse response) throws IOException {
         String nid = nodeService.getLastNodeInfoByPath(uid, dir).getId();
         FileInfo fileInfo = fileDao.getFileInfo(uid, name, nid);
-        if (fileInfo == null) throw new NoSuchFileException("文件不存在");
-        return sendFile(DiskConfig.getPathHandler().getStorePath(uid, dir, fileInfo), fileInfo.getName());
+        if (fileInfo == null || !fileInfo.isFile()) throw new NoSuchFileException("文件不存在");
+        String localPath = DiskConfig.getPathHandler().getStorePath(uid, dir, fileInfo);
+        if (isChunkedRead(fileInfo.getMd5(), localPath)) {
+            sendChunkedFile(fileInfo.getMd5(), fileInfo.getName(), directDownload, request, response);
+            return;
+        }
+        accessTracker.record(fileInfo.getMd5());
+        sendLocalFile(Paths.get(localPath), fileInfo.getName(), fileInfo.getMd5(), directDownload, request, response);
     }
 
     /**
-     * 向客户端响应一个文件内容
+     * 向客户端响应一个本地文件的内容
      * @param localFilePath     本地文件路径
-     * @return  响应实体
+     * @param request           请求
+     * @param response          响应
      */
-    public ResponseEntity<org.springframework.core.io.Resource> sendFile(String localFilePath) throws MalformedURLException, UnsupportedEncodingException {
-        return sendFile(localFilePath, localFilePath.substring(localFilePath.lastIndexOf('/') + 1) );
+    public void sendFile(String localFilePath, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        sendFile(localFilePath, localFilePath.substring(localFilePath.lastIndexOf('/') + 1), request, response);
     }
 
     /**
-     * 向客户端响应一个文件内容
+     * 向客户端响应一个本地文件的内容
      * @param localFilePath     本地文件路径
      * @param name              文件响应重命名
-     * @return  响应实体
+     * @param request           请求
+     * @param response          响应
      */
-    public ResponseEntity<org.springframework.core.io.Resource> sendFile(String localFilePath, String name) throws MalformedURLException, UnsupportedEncodingException {
-        Path path = Paths.get(localFilePath);
-        if (Files.isDirectory(path)) {
-            throw new IllegalArgumentException("无法直接下载文件夹");
+    public void sendFile(String localFilePath, String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        sendLocalFile(Paths.get(localFilePath), name, null, false, request, response);
+    }
+
+
+    /**
+     * 向客户端响应一个网盘中的文件，CHUNKED存储模式下从分块存储库读取，否则响应文件信息中的本地路径
+     * @param fileInfo  文件信息，path为本地文件系统中的实际存储文件路径
+     * @param name      文件响应重命名
+     * @param request   请求
+     * @param response  响应
+     */
+    public void sendFile(FileInfo fileInfo, String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (isChunkedRead(fileInfo.getMd5(), fileInfo.getPath())) {
+            sendChunkedFile(fileInfo.getMd5(), name, false, request, response);
+            return;
         }
-        UrlResource urlResource = new UrlResource(path.toUri());
-        String disposition = "inline;filename*=UTF-8''"+ URLEncoder.encode(name, "utf-8");
-        return ResponseEntity.ok()
-                .header("Content-Type", FileUtils.getContentType(name))
-                .header("Content-Disposition", disposition)
-                .body(urlResource);
+        accessTracker.record(fileInfo.getMd5());
+        sendLocalFile(Paths.get(fileInfo.getPath()), name, fileInfo.getMd5(), false, request, response);
     }
 
+    /**
+     * 判断文件是否需要从分块存储库读取。涉及CHUNKED模式的存储切换期间，文件可能尚未迁移或已迁移，按本地文件是否存在决定
+     * @param md5       文件MD5
+     * @param localPath 文件在网盘目录中的本地路径
+     */
+    public boolean isChunkedRead(String md5, String localPath) {
+        if (!storeTypeSwitch.isSwitching(StoreType.CHUNKED)) {
+            return DiskConfig.STORE_TYPE == StoreType.CHUNKED;
+        }
+        return (localPath == null || !Files.isRegularFile(Paths.get(localPath))) && chunkStoreService.exists(md5);
+    }
 
     /**
-     * 通过下载码获取资源响应体
-     * @param dc 下载码
-     * @return  资源响应体
+     * 向客户端响应一个分块存储库中的文件
+     * @param md5               文件MD5
+     * @param name              文件响应名称
+     * @param directDownload    是否直接下载
+     * @param request           请求
+     * @param response          响应
+     * @throws NoSuchFileException 分块存储库中无此文件
      */
-    public ResponseEntity<org.springframework.core.io.Resource> getResourceByDC(String dc, boolean directDownload) throws MalformedURLException, UnsupportedEncodingException {
+    public void sendChunkedFile(String md5, String name, boolean directDownload, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        HotObjectCache.Entry entry = hotObjectService.get(md5);
+        if (entry != null) {
+            sendCachedFile(entry, md5, name, directDownload, request, response);
+            return;
+        }
+        ChunkedResource resource = new ChunkedResource(chunkStoreService, md5);
+        entry = hotObjectService.load(md5, name, resource.contentLength(), -1, resource::getInputStream);
+        if (entry != null) {
+            sendCachedFile(entry, md5, name, directDownload, request, response);
+            return;
+        }
+        setContentHeaders(response, name, directDownload);
+        rangeSender.send(request, response, resource, md5, -1);
+    }
+
+    /**
+     * 向客户端响应用户头像，频繁访问的头像从热点文件缓存响应，不访问用户配置目录
+     * @param username  用户名
+     * @param request   请求
+     * @param response  响应
+     * @return          用户是否设置了头像，未设置时不响应任何内容
+     */
+    public boolean sendAvatar(String username, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String key = HotObjectService.getAvatarKey(username);
+        HotObjectCache.Entry entry = hotObjectService.get(key);
+        if (entry == null) {
+            File[] avatars = new File(DiskConfig.getUserProfileRoot(username)).listFiles(pathname -> pathname.getName().contains("avatar"));
+            if (avatars == null || avatars.length == 0) {
+                return false;
+            }
+            Path path = avatars[0].toPath();
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            entry = hotObjectService.load(key, avatars[0].getName(), attrs.size(), attrs.lastModifiedTime().toMillis(), () -> Files.newInputStream(path));
+            if (entry == null) {
+                sendLocalFile(path, avatars[0].getName(), null, false, request, response);
+                return true;
+            }
+        }
+        sendCachedFile(entry, null, entry.getName(), false, request, response);
+        return true;
+    }
+
+    /**
+     * 通过下载码向客户端响应文件内容
+     * @param dc                下载码
+     * @param directDownload    是否直接下载
+     * @param request           请求
+     * @param response          响应
+     */
+    public void sendFileByDC(String dc, boolean directDownload, HttpServletRequest request, HttpServletResponse response) throws IOException {
         FileDCInfo info;
         try {
             String data = (String) JwtUtils.parse(dc);
@@ -92,14 +210,59 @@ public class ResponseService {
         } catch (JsonProcessingException e) {
             throw new JsonException(400, "下载码无效");
         }
-        Path localFilePath = Paths.get(DiskConfig.getPathHandler().getStorePath(info.getUid(), info.getDir(), info));
-        String name = info.getName();
-        UrlResource urlResource = new UrlResource(localFilePath.toUri());
-        String ct = FileUtils.getContentType(directDownload ? "a" : name);
-        String disposition = "inline;filename*=UTF-8''"+ URLEncoder.encode(name, "utf-8");
-        return ResponseEntity.ok()
-                .header("Content-Type", ct)
-                .header("Content-Disposition", disposition)
-                .body(urlResource);
+        rateLimitService.bindLink(request, dc, info.getRate());
+        // 下载码中的MD5是签发时的文件内容，文件可能已被覆盖或删除，按路径重新查询当前记录
+        sendDiskFile(info.getUid(), info.getDir(), info.getName(), directDownload, request, response);
+    }
+
+    /**
+     * 向客户端响应本地文件，最后修改时间取文件的修改时间
+     * @param path              本地文件路径
+     * @param name              文件响应名称
+     * @param md5               文件MD5，作为ETag，为null时不使用ETag
+     * @param directDownload    是否直接下载
+     * @throws NoSuchFileException 文件不存在
+     */
+    private void sendLocalFile(Path path, String name, String md5, boolean directDownload, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (Files.isDirectory(path)) {
+            throw new IllegalArgumentException("无法直接下载文件夹");
+        }
+        if (!Files.exists(path)) {
+            throw new NoSuchFileException("文件不存在");
+        }
+        // 确认文件仍存在后才从缓存响应，已删除的文件不会因缓存命中而继续可下载
+        HotObjectCache.Entry entry = md5 == null ? null : hotObjectService.get(md5);
+        if (entry != null) {
+            sendCachedFile(entry, md5, name, directDownload, request, response);
+            return;
+        }
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        if (md5 != null) {
+            entry = hotObjectService.load(md5, name, attrs.size(), lastModified, () -> Files.newInputStream(path));
+            if (entry != null) {
+                sendCachedFile(entry, md5, name, directDownload, request, response);
+                return;
+            }
+        }
+        setContentHeaders(response, name, directDownload);
+        rangeSender.send(request, response, new FileSystemResource(path), md5, lastModified);
+    }
+
+    /**
+     * 从热点文件缓存响应文件内容
+     * @param entry             缓存的文件
+     * @param md5               文件MD5，作为ETag，为null时不使用ETag
+     * @param name              文件响应名称
+     * @param directDownload    是否直接下载
+     */
+    private void sendCachedFile(HotObjectCache.Entry entry, String md5, String name, boolean directDownload, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        setContentHeaders(response, name, directDownload);
+        rangeSender.send(request, response, new ByteBufferResource(entry.getData(), md5 == null ? name : md5), md5, entry.getLastModified());
+    }
+
+    private static void setContentHeaders(HttpServletResponse response, String name, boolean directDownload) throws UnsupportedEncodingException {
+        response.setHeader("Content-Type", FileUtils.getContentType(directDownload ? "a" : name));
+        response.setHeader("Content-Disposition", "inline;filename*=UTF-8''"+ URLEncoder.encode(name, "utf-8"));
     }
 }
@@ -4,10 +4,16 @@ import com.xiaotao.saltedfishcloud.config.DiskConfig;
 import com.xiaotao.saltedfishcloud.config.StoreType;
 import com.xiaotao.saltedfishcloud.dao.mybatis.FileAnalyseDao;
 import com.xiaotao.saltedfishcloud.po.JsonResult;
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
+import com.xiaotao.saltedfishcloud.service.file.pool.PoolRebalancer;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
+import com.xiaotao.saltedfishcloud.service.file.pool.TieringService;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.io.File;
+import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -15,12 +21,31 @@ import java.util.Map;
 public class AdminService {
     @Resource
     private FileAnalyseDao fileAnalyseDao;
-    public Map<String, Object> getStoreState() {
+    @Resource
+    private ChunkStoreService chunkStoreService;
+    @Resource
+    private StoragePool storagePool;
+    @Resource
+    private PoolRebalancer poolRebalancer;
+    @Resource
+    private TieringService tieringService;
+    @Resource
+    private StoreTypeSwitch storeTypeSwitch;
+
+    public Map<String, Object> getStoreState() throws IOException {
         LinkedHashMap<String, Object> data = JsonResult.getDataMap();
         File storeRoot = new File(DiskConfig.STORE_ROOT);
         File publicRoot = new File(DiskConfig.PUBLIC_ROOT);
         long userTotalSize = fileAnalyseDao.getUserTotalSize();
-        long realTotalUserSize = DiskConfig.STORE_TYPE == StoreType.UNIQUE ? fileAnalyseDao.getRealTotalUserSize() : userTotalSize;
+        long realTotalUserSize;
+        if (DiskConfig.STORE_TYPE == StoreType.UNIQUE) {
+            realTotalUserSize = fileAnalyseDao.getRealTotalUserSize();
+        } else if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+            // 分块存储时实际占用为所有数据块的大小（包含公共网盘文件）
+            realTotalUserSize = chunkStoreService.getRepository().getStoredSize();
+        } else {
+            realTotalUserSize = userTotalSize;
+        }
         long publicTotalSize = fileAnalyseDao.getPublicTotalSize();
         data.put("store_type", DiskConfig.STORE_TYPE);
         data.put("file_count", fileAnalyseDao.getFileCount());
@@ -35,6 +60,13 @@ public class AdminService {
         data.put("store_root", storeRoot.getPath());
         data.put("public_root", publicRoot.getPath());
         data.put("read_only", DiskConfig.getReadOnlyLevel());
+        data.put("volumes", storagePool.getStat());
+        data.put("rebalance", poolRebalancer.getStatus());
+        data.put("tiering", tieringService.getStatus());
+        data.put("store_switch", storeTypeSwitch.getStatus());
+        if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+            data.put("chunk_store", chunkStoreService.getRepository().getStat());
+        }
         return data;
     }
 }
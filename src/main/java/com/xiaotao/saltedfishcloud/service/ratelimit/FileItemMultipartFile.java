@@ -0,0 +1,78 @@
+package com.xiaotao.saltedfishcloud.service.ratelimit;
+
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 由{@link UploadRateLimitFilter}从受限速的请求体解析得到的上传文件，数据在解析时已写入内存或临时文件
+ */
+class FileItemMultipartFile implements MultipartFile {
+    private final FileItem item;
+
+    FileItemMultipartFile(FileItem item) {
+        this.item = item;
+    }
+
+    @Override
+    public String getName() {
+        return item.getFieldName();
+    }
+
+    @Override
+    public String getOriginalFilename() {
+        String name = item.getName();
+        if (name == null) {
+            return null;
+        }
+        // 部分浏览器会提交完整的本地路径
+        int idx = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        return name.substring(idx + 1);
+    }
+
+    @Override
+    public String getContentType() {
+        return item.getContentType();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return item.getSize() == 0;
+    }
+
+    @Override
+    public long getSize() {
+        return item.getSize();
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return item.get();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return item.getInputStream();
+    }
+
+    @Override
+    public void transferTo(File dest) throws IOException, IllegalStateException {
+        try {
+            item.write(dest);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 删除解析时写入的临时文件
+     */
+    void delete() {
+        item.delete();
+    }
+}
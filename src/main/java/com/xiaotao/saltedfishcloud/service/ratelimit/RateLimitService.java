@@ -0,0 +1,172 @@
+package com.xiaotao.saltedfishcloud.service.ratelimit;
+
+import com.xiaotao.saltedfishcloud.po.User;
+import com.xiaotao.saltedfishcloud.utils.SecureUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 传输限速服务，按用户类型限制每个用户的下载与上传总速率，按下载码限制通过同一下载码的下载总速率。<br>
+ * 每个用户（匿名用户按IP区分）与每个下载码各有一个令牌桶，同一用户的多个并发传输（包括网页端与FTP）共享该用户的令牌桶并平分带宽。
+ * 速率单位为KiB/s，为0时不限制
+ */
+@Service
+@Slf4j
+public class RateLimitService {
+    /**
+     * 令牌桶闲置超过该时间后被回收
+     */
+    public static final long IDLE_MILLIS = 60 * 1000;
+
+    private static final String LINK_BUCKET_ATTR = RateLimitService.class.getName() + ".LINK_BUCKET";
+
+    @Value("${rate-limit-download-anonymous:0}")
+    private int downloadAnonymous;
+
+    @Value("${rate-limit-download-common:0}")
+    private int downloadCommon;
+
+    @Value("${rate-limit-download-admin:0}")
+    private int downloadAdmin;
+
+    @Value("${rate-limit-upload-common:0}")
+    private int uploadCommon;
+
+    @Value("${rate-limit-upload-admin:0}")
+    private int uploadAdmin;
+
+    @Value("${rate-limit-dc:0}")
+    private int dcDefault;
+
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * 获取用户的下载速率
+     * @param user  用户，为null或公共用户时表示匿名用户
+     * @return      速率（KiB/s），0表示不限制
+     */
+    public int getDownloadRate(User user) {
+        if (user == null || user.getId() == null || user.isPublicUser()) {
+            return downloadAnonymous;
+        }
+        return user.getType() != null && user.getType() == User.TYPE_ADMIN ? downloadAdmin : downloadCommon;
+    }
+
+    /**
+     * 获取用户的上传速率
+     * @param user  用户，为null或公共用户时表示匿名用户，匿名用户不限制（无法上传）
+     * @return      速率（KiB/s），0表示不限制
+     */
+    public int getUploadRate(User user) {
+        if (user == null || user.getId() == null || user.isPublicUser()) {
+            return 0;
+        }
+        return user.getType() != null && user.getType() == User.TYPE_ADMIN ? uploadAdmin : uploadCommon;
+    }
+
+    /**
+     * 为通过下载码的下载绑定下载码的限速，同一下载码的所有下载共享带宽
+     * @param request   请求
+     * @param code      下载码
+     * @param rate      下载码指定的速率（KiB/s），为0时使用配置的默认值；配置了默认值时默认值同时是上限，指定的速率不能超过
+     */
+    public void bindLink(HttpServletRequest request, String code, int rate) {
+        int effective = rate > 0 && dcDefault > 0 ? Math.min(rate, dcDefault) : Math.max(rate, dcDefault);
+        if (effective > 0) {
+            String key = "dc:" + DigestUtils.md5DigestAsHex(code.getBytes(StandardCharsets.UTF_8));
+            request.setAttribute(LINK_BUCKET_ATTR, getBucket(key, effective));
+        }
+    }
+
+    /**
+     * 获取当前请求的下载限速器
+     * @param request   请求
+     * @return          限速器，不限速时返回null
+     */
+    public RateLimiter getDownloadLimiter(HttpServletRequest request) {
+        List<TokenBucket> res = new ArrayList<>(2);
+        User user = SecureUtils.getSpringSecurityUser();
+        int rate = getDownloadRate(user);
+        if (rate > 0) {
+            res.add(getBucket("download:" + userKey(user, request.getRemoteAddr()), rate));
+        }
+        Object link = request.getAttribute(LINK_BUCKET_ATTR);
+        if (link instanceof TokenBucket) {
+            res.add((TokenBucket) link);
+        }
+        return res.isEmpty() ? null : new RateLimiter(res.toArray(new TokenBucket[0]));
+    }
+
+    /**
+     * 获取当前请求的上传限速器
+     * @param request   请求
+     * @return          限速器，不限速时返回null
+     */
+    public RateLimiter getUploadLimiter(HttpServletRequest request) {
+        return getUploadLimiter(SecureUtils.getSpringSecurityUser(), request.getRemoteAddr());
+    }
+
+    /**
+     * 获取用户的下载限速器，用于FTP等不经过HTTP请求的传输，与网页端下载共享用户的令牌桶
+     * @param user      用户，为null或公共用户时表示匿名用户
+     * @param address   客户端地址，用于区分匿名用户
+     * @return          限速器，不限速时返回null
+     */
+    public RateLimiter getDownloadLimiter(User user, String address) {
+        int rate = getDownloadRate(user);
+        if (rate <= 0) {
+            return null;
+        }
+        return new RateLimiter(getBucket("download:" + userKey(user, address), rate));
+    }
+
+    /**
+     * 获取用户的上传限速器，用于FTP等不经过HTTP请求的传输，与网页端上传共享用户的令牌桶
+     * @param user      用户，为null或公共用户时表示匿名用户
+     * @param address   客户端地址，用于区分匿名用户
+     * @return          限速器，不限速时返回null
+     */
+    public RateLimiter getUploadLimiter(User user, String address) {
+        int rate = getUploadRate(user);
+        if (rate <= 0) {
+            return null;
+        }
+        return new RateLimiter(getBucket("upload:" + userKey(user, address), rate));
+    }
+
+    /**
+     * 回收闲置的令牌桶
+     */
+    @Scheduled(fixedDelay = IDLE_MILLIS)
+    public void sweep() {
+        long idle = TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS);
+        buckets.values().removeIf(bucket -> bucket.isIdle(idle));
+    }
+
+    /**
+     * 获取令牌桶，容量为0.5秒的数据量，速率变化后使用新的令牌桶
+     * @param key   令牌桶标识
+     * @param rate  速率（KiB/s）
+     */
+    private TokenBucket getBucket(String key, int rate) {
+        long bytes = rate * 1024L;
+        return buckets.computeIfAbsent(key + "@" + rate, k -> new TokenBucket(bytes, Math.max(RateLimiter.SLICE, bytes / 2)));
+    }
+
+    private static String userKey(User user, String address) {
+        if (user == null || user.getId() == null || user.isPublicUser()) {
+            return "ip:" + address;
+        }
+        return "uid:" + user.getId();
+    }
+}
@@ -0,0 +1,102 @@
+package com.xiaotao.saltedfishcloud.service.ratelimit;
+
+import java.io.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 一次传输的限速器，同时受多个令牌桶（如用户与下载码）限制，实际速率取决于其中最慢的桶。<br>
+ * 数据按{@link #SLICE}大小分片预约令牌，同一个桶上的并发传输交替获得带宽
+ */
+public class RateLimiter {
+    /**
+     * 每次预约令牌的最大字节数
+     */
+    public static final int SLICE = 16 * 1024;
+
+    private final TokenBucket[] buckets;
+
+    /**
+     * @param buckets   限制传输的令牌桶
+     */
+    public RateLimiter(TokenBucket... buckets) {
+        this.buckets = buckets;
+    }
+
+    /**
+     * 获取传输指定字节数所需的令牌，令牌不足时阻塞等待
+     * @param n 字节数
+     * @throws InterruptedIOException 等待时被中断
+     */
+    public void acquire(long n) throws InterruptedIOException {
+        while (n > 0) {
+            long slice = Math.min(n, SLICE);
+            long wait = 0;
+            for (TokenBucket bucket : buckets) {
+                wait = Math.max(wait, bucket.reserve(slice));
+            }
+            sleep(wait);
+            n -= slice;
+        }
+    }
+
+    /**
+     * 包装输出流，写入的数据受限速器限制
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, SLICE);
+                    acquire(n);
+                    out.write(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+        };
+    }
+
+    /**
+     * 包装输入流，读取的数据受限速器限制
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    acquire(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, Math.min(len, SLICE));
+                if (n > 0) {
+                    acquire(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("限速等待时被中断");
+            }
+            nanos = deadline - System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.xiaotao.saltedfishcloud.service.ratelimit;
+
+/**
+ * 令牌桶，令牌以固定速率产生，桶满时不再增加。<br>
+ * 取令牌时允许透支，透支的部分按产生速率换算为需要等待的时间，后来者需等待之前所有的透支偿还后才能获得令牌，
+ * 因此同一个桶上的并发传输按预约的先后顺序交替获得带宽。每次预约的数据量较小时各传输平分带宽
+ */
+public class TokenBucket {
+    private final long rate;
+    private final long capacity;
+    private double tokens;
+    private long lastRefill;
+    private long lastReserve;
+
+    /**
+     * @param rate      令牌产生速率（字节/秒）
+     * @param capacity  桶容量，即空闲后允许突发传输的字节数
+     */
+    public TokenBucket(long rate, long capacity) {
+        if (rate <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("速率与容量必须大于0");
+        }
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = this.lastReserve = System.nanoTime();
+    }
+
+    /**
+     * @return  令牌产生速率（字节/秒）
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * 预约令牌
+     * @param n 预约的令牌数
+     * @return  获得令牌需要等待的纳秒数，令牌充足时为0
+     */
+    public long reserve(long n) {
+        return reserve(n, System.nanoTime());
+    }
+
+    synchronized long reserve(long n, long now) {
+        refill(now);
+        lastReserve = now;
+        tokens -= n;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / rate);
+    }
+
+    /**
+     * 判断桶是否已闲置：已被填满且指定时间内没有被预约
+     * @param idleNanos 闲置时间（纳秒）
+     */
+    public synchronized boolean isIdle(long idleNanos) {
+        long now = System.nanoTime();
+        refill(now);
+        return tokens >= capacity && now - lastReserve >= idleNanos;
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * (double) rate / 1e9);
+            lastRefill = now;
+        }
+    }
+}
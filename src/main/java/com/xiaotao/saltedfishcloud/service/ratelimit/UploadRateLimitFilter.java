@@ -0,0 +1,188 @@
+package com.xiaotao.saltedfishcloud.service.ratelimit;
+
+import com.xiaotao.saltedfishcloud.po.JsonResult;
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.tomcat.util.http.fileupload.FileUploadBase;
+import org.apache.tomcat.util.http.fileupload.FileUploadException;
+import org.apache.tomcat.util.http.fileupload.disk.DiskFileItemFactory;
+import org.apache.tomcat.util.http.fileupload.impl.SizeException;
+import org.apache.tomcat.util.http.fileupload.servlet.ServletFileUpload;
+import org.apache.tomcat.util.http.fileupload.servlet.ServletRequestContext;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.support.DefaultMultipartHttpServletRequest;
+
+import javax.annotation.Resource;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 上传限速过滤器，在Spring Security过滤器链之后执行，按登录用户限制请求体的读取速率。<br>
+ * 请求体在读取时逐片限速，未知长度（分块传输编码）的请求体同样适用。multipart请求体不交给Servlet容器解析
+ * （容器直接读取原始输入流，绕过限速），而是由过滤器从受限速的输入流解析为{@link DefaultMultipartHttpServletRequest}，
+ * 上传文件在解析时写入临时文件，请求结束后删除；解析大小限制沿用spring.servlet.multipart的配置
+ */
+@Component
+public class UploadRateLimitFilter extends OncePerRequestFilter {
+    @Resource
+    private RateLimitService rateLimitService;
+
+    @Resource
+    private MultipartProperties multipartProperties;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String method = request.getMethod();
+        return !("PUT".equals(method) || "POST".equals(method)) || request.getContentLengthLong() == 0;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+        RateLimiter limiter = rateLimitService.getUploadLimiter(request);
+        if (limiter == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest limited = new HttpServletRequestWrapper(request) {
+            private ServletInputStream stream;
+
+            @Override
+            public ServletInputStream getInputStream() throws IOException {
+                if (stream == null) {
+                    stream = wrap(super.getInputStream(), limiter);
+                }
+                return stream;
+            }
+        };
+        String contentType = request.getContentType();
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/")) {
+            chain.doFilter(limited, response);
+            return;
+        }
+        List<FileItemMultipartFile> files = new ArrayList<>();
+        try {
+            DefaultMultipartHttpServletRequest multipart;
+            try {
+                multipart = parseMultipart(limited, files);
+            } catch (MaxUploadSizeExceededException e) {
+                // 过滤器中抛出的异常不经过DispatcherServlet，全局异常处理无法捕获，直接响应错误
+                responseError(response, 413, "上传文件大小超出限制");
+                return;
+            } catch (MultipartException e) {
+                responseError(response, 400, "multipart请求解析失败");
+                return;
+            }
+            chain.doFilter(multipart, response);
+        } finally {
+            files.forEach(FileItemMultipartFile::delete);
+        }
+    }
+
+    private static void responseError(HttpServletResponse response, int code, String message) throws IOException {
+        response.setContentType("application/json;charset=utf-8");
+        response.setStatus(code);
+        response.getWriter().print(JsonResult.getInstance(code, null, message));
+    }
+
+    /**
+     * 从受限速的请求体解析multipart请求，DispatcherServlet遇到已解析的请求时不再交给容器解析
+     * @param request   包装了受限速输入流的请求
+     * @param files     解析得到的上传文件，用于请求结束后删除临时文件
+     */
+    private DefaultMultipartHttpServletRequest parseMultipart(HttpServletRequest request, List<FileItemMultipartFile> files) {
+        String encoding = request.getCharacterEncoding() == null ? StandardCharsets.UTF_8.name() : request.getCharacterEncoding();
+        String location = multipartProperties.getLocation();
+        DiskFileItemFactory factory = new DiskFileItemFactory(
+                (int) multipartProperties.getFileSizeThreshold().toBytes(),
+                StringUtils.hasText(location) ? new File(location) : null
+        );
+        ServletFileUpload upload = new ServletFileUpload(factory);
+        upload.setHeaderEncoding(encoding);
+        upload.setFileSizeMax(multipartProperties.getMaxFileSize().toBytes());
+        upload.setSizeMax(multipartProperties.getMaxRequestSize().toBytes());
+
+        List<FileItem> items;
+        try {
+            items = upload.parseRequest(new ServletRequestContext(request));
+        } catch (SizeException e) {
+            throw new MaxUploadSizeExceededException(e.getPermittedSize(), e);
+        } catch (FileUploadException e) {
+            throw new MultipartException("multipart请求解析失败", e);
+        }
+
+        MultiValueMap<String, MultipartFile> multipartFiles = new LinkedMultiValueMap<>();
+        Map<String, String[]> params = new LinkedHashMap<>();
+        Map<String, String> paramContentTypes = new HashMap<>();
+        for (FileItem item : items) {
+            if (item.isFormField()) {
+                String value;
+                try {
+                    value = item.getString(encoding);
+                } catch (IOException e) {
+                    value = item.getString();
+                }
+                String[] old = params.get(item.getFieldName());
+                if (old == null) {
+                    params.put(item.getFieldName(), new String[]{value});
+                } else {
+                    String[] values = Arrays.copyOf(old, old.length + 1);
+                    values[old.length] = value;
+                    params.put(item.getFieldName(), values);
+                }
+                paramContentTypes.put(item.getFieldName(), item.getContentType());
+            } else {
+                FileItemMultipartFile file = new FileItemMultipartFile(item);
+                files.add(file);
+                multipartFiles.add(item.getFieldName(), file);
+            }
+        }
+        return new DefaultMultipartHttpServletRequest(request, multipartFiles, params, paramContentTypes);
+    }
+
+    private static ServletInputStream wrap(ServletInputStream origin, RateLimiter limiter) {
+        InputStream limited = limiter.wrap(origin);
+        return new ServletInputStream() {
+            @Override
+            public boolean isFinished() {
+                return origin.isFinished();
+            }
+
+            @Override
+            public boolean isReady() {
+                return origin.isReady();
+            }
+
+            @Override
+            public void setReadListener(ReadListener listener) {
+                origin.setReadListener(listener);
+            }
+
+            @Override
+            public int read() throws IOException {
+                return limited.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return limited.read(b, off, len);
+            }
+        };
+    }
+}
@@ -1,8 +1,10 @@
 package com.xiaotao.saltedfishcloud.service.sync;
 
 import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
 import com.xiaotao.saltedfishcloud.enums.ReadOnlyLevel;
 import com.xiaotao.saltedfishcloud.po.User;
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
 import com.xiaotao.saltedfishcloud.service.sync.detector.SyncDiffDetector;
 import com.xiaotao.saltedfishcloud.service.sync.handler.SyncDiffHandler;
 import lombok.extern.slf4j.Slf4j;
@@ -20,10 +22,12 @@ public class SyncService {
     private final static ReadOnlyLevel WORKING_READ_ONLY_LEVEL = ReadOnlyLevel.DATA_CHECKING;
     private final SyncDiffHandler handler;
     private final SyncDiffDetector detector;
+    private final StoreTypeSwitch storeTypeSwitch;
 
-    SyncService(SyncDiffHandler handler, SyncDiffDetector detector) {
+    SyncService(SyncDiffHandler handler, SyncDiffDetector detector, StoreTypeSwitch storeTypeSwitch) {
         this.handler = handler;
         this.detector = detector;
+        this.storeTypeSwitch = storeTypeSwitch;
     }
 
     /**
@@ -33,6 +37,15 @@ public class SyncService {
      * @throws IOException IO出错
      */
     public void syncLocal(User user) throws Exception {
+        if (DiskConfig.STORE_TYPE == StoreType.CHUNKED) {
+            // 分块存储模式下网盘目录中不保存文件，文件信息以数据库为准
+            log.debug("CHUNKED存储模式，跳过同步：" + user.getUsername());
+            return;
+        }
+        if (storeTypeSwitch.isSwitching()) {
+            // 迁移中的本地文件与数据库不一致，切换完成后再同步
+            throw new IllegalStateException("存储模式切换中，暂时无法同步");
+        }
         try {
             DiskConfig.setReadOnlyLevel(WORKING_READ_ONLY_LEVEL);
             var result = detector.detect(user);
@@ -50,15 +50,18 @@ public class SyncDiffDetectorImpl implements SyncDiffDetector {
     public SyncDiffResultDefaultImpl detect(User user) throws Exception {
         int uid = user.getId();
         SyncDiffResultDefaultImpl res = new SyncDiffResultDefaultImpl();
+        // 用户网盘根目录只获取一次，避免逐文件解析
+        String storeRoot = DiskConfig.getRawFileStoreRootPath(uid);
+        String basePath = PathUtils.getUserBasePath(user);
 
         // 原始数据获取与初步处理
 
         // 数据库中所有文件信息
         Map<String, Collection<? extends FileInfo>> dbFile = fetchDbFiles(uid);
         // 用户目录本地硬盘上的信息集合
-        DirCollection local = FileUtils.scanDir(Paths.get(DiskConfig.getPathHandler().getStorePath(user.getId(), "/", null)));
+        DirCollection local = FileUtils.scanDir(Paths.get(storeRoot));
         // 本地硬盘上的目录集合
-        Set<String> localDir = local.getDirList().stream().map(e -> PathUtils.getRelativePath(user, e.getPath())).collect(Collectors.toSet());
+        Set<String> localDir = local.getDirList().stream().map(e -> PathUtils.getRelativePath(basePath, e.getPath())).collect(Collectors.toSet());
         localDir.add("/");
 
         //  获取本地新增目录
@@ -76,7 +79,7 @@ public class SyncDiffDetectorImpl implements SyncDiffDetector {
         LinkedList<FileInfo> deletedFiles = new LinkedList<>();
         dbFile.forEach((k,v) -> {
             v.forEach(fileInfo -> {
-                Path path = Paths.get(DiskConfig.getRawFileStoreRootPath(uid) + "/" + k + "/" + fileInfo.getName());
+                Path path = Paths.get(storeRoot + "/" + k + "/" + fileInfo.getName());
                 if ( !Files.exists(path) || Files.isDirectory(path)) {
                     deletedFiles.add(fileInfo);
                 } else {
@@ -91,15 +94,15 @@ public class SyncDiffDetectorImpl implements SyncDiffDetector {
         LinkedList<FileInfo> newFiles = new LinkedList<>();
         LinkedList<FileChangeInfo> changeFiles = new LinkedList<>();
         for (File e : local.getFileList()) {
-            String path = PathUtils.getRelativePath(user, e.getPath());
+            String path = PathUtils.getRelativePath(basePath, e.getPath());
             FileInfo f = dbFiles.get(path);
             if ( f == null ) {
                 FileInfo fi = new FileInfo(e);
-                fi.setPath(PathUtils.getRelativePath(user, e.getParent()));
+                fi.setPath(PathUtils.getRelativePath(basePath, e.getParent()));
                 newFiles.add(fi);
             } else if ( e.length() != f.getSize() ) {
                 FileInfo fi = new FileInfo(e);
-                fi.setPath(PathUtils.getRelativePath(user, e.getParent()));
+                fi.setPath(PathUtils.getRelativePath(basePath, e.getParent()));
                 changeFiles.add(new FileChangeInfo(f, fi));
             }
         }
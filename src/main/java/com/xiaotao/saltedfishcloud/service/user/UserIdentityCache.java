@@ -0,0 +1,142 @@
+package com.xiaotao.saltedfishcloud.service.user;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.dao.mybatis.UserDao;
+import com.xiaotao.saltedfishcloud.po.User;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 用户身份缓存，缓存用户ID、用户名与用户网盘根目录之间的对应关系。<br>
+ * 网盘本地路径的解析在每个文件操作中都会进行，后台任务（同步、离线下载、存储切换等）没有登录上下文，
+ * 不使用缓存时每个文件都要查询一次数据库。<br>
+ * 用户名注册后不可修改，缓存只需在用户信息变更时失效（{@link #invalidate}），存储根目录或存储卷配置变化时网盘根目录缓存自动失效。
+ */
+@Component
+@Slf4j
+public class UserIdentityCache {
+    private final UserDao userDao;
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> roots = new ConcurrentHashMap<>();
+    private volatile String rootsStoreRoot;
+    private volatile List<String> rootsVolumes;
+
+    public UserIdentityCache(UserDao userDao) {
+        this.userDao = userDao;
+    }
+
+    /**
+     * 获取用户ID对应的用户名
+     * @param uid   用户ID
+     * @return      用户名，用户不存在时返回null
+     */
+    public String getUsername(int uid) {
+        if (uid == 0) {
+            return User.getPublicUser().getUsername();
+        }
+        String name = names.get(uid);
+        if (name == null) {
+            User user = userDao.getUserById(uid);
+            if (user == null) {
+                return null;
+            }
+            put(user);
+            name = user.getUsername();
+        }
+        return name;
+    }
+
+    /**
+     * 获取用户名对应的用户ID
+     * @param username  用户名
+     * @return          用户ID，用户不存在时返回null
+     */
+    public Integer getUid(String username) {
+        Integer uid = ids.get(username);
+        if (uid == null) {
+            User user = userDao.getUserByUser(username);
+            if (user == null) {
+                return null;
+            }
+            put(user);
+            uid = user.getId();
+        }
+        return uid;
+    }
+
+    /**
+     * 获取用户的网盘根目录（不以/结尾），公共用户为公共网盘目录
+     * @param uid   用户ID
+     * @return      本地目录，用户不存在时返回null
+     */
+    public String getStoreRoot(int uid) {
+        if (uid == 0) {
+            return DiskConfig.PUBLIC_ROOT;
+        }
+        if (!Objects.equals(rootsStoreRoot, DiskConfig.STORE_ROOT) || rootsVolumes != DiskConfig.STORE_VOLUMES) {
+            roots.clear();
+            rootsStoreRoot = DiskConfig.STORE_ROOT;
+            rootsVolumes = DiskConfig.STORE_VOLUMES;
+        }
+        String root = roots.get(uid);
+        if (root == null) {
+            String name = getUsername(uid);
+            if (name == null) {
+                return null;
+            }
+            root = DiskConfig.getUserPrivateDiskRoot(name);
+            roots.put(uid, root);
+        }
+        return root;
+    }
+
+    private void put(User user) {
+        names.put(user.getId(), user.getUsername());
+        ids.put(user.getUsername(), user.getId());
+    }
+
+    /**
+     * 使用户的缓存失效
+     * @param uid   用户ID
+     */
+    public void invalidate(int uid) {
+        String name = names.remove(uid);
+        if (name != null) {
+            ids.remove(name);
+        }
+        roots.remove(uid);
+    }
+
+    /**
+     * 使用户的缓存失效
+     * @param username  用户名
+     */
+    public void invalidate(String username) {
+        Integer uid = ids.remove(username);
+        if (uid != null) {
+            invalidate(uid);
+        }
+    }
+
+    /**
+     * 清空所有缓存
+     */
+    public void clear() {
+        names.clear();
+        ids.clear();
+        roots.clear();
+    }
+
+    /**
+     * 已缓存的用户数
+     */
+    public int size() {
+        return names.size();
+    }
+}
@@ -5,6 +5,7 @@ import com.xiaotao.saltedfishcloud.dao.mybatis.UserDao;
 import com.xiaotao.saltedfishcloud.exception.JsonException;
 import com.xiaotao.saltedfishcloud.exception.UserNoExistException;
 import com.xiaotao.saltedfishcloud.po.User;
+import com.xiaotao.saltedfishcloud.service.file.cache.HotObjectService;
 import com.xiaotao.saltedfishcloud.utils.FileUtils;
 import com.xiaotao.saltedfishcloud.utils.SecureUtils;
 import lombok.var;
@@ -35,6 +36,7 @@ public class UserServiceImp implements UserService{
             throw new IllegalArgumentException("不允许撤销admin用户的管理员权限");
         }
         int res = userDao.grant(uid, type);
+        userIdentityCache.invalidate(uid);
         if (res == 0) {
             throw new UserNoExistException(404, "用户不存在");
         }
@@ -42,6 +44,10 @@ public class UserServiceImp implements UserService{
 
     @Resource
     private UserDao userDao;
+    @Resource
+    private UserIdentityCache userIdentityCache;
+    @Resource
+    private HotObjectService hotObjectService;
 
     @Override
     public User getUserByUser(String user) throws UserNoExistException {
@@ -77,7 +83,8 @@ public class UserServiceImp implements UserService{
         String pwd = SecureUtils.getPassswd(passwd);
         try {
             var res = userDao.addUser(user, pwd, type);
-            Files.createDirectory(Paths.get(DiskConfig.getUserPrivateDiskRoot(user)));
+            userIdentityCache.invalidate(user);
+            Files.createDirectories(Paths.get(DiskConfig.getUserPrivateDiskRoot(user)));
             return res;
         } catch (DuplicateKeyException e) {
             throw new JsonException(400, "用户" + user + "已被注册");
@@ -107,6 +114,7 @@ public class UserServiceImp implements UserService{
                 avatars[0].delete();
             }
             file.transferTo(Paths.get(profileRoot + "/avatar." + suffix));
+            hotObjectService.invalidate(HotObjectService.getAvatarKey(username));
         } catch (IOException e) {
             throw new JsonException(500, e.getMessage());
         }
@@ -29,16 +29,30 @@ public class PathUtils {
      * @return          相对网盘的路径
      */
     public static String getRelativePath(User user, String localPath) {
-        String local = PathBuilder.formatPath(localPath);
-        String userBasePath;
-        String res;
+        return getRelativePath(getUserBasePath(user), localPath);
+    }
+
+    /**
+     * 提取一个文件的完整本地路径中 相对网盘的路径，用于批量处理同一用户的文件时避免重复获取用户网盘根目录
+     * @param userBasePath  用户网盘根目录，通过{@link #getUserBasePath}获取
+     * @param localPath     本地路径
+     * @return              相对网盘的路径
+     */
+    public static String getRelativePath(String userBasePath, String localPath) {
+        String res = PathBuilder.formatPath(localPath).substring(userBasePath.length());
+        return res.length() == 0 ? "/" : res;
+    }
+
+    /**
+     * 获取用户的网盘根目录
+     * @param user  用户信息
+     */
+    public static String getUserBasePath(User user) {
         if (user.getId() == 0) {
-            userBasePath = DiskConfig.getRawFileStoreRootPath(0);
+            return DiskConfig.getRawFileStoreRootPath(0);
         } else {
-            userBasePath = DiskConfig.getUserPrivateDiskRoot(user.getUser());
+            return DiskConfig.getUserPrivateDiskRoot(user.getUser());
         }
-        res = local.substring(userBasePath.length());
-        return res.length() == 0 ? "/" : res;
     }
 
     /**
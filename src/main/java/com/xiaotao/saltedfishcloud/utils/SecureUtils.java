@@ -24,6 +24,7 @@ public class SecureUtils {
     private RequestMappingHandlerMapping requestMappingHandlerMapping;
 
     final static private String SALT = "1145141919810";
+    final static private char[] HEX = "0123456789abcdef".toCharArray();
 
     /**
      * 随机生成一个UUID<br>
@@ -51,6 +52,42 @@ public class SecureUtils {
         return DigestUtils.md5DigestAsHex(input.getBytes());
     }
 
+    /**
+     * 将字节数组转为小写十六进制字符串
+     * @param bytes 字节数组
+     * @return  十六进制字符串
+     */
+    static public String bytesToHex(byte[] bytes) {
+        char[] res = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            res[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            res[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(res);
+    }
+
+    /**
+     * 将十六进制字符串转为字节数组
+     * @param hex   十六进制字符串
+     * @return  字节数组
+     * @throws IllegalArgumentException 字符串不是合法的十六进制字符串
+     */
+    static public byte[] hexToBytes(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("无效的十六进制字符串：" + hex);
+        }
+        byte[] res = new byte[hex.length() / 2];
+        for (int i = 0; i < res.length; i++) {
+            int h = Character.digit(hex.charAt(i * 2), 16);
+            int l = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (h == -1 || l == -1) {
+                throw new IllegalArgumentException("无效的十六进制字符串：" + hex);
+            }
+            res[i] = (byte) ((h << 4) | l);
+        }
+        return res;
+    }
+
     /**
      * 获取SpringSecurity中通过认证的User对象，若无，则返回null
      * @return User对象
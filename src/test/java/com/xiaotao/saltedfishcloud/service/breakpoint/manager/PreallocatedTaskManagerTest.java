@@ -0,0 +1,77 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.manager;
+
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskStatMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.PreallocatedTaskManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PreallocatedTaskManagerTest {
+
+    @Test
+    public void concurrentSave() throws Exception {
+        PreallocatedTaskManager manager = new PreallocatedTaskManager();
+        TaskMetadata info = new TaskMetadata();
+        info.setFileName("test.bin");
+        info.setLength(2097152L * 20 + 12345);
+        byte[] data = new byte[(int) info.getLength()];
+        new Random(1).nextBytes(data);
+        String id = manager.createTask(info);
+        try {
+            TaskStatMetadata stat = manager.queryTask(id);
+            assertTrue(stat.isPreallocated());
+            int count = stat.getChunkCount();
+            assertEquals(21, count);
+
+            // 不完整的文件块不会被标记为完成
+            assertThrows(EOFException.class, () -> manager.save(id, "1", new ByteArrayInputStream(new byte[100])));
+            assertTrue(manager.queryTask(id).getFinishPart().isEmpty());
+
+            // 乱序提交，部分请求一次上传连续的多个文件块
+            List<String> parts = new ArrayList<>();
+            for (int i = 1; i <= count; i++) {
+                if (i % 5 == 0 && i < count) {
+                    parts.add(i + "-" + (i + 1));
+                    i++;
+                } else {
+                    parts.add(String.valueOf(i));
+                }
+            }
+            Collections.shuffle(parts, new Random(2));
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            List<Future<?>> futures = new ArrayList<>();
+            for (String part : parts) {
+                futures.add(pool.submit(() -> {
+                    String[] range = part.split("-");
+                    int begin = Integer.parseInt(range[0]);
+                    int end = Integer.parseInt(range[range.length - 1]);
+                    int from = (begin - 1) * info.getChunkSize();
+                    int to = (int) Math.min((long) end * info.getChunkSize(), data.length);
+                    manager.save(id, part, new ByteArrayInputStream(Arrays.copyOfRange(data, from, to)));
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            pool.shutdown();
+
+            stat = manager.queryTask(id);
+            assertTrue(stat.isFinish());
+            Path dataFile = stat.getDataFile();
+            assertArrayEquals(data, Files.readAllBytes(dataFile));
+            assertEquals(DigestUtils.md5DigestAsHex(data), stat.getMd5());
+        } finally {
+            manager.clear(id);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.manager;
+
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.ChunkConflictException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.RedisTaskStateStore;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.TaskRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 使用内存中的RedisConnection验证Redis任务状态存储的命令与数据格式
+ */
+public class RedisTaskStateStoreTest {
+
+    /**
+     * 只实现状态存储用到的命令的内存Redis，位图与Redis一样以首字节的最高位为偏移0
+     */
+    private static class FakeRedis {
+        final Map<String, byte[]> strings = new ConcurrentHashMap<>();
+        final Map<String, Long> expires = new ConcurrentHashMap<>();
+        final Map<String, Map<String, byte[]>> hashes = new ConcurrentHashMap<>();
+        final Map<String, Set<String>> sets = new ConcurrentHashMap<>();
+        int pipelines;
+
+        StringRedisTemplate template() {
+            RedisConnectionFactory factory = (RedisConnectionFactory) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{RedisConnectionFactory.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getConnection":
+                        return connection();
+                    case "getConvertPipelineAndTxResults":
+                        return true;
+                    case "translateExceptionIfPossible":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+            return new StringRedisTemplate(factory);
+        }
+
+        private RedisConnection connection() {
+            List<Object> pipeline = new ArrayList<>();
+            boolean[] pipelined = new boolean[1];
+            return (RedisConnection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{RedisConnection.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        return null;
+                    case "isPipelined":
+                        return pipelined[0];
+                    case "isQueueing":
+                    case "isClosed":
+                        return false;
+                    case "openPipeline":
+                        pipelined[0] = true;
+                        pipelines++;
+                        return null;
+                    case "closePipeline":
+                        pipelined[0] = false;
+                        List<Object> res = new ArrayList<>(pipeline);
+                        pipeline.clear();
+                        return res;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "FakeRedisConnection";
+                    default:
+                        Object result = execute(method.getName(), args);
+                        if (pipelined[0]) {
+                            pipeline.add(result);
+                            return null;
+                        }
+                        if (method.getReturnType() == Boolean.class && result instanceof Long) {
+                            return (Long) result > 0;
+                        }
+                        return result;
+                }
+            });
+        }
+
+        private static String str(Object bytes) {
+            return new String((byte[]) bytes, StandardCharsets.UTF_8);
+        }
+
+        private synchronized Object execute(String command, Object[] args) {
+            switch (command) {
+                case "get":
+                    return strings.get(str(args[0]));
+                case "set": {
+                    String key = str(args[0]);
+                    RedisStringCommands.SetOption option = (RedisStringCommands.SetOption) args[3];
+                    if (option == RedisStringCommands.SetOption.SET_IF_ABSENT && strings.containsKey(key)) {
+                        return false;
+                    }
+                    strings.put(key, (byte[]) args[1]);
+                    Expiration expiration = (Expiration) args[2];
+                    if (expiration != null && !expiration.isPersistent()) {
+                        expires.put(key, expiration.getExpirationTimeInMilliseconds());
+                    }
+                    return true;
+                }
+                case "setBit": {
+                    String key = str(args[0]);
+                    long offset = (Long) args[1];
+                    byte[] bits = strings.getOrDefault(key, new byte[0]);
+                    if (bits.length <= offset / 8) {
+                        bits = Arrays.copyOf(bits, (int) (offset / 8 + 1));
+                    }
+                    int mask = 0x80 >>> (offset % 8);
+                    boolean old = (bits[(int) (offset / 8)] & mask) != 0;
+                    if ((Boolean) args[2]) {
+                        bits[(int) (offset / 8)] |= mask;
+                    } else {
+                        bits[(int) (offset / 8)] &= ~mask;
+                    }
+                    strings.put(key, bits);
+                    return old;
+                }
+                case "hSet":
+                    hashes.computeIfAbsent(str(args[0]), k -> new ConcurrentHashMap<>()).put(str(args[1]), (byte[]) args[2]);
+                    return true;
+                case "hMSet":
+                    Map<String, byte[]> hash = hashes.computeIfAbsent(str(args[0]), k -> new ConcurrentHashMap<>());
+                    ((Map<?, ?>) args[1]).forEach((k, v) -> hash.put(str(k), (byte[]) v));
+                    return null;
+                case "hGet": {
+                    Map<String, byte[]> h = hashes.get(str(args[0]));
+                    return h == null ? null : h.get(str(args[1]));
+                }
+                case "sAdd": {
+                    Set<String> set = sets.computeIfAbsent(str(args[0]), k -> ConcurrentHashMap.newKeySet());
+                    long n = 0;
+                    for (byte[] value : (byte[][]) args[1]) {
+                        n += set.add(str(value)) ? 1 : 0;
+                    }
+                    return n;
+                }
+                case "sRem": {
+                    Set<String> set = sets.getOrDefault(str(args[0]), Collections.emptySet());
+                    long n = 0;
+                    for (byte[] value : (byte[][]) args[1]) {
+                        n += set.remove(str(value)) ? 1 : 0;
+                    }
+                    return n;
+                }
+                case "sMembers": {
+                    Set<byte[]> res = new LinkedHashSet<>();
+                    sets.getOrDefault(str(args[0]), Collections.emptySet()).forEach(e -> res.add(e.getBytes(StandardCharsets.UTF_8)));
+                    return res;
+                }
+                case "exists": {
+                    byte[][] keys = args[0] instanceof byte[][] ? (byte[][]) args[0] : new byte[][]{(byte[]) args[0]};
+                    long n = 0;
+                    for (byte[] key : keys) {
+                        String k = str(key);
+                        n += strings.containsKey(k) || hashes.containsKey(k) || sets.containsKey(k) ? 1 : 0;
+                    }
+                    return n;
+                }
+                case "del": {
+                    long n = 0;
+                    for (byte[] key : (byte[][]) args[0]) {
+                        String k = str(key);
+                        expires.remove(k);
+                        n += strings.remove(k) != null | hashes.remove(k) != null | sets.remove(k) != null ? 1 : 0;
+                    }
+                    return n;
+                }
+                default:
+                    throw new UnsupportedOperationException(command);
+            }
+        }
+    }
+
+    private static TaskMetadata task(String id, int chunkCount) {
+        TaskMetadata info = new TaskMetadata();
+        info.setTaskId(id);
+        info.setFileName("test.bin");
+        info.setChunkSize(1024);
+        info.setLength(1024L * chunkCount);
+        return info;
+    }
+
+    @Test
+    public void bitmap() throws Exception {
+        FakeRedis redis = new FakeRedis();
+        RedisTaskStateStore store = new RedisTaskStateStore(redis.template());
+        TaskMetadata info = task("t1", 20);
+        store.create(info);
+        assertEquals(new BitSet(), store.getFinished("t1"));
+        assertNull(store.getFinished("none"));
+        assertEquals(info.getLength(), store.getMetadata("t1").getLength());
+        assertEquals(Collections.singletonList("t1"), new ArrayList<>(store.list()));
+
+        // 跨越字节边界的文件块：1、8在首字节，9、10、16在第二字节，17在第三字节
+        int[] parts = {1, 8, 9, 10, 16, 17};
+        for (int part : parts) {
+            store.mark(info, part, null);
+        }
+        assertEquals(parts.length, redis.pipelines);
+        assertArrayEquals(new byte[]{(byte) 0x81, (byte) 0xC1, (byte) 0x80}, redis.strings.get("xyy:breakpoint:bitmap:t1"));
+
+        BitSet expect = new BitSet();
+        for (int part : parts) {
+            expect.set(part - 1);
+        }
+        assertEquals(expect, store.getFinished("t1"));
+        assertTrue(store.getLastActive("t1") > 0);
+
+        store.remove("t1");
+        assertNull(store.getFinished("t1"));
+        assertTrue(store.list().isEmpty());
+        assertTrue(redis.strings.isEmpty());
+    }
+
+    @Test
+    public void claim() throws Exception {
+        FakeRedis redis = new FakeRedis();
+        RedisTaskStateStore node1 = new RedisTaskStateStore(redis.template());
+        RedisTaskStateStore node2 = new RedisTaskStateStore(redis.template());
+
+        assertTrue(node1.claim("t1", 3));
+        assertFalse(node2.claim("t1", 3));
+        assertTrue(node2.claim("t1", 4));
+        // 写入权设有过期时间，实例异常退出后自动失效
+        assertTrue(redis.expires.get("xyy:breakpoint:writing:t1:3") > 0);
+
+        // 只能释放本实例持有的写入权
+        node2.release("t1", 3);
+        assertFalse(node2.claim("t1", 3));
+        node1.release("t1", 3);
+        assertTrue(node2.claim("t1", 3));
+    }
+
+    @Test
+    public void registryClaim() throws Exception {
+        FakeRedis redis = new FakeRedis();
+        TaskRegistry node1 = new TaskRegistry(new RedisTaskStateStore(redis.template()));
+        TaskRegistry node2 = new TaskRegistry(new RedisTaskStateStore(redis.template()));
+        String id = UUID.randomUUID().toString();
+        node1.register(task(id, 10));
+
+        // 不同实例不能同时写入同一文件块
+        node1.beginWrite(id, new int[]{2, 3});
+        ChunkConflictException e = assertThrows(ChunkConflictException.class, () -> node2.beginWrite(id, new int[]{1, 3}));
+        assertTrue(e.getMessage().contains("正在上传"));
+        // 认领失败时已认领的文件块被释放
+        node2.beginWrite(id, new int[]{1});
+        node2.endWrite(id, new int[]{1});
+
+        node1.mark(id, 2);
+        node1.mark(id, 3);
+        node1.endWrite(id, new int[]{2, 3});
+        e = assertThrows(ChunkConflictException.class, () -> node2.beginWrite(id, new int[]{3}));
+        assertTrue(e.getMessage().contains("已完成"));
+        assertTrue(redis.strings.keySet().stream().noneMatch(k -> k.contains("writing")));
+    }
+}
@@ -0,0 +1,131 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.manager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskLimitException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskNotFoundException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.DefaultTaskManager;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.PreallocatedTaskManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SharedTaskStateTest {
+
+    /**
+     * 代替Redis的共享状态存储，元数据以JSON保存，与Redis中一样每次读取都会得到新的对象
+     */
+    private static class SharedStore implements TaskStateStore {
+        private final ObjectMapper mapper = new ObjectMapper();
+        private final Map<String, String> metadata = new ConcurrentHashMap<>();
+        private final Map<String, BitSet> bitmaps = new ConcurrentHashMap<>();
+        private final Map<String, Long> active = new ConcurrentHashMap<>();
+
+        @Override
+        public void create(TaskMetadata info) throws IOException {
+            metadata.put(info.getTaskId(), mapper.writeValueAsString(info));
+            bitmaps.put(info.getTaskId(), new BitSet());
+            active.put(info.getTaskId(), System.currentTimeMillis());
+        }
+
+        @Override
+        public TaskMetadata getMetadata(String id) throws IOException {
+            String json = metadata.get(id);
+            return json == null ? null : mapper.readValue(json, TaskMetadata.class);
+        }
+
+        @Override
+        public BitSet getFinished(String id) {
+            BitSet bits = bitmaps.get(id);
+            if (bits == null) {
+                return null;
+            }
+            synchronized (bits) {
+                return (BitSet) bits.clone();
+            }
+        }
+
+        @Override
+        public void mark(TaskMetadata info, int part, BitSet finished) {
+            BitSet bits = bitmaps.get(info.getTaskId());
+            synchronized (bits) {
+                bits.set(part - 1);
+            }
+            active.put(info.getTaskId(), System.currentTimeMillis());
+        }
+
+        @Override
+        public long getLastActive(String id) {
+            return active.getOrDefault(id, -1L);
+        }
+
+        @Override
+        public Collection<String> list() {
+            return new ArrayList<>(metadata.keySet());
+        }
+
+        @Override
+        public void remove(String id) {
+            metadata.remove(id);
+            bitmaps.remove(id);
+            active.remove(id);
+        }
+
+        @Override
+        public boolean isShared() {
+            return true;
+        }
+    }
+
+    @Test
+    public void multiInstance() throws Exception {
+        SharedStore store = new SharedStore();
+        // 两个共享状态存储与任务目录的服务实例
+        DefaultTaskManager node1 = new PreallocatedTaskManager(store);
+        DefaultTaskManager node2 = new PreallocatedTaskManager(store);
+        node1.setMaxTasks(1);
+
+        int size = 2097152;
+        TaskMetadata info = new TaskMetadata();
+        info.setFileName("test.bin");
+        info.setUid(7);
+        info.setLength(size * 4L + 100);
+        byte[] data = new byte[(int) info.getLength()];
+        new Random(3).nextBytes(data);
+        String id = node2.createTask(info);
+        try {
+            // 其他实例创建的任务计入限制
+            assertThrows(TaskLimitException.class, () -> node1.createTask(info));
+
+            // 文件块分别由不同的实例接收
+            node1.save(id, "2", new ByteArrayInputStream(Arrays.copyOfRange(data, size, size * 2)));
+            node2.save(id, "4-5", new ByteArrayInputStream(Arrays.copyOfRange(data, size * 3, data.length)));
+            assertEquals(Arrays.asList(2, 4, 5), node1.queryTask(id).getFinishPart());
+            node1.save(id, "1", new ByteArrayInputStream(Arrays.copyOfRange(data, 0, size)));
+            assertFalse(node2.queryTask(id).isFinish());
+            node2.save(id, "3", new ByteArrayInputStream(Arrays.copyOfRange(data, size * 2, size * 3)));
+
+            assertTrue(node1.queryTask(id).isFinish());
+            assertEquals(DigestUtils.md5DigestAsHex(data), node2.queryTask(id).getMd5());
+            Map<?, ?> stat = node1.getStat();
+            assertEquals(1L, stat.get("task_count"));
+            assertEquals(info.getLength(), stat.get("staged_size"));
+
+            // 任务由一个实例清理后，其他实例也无法再访问
+            node1.clear(id);
+            assertThrows(TaskNotFoundException.class, () -> node2.queryTask(id));
+            assertTrue(store.list().isEmpty());
+            assertEquals(0L, node2.getStat().get("task_count"));
+        } finally {
+            if (!store.list().isEmpty()) {
+                node2.clear(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.xiaotao.saltedfishcloud.service.breakpoint.manager;
+
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.entity.TaskStatMetadata;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.ChunkConflictException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.ChunkVerifyException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskLimitException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.exception.TaskNotFoundException;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.DefaultTaskManager;
+import com.xiaotao.saltedfishcloud.service.breakpoint.manager.impl.utils.TaskStorePath;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TaskRegistryTest {
+
+    @Test
+    public void reload() throws Exception {
+        DefaultTaskManager manager = new DefaultTaskManager();
+        TaskMetadata info = new TaskMetadata();
+        info.setFileName("test.bin");
+        info.setChunkSize(4194304);
+        info.setLength(4194304L * 10 + 1);
+        String id = manager.createTask(info);
+        try {
+            byte[] chunk = new byte[4194304];
+            manager.save(id, "3", new ByteArrayInputStream(chunk));
+            manager.save(id, "9-10", new ByteArrayInputStream(new byte[chunk.length * 2]));
+            manager.save(id, "11", new ByteArrayInputStream(new byte[1]));
+            assertEquals(Arrays.asList(3, 9, 10, 11), manager.queryTask(id).getFinishPart());
+
+            // 模拟服务重启，从位图文件加载
+            TaskStatMetadata stat = new DefaultTaskManager().queryTask(id);
+            assertEquals(Arrays.asList(3, 9, 10, 11), stat.getFinishPart());
+            assertEquals(4194304, stat.getChunkSize());
+            assertTrue(stat.isFinish(9));
+            assertFalse(stat.isFinish());
+
+            // 没有位图文件的旧任务根据.part文件重建
+            Files.delete(TaskStorePath.getBitmap(id));
+            DefaultTaskManager another = new DefaultTaskManager();
+            assertEquals(Arrays.asList(3, 9, 10, 11), another.queryTask(id).getFinishPart());
+            for (int i = 1; i <= 10; i++) {
+                if (!another.queryTask(id).isFinish(i)) {
+                    another.save(id, String.valueOf(i), new ByteArrayInputStream(chunk));
+                }
+            }
+            assertTrue(another.queryTask(id).isFinish());
+            assertTrue(new DefaultTaskManager().queryTask(id).isFinish());
+        } finally {
+            manager.clear(id);
+        }
+    }
+
+    @Test
+    public void hash() throws Exception {
+        DefaultTaskManager manager = new DefaultTaskManager();
+        TaskMetadata info = new TaskMetadata();
+        info.setFileName("test.bin");
+        info.setLength(2097152L * 5 + 100);
+        byte[] data = new byte[(int) info.getLength()];
+        new Random(1).nextBytes(data);
+        String id = manager.createTask(info);
+        try {
+            // 校验失败的文件块不会被标记为完成
+            byte[] first = Arrays.copyOfRange(data, 0, 2097152);
+            assertThrows(ChunkVerifyException.class, () -> manager.save(id, "1", new ByteArrayInputStream(first), "00000000000000000000000000000000"));
+            assertTrue(manager.queryTask(id).getFinishPart().isEmpty());
+
+            manager.save(id, "4-6", new ByteArrayInputStream(Arrays.copyOfRange(data, 2097152 * 3, data.length)));
+            manager.save(id, "1", new ByteArrayInputStream(first), DigestUtils.md5DigestAsHex(first));
+            assertNull(manager.queryTask(id).getMd5());
+            manager.save(id, "2-3", new ByteArrayInputStream(Arrays.copyOfRange(data, 2097152, 2097152 * 3)));
+            assertEquals(DigestUtils.md5DigestAsHex(data), manager.queryTask(id).getMd5());
+        } finally {
+            manager.clear(id);
+        }
+    }
+
+    @Test
+    public void rewrite() throws Exception {
+        DefaultTaskManager manager = new DefaultTaskManager();
+        TaskMetadata info = new TaskMetadata();
+        info.setFileName("test.bin");
+        info.setLength(2097152L * 3);
+        byte[] data = new byte[(int) info.getLength()];
+        new Random(3).nextBytes(data);
+        String id = manager.createTask(info);
+        try {
+            byte[] first = Arrays.copyOfRange(data, 0, 2097152);
+            manager.save(id, "1", new ByteArrayInputStream(first));
+
+            // 已计入文件MD5的文件块不能被其他内容覆盖，失败时原数据保持不变
+            byte[] other = new byte[2097152];
+            assertThrows(ChunkConflictException.class, () -> manager.save(id, "1", new ByteArrayInputStream(other)));
+            assertThrows(ChunkConflictException.class, () -> manager.save(id, "1-2", new ByteArrayInputStream(new byte[2097152 * 2])));
+            assertEquals(Collections.singletonList(1), manager.queryTask(id).getFinishPart());
+            assertArrayEquals(first, Files.readAllBytes(TaskStorePath.getPartFile(id, 1)));
+
+            manager.save(id, "2-3", new ByteArrayInputStream(Arrays.copyOfRange(data, 2097152, data.length)));
+            assertThrows(ChunkConflictException.class, () -> manager.save(id, "3", new ByteArrayInputStream(other)));
+            assertEquals(DigestUtils.md5DigestAsHex(data), manager.queryTask(id).getMd5());
+        } finally {
+            manager.clear(id);
+        }
+    }
+
+    @Test
+    public void limitAndSweep() throws Exception {
+        DefaultTaskManager manager = new DefaultTaskManager();
+        manager.setMaxTasks(2);
+        manager.setMaxSize(2097152L * 3);
+        manager.setTtl(3600);
+        TaskMetadata info = new TaskMetadata();
+        info.setFileName("test.bin");
+        info.setUid(99);
+        info.setLength(2097152L * 2);
+        String id1 = manager.createTask(info);
+        info.setLength(100);
+        info.setTtl(60);
+        String id2 = manager.createTask(info);
+        try {
+            assertThrows(TaskLimitException.class, () -> manager.createTask(info));
+            manager.save(id2, "1", new ByteArrayInputStream(new byte[100]));
+
+            Map<?, ?> user = (Map<?, ?>) ((Map<?, ?>) manager.getStat().get("users")).get(99);
+            assertEquals(2L, user.get("task_count"));
+            assertEquals(2097152L * 2 + 100, user.get("reserved_size"));
+            assertEquals(100L, user.get("staged_size"));
+
+            // 任务2的过期时间为60秒，任务1使用系统设置的1小时
+            FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 120 * 1000);
+            Files.setLastModifiedTime(TaskStorePath.getBitmap(id1), past);
+            Files.setLastModifiedTime(TaskStorePath.getBitmap(id2), past);
+            assertTrue(manager.sweep() >= 1);
+            assertFalse(Files.exists(TaskStorePath.getRoot(id2)));
+            assertTrue(Files.exists(TaskStorePath.getRoot(id1)));
+            assertThrows(TaskNotFoundException.class, () -> manager.queryTask(id2));
+
+            info.setLength(2097152L * 3 + 1);
+            assertThrows(TaskLimitException.class, () -> manager.createTask(info));
+        } finally {
+            manager.clear(id1);
+        }
+    }
+
+    @Test
+    public void reuse() throws Exception {
+        int size = 2097152;
+        byte[] data = new byte[size * 3 + 10];
+        new Random(2).nextBytes(data);
+        String[] hashes = new String[4];
+        for (int i = 0; i < 4; i++) {
+            hashes[i] = DigestUtils.md5DigestAsHex(Arrays.copyOfRange(data, i * size, Math.min(data.length, (i + 1) * size)));
+        }
+        // 模拟的复用来源，按用户与文件块MD5保存文件块数据
+        Map<String, byte[]> chunks = new HashMap<>();
+        List<String> recorded = new ArrayList<>();
+        ChunkSource source = new ChunkSource() {
+            @Override
+            public InputStream open(int uid, String md5, long length) {
+                byte[] chunk = chunks.get(uid + ":" + md5);
+                return chunk == null ? null : new ByteArrayInputStream(chunk);
+            }
+
+            @Override
+            public void record(TaskStatMetadata task) {
+                recorded.add(task.getMd5());
+            }
+        };
+        chunks.put("1:" + hashes[0], Arrays.copyOfRange(data, 0, size));
+        chunks.put("1:" + hashes[2], Arrays.copyOfRange(data, size * 2, size * 3));
+        // 内容与声明的MD5不符的文件块不会被复用
+        chunks.put("1:" + hashes[3], new byte[10]);
+        // 其他用户的文件块不会被复用
+        chunks.put("2:" + hashes[1], Arrays.copyOfRange(data, size, size * 2));
+
+        DefaultTaskManager manager = new DefaultTaskManager();
+        manager.setChunkSource(source);
+        TaskMetadata info = new TaskMetadata();
+        info.setFileName("test.bin");
+        info.setUid(1);
+        info.setLength(data.length);
+        info.setChunkHashes(Arrays.asList(hashes[0].toUpperCase(), hashes[1], hashes[2], hashes[3]));
+        String id = manager.createTask(info);
+        try {
+            assertEquals(Arrays.asList(1, 3), manager.queryTask(id).getFinishPart());
+            assertThrows(ChunkVerifyException.class, () -> manager.save(id, "2", new ByteArrayInputStream(new byte[size])));
+            manager.save(id, "2", new ByteArrayInputStream(Arrays.copyOfRange(data, size, size * 2)));
+            manager.save(id, "4", new ByteArrayInputStream(Arrays.copyOfRange(data, size * 3, data.length)));
+            assertEquals(DigestUtils.md5DigestAsHex(data), manager.queryTask(id).getMd5());
+        } finally {
+            manager.clear(id);
+        }
+        assertEquals(Collections.singletonList(DigestUtils.md5DigestAsHex(data)), recorded);
+
+        info.setChunkHashes(Arrays.asList(hashes[0], hashes[1]));
+        assertThrows(IllegalArgumentException.class, () -> manager.createTask(info));
+        info.setChunkHashes(Arrays.asList(hashes[0], hashes[1], hashes[2], "xyz"));
+        assertThrows(IllegalArgumentException.class, () -> manager.createTask(info));
+    }
+
+    @Test
+    public void reuseFailure() throws Exception {
+        String hash = DigestUtils.md5DigestAsHex(new byte[10]);
+        ChunkSource source = new ChunkSource() {
+            @Override
+            public InputStream open(int uid, String md5, long length) throws IOException {
+                throw new IOException("broken");
+            }
+
+            @Override
+            public void record(TaskStatMetadata task) {
+            }
+        };
+        DefaultTaskManager manager = new DefaultTaskManager();
+        manager.setChunkSource(source);
+        manager.setMaxTasks(1);
+        TaskMetadata info = new TaskMetadata();
+        info.setFileName("test.bin");
+        info.setUid(1);
+        info.setLength(10);
+        info.setChunkHashes(new ArrayList<>(Collections.singletonList(hash)));
+        assertThrows(IOException.class, () -> manager.createTask(info));
+
+        // 复用失败的任务已被清理，不占用任务数
+        manager.setChunkSource(null);
+        String id = manager.createTask(info);
+        manager.clear(id);
+    }
+
+    @Test
+    public void locate() throws Exception {
+        Path dir = Files.createTempDirectory("breakpoint");
+        TaskStorePath.Locator locator = new TaskStorePath.Locator() {
+            @Override
+            public Path getBase(int uid) {
+                return dir.resolve("volume" + uid);
+            }
+
+            @Override
+            public Collection<Path> getBases() {
+                return Arrays.asList(dir.resolve("volume1"), dir.resolve("volume2"));
+            }
+        };
+        TaskStorePath.setLocator(locator);
+        try {
+            DefaultTaskManager manager = new DefaultTaskManager();
+            TaskMetadata info = new TaskMetadata();
+            info.setFileName("test.bin");
+            info.setLength(100);
+            info.setUid(1);
+            String id1 = manager.createTask(info);
+            info.setUid(2);
+            String id2 = manager.createTask(info);
+            manager.save(id2, "1", new ByteArrayInputStream(new byte[100]));
+            assertTrue(Files.exists(dir.resolve("volume1").resolve(id1)));
+            assertTrue(Files.exists(dir.resolve("volume2").resolve(id2)));
+
+            // 模拟服务重启
+            TaskStorePath.setLocator(locator);
+            DefaultTaskManager restarted = new DefaultTaskManager();
+            assertEquals(2, restarted.load());
+            assertEquals(2L, restarted.getStat().get("task_count"));
+            assertTrue(restarted.queryTask(id2).isFinish());
+            restarted.clear(id1);
+            restarted.clear(id2);
+            assertThrows(TaskNotFoundException.class, () -> restarted.queryTask(id1));
+
+            assertThrows(TaskNotFoundException.class, () -> TaskStorePath.getRoot(".."));
+        } finally {
+            TaskStorePath.setLocator(null);
+        }
+    }
+}
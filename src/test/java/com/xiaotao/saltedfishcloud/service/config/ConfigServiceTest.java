@@ -18,14 +18,21 @@ class ConfigServiceTest {
     private ConfigService configService;
     @Resource
     private ConfigDao configDao;
+    @Resource
+    private StoreTypeSwitch storeTypeSwitch;
 
     @Test
-    void setStoreType() throws IOException {
+    void setStoreType() throws IOException, InterruptedException {
         configService.setStoreType(StoreType.UNIQUE);
+        storeTypeSwitch.await(60000);
         configService.setStoreType(StoreType.RAW);
+        storeTypeSwitch.await(60000);
         configService.setStoreType(StoreType.RAW);
+        storeTypeSwitch.await(60000);
         configService.setStoreType(StoreType.UNIQUE);
+        storeTypeSwitch.await(60000);
         configService.setStoreType(StoreType.RAW);
+        storeTypeSwitch.await(60000);
     }
 
     @Test
@@ -4,6 +4,7 @@ import com.xiaotao.saltedfishcloud.config.StoreType;
 import com.xiaotao.saltedfishcloud.dao.mybatis.UserDao;
 import com.xiaotao.saltedfishcloud.po.file.FileInfo;
 import com.xiaotao.saltedfishcloud.service.config.ConfigService;
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
@@ -18,6 +19,8 @@ public class FileServiceTest {
     FileService fileService;
     @Resource
     ConfigService configService;
+    @Resource
+    StoreTypeSwitch storeTypeSwitch;
 
     @Resource
     UserDao userDao;
@@ -46,19 +49,23 @@ public class FileServiceTest {
     }
 
     @Test
-    public void getLocalFilePathByMD5() throws IOException {
+    public void getLocalFilePathByMD5() throws IOException, InterruptedException {
         configService.setStoreType(StoreType.RAW);
+        storeTypeSwitch.await(60000);
         FileInfo f1 = fileService.getFileByMD5("b83294df4d6c5643853e3148132f2af5");
         configService.setStoreType(StoreType.UNIQUE);
+        storeTypeSwitch.await(60000);
         FileInfo f2 = fileService.getFileByMD5("b83294df4d6c5643853e3148132f2af5");
         try {
             configService.setStoreType(StoreType.RAW);
+            storeTypeSwitch.await(60000);
             fileService.getFileByMD5("asdca");
             throw new RuntimeException("测试失败");
         } catch (NoSuchFileException ignore) {
         }
         try {
             configService.setStoreType(StoreType.UNIQUE);
+            storeTypeSwitch.await(60000);
             fileService.getFileByMD5("asdca");
             throw new RuntimeException("测试失败");
         } catch (NoSuchFileException ignore) {
@@ -0,0 +1,137 @@
+package com.xiaotao.saltedfishcloud.service.file;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.exception.JsonException;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.po.file.QuickSaveChallenge;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuickSaveServiceTest {
+
+    @Test
+    public void challengeRange() {
+        // 小于校验区间长度的文件校验整个文件
+        QuickSaveChallenge small = QuickSaveService.createChallenge(1, "md5", 100);
+        assertEquals(0, small.getOffset());
+        assertEquals(100, small.getLength());
+
+        QuickSaveChallenge empty = QuickSaveService.createChallenge(1, "md5", 0);
+        assertEquals(0, empty.getOffset());
+        assertEquals(0, empty.getLength());
+
+        long size = 10L * 1024 * 1024 * 1024;
+        Set<Long> offsets = new HashSet<>();
+        Set<String> nonces = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            QuickSaveChallenge c = QuickSaveService.createChallenge(1, "md5", size);
+            assertEquals(QuickSaveService.PROOF_LENGTH, c.getLength());
+            assertTrue(c.getOffset() >= 0 && c.getOffset() + c.getLength() <= size);
+            offsets.add(c.getOffset());
+            nonces.add(c.getNonce());
+        }
+        assertTrue(offsets.size() > 90);
+        assertEquals(100, nonces.size());
+    }
+
+    @Test
+    public void digest() {
+        byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) 7);
+        byte[] input = new byte[3 + data.length];
+        System.arraycopy("abc".getBytes(StandardCharsets.UTF_8), 0, input, 0, 3);
+        System.arraycopy(data, 0, input, 3, data.length);
+
+        assertEquals(DigestUtils.md5DigestAsHex(input), QuickSaveService.digest("abc", data));
+        assertNotEquals(QuickSaveService.digest("abc", data), QuickSaveService.digest("abd", data));
+        assertEquals(DigestUtils.md5DigestAsHex("abc".getBytes(StandardCharsets.UTF_8)), QuickSaveService.digest("abc", new byte[0]));
+    }
+
+    private static void inject(Object target, String name, Object value) {
+        Field field = ReflectionUtils.findField(target.getClass(), name);
+        assertNotNull(field);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+
+    @Test
+    public void save() throws Exception {
+        Path root = Files.createTempDirectory("quick-save-test");
+        StoreType originType = DiskConfig.STORE_TYPE;
+        String originStoreRoot = DiskConfig.STORE_ROOT;
+        List<String> originVolumes = DiskConfig.STORE_VOLUMES;
+        boolean originProof = DiskConfig.QUICK_SAVE_PROOF;
+        try {
+            DiskConfig.STORE_TYPE = StoreType.UNIQUE;
+            DiskConfig.STORE_ROOT = root.toString();
+            DiskConfig.STORE_VOLUMES = Collections.emptyList();
+            DiskConfig.QUICK_SAVE_PROOF = true;
+            byte[] data = new byte[200000];
+            new Random(1).nextBytes(data);
+            String md5 = DigestUtils.md5DigestAsHex(data);
+            StoragePool pool = new StoragePool();
+            Path blob = pool.getBlobPath(md5);
+            Files.createDirectories(blob.getParent());
+            Files.write(blob, data);
+
+            // 只记录秒传保存的文件，不访问数据库
+            List<String> saved = new ArrayList<>();
+            FileService fileService = new FileService() {
+                @Override
+                public boolean quickSaveFile(int uid, String path, FileInfo fileInfo) {
+                    saved.add(fileInfo.getName());
+                    return true;
+                }
+            };
+            QuickSaveService service = new QuickSaveService();
+            inject(service, "storagePool", pool);
+            inject(service, "fileService", fileService);
+
+            Map<String, Object> check = service.check(1, md5, data.length);
+            assertEquals(true, check.get("exists"));
+            String token = (String) check.get("token");
+            int offset = ((Number) check.get("offset")).intValue();
+            int length = (Integer) check.get("length");
+            String proof = QuickSaveService.digest((String) check.get("nonce"), Arrays.copyOfRange(data, offset, offset + length));
+
+            // 校验信息与请求不符
+            assertThrows(JsonException.class, () -> service.save(2, "/", "a.bin", md5, data.length, token, proof));
+            // 正确的摘要
+            assertTrue(service.save(1, "/", "a.bin", md5, data.length, token, proof.toUpperCase()));
+            assertEquals(Collections.singletonList("a.bin"), saved);
+            // 重放已使用的token与摘要
+            JsonException replay = assertThrows(JsonException.class, () -> service.save(1, "/", "b.bin", md5, data.length, token, proof));
+            assertEquals(400, replay.getRes().getCode());
+
+            // 错误的摘要，失败后该token也不能再使用
+            Map<String, Object> check2 = service.check(1, md5, data.length);
+            String token2 = (String) check2.get("token");
+            JsonException wrong = assertThrows(JsonException.class, () -> service.save(1, "/", "c.bin", md5, data.length, token2, proof));
+            assertEquals(403, wrong.getRes().getCode());
+            assertThrows(JsonException.class, () -> service.save(1, "/", "c.bin", md5, data.length, token2, proof));
+            assertEquals(Collections.singletonList("a.bin"), saved);
+
+            // 过期记录清理不影响有效期内的记录
+            service.sweepNonces();
+            assertThrows(JsonException.class, () -> service.save(1, "/", "b.bin", md5, data.length, token, proof));
+        } finally {
+            DiskConfig.STORE_TYPE = originType;
+            DiskConfig.STORE_ROOT = originStoreRoot;
+            DiskConfig.STORE_VOLUMES = originVolumes;
+            DiskConfig.QUICK_SAVE_PROOF = originProof;
+            FileUtils.delete(root);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.xiaotao.saltedfishcloud.service.file;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.file.chunk.ChunkStoreService;
+import com.xiaotao.saltedfishcloud.service.file.path.RawPathHandler;
+import com.xiaotao.saltedfishcloud.service.file.path.UniquePathHandler;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 多个线程同时存储相同文件时，通过实际的存储服务验证只写入一次
+ */
+class SingleFlightTest {
+    private static final int SIZE = 4 * 1024 * 1024;
+    private Path root;
+    private StoreType originType;
+    private String originStoreRoot;
+    private String originPublicRoot;
+    private List<String> originVolumes;
+    private StoragePool originPool;
+    private RawPathHandler originRawHandler;
+    private UniquePathHandler originUniqueHandler;
+    private StoreService storeService;
+    private ChunkStoreService chunkStoreService;
+
+    @BeforeEach
+    void init() throws IOException {
+        root = Files.createTempDirectory("single-flight-test");
+        originType = DiskConfig.STORE_TYPE;
+        originStoreRoot = DiskConfig.STORE_ROOT;
+        originPublicRoot = DiskConfig.PUBLIC_ROOT;
+        originVolumes = DiskConfig.STORE_VOLUMES;
+        originPool = DiskConfig.storagePool;
+        originRawHandler = DiskConfig.rawPathHandler;
+        originUniqueHandler = DiskConfig.uniquePathHandler;
+        DiskConfig.STORE_ROOT = root.resolve("store").toString();
+        DiskConfig.PUBLIC_ROOT = root.resolve("public").toString();
+        DiskConfig.STORE_VOLUMES = Collections.emptyList();
+        DiskConfig.rawPathHandler = new RawPathHandler();
+        DiskConfig.uniquePathHandler = new UniquePathHandler();
+        StoragePool pool = new StoragePool();
+        DiskConfig.storagePool = pool;
+        chunkStoreService = new ChunkStoreService();
+        storeService = new StoreService();
+        inject(storeService, "storagePool", pool);
+        inject(storeService, "chunkStoreService", chunkStoreService);
+    }
+
+    @AfterEach
+    void clean() throws IOException {
+        chunkStoreService.close();
+        DiskConfig.STORE_TYPE = originType;
+        DiskConfig.STORE_ROOT = originStoreRoot;
+        DiskConfig.PUBLIC_ROOT = originPublicRoot;
+        DiskConfig.STORE_VOLUMES = originVolumes;
+        DiskConfig.storagePool = originPool;
+        DiskConfig.rawPathHandler = originRawHandler;
+        DiskConfig.uniquePathHandler = originUniqueHandler;
+        FileUtils.delete(root);
+    }
+
+    private static void inject(Object target, String name, Object value) {
+        Field field = ReflectionUtils.findField(target.getClass(), name);
+        assertNotNull(field);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private SingleFlight<String> blobFlight() {
+        Field field = ReflectionUtils.findField(StoreService.class, "blobFlight");
+        assertNotNull(field);
+        ReflectionUtils.makeAccessible(field);
+        return (SingleFlight<String>) ReflectionUtils.getField(field, storeService);
+    }
+
+    private static byte[] data(int seed) {
+        byte[] data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static FileInfo fileInfo(String name, byte[] data) {
+        FileInfo info = new FileInfo();
+        info.setName(name);
+        info.setType(FileInfo.TYPE_FILE);
+        info.setSize(data.length);
+        info.setMd5(DigestUtils.md5DigestAsHex(data));
+        return info;
+    }
+
+    /**
+     * 记录数据被读取的输入流，用于统计实际写入存储的次数
+     */
+    private static InputStream counting(byte[] data, AtomicInteger reads) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            private boolean counted;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (!counted) {
+                    counted = true;
+                    reads.incrementAndGet();
+                }
+                return super.read(b, off, len);
+            }
+        };
+    }
+
+    private static void runAll(int threads, Callable<Void> task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Path publicFile(String name) {
+        return Paths.get(DiskConfig.PUBLIC_ROOT, name);
+    }
+
+    private static long countSaving(Path dir) throws IOException {
+        try (Stream<Path> stream = Files.walk(dir)) {
+            return stream.filter(p -> p.getFileName().toString().endsWith(".saving")).count();
+        }
+    }
+
+    @Test
+    void sameKey() throws Exception {
+        DiskConfig.STORE_TYPE = StoreType.UNIQUE;
+        byte[] data = data(7);
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger seq = new AtomicInteger();
+        runAll(32, () -> {
+            String name = "f" + seq.getAndIncrement();
+            storeService.store(0, counting(data, reads), "/", fileInfo(name, data));
+            // 每个线程返回时文件都已完整
+            assertEquals(SIZE, Files.size(publicFile(name)));
+            return null;
+        });
+        SingleFlight<String> flight = blobFlight();
+        assertEquals(1, reads.get());
+        assertEquals(32, flight.getLeaders());
+        assertEquals(0, flight.getInFlight());
+
+        // 所有文件都链接到同一个存储仓库文件
+        Path blob = DiskConfig.storagePool.locateBlob(DigestUtils.md5DigestAsHex(data));
+        assertNotNull(blob);
+        for (int i = 0; i < 32; i++) {
+            assertTrue(Files.isSameFile(blob, publicFile("f" + i)));
+        }
+        assertEquals(0, countSaving(root));
+
+        // 已存在的文件可直接秒传
+        AtomicInteger quick = new AtomicInteger();
+        runAll(8, () -> {
+            if (storeService.quickStore(0, "/", fileInfo("q" + quick.getAndIncrement(), data))) {
+                return null;
+            }
+            throw new AssertionError("秒传失败");
+        });
+        assertTrue(Files.isSameFile(blob, publicFile("q0")));
+    }
+
+    @Test
+    void leaderFailure() throws Exception {
+        DiskConfig.STORE_TYPE = StoreType.UNIQUE;
+        byte[] data = data(1);
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+        AtomicInteger seq = new AtomicInteger();
+        runAll(16, () -> {
+            String name = "f" + seq.getAndIncrement();
+            // 第一个实际写入的线程在写入途中连接中断，由等待者重新写入
+            InputStream input = new FilterInputStream(counting(data, reads)) {
+                private Boolean fail;
+                private int read;
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (fail == null) {
+                        fail = failed.compareAndSet(false, true);
+                    }
+                    if (fail && read > SIZE / 2) {
+                        throw new IOException("连接中断");
+                    }
+                    int n = super.read(b, off, len);
+                    read += Math.max(n, 0);
+                    return n;
+                }
+            };
+            try {
+                storeService.store(0, input, "/", fileInfo(name, data));
+            } catch (IOException e) {
+                failures.incrementAndGet();
+            }
+            return null;
+        });
+        assertEquals(1, failures.get());
+        Path blob = DiskConfig.storagePool.locateBlob(DigestUtils.md5DigestAsHex(data));
+        assertNotNull(blob);
+        assertEquals(SIZE, Files.size(blob));
+        assertEquals(2, reads.get());
+        assertEquals(0, countSaving(root));
+    }
+
+    @Test
+    void differentKeys() throws Exception {
+        DiskConfig.STORE_TYPE = StoreType.UNIQUE;
+        CyclicBarrier barrier = new CyclicBarrier(4);
+        AtomicInteger seq = new AtomicInteger();
+        runAll(4, () -> {
+            int id = seq.getAndIncrement();
+            byte[] data = data(100 + id);
+            // 不同的文件可以同时写入，所有线程都开始读取数据后才继续
+            InputStream input = new FilterInputStream(new ByteArrayInputStream(data)) {
+                private boolean waited;
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (!waited) {
+                        waited = true;
+                        try {
+                            barrier.await(10, TimeUnit.SECONDS);
+                        } catch (Exception e) {
+                            throw new IOException(e);
+                        }
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+            storeService.store(0, input, "/", fileInfo("f" + id, data));
+            return null;
+        });
+        assertEquals(0, blobFlight().getWaits());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(SIZE, Files.size(publicFile("f" + i)));
+        }
+    }
+
+    @Test
+    void chunked() throws Exception {
+        DiskConfig.STORE_TYPE = StoreType.CHUNKED;
+        byte[] data = data(3);
+        String md5 = DigestUtils.md5DigestAsHex(data);
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger seq = new AtomicInteger();
+        runAll(16, () -> {
+            storeService.store(0, counting(data, reads), "/", fileInfo("f" + seq.getAndIncrement(), data));
+            return null;
+        });
+        assertEquals(1, reads.get());
+        assertTrue(chunkStoreService.exists(md5));
+        assertEquals(SIZE, chunkStoreService.getSize(md5));
+        try (InputStream in = chunkStoreService.open(md5)) {
+            byte[] read = new byte[SIZE];
+            int n = 0;
+            while (n < SIZE) {
+                int r = in.read(read, n, SIZE - n);
+                assertTrue(r > 0);
+                n += r;
+            }
+            assertArrayEquals(data, read);
+        }
+        assertTrue(storeService.quickStore(0, "/", fileInfo("q", data)));
+    }
+}
@@ -0,0 +1,141 @@
+package com.xiaotao.saltedfishcloud.service.file;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.exception.JsonException;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.file.pool.StoragePool;
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StoreServiceStageTest {
+    private Path root;
+    private StoreType originType;
+    private String originStoreRoot;
+    private List<String> originVolumes;
+    private StoreService storeService;
+
+    @BeforeEach
+    void init() throws IOException {
+        root = Files.createTempDirectory("stage-test");
+        originType = DiskConfig.STORE_TYPE;
+        originStoreRoot = DiskConfig.STORE_ROOT;
+        originVolumes = DiskConfig.STORE_VOLUMES;
+        DiskConfig.STORE_TYPE = StoreType.RAW;
+        DiskConfig.STORE_ROOT = root.toString();
+        DiskConfig.STORE_VOLUMES = Collections.emptyList();
+        storeService = new StoreService();
+        Field field = ReflectionUtils.findField(StoreService.class, "storagePool");
+        assertNotNull(field);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, storeService, new StoragePool());
+    }
+
+    @AfterEach
+    void clean() throws IOException {
+        DiskConfig.STORE_TYPE = originType;
+        DiskConfig.STORE_ROOT = originStoreRoot;
+        DiskConfig.STORE_VOLUMES = originVolumes;
+        FileUtils.delete(root);
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static FileInfo fileInfo(long size, String md5) {
+        FileInfo info = new FileInfo();
+        info.setName("a.bin");
+        info.setType(FileInfo.TYPE_FILE);
+        info.setSize(size);
+        info.setMd5(md5);
+        return info;
+    }
+
+    private long countStaging() throws IOException {
+        Path dir = storeService.getStagingRoot(0, null);
+        if (!Files.exists(dir)) {
+            return 0;
+        }
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.count();
+        }
+    }
+
+    @Test
+    void stage() throws IOException {
+        byte[] data = data(300000);
+        String md5 = DigestUtils.md5DigestAsHex(data);
+
+        // 未提供MD5与大小时写入的同时计算
+        FileInfo info = fileInfo(-1, null);
+        Path staged = storeService.stage(0, new ByteArrayInputStream(data), info);
+        assertEquals(md5, info.getMd5());
+        assertEquals(data.length, info.getSize());
+        assertArrayEquals(data, Files.readAllBytes(staged));
+        Files.delete(staged);
+
+        // 提供的MD5与大小一致时校验通过，MD5不区分大小写
+        info = fileInfo(data.length, md5.toUpperCase());
+        staged = storeService.stage(0, new ByteArrayInputStream(data), info);
+        assertEquals(md5, info.getMd5());
+        assertTrue(staged.getFileName().toString().endsWith(".uploading"));
+        Files.delete(staged);
+        assertEquals(0, countStaging());
+    }
+
+    @Test
+    void stageMismatch() throws IOException {
+        byte[] data = data(100000);
+        String md5 = DigestUtils.md5DigestAsHex(data);
+
+        // MD5不符时失败并删除暂存文件
+        String wrong = DigestUtils.md5DigestAsHex(new byte[1]);
+        JsonException e = assertThrows(JsonException.class, () -> storeService.stage(0, new ByteArrayInputStream(data), fileInfo(data.length, wrong)));
+        assertEquals(400, e.getRes().getCode());
+        assertEquals(0, countStaging());
+
+        // 数据不完整时失败并删除暂存文件
+        assertThrows(JsonException.class, () -> storeService.stage(0, new ByteArrayInputStream(data, 0, 1000), fileInfo(data.length, md5)));
+        assertEquals(0, countStaging());
+    }
+
+    @Test
+    void cleanStaging() throws IOException {
+        Path dir = storeService.getStagingRoot(0, null);
+        Files.createDirectories(dir);
+        long now = System.currentTimeMillis();
+        Path stale = dir.resolve("stale.uploading");
+        Path fresh = dir.resolve("fresh.uploading");
+        Path other = dir.resolve("breakpoint");
+        Files.write(stale, new byte[10]);
+        Files.write(fresh, new byte[10]);
+        Files.createDirectories(other);
+        Files.setLastModifiedTime(stale, FileTime.fromMillis(now - 2 * 24 * 60 * 60 * 1000L));
+        Files.setLastModifiedTime(other, FileTime.fromMillis(now - 2 * 24 * 60 * 60 * 1000L));
+
+        assertEquals(1, storeService.cleanStaging(now - 24 * 60 * 60 * 1000L));
+        assertFalse(Files.exists(stale));
+        assertTrue(Files.exists(fresh));
+        assertTrue(Files.exists(other));
+    }
+}
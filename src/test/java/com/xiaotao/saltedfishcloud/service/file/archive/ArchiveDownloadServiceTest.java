@@ -0,0 +1,266 @@
+package com.xiaotao.saltedfishcloud.service.file.archive;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.config.StoreType;
+import com.xiaotao.saltedfishcloud.dao.mybatis.FileDao;
+import com.xiaotao.saltedfishcloud.dao.mybatis.NodeDao;
+import com.xiaotao.saltedfishcloud.po.NodeInfo;
+import com.xiaotao.saltedfishcloud.po.file.FileInfo;
+import com.xiaotao.saltedfishcloud.service.file.path.RawPathHandler;
+import com.xiaotao.saltedfishcloud.service.http.ResponseService;
+import com.xiaotao.saltedfishcloud.service.node.NodeService;
+import com.xiaotao.saltedfishcloud.service.ratelimit.RateLimitService;
+import com.xiaotao.saltedfishcloud.service.ratelimit.RateLimiter;
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StreamUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 使用内存中的节点表与文件表验证嵌套目录的打包，文件表中的目录记录不应作为文件写入归档
+ */
+class ArchiveDownloadServiceTest {
+    private Path root;
+    private StoreType originType;
+    private String originPublicRoot;
+    private RawPathHandler originRawHandler;
+
+    /**
+     * 节点ID -> 该目录下的文件表记录，包含子目录记录
+     */
+    private final Map<String, List<FileInfo>> fileTable = new HashMap<>();
+    private final List<NodeInfo> nodeTable = new ArrayList<>();
+    private final Map<String, NodeInfo> pathNodes = new HashMap<>();
+    private ArchiveDownloadService service;
+
+    @BeforeEach
+    void init() throws IOException {
+        root = Files.createTempDirectory("archive-download-test");
+        originType = DiskConfig.STORE_TYPE;
+        originPublicRoot = DiskConfig.PUBLIC_ROOT;
+        originRawHandler = DiskConfig.rawPathHandler;
+        DiskConfig.STORE_TYPE = StoreType.RAW;
+        DiskConfig.PUBLIC_ROOT = root.toString();
+        DiskConfig.rawPathHandler = new RawPathHandler();
+
+        // /docs/a.txt、/docs/sub/b.txt、/docs/sub/deep/c.txt，以及空目录/docs/sub/empty
+        pathNodes.put("/", NodeInfo.getRootNode(0));
+        mkdir("root", "/", "docs", "n1");
+        mkdir("n1", "/docs", "sub", "n2");
+        mkdir("n2", "/docs/sub", "deep", "n3");
+        mkdir("n2", "/docs/sub", "empty", "n4");
+        write("n1", "/docs", "a.txt", "aaa");
+        write("n2", "/docs/sub", "b.txt", "bbbb");
+        write("n3", "/docs/sub/deep", "c.txt", "ccccc");
+
+        service = new ArchiveDownloadService();
+        inject("nodeService", new NodeService() {
+            @Override
+            public NodeInfo getLastNodeInfoByPath(int uid, String path) throws NoSuchFileException {
+                NodeInfo node = pathNodes.get(path);
+                if (node == null) {
+                    throw new NoSuchFileException(path);
+                }
+                return node;
+            }
+        });
+        inject("nodeDao", Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{NodeDao.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getNodeByParentId":
+                    return nodeTable.stream()
+                            .filter(e -> e.getParent().equals(args[1]) && e.getName().equals(args[2]))
+                            .findFirst().orElse(null);
+                case "getChildNodes":
+                    Collection<?> ids = (Collection<?>) args[1];
+                    return nodeTable.stream().filter(e -> ids.contains(e.getParent())).collect(Collectors.toList());
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+        inject("fileDao", Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{FileDao.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getFileInfo":
+                    return fileTable.getOrDefault((String) args[2], Collections.emptyList()).stream()
+                            .filter(e -> e.getName().equals(args[1]))
+                            .findFirst().orElse(null);
+                case "getFileListByNodeIdAfter":
+                    String after = (String) args[2];
+                    return fileTable.getOrDefault((String) args[1], Collections.emptyList()).stream()
+                            .filter(e -> after == null || e.getName().compareTo(after) > 0)
+                            .sorted(Comparator.comparing(FileInfo::getName))
+                            .limit((Integer) args[3])
+                            .collect(Collectors.toList());
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+        inject("responseService", new ResponseService() {
+            @Override
+            public boolean isChunkedRead(String md5, String localPath) {
+                return false;
+            }
+        });
+        inject("rateLimitService", new RateLimitService() {
+            @Override
+            public RateLimiter getDownloadLimiter(HttpServletRequest request) {
+                return null;
+            }
+        });
+    }
+
+    @AfterEach
+    void clean() throws IOException {
+        DiskConfig.STORE_TYPE = originType;
+        DiskConfig.PUBLIC_ROOT = originPublicRoot;
+        DiskConfig.rawPathHandler = originRawHandler;
+        FileUtils.delete(root);
+    }
+
+    private void inject(String name, Object value) {
+        Field field = ReflectionUtils.findField(ArchiveDownloadService.class, name);
+        assertNotNull(field);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, service, value);
+    }
+
+    /**
+     * 创建目录，与实际数据一致，同时写入节点表与父目录的文件表目录记录（大小为-1，MD5为节点ID）
+     */
+    private void mkdir(String parent, String parentPath, String name, String id) throws IOException {
+        NodeInfo node = new NodeInfo(name, 0, id, parent);
+        nodeTable.add(node);
+        String path = "/".equals(parentPath) ? "/" + name : parentPath + "/" + name;
+        pathNodes.put(path, node);
+        Files.createDirectories(root.resolve(path.substring(1)));
+
+        FileInfo dir = new FileInfo();
+        dir.setName(name);
+        dir.setType(FileInfo.TYPE_DIR);
+        dir.setSize(-1L);
+        dir.setMd5(id);
+        dir.setNode(parent);
+        fileTable.computeIfAbsent(parent, k -> new ArrayList<>()).add(dir);
+    }
+
+    private void write(String node, String parentPath, String name, String content) throws IOException {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        Files.write(root.resolve(parentPath.substring(1)).resolve(name), data);
+        FileInfo file = new FileInfo();
+        file.setName(name);
+        file.setType(FileInfo.TYPE_FILE);
+        file.setSize((long) data.length);
+        file.setMd5(name);
+        file.setNode(node);
+        fileTable.computeIfAbsent(node, k -> new ArrayList<>()).add(file);
+    }
+
+    /**
+     * 打包下载并读取归档中的条目，目录条目的值为null
+     */
+    private Map<String, String> download(String dir, Collection<String> names) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                body.write(b, off, len);
+            }
+        };
+        HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletResponse.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getOutputStream":
+                    return out;
+                case "isCommitted":
+                    return body.size() > 0;
+                default:
+                    return null;
+            }
+        });
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{HttpServletRequest.class}, (proxy, method, args) -> null);
+        service.sendZip(0, dir, names, request, response);
+
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(body.toByteArray()), StandardCharsets.UTF_8)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), entry.isDirectory() ? null : StreamUtils.copyToString(zip, StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    void nestedDirectory() throws IOException {
+        Map<String, String> entries = download("/docs", null);
+        Map<String, String> expect = new HashMap<>();
+        expect.put("a.txt", "aaa");
+        expect.put("sub/", null);
+        expect.put("sub/b.txt", "bbbb");
+        expect.put("sub/deep/", null);
+        expect.put("sub/deep/c.txt", "ccccc");
+        expect.put("sub/empty/", null);
+        assertEquals(expect, entries);
+    }
+
+    @Test
+    void selectDirectory() throws IOException {
+        // 选中的子目录在文件表中存在目录记录，应作为目录遍历而不是作为文件打开
+        Map<String, String> entries = download("/docs", Arrays.asList("a.txt", "sub"));
+        assertEquals("aaa", entries.get("a.txt"));
+        assertTrue(entries.containsKey("sub/"));
+        assertNull(entries.get("sub/"));
+        assertEquals("bbbb", entries.get("sub/b.txt"));
+        assertEquals("ccccc", entries.get("sub/deep/c.txt"));
+        assertEquals(6, entries.size());
+
+        assertThrows(NoSuchFileException.class, () -> download("/docs", Collections.singletonList("missing")));
+    }
+
+    @Test
+    void largeDirectory() throws IOException {
+        // 一个目录中的文件与子目录记录数超过一批时，目录记录不影响分批读取
+        for (int i = 0; i < ArchiveDownloadService.BATCH_SIZE + 5; i++) {
+            write("n3", "/docs/sub/deep", String.format("f%05d.txt", i), "x");
+        }
+        Map<String, String> entries = download("/docs/sub", null);
+        long files = entries.keySet().stream().filter(e -> e.startsWith("deep/f")).count();
+        assertEquals(ArchiveDownloadService.BATCH_SIZE + 5, files);
+        assertEquals("ccccc", entries.get("deep/c.txt"));
+        assertNull(entries.get("empty/"));
+    }
+}
@@ -0,0 +1,119 @@
+package com.xiaotao.saltedfishcloud.service.file.archive;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArchiveReaderTest {
+
+    /**
+     * 构造一个tar头部
+     */
+    private static byte[] header(String name, long size, char type) {
+        byte[] h = new byte[512];
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(n, 0, h, 0, Math.min(n.length, 100));
+        put(h, 100, "0000644");
+        put(h, 124, String.format("%011o", size));
+        put(h, 136, String.format("%011o", 0));
+        h[156] = (byte) type;
+        put(h, 257, "ustar");
+        put(h, 263, "00");
+        Arrays.fill(h, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : h) sum += b & 0xff;
+        put(h, 148, String.format("%06o", sum));
+        h[154] = 0;
+        return h;
+    }
+
+    private static void put(byte[] h, int offset, String s) {
+        byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(b, 0, h, offset, b.length);
+    }
+
+    private static void entry(ByteArrayOutputStream out, String name, byte[] data, char type) throws IOException {
+        out.write(header(name, data.length, type));
+        out.write(data);
+        out.write(new byte[(512 - data.length % 512) % 512]);
+    }
+
+    private static List<String> readAll(ArchiveReader reader) throws IOException {
+        List<String> res = new ArrayList<>();
+        ArchiveEntry entry;
+        while ((entry = reader.next()) != null) {
+            if (entry.isDir()) {
+                res.add(entry.getName() + "[dir]");
+            } else if (entry.getName().startsWith("skip")) {
+                // 不读取数据，由next跳过
+                res.add(entry.getName());
+            } else {
+                res.add(entry.getName() + "=" + StreamUtils.copyToString(reader.getInputStream(), StandardCharsets.UTF_8));
+            }
+        }
+        return res;
+    }
+
+    @Test
+    public void tar() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entry(out, "dir/", new byte[0], '5');
+        entry(out, "dir/a.txt", "hello".getBytes(StandardCharsets.UTF_8), '0');
+        entry(out, "skip.bin", new byte[1000], '0');
+        entry(out, "link", new byte[0], '2');
+        StringBuilder longName = new StringBuilder("dir/");
+        for (int i = 0; i < 30; i++) longName.append("long_");
+        longName.append(".txt");
+        entry(out, "././@LongLink", (longName + "\0").getBytes(StandardCharsets.UTF_8), 'L');
+        entry(out, "short", "long".getBytes(StandardCharsets.UTF_8), '0');
+        String pax = "path=dir/中文.txt\n";
+        pax = (pax.getBytes(StandardCharsets.UTF_8).length + 4) + " " + pax;
+        entry(out, "PaxHeader", pax.getBytes(StandardCharsets.UTF_8), 'x');
+        entry(out, "ascii", "pax".getBytes(StandardCharsets.UTF_8), '0');
+        out.write(new byte[1024]);
+
+        byte[] data = out.toByteArray();
+        List<String> res = readAll(ArchiveReader.open(new ByteArrayInputStream(data), null));
+        assertEquals(Arrays.asList("dir/[dir]", "dir/a.txt=hello", "skip.bin", longName + "=long", "dir/中文.txt=pax"), res);
+
+        // 损坏的头部
+        data[600] ^= 1;
+        assertThrows(IOException.class, () -> readAll(ArchiveReader.open(new ByteArrayInputStream(data), "tar")));
+    }
+
+    @Test
+    public void zip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8)) {
+            zip.putNextEntry(new ZipEntry("dir/"));
+            zip.putNextEntry(new ZipEntry("dir/文件.txt"));
+            zip.write("zip".getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("skip.bin"));
+            zip.write(new byte[4096]);
+            zip.putNextEntry(new ZipEntry("b.txt"));
+            zip.write("b".getBytes(StandardCharsets.UTF_8));
+        }
+        List<String> res = readAll(ArchiveReader.open(new ByteArrayInputStream(out.toByteArray()), null));
+        assertEquals(Arrays.asList("dir/[dir]", "dir/文件.txt=zip", "skip.bin", "b.txt=b"), res);
+
+        assertThrows(IllegalArgumentException.class, () -> ArchiveReader.open(new ByteArrayInputStream(new byte[100]), null));
+    }
+
+    @Test
+    public void splitName() {
+        assertEquals(Arrays.asList("a", "b", "c.txt"), ArchiveIngestService.splitName("./a//b\\c.txt"));
+        assertTrue(ArchiveIngestService.splitName("/").isEmpty());
+        assertNull(ArchiveIngestService.splitName("a/../../etc/passwd"));
+    }
+}
@@ -0,0 +1,167 @@
+package com.xiaotao.saltedfishcloud.service.file.archive;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.StreamUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ZipStreamWriterTest {
+
+    /**
+     * 产生指定长度的零字节，不占用内存
+     */
+    private static InputStream zeros(long length) {
+        return new InputStream() {
+            long remaining = length;
+
+            @Override
+            public int read() {
+                if (remaining <= 0) return -1;
+                remaining--;
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (remaining <= 0) return -1;
+                int n = (int) Math.min(len, remaining);
+                java.util.Arrays.fill(b, off, off + n, (byte) 0);
+                remaining -= n;
+                return n;
+            }
+        };
+    }
+
+    @Test
+    public void mixedEntries() throws IOException {
+        byte[] text = String.join("", java.util.Collections.nCopies(1000, "咸鱼云网盘 zip stream\n")).getBytes(StandardCharsets.UTF_8);
+        byte[] random = new byte[300_000];
+        new Random(1).nextBytes(random);
+        Path tmp = Files.createTempFile("zip-writer", ".zip");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp); ZipStreamWriter zip = new ZipStreamWriter(out)) {
+                zip.putDirectory("目录", 1600000000000L);
+                zip.putFile("目录/文本.txt", text.length, 1600000000000L, true, new ByteArrayInputStream(text));
+                zip.putFile("目录/image.jpg", random.length, 1600000000000L, false, new ByteArrayInputStream(random));
+                zip.putFile("empty", 0, 1600000000000L, true, new ByteArrayInputStream(new byte[0]));
+                zip.putDirectory("空目录/", 1600000000000L);
+            }
+            try (ZipFile zipFile = new ZipFile(tmp.toFile(), StandardCharsets.UTF_8)) {
+                assertEquals(5, zipFile.size());
+                assertTrue(zipFile.getEntry("目录/").isDirectory());
+                assertTrue(zipFile.getEntry("空目录/").isDirectory());
+
+                ZipEntry textEntry = zipFile.getEntry("目录/文本.txt");
+                assertEquals(ZipEntry.DEFLATED, textEntry.getMethod());
+                assertTrue(textEntry.getCompressedSize() < text.length / 10);
+                assertArrayEquals(text, StreamUtils.copyToByteArray(zipFile.getInputStream(textEntry)));
+
+                ZipEntry imageEntry = zipFile.getEntry("目录/image.jpg");
+                assertEquals(ZipEntry.STORED, imageEntry.getMethod());
+                assertEquals(random.length, imageEntry.getCompressedSize());
+                assertArrayEquals(random, StreamUtils.copyToByteArray(zipFile.getInputStream(imageEntry)));
+
+                assertEquals(0, zipFile.getEntry("empty").getSize());
+                // DOS时间精度为2秒
+                assertTrue(Math.abs(textEntry.getTime() - 1600000000000L) <= 2000);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 条目数超过65535，且中央目录超过内存上限转存到临时文件
+     */
+    @Test
+    public void manyEntries() throws IOException {
+        int count = 70000;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipStreamWriter zip = new ZipStreamWriter(out)) {
+            for (int i = 0; i < count; i++) {
+                byte[] data = ("file" + i).getBytes(StandardCharsets.UTF_8);
+                zip.putFile("dir" + (i % 10) + "/file-with-a-long-name-" + i + ".txt", data.length, 0, i % 2 == 0, new ByteArrayInputStream(data));
+            }
+            assertEquals(count, zip.getEntries());
+        }
+        Path tmp = Files.createTempFile("zip-writer", ".zip");
+        try {
+            Files.write(tmp, out.toByteArray());
+            try (ZipFile zipFile = new ZipFile(tmp.toFile())) {
+                assertEquals(count, zipFile.size());
+                ZipEntry entry = zipFile.getEntry("dir3/file-with-a-long-name-69993.txt");
+                assertEquals("file69993", StreamUtils.copyToString(zipFile.getInputStream(entry), StandardCharsets.UTF_8));
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 超过4GiB的条目及其后偏移超过4GiB的条目使用ZIP64
+     */
+    @Test
+    public void zip64() throws IOException {
+        long big = 0x100000000L + 123;
+        Path tmp = Files.createTempFile("zip-writer", ".zip");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 20); ZipStreamWriter zip = new ZipStreamWriter(out)) {
+                zip.putFile("big.mp4", big, 0, false, zeros(big));
+                zip.putFile("after.txt", 5, 0, true, new ByteArrayInputStream("after".getBytes(StandardCharsets.UTF_8)));
+            }
+            try (ZipFile zipFile = new ZipFile(tmp.toFile())) {
+                assertEquals(2, zipFile.size());
+                assertEquals(big, zipFile.getEntry("big.mp4").getSize());
+                assertEquals("after", StreamUtils.copyToString(zipFile.getInputStream(zipFile.getEntry("after.txt")), StandardCharsets.UTF_8));
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Test
+    public void sizeExceeded() throws IOException {
+        ZipStreamWriter zip = new ZipStreamWriter(new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        });
+        assertThrows(IOException.class, () -> zip.putFile("a.bin", 10, 0, false, zeros(0x100000000L)));
+    }
+
+    @Test
+    public void abort() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipStreamWriter zip = new ZipStreamWriter(out)) {
+            zip.putFile("a.txt", 3, 0, true, new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)));
+            zip.abort();
+            assertThrows(IOException.class, () -> zip.putDirectory("b", 0));
+        }
+        // 放弃的归档只有已写入的条目，没有中央目录，不能被当作完整的zip文件打开
+        Path tmp = Files.createTempFile("zip-writer", ".zip");
+        try {
+            Files.write(tmp, out.toByteArray());
+            assertThrows(IOException.class, () -> new ZipFile(tmp.toFile()).close());
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Test
+    public void compressible() {
+        assertTrue(ArchiveDownloadService.isCompressible("a.txt"));
+        assertTrue(ArchiveDownloadService.isCompressible("README"));
+        assertFalse(ArchiveDownloadService.isCompressible("a.JPG"));
+        assertFalse(ArchiveDownloadService.isCompressible("a.tar.gz"));
+    }
+}
@@ -0,0 +1,118 @@
+package com.xiaotao.saltedfishcloud.service.file.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HotObjectCacheTest {
+
+    private static ByteBuffer data(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) i);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static HotObjectCache.Entry load(HotObjectCache cache, String key, int size) {
+        if (cache.get(key) != null) {
+            return cache.get(key);
+        }
+        return cache.admit(key, size) ? cache.put(key, key, data(size), 0, cache.getGeneration()) : null;
+    }
+
+    @Test
+    public void admitByFrequency() {
+        HotObjectCache cache = new HotObjectCache(3000, 1000);
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 5; j++) {
+                load(cache, "hot" + i, 1000);
+            }
+        }
+        assertEquals(3, cache.getStat().getCount());
+
+        // 只访问一次的文件不能挤出热点文件
+        for (int i = 0; i < 100; i++) {
+            assertNull(load(cache, "once" + i, 1000));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(cache.get("hot" + i));
+        }
+        assertEquals(0, cache.getStat().getEvictions());
+
+        // 访问频率超过最久未访问的文件后被准入，淘汰该文件
+        cache.get("hot1");
+        cache.get("hot2");
+        HotObjectCache.Entry entry = null;
+        for (int i = 0; i < 15 && entry == null; i++) {
+            entry = load(cache, "new", 1000);
+        }
+        assertNotNull(entry);
+        assertNull(cache.get("hot0"));
+        assertNotNull(cache.get("hot1"));
+        assertEquals(1, cache.getStat().getEvictions());
+        assertEquals(3000, cache.getStat().getBytes());
+    }
+
+    @Test
+    public void sizeLimit() {
+        HotObjectCache cache = new HotObjectCache(3000, 1000);
+        assertFalse(cache.admit("large", 1001));
+        assertNull(cache.put("large", "large", data(1001), 0, cache.getGeneration()));
+        assertEquals(1, cache.getStat().getRejections());
+        assertEquals(0, cache.getStat().getCount());
+    }
+
+    @Test
+    public void invalidate() {
+        HotObjectCache cache = new HotObjectCache(3000, 1000);
+        assertNotNull(load(cache, "a", 500));
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getStat().getBytes());
+
+        // 读取期间发生失效时不放入读取到的旧内容
+        long generation = cache.getGeneration();
+        cache.invalidate("a");
+        assertNull(cache.put("a", "a", data(500), 0, generation));
+        assertNotNull(cache.put("a", "a", data(500), 0, cache.getGeneration()));
+    }
+
+    @Test
+    public void hitRate() {
+        HotObjectCache cache = new HotObjectCache(3000, 1000);
+        cache.get("a");
+        cache.put("a", "a", data(100), 0, cache.getGeneration());
+        cache.get("a");
+        cache.get("a");
+        cache.get("a");
+        HotObjectCache.Stat stat = cache.getStat();
+        assertEquals(3, stat.getHits());
+        assertEquals(1, stat.getMisses());
+        assertTrue(Math.abs(stat.getHitRate() - 0.75) < 1e-9);
+    }
+
+    @Test
+    public void resourceRead() throws IOException {
+        HotObjectCache cache = new HotObjectCache(3000, 1000);
+        HotObjectCache.Entry entry = cache.put("a", "a", data(200), 0, cache.getGeneration());
+        ByteBufferResource resource = new ByteBufferResource(entry.getData(), "a");
+        assertEquals(200, resource.contentLength());
+        try (InputStream in = resource.getInputStream()) {
+            assertEquals(150, in.skip(150));
+            byte[] buf = new byte[100];
+            assertEquals(50, in.read(buf, 0, 100));
+            assertEquals((byte) 150, buf[0]);
+            assertEquals(-1, in.read());
+        }
+        // 每个输入流独立读取
+        try (InputStream in = resource.getInputStream()) {
+            assertEquals(0, in.read());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.xiaotao.saltedfishcloud.service.file.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.ReflectionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HotObjectServiceTest {
+
+    private static void set(Object target, String name, Object value) {
+        Field field = ReflectionUtils.findField(target.getClass(), name);
+        assertNotNull(field);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+
+    @Test
+    public void concurrentLoad() throws Exception {
+        HotObjectService service = new HotObjectService();
+        set(service, "cacheSize", 1);
+        set(service, "maxObjectSize", 256);
+        service.init();
+
+        byte[] data = new byte[100 * 1024];
+        AtomicInteger opens = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        List<Future<HotObjectCache.Entry>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                if (service.get("a") != null) {
+                    return service.get("a");
+                }
+                return service.load("a", "a.jpg", data.length, 0, () -> {
+                    opens.incrementAndGet();
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new ByteArrayInputStream(data);
+                });
+            }));
+        }
+        start.countDown();
+        try {
+            HotObjectCache.Entry first = futures.get(0).get();
+            assertNotNull(first);
+            for (Future<HotObjectCache.Entry> future : futures) {
+                assertEquals(data.length, future.get().size());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        // 同一个键的并发未命中只读取一次文件
+        assertEquals(1, opens.get());
+        assertEquals(1, service.getStat().getAdmissions());
+    }
+}
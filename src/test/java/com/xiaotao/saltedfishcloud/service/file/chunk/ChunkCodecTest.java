@@ -0,0 +1,130 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+class ChunkCodecTest {
+
+    /**
+     * 生成类似日志文件的文本数据
+     */
+    private static byte[] logLikeData(Random random, int size) {
+        String[] levels = {"INFO", "DEBUG", "WARN", "ERROR"};
+        String[] words = {"request", "upload", "file", "user", "token", "download", "node", "store", "sync", "finish"};
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("2021-08-").append(10 + random.nextInt(20)).append(' ')
+                    .append(random.nextInt(24)).append(':').append(random.nextInt(60)).append(':').append(random.nextInt(60))
+                    .append(" [").append(levels[random.nextInt(levels.length)]).append("] ");
+            for (int i = 0; i < 8; i++) {
+                sb.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            sb.append("id=").append(random.nextInt(100000)).append('\n');
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    @Test
+    void encodeAndDecode() throws IOException {
+        ChunkCodec codec = new ChunkCodec(true);
+        Random random = new Random(1);
+
+        byte[] text = logLikeData(random, 64 * 1024);
+        byte[] encoded = codec.encode(text, 0, text.length);
+        assertEquals(ChunkCodec.TYPE_DEFLATE, encoded[0]);
+        assertTrue(encoded.length < text.length / 2);
+        assertArrayEquals(text, codec.decode(encoded));
+
+        // 高熵数据（已压缩的媒体文件）直接原样存储
+        byte[] media = new byte[64 * 1024];
+        random.nextBytes(media);
+        encoded = codec.encode(media, 0, media.length);
+        assertEquals(ChunkCodec.TYPE_RAW, encoded[0]);
+        assertArrayEquals(media, codec.decode(encoded));
+        assertEquals(1, codec.getSkippedChunks());
+
+        // 不启用压缩
+        ChunkCodec plain = new ChunkCodec(false);
+        encoded = plain.encode(text, 10, 100);
+        assertEquals(ChunkCodec.TYPE_RAW, encoded[0]);
+        assertArrayEquals(Arrays.copyOfRange(text, 10, 110), plain.decode(encoded));
+    }
+
+    /**
+     * 压缩存储文本数据，并验证范围读取只需解压对应的数据块
+     */
+    @Test
+    void compressedRange() throws IOException {
+        Path root = Files.createTempDirectory("codec-test");
+        ChunkCodec codec = new ChunkCodec(true);
+        byte[] data = logLikeData(new Random(2), 8 * 1024 * 1024);
+        try (ChunkRepository repository = new ChunkRepository(root, new FastCdcChunker(), codec, PackStore.DEFAULT_SEGMENT_SIZE)) {
+            ChunkManifest manifest = repository.store(new ByteArrayInputStream(data));
+            assertTrue(repository.getStoredSize() * 2 < data.length);
+
+            try (ChunkedInputStream in = repository.open(manifest.getMd5())) {
+                int pos = 5 * 1024 * 1024 + 12345;
+                in.seek(pos);
+                byte[] buf = new byte[100000];
+                int total = 0;
+                while (total < buf.length) {
+                    total += in.read(buf, total, buf.length - total);
+                }
+                assertArrayEquals(Arrays.copyOfRange(data, pos, pos + buf.length), buf);
+            }
+            assertTrue(codec.getDecodeThroughput() > 0);
+            try (ChunkedInputStream in = repository.open(manifest.getMd5())) {
+                assertArrayEquals(data, readAll(in));
+            }
+        } finally {
+            FileUtils.delete(root);
+        }
+    }
+
+    /**
+     * 测量压缩率与压缩、解压吞吐量
+     */
+    @Test
+    @Disabled("基准测试，需手动运行")
+    void compressBenchmark() throws IOException {
+        Path root = Files.createTempDirectory("codec-test");
+        ChunkCodec codec = new ChunkCodec(true);
+        byte[] data = logLikeData(new Random(2), 64 * 1024 * 1024);
+        try (ChunkRepository repository = new ChunkRepository(root, new FastCdcChunker(), codec, PackStore.DEFAULT_SEGMENT_SIZE)) {
+            ChunkManifest manifest = repository.store(new ByteArrayInputStream(data));
+            log.info(String.format("原始大小: %d MiB, 存储大小: %.2f MiB, 压缩率: %.2f, 压缩吞吐: %.1f MiB/s",
+                    data.length >> 20, repository.getStoredSize() / 1048576.0,
+                    (double) codec.getInputBytes() / codec.getOutputBytes(), codec.getEncodeThroughput()));
+            try (ChunkedInputStream in = repository.open(manifest.getMd5())) {
+                readAll(in);
+            }
+            log.info(String.format("解压吞吐: %.1f MiB/s", codec.getDecodeThroughput()));
+        } finally {
+            FileUtils.delete(root);
+        }
+    }
+
+    private static byte[] readAll(ChunkedInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[65536];
+        int cnt;
+        while ((cnt = in.read(buf)) != -1) {
+            out.write(buf, 0, cnt);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,187 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+class ChunkRepositoryTest {
+    private Path root;
+    private ChunkRepository repository;
+
+    @BeforeEach
+    void init() throws IOException {
+        root = Files.createTempDirectory("chunk-test");
+        repository = new ChunkRepository(root);
+    }
+
+    @AfterEach
+    void clean() throws IOException {
+        repository.close();
+        FileUtils.delete(root);
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] res = new byte[size];
+        random.nextBytes(res);
+        return res;
+    }
+
+    private byte[] readAll(ChunkedInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int cnt;
+        while ((cnt = in.read(buf)) != -1) {
+            out.write(buf, 0, cnt);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void storeAndRead() throws IOException {
+        Random random = new Random(1);
+        byte[] data = randomBytes(random, 5 * 1024 * 1024 + 123);
+        ChunkManifest manifest = repository.store(new ByteArrayInputStream(data));
+        assertEquals(DigestUtils.md5DigestAsHex(data), manifest.getMd5());
+        assertEquals(data.length, manifest.getSize());
+        assertTrue(repository.exists(manifest.getMd5()));
+
+        try (ChunkedInputStream in = repository.open(manifest.getMd5())) {
+            assertArrayEquals(data, readAll(in));
+        }
+
+        // 随机定位读取
+        try (ChunkedInputStream in = repository.open(manifest.getMd5())) {
+            byte[] buf = new byte[1000];
+            for (int i = 0; i < 200; i++) {
+                int pos = random.nextInt(data.length - buf.length);
+                in.seek(pos);
+                int cnt = in.read(buf);
+                assertEquals(buf.length, cnt);
+                assertArrayEquals(Arrays.copyOfRange(data, pos, pos + buf.length), buf);
+            }
+        }
+
+        // 空文件
+        ChunkManifest empty = repository.store(new ByteArrayInputStream(new byte[0]));
+        assertEquals(0, empty.getChunkCount());
+        assertEquals(-1, repository.open(empty.getMd5()).read());
+    }
+
+    @Test
+    void gc() throws IOException {
+        Random random = new Random(2);
+        byte[] shared = randomBytes(random, 2 * 1024 * 1024);
+        byte[] a = shared.clone();
+        byte[] b = shared.clone();
+        System.arraycopy(randomBytes(random, 4096), 0, b, 1024 * 1024, 4096);
+
+        ChunkManifest ma = repository.store(new ByteArrayInputStream(a));
+        ChunkManifest mb = repository.store(new ByteArrayInputStream(b));
+        long before = repository.getStoredSize();
+
+        assertTrue(repository.deleteManifest(ma.getMd5()));
+        assertTrue(repository.gc() > 0);
+        assertTrue(repository.getStoredSize() < before);
+        try (ChunkedInputStream in = repository.open(mb.getMd5())) {
+            assertArrayEquals(b, readAll(in));
+        }
+    }
+
+    /**
+     * 生成多个相似的版本，每个版本在上一版本的随机位置插入、删除或修改少量数据
+     */
+    private static List<byte[]> versions(Random random, int size, int count) throws IOException {
+        List<byte[]> versions = new ArrayList<>();
+        byte[] current = randomBytes(random, size);
+        versions.add(current);
+        for (int v = 1; v < count; v++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int pos = 0;
+            for (int edit = 0; edit < 8; edit++) {
+                int next = pos + random.nextInt((current.length - pos) / (8 - edit));
+                out.write(current, pos, next - pos);
+                switch (random.nextInt(3)) {
+                    case 0: out.write(randomBytes(random, 1 + random.nextInt(8192))); pos = next; break;
+                    case 1: pos = Math.min(current.length, next + random.nextInt(8192)); break;
+                    default:
+                        int len = Math.min(current.length - next, 1 + random.nextInt(8192));
+                        out.write(randomBytes(random, len));
+                        pos = next + len;
+                }
+            }
+            out.write(current, pos, current.length - pos);
+            current = out.toByteArray();
+            versions.add(current);
+        }
+        return versions;
+    }
+
+    private static long uniqueSize(List<byte[]> versions) {
+        Set<String> uniqueMd5 = new HashSet<>();
+        long uniqueStored = 0;
+        for (byte[] version : versions) {
+            if (uniqueMd5.add(DigestUtils.md5DigestAsHex(version))) {
+                uniqueStored += version.length;
+            }
+        }
+        return uniqueStored;
+    }
+
+    @Test
+    void similarVersions() throws IOException {
+        List<byte[]> versions = versions(new Random(3), 16 * 1024 * 1024, 5);
+        List<ChunkManifest> manifests = new ArrayList<>();
+        for (byte[] version : versions) {
+            manifests.add(repository.store(new ByteArrayInputStream(version)));
+        }
+        assertTrue(repository.getStoredSize() * 3 < uniqueSize(versions), "分块存储应显著减少相似文件的存储占用");
+        for (int i = 0; i < versions.size(); i++) {
+            try (ChunkedInputStream in = repository.open(manifests.get(i).getMd5())) {
+                assertArrayEquals(versions.get(i), readAll(in));
+            }
+        }
+    }
+
+    /**
+     * 模拟多个版本的虚拟机镜像，对比UNIQUE（整文件去重）与CHUNKED（分块去重）的存储占用与写入吞吐量
+     */
+    @Test
+    @Disabled("基准测试，需手动运行")
+    void dedupBenchmark() throws IOException {
+        List<byte[]> versions = versions(new Random(3), 64 * 1024 * 1024, 5);
+        long logical = 0;
+        long begin = System.nanoTime();
+        for (byte[] version : versions) {
+            logical += version.length;
+        }
+        long uniqueStored = uniqueSize(versions);
+        long uniqueTime = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (byte[] version : versions) {
+            repository.store(new ByteArrayInputStream(version));
+        }
+        long chunkTime = System.nanoTime() - begin;
+        long chunkStored = repository.getStoredSize();
+
+        log.info("逻辑数据量: {} MiB, 版本数: {}", logical >> 20, versions.size());
+        log.info(String.format("UNIQUE  存储: %d MiB, 去重率: %.2f, 哈希吞吐: %.1f MiB/s",
+                uniqueStored >> 20, (double) logical / uniqueStored, (logical / 1048576.0) / (uniqueTime / 1e9)));
+        log.info(String.format("CHUNKED 存储: %d MiB, 去重率: %.2f, 写入吞吐: %.1f MiB/s",
+                chunkStored >> 20, (double) logical / chunkStored, (logical / 1048576.0) / (chunkTime / 1e9)));
+    }
+}
@@ -0,0 +1,193 @@
+package com.xiaotao.saltedfishcloud.service.file.chunk;
+
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.DigestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+class PackStoreTest {
+    private Path root;
+
+    @BeforeEach
+    void init() throws IOException {
+        root = Files.createTempDirectory("pack-test");
+    }
+
+    @AfterEach
+    void clean() throws IOException {
+        FileUtils.delete(root);
+    }
+
+    private static Map<String, byte[]> randomObjects(Random random, int count, int maxSize) {
+        Map<String, byte[]> res = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[1 + random.nextInt(maxSize)];
+            random.nextBytes(data);
+            res.put(DigestUtils.md5DigestAsHex(data), data);
+        }
+        return res;
+    }
+
+    @Test
+    void putGetAndReload() throws IOException {
+        Map<String, byte[]> objects = randomObjects(new Random(1), 2000, 4096);
+        try (PackStore store = new PackStore(root, 1024 * 1024)) {
+            for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+                assertTrue(store.put(e.getKey(), e.getValue(), 0, e.getValue().length));
+                assertFalse(store.put(e.getKey(), e.getValue(), 0, e.getValue().length));
+            }
+            assertTrue(store.getSegmentCount() > 1);
+        }
+
+        // 重新打开后通过索引日志恢复
+        try (PackStore store = new PackStore(root, 1024 * 1024)) {
+            assertEquals(objects.size(), store.getCount());
+            for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+                assertArrayEquals(e.getValue(), store.get(e.getKey()));
+            }
+            assertThrows(NoSuchFileException.class, () -> store.get("00000000000000000000000000000000"));
+        }
+    }
+
+    @Test
+    void deleteAndCompact() throws IOException {
+        Map<String, byte[]> objects = randomObjects(new Random(2), 2000, 4096);
+        List<String> keys = new ArrayList<>(objects.keySet());
+        try (PackStore store = new PackStore(root, 512 * 1024)) {
+            for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+                store.put(e.getKey(), e.getValue(), 0, e.getValue().length);
+            }
+            long total = store.getTotalBytes();
+            for (int i = 0; i < keys.size(); i += 2) {
+                assertTrue(store.delete(keys.get(i)));
+            }
+            assertTrue(store.compact(0.3) > 0);
+            assertTrue(store.getTotalBytes() < total);
+        }
+        try (PackStore store = new PackStore(root, 512 * 1024)) {
+            for (int i = 0; i < keys.size(); i++) {
+                if (i % 2 == 0) {
+                    assertFalse(store.contains(keys.get(i)));
+                } else {
+                    assertArrayEquals(objects.get(keys.get(i)), store.get(keys.get(i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    void compactTruncatedSegment() throws IOException {
+        Map<String, byte[]> objects = randomObjects(new Random(5), 2000, 4096);
+        List<String> keys = new ArrayList<>(objects.keySet());
+        try (PackStore store = new PackStore(root, 512 * 1024)) {
+            for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+                store.put(e.getKey(), e.getValue(), 0, e.getValue().length);
+            }
+            for (int i = 0; i < keys.size(); i += 2) {
+                store.delete(keys.get(i));
+            }
+            // 模拟第一个分段后半部分的数据丢失
+            Path segment;
+            try (Stream<Path> s = Files.list(root)) {
+                segment = s.filter(p -> p.toString().endsWith(".pack")).sorted().findFirst().get();
+            }
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() / 2);
+            }
+            assertThrows(java.io.EOFException.class, () -> store.compact(0.3));
+
+            // 迁移失败的对象索引不变，其余对象仍可读取
+            for (int i = 1; i < keys.size(); i += 2) {
+                assertTrue(store.contains(keys.get(i)));
+            }
+            assertArrayEquals(objects.get(keys.get(1)), store.get(keys.get(1)));
+        }
+    }
+
+    @Test
+    void tornIndexTail() throws IOException {
+        Map<String, byte[]> objects = randomObjects(new Random(3), 100, 1024);
+        try (PackStore store = new PackStore(root)) {
+            for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+                store.put(e.getKey(), e.getValue(), 0, e.getValue().length);
+            }
+        }
+        // 模拟写入索引记录时中断
+        try (FileChannel channel = FileChannel.open(root.resolve("index.log"), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}));
+        }
+        try (PackStore store = new PackStore(root)) {
+            assertEquals(objects.size(), store.getCount());
+        }
+    }
+
+    private static long countFiles(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            return s.count();
+        }
+    }
+
+    @Test
+    void smallFiles() throws IOException {
+        // 大量小对象打包存入少数几个文件
+        Map<String, byte[]> objects = randomObjects(new Random(4), 2000, 2048);
+        Path packed = root.resolve("packed");
+        try (PackStore store = new PackStore(packed)) {
+            for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+                store.put(e.getKey(), e.getValue(), 0, e.getValue().length);
+            }
+            store.sync();
+        }
+        assertTrue(countFiles(packed) < 10);
+        try (PackStore store = new PackStore(packed)) {
+            for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+                assertArrayEquals(e.getValue(), store.get(e.getKey()));
+            }
+        }
+    }
+
+    /**
+     * 对比海量小文件分别以独立文件与打包方式存储时的文件（inode）数量与写入耗时
+     */
+    @Test
+    @Disabled("基准测试，需手动运行")
+    void smallFileBenchmark() throws IOException {
+        Map<String, byte[]> objects = randomObjects(new Random(4), 20000, 2048);
+
+        Path loose = Files.createDirectories(root.resolve("loose"));
+        long begin = System.nanoTime();
+        for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+            Path p = loose.resolve(e.getKey().substring(0, 2)).resolve(e.getKey().substring(2, 4)).resolve(e.getKey());
+            Files.createDirectories(p.getParent());
+            Files.write(p, e.getValue());
+        }
+        long looseTime = System.nanoTime() - begin;
+
+        Path packed = root.resolve("packed");
+        begin = System.nanoTime();
+        try (PackStore store = new PackStore(packed)) {
+            for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+                store.put(e.getKey(), e.getValue(), 0, e.getValue().length);
+            }
+            store.sync();
+        }
+        long packTime = System.nanoTime() - begin;
+
+        log.info("对象数: {}", objects.size());
+        log.info("独立文件: inode {}, 写入耗时 {} ms", countFiles(loose), looseTime / 1000000);
+        log.info("打包存储: inode {}, 写入耗时 {} ms", countFiles(packed), packTime / 1000000);
+    }
+}
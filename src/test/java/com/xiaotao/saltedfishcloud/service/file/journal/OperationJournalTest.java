@@ -0,0 +1,106 @@
+package com.xiaotao.saltedfishcloud.service.file.journal;
+
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+class OperationJournalTest {
+    private Path root;
+
+    @BeforeEach
+    void init() throws IOException {
+        root = Files.createTempDirectory("journal-test");
+    }
+
+    @AfterEach
+    void clean() throws IOException {
+        FileUtils.delete(root);
+    }
+
+    private static OperationRecord save(String name) {
+        OperationRecord record = new OperationRecord();
+        record.setType(OperationRecord.Type.SAVE);
+        record.setUid(1);
+        record.setPath("/测试");
+        record.setNames(Collections.singletonList(name));
+        record.setMd5("0123456789abcdef0123456789abcdef");
+        record.setSize(100L);
+        return record;
+    }
+
+    @Test
+    void pendingAndReload() throws IOException {
+        Path file = root.resolve("operation.log");
+        long a, b, c;
+        try (OperationJournal journal = new OperationJournal(file)) {
+            a = journal.begin(save("a.txt"));
+            b = journal.begin(save("b.txt"));
+            c = journal.begin(save("c.txt"));
+            journal.end(a, true);
+            journal.end(c, false);
+            assertEquals(1, journal.getPending().size());
+        }
+        // 模拟写入记录时崩溃
+        Files.write(file, "{\"id\":9,\"sta".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (OperationJournal journal = new OperationJournal(file)) {
+            List<OperationRecord> pending = journal.getPending();
+            assertEquals(1, pending.size());
+            assertEquals(b, pending.get(0).getId());
+            assertEquals("b.txt", pending.get(0).firstName());
+            assertEquals("/测试", pending.get(0).getPath());
+            assertEquals(OperationRecord.Type.SAVE, pending.get(0).getType());
+            // 重新打开后ID继续递增
+            assertTrue(journal.begin(save("d.txt")) > c);
+
+            journal.truncate();
+            assertTrue(Files.size(file) > 0);
+            journal.end(b, true);
+            journal.end(c + 1, true);
+            journal.truncate();
+            assertEquals(0, Files.size(file));
+        }
+    }
+
+    /**
+     * 多个线程同时记录操作时，fsync次数应明显少于记录数
+     */
+    @Test
+    void groupCommit() throws Exception {
+        int threads = 16, perThread = 200;
+        try (OperationJournal journal = new OperationJournal(root.resolve("operation.log"))) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        long id = journal.begin(save("f" + i));
+                        journal.end(id, true);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            pool.shutdown();
+            int total = threads * perThread;
+            log.debug("记录数: {}, fsync次数: {}", total, journal.getSyncCount());
+            assertTrue(journal.getPending().isEmpty());
+            assertTrue(journal.getSyncCount() <= total);
+        }
+    }
+}
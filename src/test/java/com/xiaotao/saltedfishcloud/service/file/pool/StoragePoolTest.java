@@ -0,0 +1,134 @@
+package com.xiaotao.saltedfishcloud.service.file.pool;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.utils.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.DigestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+class StoragePoolTest {
+    private Path root;
+    private String originStoreRoot;
+    private List<String> originVolumes;
+    private List<String> originColdVolumes;
+
+    @BeforeEach
+    void init() throws IOException {
+        root = Files.createTempDirectory("pool-test");
+        originStoreRoot = DiskConfig.STORE_ROOT;
+        originVolumes = DiskConfig.STORE_VOLUMES;
+        originColdVolumes = DiskConfig.STORE_COLD_VOLUMES;
+        DiskConfig.STORE_ROOT = root.resolve("store").toString();
+        DiskConfig.STORE_VOLUMES = Arrays.asList(root.resolve("v1").toString(), root.resolve("v2").toString());
+    }
+
+    @AfterEach
+    void clean() throws IOException {
+        DiskConfig.STORE_ROOT = originStoreRoot;
+        DiskConfig.STORE_VOLUMES = originVolumes;
+        DiskConfig.STORE_COLD_VOLUMES = originColdVolumes;
+        FileUtils.delete(root);
+    }
+
+    private static List<String> md5List(int count) {
+        List<String> res = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            res.add(DigestUtils.md5DigestAsHex(("file" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        return res;
+    }
+
+    @Test
+    void placement() {
+        StoragePool pool = new StoragePool();
+        List<String> keys = md5List(30000);
+        Map<String, Integer> before = new HashMap<>();
+        int[] count = new int[3];
+        for (String md5 : keys) {
+            StoragePool.Volume volume = pool.place(md5);
+            count[volume.getId()]++;
+            before.put(md5, volume.getId());
+        }
+        log.debug("各卷分布: {}", Arrays.toString(count));
+        // 容量相同的卷分布应大致均匀
+        for (int c : count) {
+            assertTrue(c > keys.size() / 3 * 0.7 && c < keys.size() / 3 * 1.3);
+        }
+
+        // 增加一个卷后，只有约1/4的文件需要迁移，且都迁移到新卷
+        List<String> volumes = new ArrayList<>(DiskConfig.STORE_VOLUMES);
+        volumes.add(root.resolve("v3").toString());
+        DiskConfig.STORE_VOLUMES = volumes;
+        int moved = 0;
+        for (String md5 : keys) {
+            int id = pool.place(md5).getId();
+            if (id != before.get(md5)) {
+                moved++;
+                assertEquals(3, id);
+            }
+        }
+        log.debug("增加卷后迁移比例: {}", (double) moved / keys.size());
+        assertTrue(moved > keys.size() * 0.15 && moved < keys.size() * 0.35);
+    }
+
+    @Test
+    void locateAndLink() throws IOException {
+        StoragePool pool = new StoragePool();
+        String md5 = md5List(1).get(0);
+        assertNull(pool.locateBlob(md5));
+
+        // 文件不在放置卷上时也能找到
+        StoragePool.Volume other = pool.getVolumes().stream().filter(v -> v != pool.place(md5)).findFirst().get();
+        Path blob = other.getBlobPath(md5);
+        Files.createDirectories(blob.getParent());
+        Files.write(blob, "hello".getBytes(StandardCharsets.UTF_8));
+        assertEquals(blob, pool.locateBlob(md5));
+        assertEquals(blob, pool.getBlobPath(md5));
+
+        Path userRoot = pool.getUserRoot("test");
+        Files.createDirectories(userRoot);
+        assertEquals(userRoot, pool.getUserRoot("test"));
+        Path link = userRoot.resolve("a.txt");
+        pool.link(link, blob);
+        assertTrue(Files.isSameFile(link, blob));
+
+        // 原子替换为指向新位置的链接
+        Path dest = pool.place(md5).getBlobPath(md5);
+        Files.createDirectories(dest.getParent());
+        Files.copy(blob, dest);
+        pool.relink(link, dest);
+        Files.delete(blob);
+        assertTrue(Files.isSameFile(link, dest));
+        assertEquals("hello", new String(Files.readAllBytes(link), StandardCharsets.UTF_8));
+        assertEquals(dest, pool.locateBlob(md5));
+    }
+
+    @Test
+    void tiers() throws IOException {
+        DiskConfig.STORE_COLD_VOLUMES = Collections.singletonList(root.resolve("v2").toString());
+        StoragePool pool = new StoragePool();
+        assertTrue(pool.isTiered());
+        for (String md5 : md5List(1000)) {
+            assertFalse(pool.place(md5).isCold());
+            assertEquals(2, pool.place(md5, true).getId());
+        }
+
+        // 迁移到冷层级的文件仍能通过路径解析找到
+        String md5 = md5List(1).get(0);
+        Path cold = pool.place(md5, true).getBlobPath(md5);
+        Files.createDirectories(cold.getParent());
+        Files.write(cold, new byte[]{1, 2, 3});
+        assertEquals(cold, pool.getBlobPath(md5));
+    }
+}
@@ -0,0 +1,101 @@
+package com.xiaotao.saltedfishcloud.service.file.thumbnail;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ThumbnailCacheTest {
+    private Path root;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("thumbnail-cache");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        FileSystemUtils.deleteRecursively(root);
+    }
+
+    private static String key(int i) {
+        return String.format("%032x_256", i);
+    }
+
+    private static Path put(ThumbnailCache cache, String key, int size) throws IOException {
+        Path temp = cache.createTempFile();
+        Files.write(temp, new byte[size]);
+        return cache.put(key, temp);
+    }
+
+    @Test
+    public void lruEviction() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(root, 3000);
+        Path first = put(cache, key(1), 1000);
+        put(cache, key(2), 1000);
+        put(cache, key(3), 1000);
+        assertEquals(3000, cache.getTotalBytes());
+
+        // 访问1后，2成为最久未访问的缩略图
+        assertEquals(first, cache.get(key(1)));
+        put(cache, key(4), 1000);
+        assertNull(cache.get(key(2)));
+        assertNotNull(cache.get(key(1)));
+        assertNotNull(cache.get(key(3)));
+        assertEquals(3000, cache.getTotalBytes());
+        assertEquals(1, cache.getEvictions());
+
+        // 大于上限的缩略图仍会保留，其余全部淘汰
+        Path big = put(cache, key(5), 5000);
+        assertEquals(1, cache.size());
+        assertTrue(Files.exists(big));
+        assertEquals(5000, cache.getTotalBytes());
+    }
+
+    @Test
+    public void reload() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(root, 10000);
+        put(cache, key(1), 100);
+        put(cache, key(2), 200);
+        Path leftover = cache.createTempFile();
+        Files.delete(cache.get(key(2)));
+
+        ThumbnailCache reloaded = new ThumbnailCache(root, 10000);
+        reloaded.load();
+        assertEquals(1, reloaded.size());
+        assertEquals(100, reloaded.getTotalBytes());
+        assertNotNull(reloaded.get(key(1)));
+        assertNull(reloaded.get(key(2)));
+        assertFalse(Files.exists(leftover));
+    }
+
+    @Test
+    public void touchOnHit() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(root, 10000);
+        Path path = put(cache, key(1), 100);
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - ThumbnailCache.TOUCH_INTERVAL * 3);
+
+        // 刚存入的缩略图在间隔内命中时不更新修改时间
+        Files.setLastModifiedTime(path, old);
+        assertEquals(path, cache.get(key(1)));
+        assertEquals(old, Files.getLastModifiedTime(path));
+
+        // 重新加载后按文件修改时间记录，超过间隔的命中会更新修改时间
+        ThumbnailCache reloaded = new ThumbnailCache(root, 10000);
+        reloaded.load();
+        assertEquals(path, reloaded.get(key(1)));
+        assertTrue(Files.getLastModifiedTime(path).compareTo(old) > 0);
+
+        // 文件被删除后视为未命中
+        Files.delete(path);
+        assertNull(reloaded.get(key(1)));
+        assertEquals(0, reloaded.getTotalBytes());
+    }
+}
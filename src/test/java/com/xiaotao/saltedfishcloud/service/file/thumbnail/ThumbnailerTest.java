@@ -0,0 +1,71 @@
+package com.xiaotao.saltedfishcloud.service.file.thumbnail;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ThumbnailerTest {
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage thumbnail(byte[] data, int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Thumbnailer.generate(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)), size, out);
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void scale() throws IOException {
+        BufferedImage image = new BufferedImage(4000, 3000, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, 2000, 3000);
+        g.setColor(Color.BLUE);
+        g.fillRect(2000, 0, 2000, 3000);
+        g.dispose();
+
+        BufferedImage res = thumbnail(encode(image, "jpg"), 256);
+        assertEquals(256, res.getWidth());
+        assertEquals(192, res.getHeight());
+        Color left = new Color(res.getRGB(32, 96));
+        Color right = new Color(res.getRGB(224, 96));
+        assertTrue(left.getRed() > 200 && left.getBlue() < 60);
+        assertTrue(right.getBlue() > 200 && right.getRed() < 60);
+    }
+
+    @Test
+    public void smallAndTransparent() throws IOException {
+        BufferedImage image = new BufferedImage(100, 50, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage res = thumbnail(encode(image, "png"), 256);
+        // 原图较小时不放大，透明部分填充为白色
+        assertEquals(100, res.getWidth());
+        assertEquals(50, res.getHeight());
+        Color c = new Color(res.getRGB(50, 25));
+        assertTrue(c.getRed() > 240 && c.getGreen() > 240 && c.getBlue() > 240);
+    }
+
+    @Test
+    public void unsupported() {
+        assertThrows(IIOException.class, () -> thumbnail("not an image".getBytes(), 256));
+        assertTrue(ThumbnailService.isSupported("a.JPG"));
+        assertTrue(ThumbnailService.isSupported("a.png"));
+        assertFalse(ThumbnailService.isSupported("a.txt"));
+        assertFalse(ThumbnailService.isSupported("png"));
+        assertEquals(128, ThumbnailService.normalizeSize(1));
+        assertEquals(512, ThumbnailService.normalizeSize(300));
+        assertEquals(1024, ThumbnailService.normalizeSize(5000));
+    }
+}
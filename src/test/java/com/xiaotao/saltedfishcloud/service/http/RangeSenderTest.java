@@ -0,0 +1,285 @@
+package com.xiaotao.saltedfishcloud.service.http;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+public class RangeSenderTest {
+    /**
+     * 5GiB的稀疏文件，4GiB边界与文件末尾附近写入了标记数据
+     */
+    private static final long LENGTH = 5L * 1024 * 1024 * 1024 + 10;
+    private static final long BOUNDARY = 4L * 1024 * 1024 * 1024;
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+    private static Path file;
+    private static long lastModified;
+
+    private final RangeSender sender = new RangeSender();
+
+    @BeforeAll
+    public static void createFile() throws IOException {
+        file = Files.createTempFile("range", ".bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(LENGTH);
+            raf.seek(BOUNDARY - 5);
+            raf.write("0123456789".getBytes(StandardCharsets.US_ASCII));
+            raf.seek(LENGTH - 10);
+            raf.write("abcdefghij".getBytes(StandardCharsets.US_ASCII));
+        }
+        lastModified = Files.getLastModifiedTime(file).toMillis();
+    }
+
+    @AfterAll
+    public static void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private MockHttpServletResponse send(MockHttpServletRequest request) throws IOException {
+        return send(request, new FileSystemResource(file));
+    }
+
+    private MockHttpServletResponse send(MockHttpServletRequest request, Resource resource) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setContentType("application/octet-stream");
+        sender.send(request, response, resource, MD5, resource.isFile() ? lastModified : -1);
+        return response;
+    }
+
+    private static MockHttpServletRequest get(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        if (range != null) {
+            request.addHeader("Range", range);
+        }
+        return request;
+    }
+
+    @Test
+    public void singleRange() throws IOException {
+        MockHttpServletResponse response = send(get("bytes=" + (BOUNDARY - 5) + "-" + (BOUNDARY + 4)));
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes " + (BOUNDARY - 5) + "-" + (BOUNDARY + 4) + "/" + LENGTH, response.getHeader("Content-Range"));
+        assertEquals("0123456789", response.getContentAsString());
+        assertEquals("\"" + MD5 + "\"", response.getHeader("ETag"));
+        assertEquals("bytes", response.getHeader("Accept-Ranges"));
+
+        // 后缀区间与超出文件末尾的区间
+        assertEquals("ghij", send(get("bytes=-4")).getContentAsString());
+        response = send(get("bytes=" + (LENGTH - 3) + "-" + (LENGTH + 100)));
+        assertEquals("hij", response.getContentAsString());
+        assertEquals("bytes " + (LENGTH - 3) + "-" + (LENGTH - 1) + "/" + LENGTH, response.getHeader("Content-Range"));
+
+        // 不经过文件通道的资源
+        Resource bytes = new ByteArrayResource("hello world".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("world", send(get("bytes=6-"), bytes).getContentAsString());
+    }
+
+    @Test
+    public void multiRange() throws IOException {
+        MockHttpServletResponse response = send(get("bytes=" + (LENGTH - 2) + "-, 0-1, " + (BOUNDARY - 5) + "-" + (BOUNDARY - 1) + "," + (BOUNDARY - 3) + "-" + BOUNDARY));
+        assertEquals(206, response.getStatus());
+        String contentType = response.getContentType();
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        byte[] body = response.getContentAsByteArray();
+        assertEquals(body.length, response.getContentLengthLong());
+
+        // 重叠的区间合并，按起始位置排序
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        String[] parts = text.split("\r\n--" + boundary);
+        assertEquals(5, parts.length);
+        assertEquals("", parts[0]);
+        assertEquals("\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 0-1/" + LENGTH + "\r\n\r\n\0\0", parts[1]);
+        assertTrue(parts[2].endsWith("Content-Range: bytes " + (BOUNDARY - 5) + "-" + BOUNDARY + "/" + LENGTH + "\r\n\r\n012345"));
+        assertTrue(parts[3].endsWith("Content-Range: bytes " + (LENGTH - 2) + "-" + (LENGTH - 1) + "/" + LENGTH + "\r\n\r\nij"));
+        assertEquals("--\r\n", parts[4]);
+    }
+
+    @Test
+    public void fullAndInvalid() throws IOException {
+        MockHttpServletRequest head = new MockHttpServletRequest("HEAD", "/");
+        head.addHeader("Range", "bytes=0-1");
+        MockHttpServletResponse response = send(head);
+        assertEquals(200, response.getStatus());
+        assertEquals(LENGTH, response.getContentLengthLong());
+        assertEquals(0, response.getContentAsByteArray().length);
+
+        response = send(get("bytes=" + LENGTH + "-"));
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */" + LENGTH, response.getHeader("Content-Range"));
+
+        // 格式错误或区间过多时忽略Range
+        assertNull(RangeSender.parseRanges("bytes=5-1", LENGTH));
+        assertNull(RangeSender.parseRanges("items=0-1", LENGTH));
+        assertNull(RangeSender.parseRanges("bytes=a-b", LENGTH));
+        String[] many = new String[RangeSender.MAX_RANGES + 1];
+        Arrays.fill(many, "0-1");
+        assertNull(RangeSender.parseRanges("bytes=" + String.join(",", many), LENGTH));
+        assertEquals(1, RangeSender.parseRanges("bytes=0-1,2-3", LENGTH).size());
+    }
+
+    @Test
+    public void conditional() throws IOException {
+        MockHttpServletRequest request = get(null);
+        request.addHeader("If-None-Match", "\"other\", W/\"" + MD5 + "\"");
+        assertEquals(304, send(request).getStatus());
+
+        request = get(null);
+        request.addHeader("If-Modified-Since", lastModified + 1000);
+        MockHttpServletResponse response = send(request);
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+
+        // If-None-Match不匹配时忽略If-Modified-Since
+        Resource bytes = new ByteArrayResource("hello world".getBytes(StandardCharsets.US_ASCII));
+        request = get(null);
+        request.addHeader("If-None-Match", "\"other\"");
+        request.addHeader("If-Modified-Since", lastModified + 1000);
+        assertEquals("hello world", send(request, bytes).getContentAsString());
+
+        // If-Range匹配时响应区间，不匹配时响应完整内容
+        request = get("bytes=0-4");
+        request.addHeader("If-Range", "\"" + MD5 + "\"");
+        assertEquals("hello", send(request, bytes).getContentAsString());
+        request = get("bytes=0-4");
+        request.addHeader("If-Range", "W/\"" + MD5 + "\"");
+        response = send(request, bytes);
+        assertEquals(200, response.getStatus());
+        assertEquals("hello world", response.getContentAsString());
+
+        request = get("bytes=" + (BOUNDARY - 1) + "-" + BOUNDARY);
+        request.addHeader("If-Range", lastModified / 1000 * 1000);
+        response = send(request);
+        assertEquals(206, response.getStatus());
+        assertEquals("45", response.getContentAsString());
+    }
+
+    @Test
+    public void sendfile() throws IOException {
+        MockHttpServletRequest request = get(null);
+        request.setAttribute("org.apache.tomcat.sendfile.support", true);
+        MockHttpServletResponse response = send(request);
+        assertEquals(200, response.getStatus());
+        assertEquals(LENGTH, response.getContentLengthLong());
+        assertEquals(file.toFile().getAbsolutePath(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+        assertEquals(0L, request.getAttribute("org.apache.tomcat.sendfile.start"));
+        assertEquals(LENGTH, request.getAttribute("org.apache.tomcat.sendfile.end"));
+        assertEquals(0, response.getContentAsByteArray().length);
+
+        request = get("bytes=" + BOUNDARY + "-");
+        request.setAttribute("org.apache.tomcat.sendfile.support", true);
+        assertEquals(206, send(request).getStatus());
+        assertEquals(BOUNDARY, request.getAttribute("org.apache.tomcat.sendfile.start"));
+        assertEquals(LENGTH, request.getAttribute("org.apache.tomcat.sendfile.end"));
+
+        // 数据量较小或多区间时直接写入
+        request = get("bytes=" + (BOUNDARY - 5) + "-" + (BOUNDARY + 4));
+        request.setAttribute("org.apache.tomcat.sendfile.support", true);
+        assertEquals("0123456789", send(request).getContentAsString());
+        assertNull(request.getAttribute("org.apache.tomcat.sendfile.filename"));
+    }
+
+    /**
+     * 对比经由Servlet输出流的写入方式（64KiB缓冲区按位置读取后写入）与sendfile方式（FileChannel.transferTo到套接字）
+     * 通过本机回环连接发送1GiB文件的吞吐量与发送线程的CPU时间
+     */
+    @Test
+    @Disabled("基准测试，需手动运行")
+    public void benchmark() throws Exception {
+        Path data = Files.createTempFile("range-bench", ".bin");
+        try {
+            byte[] block = new byte[1024 * 1024];
+            new Random(1).nextBytes(block);
+            try (OutputStream out = Files.newOutputStream(data)) {
+                for (int i = 0; i < 1024; i++) {
+                    out.write(block);
+                }
+            }
+            long size = Files.size(data);
+            for (int round = 0; round < 3; round++) {
+                long[] stream = transfer(data, size, false);
+                long[] zeroCopy = transfer(data, size, true);
+                log.info(String.format("stream: %.0f MiB/s cpu %d ms, sendfile: %.0f MiB/s cpu %d ms",
+                        size / 1048576.0 / (stream[0] / 1e9), stream[1] / 1000000,
+                        size / 1048576.0 / (zeroCopy[0] / 1e9), zeroCopy[1] / 1000000));
+            }
+        } finally {
+            Files.deleteIfExists(data);
+        }
+    }
+
+    /**
+     * @return  耗时与发送线程CPU时间（纳秒）
+     */
+    private static long[] transfer(Path data, long size, boolean zeroCopy) throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread reader = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+                    while (channel.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            reader.start();
+            long begin = System.nanoTime();
+            long cpu = bean.getCurrentThreadCpuTime();
+            try (SocketChannel socket = SocketChannel.open(server.getLocalAddress());
+                 FileChannel channel = FileChannel.open(data, StandardOpenOption.READ)) {
+                if (zeroCopy) {
+                    long position = 0;
+                    while (position < size) {
+                        position += channel.transferTo(position, size - position, socket);
+                    }
+                } else {
+                    OutputStream out = Channels.newOutputStream(socket);
+                    byte[] buf = new byte[64 * 1024];
+                    ByteBuffer buffer = ByteBuffer.wrap(buf);
+                    long position = 0;
+                    while (position < size) {
+                        buffer.clear();
+                        int n = channel.read(buffer, position);
+                        out.write(buf, 0, n);
+                        position += n;
+                    }
+                }
+            }
+            long[] res = {System.nanoTime() - begin, bean.getCurrentThreadCpuTime() - cpu};
+            reader.join();
+            return res;
+        }
+    }
+}
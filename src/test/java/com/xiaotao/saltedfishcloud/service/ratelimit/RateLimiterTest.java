@@ -0,0 +1,92 @@
+package com.xiaotao.saltedfishcloud.service.ratelimit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTest {
+
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    @Test
+    public void reserve() {
+        TokenBucket bucket = new TokenBucket(1000, 500);
+        long now = System.nanoTime();
+        // 桶满时可突发取出容量内的令牌
+        assertEquals(0, bucket.reserve(500, now));
+        // 透支的令牌按速率换算为等待时间
+        assertTrue(Math.abs(TimeUnit.MILLISECONDS.toNanos(100) - bucket.reserve(100, now)) < 1000);
+        // 后来者需等待之前的透支偿还
+        assertTrue(Math.abs(TimeUnit.MILLISECONDS.toNanos(200) - bucket.reserve(100, now)) < 1000);
+        // 时间流逝后令牌恢复，但不超过容量
+        long later = now + TimeUnit.SECONDS.toNanos(10);
+        assertEquals(0, bucket.reserve(500, later));
+        assertTrue(bucket.reserve(1, later) > 0);
+    }
+
+    @Test
+    public void throughput() throws IOException {
+        long rate = 1024 * 1024;
+        RateLimiter limiter = new RateLimiter(new TokenBucket(rate, RateLimiter.SLICE));
+        byte[] data = new byte[512 * 1024];
+        long begin = System.nanoTime();
+        try (OutputStream out = limiter.wrap(NULL)) {
+            out.write(data);
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        assertTrue(seconds > 0.4 && seconds < 1.0, "耗时：" + seconds);
+
+        begin = System.nanoTime();
+        try (InputStream in = limiter.wrap(new ByteArrayInputStream(data))) {
+            byte[] buf = new byte[100_000];
+            while (in.read(buf) != -1) ;
+        }
+        seconds = (System.nanoTime() - begin) / 1e9;
+        assertTrue(seconds > 0.4 && seconds < 1.0, "耗时：" + seconds);
+    }
+
+    /**
+     * 共享同一个令牌桶的并发传输平分带宽，另一个桶更慢时以更慢的为准
+     */
+    @Test
+    public void fairSharing() throws Exception {
+        TokenBucket shared = new TokenBucket(2 * 1024 * 1024, RateLimiter.SLICE);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            long begin = System.nanoTime();
+            Callable<Long> task = () -> {
+                try (OutputStream out = new RateLimiter(shared).wrap(NULL)) {
+                    out.write(new byte[512 * 1024]);
+                }
+                return System.nanoTime() - begin;
+            };
+            Future<Long> a = executor.submit(task);
+            Future<Long> b = executor.submit(task);
+            double ta = a.get() / 1e9;
+            double tb = b.get() / 1e9;
+            // 总计1MiB，速率2MiB/s，两个传输应几乎同时在约0.5秒时结束
+            assertTrue(Math.abs(ta - tb) < 0.1, ta + " " + tb);
+            assertTrue(ta > 0.4 && ta < 1.0, "耗时：" + ta);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        RateLimiter both = new RateLimiter(new TokenBucket(4 * 1024 * 1024, RateLimiter.SLICE), new TokenBucket(512 * 1024, RateLimiter.SLICE));
+        long begin = System.nanoTime();
+        both.acquire(256 * 1024);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        assertTrue(seconds > 0.4 && seconds < 1.0, "耗时：" + seconds);
+    }
+}
@@ -0,0 +1,184 @@
+package com.xiaotao.saltedfishcloud.service.ratelimit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UploadRateLimitFilterTest {
+    private static final String BOUNDARY = "----upload-test";
+
+    /**
+     * 记录状态码与响应体的响应
+     */
+    private static class Result {
+        int status = 200;
+        String contentType;
+        final StringWriter body = new StringWriter();
+        HttpServletRequest forwarded;
+        byte[] file;
+    }
+
+    private static UploadRateLimitFilter filter(long maxFileSize) {
+        UploadRateLimitFilter filter = new UploadRateLimitFilter();
+        MultipartProperties properties = new MultipartProperties();
+        properties.setMaxFileSize(DataSize.ofBytes(maxFileSize));
+        properties.setMaxRequestSize(DataSize.ofBytes(maxFileSize * 2));
+        inject(filter, "multipartProperties", properties);
+        inject(filter, "rateLimitService", new RateLimitService() {
+            @Override
+            public RateLimiter getUploadLimiter(HttpServletRequest request) {
+                return new RateLimiter(new TokenBucket(1024 * 1024 * 1024, 1024 * 1024 * 1024));
+            }
+        });
+        return filter;
+    }
+
+    private static void inject(Object target, String name, Object value) {
+        Field field = ReflectionUtils.findField(target.getClass(), name);
+        assertNotNull(field);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+
+    private static byte[] multipart(byte[] file) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String head = "--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"file\"; filename=\"a.bin\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n";
+        out.write(head.getBytes(StandardCharsets.UTF_8), 0, head.length());
+        out.write(file, 0, file.length);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        out.write(tail, 0, tail.length);
+        return out.toByteArray();
+    }
+
+    private static Result upload(UploadRateLimitFilter filter, byte[] body) throws Exception {
+        ByteArrayInputStream input = new ByteArrayInputStream(body);
+        ServletInputStream stream = new ServletInputStream() {
+            @Override
+            public boolean isFinished() {
+                return input.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+
+            @Override
+            public int read() {
+                return input.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return input.read(b, off, len);
+            }
+        };
+        Map<String, Object> attributes = new HashMap<>();
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(UploadRateLimitFilterTest.class.getClassLoader(), new Class[]{HttpServletRequest.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getMethod":
+                    return "POST";
+                case "getContentType":
+                    return "multipart/form-data; boundary=" + BOUNDARY;
+                case "getContentLength":
+                    return body.length;
+                case "getContentLengthLong":
+                    return (long) body.length;
+                case "getHeader":
+                    return "Content-Length".equalsIgnoreCase((String) args[0]) ? String.valueOf(body.length) : null;
+                case "getInputStream":
+                    return stream;
+                case "getDispatcherType":
+                    return DispatcherType.REQUEST;
+                case "getAttribute":
+                    return attributes.get(args[0]);
+                case "setAttribute":
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                case "removeAttribute":
+                    attributes.remove(args[0]);
+                    return null;
+                default:
+                    return null;
+            }
+        });
+        Result result = new Result();
+        PrintWriter writer = new PrintWriter(result.body);
+        HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(UploadRateLimitFilterTest.class.getClassLoader(), new Class[]{HttpServletResponse.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "setStatus":
+                    result.status = (Integer) args[0];
+                    return null;
+                case "setContentType":
+                    result.contentType = (String) args[0];
+                    return null;
+                case "getWriter":
+                    return writer;
+                default:
+                    return null;
+            }
+        });
+        filter.doFilter(request, response, (req, res) -> {
+            result.forwarded = (HttpServletRequest) req;
+            // 上传的临时文件在请求结束后删除，需在过滤器链中读取
+            if (req instanceof MultipartHttpServletRequest) {
+                result.file = ((MultipartHttpServletRequest) req).getFile("file").getBytes();
+            }
+        });
+        writer.flush();
+        return result;
+    }
+
+    @Test
+    public void parse() throws Exception {
+        byte[] file = new byte[1000];
+        file[999] = 7;
+        Result result = upload(filter(1024), multipart(file));
+        assertEquals(200, result.status);
+        assertTrue(result.forwarded instanceof MultipartHttpServletRequest);
+        assertArrayEquals(file, result.file);
+    }
+
+    @Test
+    public void oversized() throws Exception {
+        // 超出大小限制时响应413与JSON错误信息，不进入后续的过滤器链
+        Result result = upload(filter(1024), multipart(new byte[4096]));
+        assertEquals(413, result.status);
+        assertNull(result.forwarded);
+        assertEquals("application/json;charset=utf-8", result.contentType);
+        assertTrue(result.body.toString().contains("\"code\":413"), result.body.toString());
+
+        // 不完整的请求体响应400
+        byte[] body = multipart(new byte[100]);
+        result = upload(filter(1024), Arrays.copyOf(body, body.length - 20));
+        assertEquals(400, result.status);
+        assertNull(result.forwarded);
+        assertTrue(result.body.toString().contains("\"code\":400"), result.body.toString());
+    }
+}
@@ -3,6 +3,7 @@ package com.xiaotao.saltedfishcloud.service.sync;
 import com.xiaotao.saltedfishcloud.config.StoreType;
 import com.xiaotao.saltedfishcloud.dao.mybatis.UserDao;
 import com.xiaotao.saltedfishcloud.service.config.ConfigService;
+import com.xiaotao.saltedfishcloud.service.config.StoreTypeSwitch;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -19,10 +20,13 @@ class SyncServiceTest {
     private ConfigService configService;
     @Resource
     private UserDao userDao;
+    @Resource
+    private StoreTypeSwitch storeTypeSwitch;
 
     @Test
     void syncLocal() throws Exception {
         configService.setStoreType(StoreType.RAW);
+        storeTypeSwitch.await(60000);
 //        syncService.syncLocal(User.getPublicUser());
         syncService.syncLocal(userDao.getUserByUser("xiaotao"));
     }
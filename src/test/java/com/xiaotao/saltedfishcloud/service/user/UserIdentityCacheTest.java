@@ -0,0 +1,124 @@
+package com.xiaotao.saltedfishcloud.service.user;
+
+import com.xiaotao.saltedfishcloud.config.DiskConfig;
+import com.xiaotao.saltedfishcloud.dao.mybatis.UserDao;
+import com.xiaotao.saltedfishcloud.po.User;
+import com.xiaotao.saltedfishcloud.po.file.BasicFileInfo;
+import com.xiaotao.saltedfishcloud.service.file.path.RawPathHandler;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+class UserIdentityCacheTest {
+    private final AtomicInteger queries = new AtomicInteger();
+    private String originStoreRoot;
+    private UserDao userDao;
+
+    /**
+     * 模拟数据库的用户表，每次查询耗时约0.2ms
+     */
+    @BeforeEach
+    void init() {
+        originStoreRoot = DiskConfig.STORE_ROOT;
+        DiskConfig.STORE_ROOT = "/data/store";
+        userDao = (UserDao) Proxy.newProxyInstance(UserDao.class.getClassLoader(), new Class[]{UserDao.class}, (proxy, method, args) -> {
+            queries.incrementAndGet();
+            long until = System.nanoTime() + 200_000;
+            while (System.nanoTime() < until) {
+                Thread.yield();
+            }
+            User user = new User();
+            switch (method.getName()) {
+                case "getUserById":
+                    user.setId((Integer) args[0]);
+                    user.setUser("user" + args[0]);
+                    return user;
+                case "getUserByUser":
+                    user.setUser((String) args[0]);
+                    user.setId(Integer.parseInt(((String) args[0]).substring(4)));
+                    return user;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    @AfterEach
+    void clean() {
+        DiskConfig.STORE_ROOT = originStoreRoot;
+        new DiskConfig(null, null, null, null, null);
+    }
+
+    /**
+     * 模拟同步检测中逐文件解析本地路径
+     */
+    private long resolve(RawPathHandler handler, int files) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            String path = handler.getStorePath(1, "/dir" + (i % 100), new BasicFileInfo("f" + i, null));
+            assertTrue(path.startsWith("/data/store/user_file/user1"));
+        }
+        return System.nanoTime() - begin;
+    }
+
+    @Test
+    void cachedResolve() {
+        int files = 1000;
+        RawPathHandler handler = new RawPathHandler();
+
+        // 无缓存时每个文件都查询一次数据库，有缓存时只查询一次
+        new DiskConfig(userDao, handler, null, null, null);
+        resolve(handler, files);
+        assertEquals(files, queries.getAndSet(0));
+
+        new DiskConfig(userDao, handler, null, null, new UserIdentityCache(userDao));
+        resolve(handler, files);
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    @Disabled("基准测试，需手动运行")
+    void benchmark() {
+        int files = 5000;
+        RawPathHandler handler = new RawPathHandler();
+
+        new DiskConfig(userDao, handler, null, null, null);
+        long before = resolve(handler, files);
+        int beforeQueries = queries.getAndSet(0);
+
+        new DiskConfig(userDao, handler, null, null, new UserIdentityCache(userDao));
+        long after = resolve(handler, files);
+        int afterQueries = queries.get();
+
+        log.info(String.format("解析%d个文件路径 无缓存: %d ms, %d次查询; 有缓存: %d ms, %d次查询",
+                files, before / 1000000, beforeQueries, after / 1000000, afterQueries));
+    }
+
+    @Test
+    void invalidate() {
+        UserIdentityCache cache = new UserIdentityCache(userDao);
+        assertEquals("user3", cache.getUsername(3));
+        assertEquals(3, (int) cache.getUid("user3"));
+        assertEquals("/data/store/user_file/user3", cache.getStoreRoot(3));
+        assertEquals(1, queries.get());
+
+        cache.invalidate("user3");
+        assertEquals(0, cache.size());
+        assertEquals("user3", cache.getUsername(3));
+        assertEquals(2, queries.get());
+
+        // 存储根目录变化后网盘根目录重新解析
+        DiskConfig.STORE_ROOT = "/data/store2";
+        assertEquals("/data/store2/user_file/user3", cache.getStoreRoot(3));
+        assertEquals(DiskConfig.PUBLIC_ROOT, cache.getStoreRoot(0));
+        assertEquals(2, queries.get());
+    }
+}